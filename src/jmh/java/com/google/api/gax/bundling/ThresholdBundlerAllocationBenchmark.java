@@ -0,0 +1,114 @@
+/*
+ * Copyright 2015, Google Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ *     * Neither the name of Google Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.google.api.gax.bundling;
+
+import org.joda.time.Duration;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures a full bundle cycle of ThresholdBundler on a single thread: adding elements
+ * until the element count threshold is reached and taking the bundle. Run it with the GC
+ * profiler (-PjmhArgs='ThresholdBundlerAllocationBenchmark -prof gc'); gc.alloc.rate.norm
+ * is the number of bytes allocated per bundle, which should be no more than the bundle
+ * list and its handle when the thresholds are resettable.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+public class ThresholdBundlerAllocationBenchmark {
+  private static final Integer ELEMENT = 42;
+  private static final int BUNDLE_SIZE = 100;
+
+  @Param({"true", "false"})
+  public boolean resettableThresholds;
+
+  private ThresholdBundler<Integer> bundler;
+
+  @Setup
+  public void setUp() {
+    ThresholdBundler.Builder<Integer> builder = ThresholdBundler.<Integer>newBuilder()
+        .setMaxDelay(Duration.standardSeconds(10));
+    if (resettableThresholds) {
+      builder.setThresholds(BundlingThresholds.<Integer>of(BUNDLE_SIZE));
+    } else {
+      builder.addThreshold(new CopiedElementCountThreshold());
+    }
+    bundler = builder.build();
+  }
+
+  @Benchmark
+  public List<Integer> bundleCycle() {
+    for (int i = 0; i < BUNDLE_SIZE; i++) {
+      bundler.add(ELEMENT);
+    }
+    return bundler.pollBundle();
+  }
+
+  /**
+   * An element count threshold which does not implement ResettableThreshold, so it is
+   * copied for each bundle.
+   */
+  private static class CopiedElementCountThreshold implements BundlingThreshold<Integer> {
+    private long sum;
+
+    @Override
+    public void accumulate(Integer e) {
+      sum += 1;
+    }
+
+    @Override
+    public boolean isThresholdReached() {
+      return sum >= BUNDLE_SIZE;
+    }
+
+    @Override
+    public BundlingThreshold<Integer> copyWithZeroedValue() {
+      return new CopiedElementCountThreshold();
+    }
+  }
+}
@@ -0,0 +1,300 @@
+/*
+ * Copyright 2015, Google Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ *     * Neither the name of Google Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.google.api.gax.bundling;
+
+import com.google.common.base.Preconditions;
+
+import java.util.concurrent.TimeUnit;
+
+import org.joda.time.Duration;
+
+/**
+ * Tunes the delay and element count targets of a ThresholdBundler within configured
+ * bounds, so that elements are sent within a target latency while bundles are kept
+ * as large as that allows.
+ *
+ * The controller observes the arrival rate of elements and whether each bundle was
+ * filled up to the element count target or sent for another reason, such as the
+ * delay. It is also told how long each bundle took to send. The time left of the
+ * target latency after sending is the time elements can wait in the bundler: it
+ * becomes the delay target, and the number of elements expected to arrive within
+ * it becomes the element count target. At low load, this makes bundles go out
+ * almost right away; at high load, bundles grow up to the bounds. If sending alone
+ * takes longer than the target latency, the targets are lowered to the minimums.
+ *
+ * One controller should be used per bundler. It takes part in bundling through
+ * the threshold returned by getElementCountThreshold() and the delay target, both
+ * of which ThresholdBundler picks up when the controller is set on its builder.
+ */
+public class AdaptiveBundlingController<E> {
+  // The weight of a new sample in the moving averages.
+  private static final double SMOOTHING = 0.2;
+
+  private final ElementCounter<E> elementCounter;
+  private final long minDelayMillis;
+  private final long maxDelayMillis;
+  private final long minElementCount;
+  private final long maxElementCount;
+  private final long targetLatencyNanos;
+
+  private volatile long delayTargetMillis;
+  private volatile long elementCountTarget;
+
+  // guarded by this
+  private double arrivalsPerNano;
+  private double bundleLatencyNanos;
+  private long lastBundleNanos = System.nanoTime();
+  private boolean hasArrivalRate;
+  private boolean hasBundleLatency;
+
+  private AdaptiveBundlingController(Builder<E> builder) {
+    this.elementCounter = Preconditions.checkNotNull(builder.elementCounter);
+    this.minDelayMillis = builder.minDelay.getMillis();
+    this.maxDelayMillis = builder.maxDelay.getMillis();
+    this.minElementCount = builder.minElementCount;
+    this.maxElementCount = builder.maxElementCount;
+    this.targetLatencyNanos = TimeUnit.MILLISECONDS.toNanos(builder.targetLatency.getMillis());
+    Preconditions.checkArgument(minDelayMillis >= 0 && minDelayMillis <= maxDelayMillis,
+        "invalid delay bounds");
+    Preconditions.checkArgument(minElementCount > 0 && minElementCount <= maxElementCount,
+        "invalid element count bounds");
+    // Until something is observed, behave like static thresholds at the upper bounds.
+    this.delayTargetMillis = maxDelayMillis;
+    this.elementCountTarget = maxElementCount;
+  }
+
+  /**
+   * Builder for an AdaptiveBundlingController.
+   */
+  public static class Builder<E> {
+    private ElementCounter<E> elementCounter;
+    private Duration minDelay = Duration.ZERO;
+    private Duration maxDelay;
+    private long minElementCount = 1;
+    private long maxElementCount;
+    private Duration targetLatency;
+
+    private Builder() {}
+
+    /**
+     * Set the counter for the number of elements contained in each item.
+     */
+    public Builder<E> setElementCounter(ElementCounter<E> elementCounter) {
+      this.elementCounter = elementCounter;
+      return this;
+    }
+
+    /**
+     * Set the bounds for the delay target. The lower bound defaults to zero.
+     */
+    public Builder<E> setDelayBounds(Duration minDelay, Duration maxDelay) {
+      this.minDelay = minDelay;
+      this.maxDelay = maxDelay;
+      return this;
+    }
+
+    /**
+     * Set the bounds for the element count target. The lower bound must be at least 1.
+     */
+    public Builder<E> setElementCountBounds(long minElementCount, long maxElementCount) {
+      this.minElementCount = minElementCount;
+      this.maxElementCount = maxElementCount;
+      return this;
+    }
+
+    /**
+     * Set the latency within which elements should be sent, counted from when they
+     * are added until the bundle they are part of has been sent.
+     */
+    public Builder<E> setTargetLatency(Duration targetLatency) {
+      this.targetLatency = targetLatency;
+      return this;
+    }
+
+    /**
+     * Build the AdaptiveBundlingController.
+     */
+    public AdaptiveBundlingController<E> build() {
+      Preconditions.checkNotNull(maxDelay, "delay bounds must be set");
+      Preconditions.checkNotNull(targetLatency, "target latency must be set");
+      return new AdaptiveBundlingController<E>(this);
+    }
+  }
+
+  /**
+   * Get a new builder for an AdaptiveBundlingController.
+   */
+  public static <T> Builder<T> newBuilder() {
+    return new Builder<T>();
+  }
+
+  /**
+   * Returns a threshold which is reached when the current element count target is
+   * reached, and which reports each bundle to this controller.
+   */
+  public BundlingThreshold<E> getElementCountThreshold() {
+    return new ElementCountThreshold();
+  }
+
+  /**
+   * Returns whether the given threshold was created by getElementCountThreshold().
+   */
+  public boolean isElementCountThreshold(BundlingThreshold<?> threshold) {
+    return threshold instanceof AdaptiveBundlingController.ElementCountThreshold;
+  }
+
+  /**
+   * Returns the current delay target.
+   */
+  public Duration getDelayTarget() {
+    return Duration.millis(delayTargetMillis);
+  }
+
+  /**
+   * Returns the current element count target.
+   */
+  public long getElementCountTarget() {
+    return elementCountTarget;
+  }
+
+  /**
+   * Returns the observed arrival rate of elements, in elements per second.
+   */
+  public synchronized double getArrivalRate() {
+    return arrivalsPerNano * TimeUnit.SECONDS.toNanos(1);
+  }
+
+  /**
+   * Returns the observed time it takes to send a bundle.
+   */
+  public synchronized Duration getBundleLatency() {
+    return Duration.millis(TimeUnit.NANOSECONDS.toMillis((long) bundleLatencyNanos));
+  }
+
+  /**
+   * Records how long it took to send a bundle.
+   */
+  public synchronized void recordBundleLatency(long latencyNanos) {
+    bundleLatencyNanos = hasBundleLatency
+        ? bundleLatencyNanos + SMOOTHING * (latencyNanos - bundleLatencyNanos)
+        : latencyNanos;
+    hasBundleLatency = true;
+    updateTargets();
+  }
+
+  private synchronized void recordBundle(long elementCount, long firstElementNanos,
+      boolean targetReached) {
+    long now = System.nanoTime();
+    // A bundle which filled up shows the rate at which elements arrived while it was
+    // open; any other bundle was open for a fixed time, so the rate is measured since
+    // the previous bundle to also account for idle time.
+    long elapsedNanos = targetReached ? now - firstElementNanos : now - lastBundleNanos;
+    lastBundleNanos = now;
+    double sample = (double) elementCount / Math.max(elapsedNanos, 1);
+    arrivalsPerNano = hasArrivalRate
+        ? arrivalsPerNano + SMOOTHING * (sample - arrivalsPerNano)
+        : sample;
+    hasArrivalRate = true;
+    updateTargets();
+  }
+
+  // pre-condition: this is locked
+  private void updateTargets() {
+    long waitBudgetNanos = targetLatencyNanos - (long) bundleLatencyNanos;
+    if (waitBudgetNanos <= 0) {
+      delayTargetMillis = minDelayMillis;
+      elementCountTarget = Math.max(minElementCount, elementCountTarget / 2);
+      return;
+    }
+    long delayMillis = clamp(TimeUnit.NANOSECONDS.toMillis(waitBudgetNanos),
+        minDelayMillis, maxDelayMillis);
+    delayTargetMillis = delayMillis;
+    if (hasArrivalRate) {
+      long expectedElements =
+          (long) (arrivalsPerNano * TimeUnit.MILLISECONDS.toNanos(delayMillis));
+      elementCountTarget = clamp(expectedElements, minElementCount, maxElementCount);
+    }
+  }
+
+  private static long clamp(long value, long min, long max) {
+    return Math.max(min, Math.min(max, value));
+  }
+
+  private class ElementCountThreshold
+      implements BundlingThreshold<E>, ResettableThreshold, RemovableThreshold<E> {
+    private long sum;
+    private long firstElementNanos;
+    private boolean reached;
+
+    @Override
+    public void accumulate(E e) {
+      if (sum == 0) {
+        firstElementNanos = System.nanoTime();
+      }
+      sum += elementCounter.count(e);
+      if (sum >= elementCountTarget) {
+        reached = true;
+      }
+    }
+
+    @Override
+    public void remove(E e) {
+      sum -= elementCounter.count(e);
+      reached = sum >= elementCountTarget;
+    }
+
+    @Override
+    public boolean isThresholdReached() {
+      return reached;
+    }
+
+    @Override
+    public BundlingThreshold<E> copyWithZeroedValue() {
+      recordCurrentBundle();
+      return new ElementCountThreshold();
+    }
+
+    @Override
+    public void reset() {
+      recordCurrentBundle();
+      sum = 0;
+      reached = false;
+    }
+
+    // ThresholdBundler zeroes its thresholds once for each bundle it hands out.
+    private void recordCurrentBundle() {
+      if (sum > 0) {
+        recordBundle(sum, firstElementNanos, reached);
+      }
+    }
+  }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright 2015, Google Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ *     * Neither the name of Google Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.google.api.gax.bundling;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * A hard upper bound on the sum of a numeric attribute of the elements in a bundle,
+ * for example on the number of bytes in a request. Unlike a threshold, which is only
+ * checked after an element has been added, a limit is checked before: an element which
+ * would take the bundle past the limit closes the bundle, and starts the next one.
+ *
+ * An element which exceeds the limit on its own is put into a bundle by itself.
+ */
+public final class BundlingLimit<E> {
+  private final long limit;
+  private final ElementCounter<E> extractor;
+
+  /**
+   * Constructs a BundlingLimit.
+   */
+  public BundlingLimit(long limit, ElementCounter<E> extractor) {
+    Preconditions.checkArgument(limit > 0, "limit must be positive");
+    this.limit = limit;
+    this.extractor = Preconditions.checkNotNull(extractor);
+  }
+
+  /**
+   * Returns the largest sum a bundle may have.
+   */
+  public long getLimit() {
+    return limit;
+  }
+
+  /**
+   * Returns the counter for the attribute which is limited.
+   */
+  public ElementCounter<E> getElementCounter() {
+    return extractor;
+  }
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright 2015, Google Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ *     * Neither the name of Google Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.google.api.gax.bundling;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.annotation.Nullable;
+
+/**
+ * Records why bundles were handed out by a ThresholdBundler, how large they were,
+ * how long their elements waited in the bundler, and how long the bundles took to
+ * process. Set it on the bundler with ThresholdBundler.Builder.setMetrics(); the
+ * forwarder of the bundler records the processing time.
+ *
+ * All recording is done with atomic counters, and a snapshot can be taken at any
+ * time without blocking the bundler.
+ */
+public class BundlingMetrics<E> {
+  private final ElementCounter<E> elementCounter;
+  private final ElementCounter<E> byteCounter;
+  private final AtomicLongArray fillReasonCounts =
+      new AtomicLongArray(FillReason.values().length);
+  private final LongHistogram elementsPerBundle = new LongHistogram();
+  private final LongHistogram bytesPerBundle = new LongHistogram();
+  private final LongHistogram queueTimeNanos = new LongHistogram();
+  private final LongHistogram processingTimeNanos = new LongHistogram();
+
+  /**
+   * Constructs a BundlingMetrics. If the element counter is null, each item counts as
+   * one element. If the byte counter is null, bytes per bundle are not recorded.
+   */
+  public BundlingMetrics(@Nullable ElementCounter<E> elementCounter,
+      @Nullable ElementCounter<E> byteCounter) {
+    this.elementCounter = elementCounter;
+    this.byteCounter = byteCounter;
+  }
+
+  /**
+   * Records a bundle which was handed out. addNanos holds the System.nanoTime() at
+   * which each item was added.
+   */
+  void recordBundle(FillReason fillReason, List<E> bundle, long[] addNanos, long nowNanos) {
+    fillReasonCounts.incrementAndGet(fillReason.ordinal());
+    long elements = 0;
+    long bytes = 0;
+    for (int i = 0; i < bundle.size(); i++) {
+      E item = bundle.get(i);
+      elements += elementCounter == null ? 1 : elementCounter.count(item);
+      if (byteCounter != null) {
+        bytes += byteCounter.count(item);
+      }
+      queueTimeNanos.record(nowNanos - addNanos[i]);
+    }
+    elementsPerBundle.record(elements);
+    if (byteCounter != null) {
+      bytesPerBundle.record(bytes);
+    }
+  }
+
+  /**
+   * Records how long it took to process a bundle.
+   */
+  void recordProcessingTime(long nanos) {
+    processingTimeNanos.record(nanos);
+  }
+
+  /**
+   * Returns a snapshot of the metrics recorded so far.
+   */
+  public Snapshot snapshot() {
+    long[] counts = new long[fillReasonCounts.length()];
+    for (int i = 0; i < counts.length; i++) {
+      counts[i] = fillReasonCounts.get(i);
+    }
+    return new Snapshot(counts, elementsPerBundle.snapshot(), bytesPerBundle.snapshot(),
+        queueTimeNanos.snapshot(), processingTimeNanos.snapshot());
+  }
+
+  /**
+   * An immutable snapshot of BundlingMetrics.
+   */
+  public static class Snapshot {
+    private final long[] fillReasonCounts;
+    private final LongHistogram.Snapshot elementsPerBundle;
+    private final LongHistogram.Snapshot bytesPerBundle;
+    private final LongHistogram.Snapshot queueTimeNanos;
+    private final LongHistogram.Snapshot processingTimeNanos;
+
+    private Snapshot(long[] fillReasonCounts,
+        LongHistogram.Snapshot elementsPerBundle,
+        LongHistogram.Snapshot bytesPerBundle,
+        LongHistogram.Snapshot queueTimeNanos,
+        LongHistogram.Snapshot processingTimeNanos) {
+      this.fillReasonCounts = fillReasonCounts;
+      this.elementsPerBundle = elementsPerBundle;
+      this.bytesPerBundle = bytesPerBundle;
+      this.queueTimeNanos = queueTimeNanos;
+      this.processingTimeNanos = processingTimeNanos;
+    }
+
+    /**
+     * Returns the number of bundles handed out for the given reason.
+     */
+    public long getFillReasonCount(FillReason fillReason) {
+      return fillReasonCounts[fillReason.ordinal()];
+    }
+
+    /**
+     * Returns the number of bundles handed out.
+     */
+    public long getBundleCount() {
+      long bundleCount = 0;
+      for (long count : fillReasonCounts) {
+        bundleCount += count;
+      }
+      return bundleCount;
+    }
+
+    /**
+     * Returns the histogram of the number of elements per bundle.
+     */
+    public LongHistogram.Snapshot getElementsPerBundle() {
+      return elementsPerBundle;
+    }
+
+    /**
+     * Returns the histogram of the number of bytes per bundle.
+     */
+    public LongHistogram.Snapshot getBytesPerBundle() {
+      return bytesPerBundle;
+    }
+
+    /**
+     * Returns the histogram of the time items waited in the bundler, in nanoseconds.
+     */
+    public LongHistogram.Snapshot getQueueTimeNanos() {
+      return queueTimeNanos;
+    }
+
+    /**
+     * Returns the histogram of the time it took to process bundles, in nanoseconds.
+     */
+    public LongHistogram.Snapshot getProcessingTimeNanos() {
+      return processingTimeNanos;
+    }
+  }
+}
@@ -50,7 +50,7 @@ public class BundlingThresholds {
           public long count(E e) {
             return 1;
           }
-        });
+        }, FillReason.ELEMENT_COUNT);
     return ImmutableList.<BundlingThreshold<E>>of(bundlingThreshold);
   }
 }
@@ -0,0 +1,200 @@
+/*
+ * Copyright 2015, Google Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ *     * Neither the name of Google Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.google.api.gax.bundling;
+
+import com.google.common.base.Preconditions;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * An arena of direct byte buffers, which holds serialized elements outside the heap
+ * while they wait to be bundled, so that large payloads are not promoted to the old
+ * generation of the heap, and only small slice handles stay on the heap.
+ *
+ * The arena allocates slices from fixed-size chunks, one chunk at a time. A chunk is
+ * recycled once all of its slices have been released, and up to maxPooledChunks
+ * recycled chunks are kept for reuse. An element which is larger than a chunk gets a
+ * direct buffer of its own, which is not pooled.
+ *
+ * This class is thread-safe.
+ */
+public class DirectByteArena {
+  private final int chunkBytes;
+  private final int maxPooledChunks;
+  private final ArrayDeque<Chunk> pooledChunks = new ArrayDeque<>();
+  // Guarded by this.
+  private Chunk currentChunk;
+  // Guarded by this.
+  private int liveSliceCount;
+
+  /**
+   * Constructs a DirectByteArena with chunks of the given size.
+   */
+  public DirectByteArena(int chunkBytes, int maxPooledChunks) {
+    Preconditions.checkArgument(chunkBytes > 0, "chunkBytes must be positive");
+    Preconditions.checkArgument(maxPooledChunks >= 0, "maxPooledChunks must not be negative");
+    this.chunkBytes = chunkBytes;
+    this.maxPooledChunks = maxPooledChunks;
+  }
+
+  /**
+   * Copies the given bytes into the arena, and returns the slice which holds them.
+   */
+  public Slice copyOf(byte[] bytes) {
+    Chunk chunk;
+    int offset;
+    synchronized (this) {
+      if (bytes.length > chunkBytes) {
+        chunk = new Chunk(bytes.length);
+      } else {
+        if (currentChunk == null || chunkBytes - currentChunk.position < bytes.length) {
+          retireCurrentChunk();
+          currentChunk = pooledChunks.isEmpty() ? new Chunk(chunkBytes) : pooledChunks.poll();
+        }
+        chunk = currentChunk;
+      }
+      offset = chunk.position;
+      chunk.position += bytes.length;
+      chunk.liveSlices++;
+      liveSliceCount++;
+    }
+    // The range is reserved for this slice, so it can be written outside the lock.
+    ByteBuffer target = chunk.buffer.duplicate();
+    target.position(offset);
+    target.put(bytes);
+    return new Slice(chunk, offset, bytes.length);
+  }
+
+  /**
+   * Returns the number of slices which have not been released yet.
+   */
+  public synchronized int getLiveSliceCount() {
+    return liveSliceCount;
+  }
+
+  /**
+   * Returns the number of recycled chunks which are kept for reuse.
+   */
+  public synchronized int getPooledChunkCount() {
+    return pooledChunks.size();
+  }
+
+  // pre-condition: lock is held
+  private void retireCurrentChunk() {
+    Chunk chunk = currentChunk;
+    currentChunk = null;
+    if (chunk != null && chunk.liveSlices == 0) {
+      recycle(chunk);
+    }
+  }
+
+  // pre-condition: lock is held, the chunk has no live slices and is not current
+  private void recycle(Chunk chunk) {
+    chunk.position = 0;
+    if (chunk.buffer.capacity() == chunkBytes && pooledChunks.size() < maxPooledChunks) {
+      pooledChunks.add(chunk);
+    }
+  }
+
+  private synchronized void release(Slice slice) {
+    Preconditions.checkState(!slice.released, "Slice was already released");
+    slice.released = true;
+    Chunk chunk = slice.chunk;
+    chunk.liveSlices--;
+    liveSliceCount--;
+    if (chunk.liveSlices == 0 && chunk != currentChunk) {
+      recycle(chunk);
+    }
+  }
+
+  /**
+   * A range of the arena which holds the bytes of one element.
+   */
+  public class Slice {
+    private final Chunk chunk;
+    private final int offset;
+    private final int length;
+    // Guarded by the arena.
+    private boolean released;
+
+    private Slice(Chunk chunk, int offset, int length) {
+      this.chunk = chunk;
+      this.offset = offset;
+      this.length = length;
+    }
+
+    /**
+     * Returns the number of bytes of the slice.
+     */
+    public int getLength() {
+      return length;
+    }
+
+    /**
+     * Returns a read-only buffer over the bytes of the slice, which must not be used
+     * after the slice is released.
+     */
+    public ByteBuffer asReadOnlyBuffer() {
+      ByteBuffer buffer = chunk.buffer.asReadOnlyBuffer();
+      buffer.position(offset);
+      buffer.limit(offset + length);
+      return buffer.slice();
+    }
+
+    /**
+     * Returns a copy of the bytes of the slice on the heap.
+     */
+    public byte[] toByteArray() {
+      byte[] bytes = new byte[length];
+      asReadOnlyBuffer().get(bytes);
+      return bytes;
+    }
+
+    /**
+     * Gives the range back to the arena. The slice must not be used afterwards.
+     */
+    public void release() {
+      DirectByteArena.this.release(this);
+    }
+  }
+
+  private static class Chunk {
+    private final ByteBuffer buffer;
+    private int position;
+    private int liveSlices;
+
+    private Chunk(int capacity) {
+      this.buffer = ByteBuffer.allocateDirect(capacity);
+    }
+  }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright 2015, Google Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ *     * Neither the name of Google Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.google.api.gax.bundling;
+
+/**
+ * The reason a bundle was handed out by a ThresholdBundler.
+ */
+public enum FillReason {
+  /** A NumericThreshold counting elements was reached. */
+  ELEMENT_COUNT,
+
+  /** A NumericThreshold counting bytes was reached. */
+  BYTE_COUNT,
+
+  /** Another BundlingThreshold was reached. */
+  OTHER_THRESHOLD,
+
+  /** The next element would have taken the bundle past a BundlingLimit. */
+  SIZE_LIMIT,
+
+  /** An urgent element was added, and its max delay passed. */
+  URGENT,
+
+  /** The deadline of an element, less the send margin, passed. */
+  DEADLINE,
+
+  /** The max delay of the bundle passed. */
+  DELAY,
+
+  /** ThresholdBundler.flush() was called. */
+  FLUSH,
+
+  /** An ExternalThreshold, such as the blocking call threshold, flushed the bundle. */
+  EXTERNAL_THRESHOLD,
+
+  /** The bundle was drained before it was ready, for example when closing. */
+  DRAIN,
+
+  /** The bundle was sent early because its receiver had no bundle in flight. */
+  IDLE
+}
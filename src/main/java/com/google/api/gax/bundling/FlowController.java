@@ -0,0 +1,181 @@
+/*
+ * Copyright 2015, Google Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ *     * Neither the name of Google Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.google.api.gax.bundling;
+
+import com.google.common.base.Preconditions;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.annotation.Nullable;
+
+/**
+ * Keeps track of the number of elements and bytes which are outstanding, and limits
+ * them to a maximum. The accounting is done with atomic counters, so reserving and
+ * releasing does not take a lock unless a caller is blocked waiting for capacity.
+ *
+ * A single reservation larger than a limit is admitted if nothing else is
+ * outstanding, so it can never block forever.
+ */
+public class FlowController {
+  /**
+   * The behavior to use when a reservation would exceed a limit.
+   */
+  public enum LimitExceededBehavior {
+    /**
+     * Block the caller until enough capacity is released.
+     */
+    BLOCK,
+
+    /**
+     * Fail the call right away.
+     */
+    THROW_EXCEPTION,
+
+    /**
+     * Drop the oldest elements which have not been sent yet until the new
+     * element fits, and fail them. Where a limit is shared by several bundlers,
+     * the oldest elements of all of them are dropped. If no element can be
+     * dropped, the call fails right away.
+     */
+    DROP_OLDEST,
+  }
+
+  @Nullable private final Long maxElementCount;
+  @Nullable private final Long maxByteCount;
+  private final AtomicLong outstandingElementCount = new AtomicLong();
+  private final AtomicLong outstandingByteCount = new AtomicLong();
+
+  private final Lock lock = new ReentrantLock();
+  private final Condition releaseCondition = lock.newCondition();
+  private volatile int waiters;
+
+  /**
+   * Constructs a FlowController. A null limit means there is no limit.
+   */
+  public FlowController(@Nullable Long maxElementCount, @Nullable Long maxByteCount) {
+    Preconditions.checkArgument(maxElementCount == null || maxElementCount > 0);
+    Preconditions.checkArgument(maxByteCount == null || maxByteCount > 0);
+    this.maxElementCount = maxElementCount;
+    this.maxByteCount = maxByteCount;
+  }
+
+  /**
+   * Reserves the given number of elements and bytes if this does not exceed the
+   * limits, and returns whether the reservation was made.
+   */
+  public boolean tryReserve(long elements, long bytes) {
+    if (!tryReserve(outstandingElementCount, maxElementCount, elements)) {
+      return false;
+    }
+    if (!tryReserve(outstandingByteCount, maxByteCount, bytes)) {
+      outstandingElementCount.addAndGet(-elements);
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Reserves the given number of elements and bytes, waiting until enough capacity
+   * is released if needed.
+   */
+  public void reserve(long elements, long bytes) throws InterruptedException {
+    if (tryReserve(elements, bytes)) {
+      return;
+    }
+    final Lock lock = this.lock;
+    lock.lockInterruptibly();
+    try {
+      waiters++;
+      try {
+        while (!tryReserve(elements, bytes)) {
+          releaseCondition.await();
+        }
+      } finally {
+        waiters--;
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Releases elements and bytes which were reserved before.
+   */
+  public void release(long elements, long bytes) {
+    outstandingElementCount.addAndGet(-elements);
+    outstandingByteCount.addAndGet(-bytes);
+    // waiters is only changed while the lock is held, and a waiter re-checks the
+    // counters while holding it, so a release cannot be missed.
+    if (waiters > 0) {
+      final Lock lock = this.lock;
+      lock.lock();
+      try {
+        releaseCondition.signalAll();
+      } finally {
+        lock.unlock();
+      }
+    }
+  }
+
+  /**
+   * Returns the number of elements currently reserved.
+   */
+  public long getOutstandingElementCount() {
+    return outstandingElementCount.get();
+  }
+
+  /**
+   * Returns the number of bytes currently reserved.
+   */
+  public long getOutstandingByteCount() {
+    return outstandingByteCount.get();
+  }
+
+  private static boolean tryReserve(AtomicLong outstanding, @Nullable Long max, long count) {
+    if (max == null) {
+      outstanding.addAndGet(count);
+      return true;
+    }
+    while (true) {
+      long current = outstanding.get();
+      if (current > 0 && current + count > max) {
+        return false;
+      }
+      if (outstanding.compareAndSet(current, current + count)) {
+        return true;
+      }
+    }
+  }
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright 2015, Google Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ *     * Neither the name of Google Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.google.api.gax.bundling;
+
+import com.google.common.base.Preconditions;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of non-negative long values with exponentially sized buckets: bucket 0
+ * counts zeros, and bucket i counts values from 2^(i-1) to 2^i - 1. Recording only
+ * increments atomic counters, so it never blocks, and snapshots can be taken while
+ * values are recorded. A snapshot taken concurrently with recording may be off by the
+ * values recorded during the snapshot.
+ */
+public class LongHistogram {
+  private static final int BUCKET_COUNT = 64;
+
+  private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+  private final AtomicLong count = new AtomicLong();
+  private final AtomicLong sum = new AtomicLong();
+  private final AtomicLong max = new AtomicLong();
+
+  /**
+   * Records a value. Negative values are recorded as zero.
+   */
+  public void record(long value) {
+    if (value < 0) {
+      value = 0;
+    }
+    buckets.incrementAndGet(BUCKET_COUNT - Long.numberOfLeadingZeros(value));
+    count.incrementAndGet();
+    sum.addAndGet(value);
+    long currentMax;
+    while (value > (currentMax = max.get())) {
+      if (max.compareAndSet(currentMax, value)) {
+        break;
+      }
+    }
+  }
+
+  /**
+   * Returns a snapshot of the values recorded so far.
+   */
+  public Snapshot snapshot() {
+    long[] bucketCounts = new long[BUCKET_COUNT];
+    for (int i = 0; i < BUCKET_COUNT; i++) {
+      bucketCounts[i] = buckets.get(i);
+    }
+    return new Snapshot(bucketCounts, count.get(), sum.get(), max.get());
+  }
+
+  /**
+   * An immutable snapshot of a LongHistogram.
+   */
+  public static class Snapshot {
+    private final long[] bucketCounts;
+    private final long count;
+    private final long sum;
+    private final long max;
+
+    private Snapshot(long[] bucketCounts, long count, long sum, long max) {
+      this.bucketCounts = bucketCounts;
+      this.count = count;
+      this.sum = sum;
+      this.max = max;
+    }
+
+    /**
+     * Returns the number of values recorded.
+     */
+    public long getCount() {
+      return count;
+    }
+
+    /**
+     * Returns the sum of the values recorded.
+     */
+    public long getSum() {
+      return sum;
+    }
+
+    /**
+     * Returns the largest value recorded, or 0 if none was recorded.
+     */
+    public long getMax() {
+      return max;
+    }
+
+    /**
+     * Returns the mean of the values recorded, or 0 if none was recorded.
+     */
+    public double getMean() {
+      return count == 0 ? 0 : (double) sum / count;
+    }
+
+    /**
+     * Returns an upper bound for the given percentile of the values recorded, which
+     * is within a factor of two of the actual value, or 0 if none was recorded.
+     */
+    public long getPercentile(double percentile) {
+      Preconditions.checkArgument(percentile >= 0 && percentile <= 100);
+      long total = 0;
+      for (long bucketCount : bucketCounts) {
+        total += bucketCount;
+      }
+      long rank = (long) Math.ceil(total * percentile / 100);
+      long seen = 0;
+      for (int i = 0; i < bucketCounts.length; i++) {
+        seen += bucketCounts[i];
+        if (seen >= rank && seen > 0) {
+          return i == 0 ? 0 : Math.min(max, (1L << i) - 1);
+        }
+      }
+      return 0;
+    }
+
+    /**
+     * Returns the number of values recorded in the given bucket.
+     */
+    public long getBucketCount(int bucket) {
+      return bucketCounts[bucket];
+    }
+  }
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright 2015, Google Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ *     * Neither the name of Google Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.google.api.gax.bundling;
+
+import com.google.common.base.Preconditions;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+
+/**
+ * A first-in first-out queue which stores its elements, serialized with an
+ * ElementSerializer, in memory-mapped segment files in a directory, so that the
+ * size of the queue does not count against the heap.
+ *
+ * Elements are appended to the last segment, and a new segment is created when it is
+ * full. A segment is deleted once all of its elements were polled. Each segment holds
+ * at least one element, so an element which is larger than the segment size gets a
+ * segment of its own. The segment files are deleted when the queue is closed, and are
+ * not meant to survive the process.
+ *
+ * This class is not thread-safe.
+ */
+public class MappedSpillQueue<E> implements AutoCloseable {
+  /**
+   * The default size of a segment file.
+   */
+  public static final int DEFAULT_SEGMENT_BYTES = 16 * 1024 * 1024;
+
+  // Each element is stored as its length followed by its bytes.
+  private static final int LENGTH_BYTES = 4;
+
+  private final File directory;
+  private final int segmentBytes;
+  private final ElementSerializer<E> serializer;
+  private final ArrayDeque<Segment> segments = new ArrayDeque<>();
+  private long size;
+
+  /**
+   * Constructs a MappedSpillQueue which creates segment files of the given size in
+   * the given directory.
+   */
+  public MappedSpillQueue(File directory, int segmentBytes, ElementSerializer<E> serializer) {
+    Preconditions.checkArgument(segmentBytes > LENGTH_BYTES, "segmentBytes is too small");
+    this.directory = Preconditions.checkNotNull(directory);
+    this.segmentBytes = segmentBytes;
+    this.serializer = Preconditions.checkNotNull(serializer);
+  }
+
+  /**
+   * Appends the given element to the queue.
+   */
+  public void add(E e) throws IOException {
+    byte[] bytes = serializer.serialize(e);
+    int recordBytes = LENGTH_BYTES + bytes.length;
+    Segment tail = segments.peekLast();
+    if (tail == null || tail.buffer.capacity() - tail.writePosition < recordBytes) {
+      tail = new Segment(Math.max(segmentBytes, recordBytes));
+      segments.add(tail);
+    }
+    ByteBuffer record = tail.buffer.duplicate();
+    record.position(tail.writePosition);
+    record.putInt(bytes.length);
+    record.put(bytes);
+    tail.writePosition += recordBytes;
+    size++;
+  }
+
+  /**
+   * Removes the oldest element of the queue and returns it, or returns null if the
+   * queue is empty.
+   */
+  public E poll() {
+    if (size == 0) {
+      return null;
+    }
+    Segment head = segments.peek();
+    ByteBuffer record = head.buffer.duplicate();
+    record.position(head.readPosition);
+    byte[] bytes = new byte[record.getInt()];
+    record.get(bytes);
+    head.readPosition += LENGTH_BYTES + bytes.length;
+    size--;
+    if (head.readPosition == head.writePosition) {
+      if (segments.size() > 1) {
+        segments.poll();
+        head.delete();
+      } else {
+        // Reuse the last segment from the start.
+        head.readPosition = 0;
+        head.writePosition = 0;
+      }
+    }
+    return serializer.deserialize(bytes);
+  }
+
+  /**
+   * Returns the number of elements in the queue.
+   */
+  public long size() {
+    return size;
+  }
+
+  /**
+   * Returns whether the queue is empty.
+   */
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  /**
+   * Returns the number of segment files of the queue.
+   */
+  public int getSegmentCount() {
+    return segments.size();
+  }
+
+  /**
+   * Discards the elements of the queue, and deletes its segment files.
+   */
+  @Override
+  public void close() {
+    Segment segment;
+    while ((segment = segments.poll()) != null) {
+      segment.delete();
+    }
+    size = 0;
+  }
+
+  private class Segment {
+    private final File file;
+    private final MappedByteBuffer buffer;
+    private int readPosition;
+    private int writePosition;
+
+    private Segment(int capacity) throws IOException {
+      file = File.createTempFile("bundler-spill-", ".segment", directory);
+      try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+        // The mapping stays valid after the file is closed.
+        buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+      } catch (IOException e) {
+        file.delete();
+        throw e;
+      }
+    }
+
+    private void delete() {
+      // The mapping itself is released when the buffer is garbage collected.
+      file.delete();
+    }
+  }
+}
@@ -37,17 +37,28 @@ import com.google.common.base.Preconditions;
  * A threshold which accumulates a count based on the provided
  * ElementCounter.
  */
-public class NumericThreshold<E> implements BundlingThreshold<E> {
+public class NumericThreshold<E>
+    implements BundlingThreshold<E>, ResettableThreshold, RemovableThreshold<E> {
   private final long threshold;
   private final ElementCounter<E> extractor;
+  private final FillReason fillReason;
   private long sum;
 
   /**
    * Constructs a NumericThreshold.
    */
   public NumericThreshold(long threshold, ElementCounter<E> extractor) {
+    this(threshold, extractor, FillReason.OTHER_THRESHOLD);
+  }
+
+  /**
+   * Constructs a NumericThreshold which reports the given reason when it fills
+   * a bundle.
+   */
+  public NumericThreshold(long threshold, ElementCounter<E> extractor, FillReason fillReason) {
     this.threshold = threshold;
     this.extractor = Preconditions.checkNotNull(extractor);
+    this.fillReason = Preconditions.checkNotNull(fillReason);
     this.sum = 0;
   }
 
@@ -56,6 +67,11 @@ public class NumericThreshold<E> implements BundlingThreshold<E> {
     sum += extractor.count(e);
   }
 
+  @Override
+  public void remove(E e) {
+    sum -= extractor.count(e);
+  }
+
   @Override
   public boolean isThresholdReached() {
     return sum >= threshold;
@@ -63,6 +79,18 @@ public class NumericThreshold<E> implements BundlingThreshold<E> {
 
   @Override
   public BundlingThreshold<E> copyWithZeroedValue() {
-    return new NumericThreshold<E>(threshold, extractor);
+    return new NumericThreshold<E>(threshold, extractor, fillReason);
+  }
+
+  @Override
+  public void reset() {
+    sum = 0;
+  }
+
+  /**
+   * Returns the reason to report when this threshold fills a bundle.
+   */
+  public FillReason getFillReason() {
+    return fillReason;
   }
 }
@@ -32,16 +32,27 @@
 package com.google.api.gax.bundling;
 
 import com.google.api.client.util.Lists;
+import com.google.common.base.Function;
 import com.google.common.base.Preconditions;
-import com.google.common.base.Stopwatch;
+import com.google.common.base.Predicate;
 import com.google.common.collect.ImmutableList;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.LockSupport;
 import java.util.concurrent.locks.ReentrantLock;
 
 import org.joda.time.Duration;
@@ -49,29 +60,131 @@ import org.joda.time.Duration;
 /**
  * Queues up elements until either a duration of time has passed or any threshold in a given set of
  * thresholds is breached, and then delivers the elements in a bundle to the consumer.
+ *
+ * By default, every call to {@link #add} takes the bundler's lock. When built with
+ * {@link Builder#setLockFreeAdd(boolean)}, producers instead push onto one of several
+ * lock-free stacks (striped by thread) and never block each other; the pushed elements are
+ * moved into the current bundle, and presented to the thresholds, by the consumer calling
+ * {@link #takeBundle}.
+ *
+ * The bundler copies its thresholds once when it is built. Thresholds which implement
+ * {@link ResettableThreshold} are then reset in place after each bundle, so that in steady
+ * state the locking add path allocates nothing but the bundle itself and its handle.
+ *
+ * Thresholds are only checked after an element has been added, so a bundle can go past a
+ * threshold by one element. To bound the size of bundles strictly, use
+ * {@link Builder#addLimit}: an element which would take the current bundle past a limit
+ * closes the bundle first, and is then added to the next one. Closed bundles are handed
+ * out before the current one.
+ *
+ * Elements can be marked as urgent with {@link Builder#setUrgentElements}: the bundle
+ * containing an urgent element is made available no later than the urgent max delay
+ * after the element was added, which is usually much shorter than the max delay, so
+ * that urgent elements do not wait behind bulk ones.
+ *
+ * Similarly, if the elements have deadlines, given with {@link Builder#setDeadlines},
+ * the bundle containing an element is made available no later than the deadline of
+ * the element less the send margin.
+ *
+ * If the consumer collapses duplicate elements into one, the bundler can be told which
+ * elements are duplicates with {@link Builder#setDuplicateKeys}. An element whose key is
+ * already in the current bundle is still added to it, but it does not count towards the
+ * thresholds and limits.
  */
 public class ThresholdBundler<E> {
 
   private ImmutableList<BundlingThreshold<E>> thresholds;
   private ImmutableList<ExternalThreshold<E>> externalThresholds;
+  private final ImmutableList<BundlingLimit<E>> limits;
+  // The sum of each limit's attribute over data, and the count of the element being added.
+  private final long[] limitSums;
+  private final long[] limitCounts;
   private final Duration maxDelay;
+  private final Predicate<? super E> urgentElementFilter;
+  private final long urgentMaxDelayMillis;
+  private final Function<? super E, Long> deadlineFunction;
+  private final long sendMarginNanos;
+  private final Function<? super E, Object> duplicateKeyFunction;
+  private final AdaptiveBundlingController<E> adaptiveController;
+  private final BundlingMetrics<E> metrics;
+  private final boolean lockFreeAdd;
+  private final boolean thresholdsResettable;
+  private final boolean externalThresholdsResettable;
 
   private final Lock lock = new ReentrantLock();
   private final Condition bundleCondition = lock.newCondition();
-  private boolean bundleReady = false;
+  private volatile boolean bundleReady = false;
+  private boolean closed = false;
+  // Created when the first element of a bundle is added, except with lock-free adds.
   private BundleHandle currentBundleHandle;
 
-  private Stopwatch bundleStopwatch;
-  private final List<E> data = new ArrayList<>();
+  // The System.nanoTime() at which the first element of the current bundle was added.
+  private long bundleStartNanos;
+  private Duration bundleMaxDelay;
+  private FillReason bundleFillReason;
+  // The fill reason if bundleMaxDelay passes; it is not DELAY if bundleMaxDelay was
+  // shortened because of an urgent element or an element deadline.
+  private FillReason bundleDelayFillReason = FillReason.DELAY;
+  // The System.nanoTime() at which each element of data was added, if metrics are recorded.
+  private long[] addNanos;
+  private List<E> data = new ArrayList<>();
+  // The number of elements of data with each duplicate key, if duplicate keys are set.
+  private final Map<Object, Integer> duplicateKeyCounts = new HashMap<>();
+  // Bundles which were closed because of a limit but not taken yet, oldest first.
+  private final ArrayDeque<SealedBundle<E>> sealedBundles = new ArrayDeque<>();
+
+  // Only used when lockFreeAdd is set. Each stripe holds a stack of the elements pushed
+  // since the consumer last took them, ending in a marker node for the current bundle.
+  private final AtomicReferenceArray<IntakeNode> intakeStripes;
+  // The handle which new intake markers carry, so that elements pushed on top of them
+  // report it. Guarded by lock.
+  private BundleHandle intakeHandle;
+  private final AtomicReference<Thread> parkedConsumer = new AtomicReference<>();
+
+  private volatile Runnable wakeUpListener;
 
   private ThresholdBundler(ImmutableList<BundlingThreshold<E>> thresholds,
       ImmutableList<ExternalThreshold<E>> externalThresholds,
-      Duration maxDelay) {
+      ImmutableList<BundlingLimit<E>> limits,
+      Duration maxDelay,
+      Predicate<? super E> urgentElementFilter,
+      Duration urgentMaxDelay,
+      Function<? super E, Long> deadlineFunction,
+      Duration sendMargin,
+      Function<? super E, Object> duplicateKeyFunction,
+      AdaptiveBundlingController<E> adaptiveController,
+      BundlingMetrics<E> metrics,
+      boolean lockFreeAdd) {
     this.thresholds = copyResetThresholds(Preconditions.checkNotNull(thresholds));
     this.externalThresholds = copyResetExternalThresholds(
         Preconditions.checkNotNull(externalThresholds));
+    this.limits = Preconditions.checkNotNull(limits);
+    this.limitSums = new long[limits.size()];
+    this.limitCounts = new long[limits.size()];
     this.maxDelay = maxDelay;
-    this.currentBundleHandle = new BundleHandle(externalThresholds);
+    this.urgentElementFilter = urgentElementFilter;
+    this.urgentMaxDelayMillis = urgentMaxDelay == null ? 0 : urgentMaxDelay.getMillis();
+    this.deadlineFunction = deadlineFunction;
+    this.sendMarginNanos =
+        sendMargin == null ? 0 : TimeUnit.MILLISECONDS.toNanos(sendMargin.getMillis());
+    this.duplicateKeyFunction = duplicateKeyFunction;
+    this.adaptiveController = adaptiveController;
+    this.metrics = metrics;
+    this.addNanos = metrics == null ? null : new long[16];
+    this.lockFreeAdd = lockFreeAdd;
+    this.thresholdsResettable = allResettable(this.thresholds);
+    this.externalThresholdsResettable = allResettable(this.externalThresholds);
+    if (lockFreeAdd) {
+      this.currentBundleHandle = new BundleHandle();
+      this.intakeHandle = currentBundleHandle;
+      this.intakeStripes = new AtomicReferenceArray<>(
+          Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 2 - 1));
+      for (int i = 0; i < intakeStripes.length(); i++) {
+        intakeStripes.set(i, new IntakeNode(currentBundleHandle));
+      }
+    } else {
+      this.intakeStripes = null;
+    }
   }
 
   /**
@@ -80,11 +193,21 @@ public class ThresholdBundler<E> {
   public static class Builder<E> {
     private List<BundlingThreshold<E>> thresholds;
     private List<ExternalThreshold<E>> externalThresholds;
+    private List<BundlingLimit<E>> limits;
     private Duration maxDelay;
+    private Predicate<? super E> urgentElementFilter;
+    private Duration urgentMaxDelay;
+    private Function<? super E, Long> deadlineFunction;
+    private Duration sendMargin;
+    private Function<? super E, Object> duplicateKeyFunction;
+    private AdaptiveBundlingController<E> adaptiveController;
+    private BundlingMetrics<E> metrics;
+    private boolean lockFreeAdd;
 
     private Builder() {
       thresholds = Lists.newArrayList();
       externalThresholds = Lists.newArrayList();
+      limits = Lists.newArrayList();
     }
 
     /**
@@ -128,14 +251,101 @@ public class ThresholdBundler<E> {
       return this;
     }
 
+    /**
+     * Set which elements are urgent, and the max delay for a bundle once an urgent
+     * element is added to it, counted from when it is added. If the urgent max delay
+     * is zero or null, an urgent element makes its bundle available right away.
+     */
+    public Builder<E> setUrgentElements(Predicate<? super E> urgentElementFilter,
+        Duration urgentMaxDelay) {
+      this.urgentElementFilter = urgentElementFilter;
+      this.urgentMaxDelay = urgentMaxDelay;
+      return this;
+    }
+
+    /**
+     * Set the function which returns the deadline of an element, in the time base of
+     * System.nanoTime(), or null if the element has no deadline, and the margin before
+     * the deadline by which the bundle containing the element must be made available.
+     */
+    public Builder<E> setDeadlines(Function<? super E, Long> deadlineFunction,
+        Duration sendMargin) {
+      this.deadlineFunction = deadlineFunction;
+      this.sendMargin = sendMargin;
+      return this;
+    }
+
+    /**
+     * Set the function which returns the key of an element, or null if the element has
+     * no duplicates. Elements with equal keys are duplicates, which the consumer sends
+     * as one, so only the first of them in a bundle counts towards the thresholds and
+     * limits.
+     */
+    public Builder<E> setDuplicateKeys(Function<? super E, Object> duplicateKeyFunction) {
+      this.duplicateKeyFunction = duplicateKeyFunction;
+      return this;
+    }
+
+    /**
+     * Add a limit which bundles must not go past. See the class documentation for details.
+     */
+    public Builder<E> addLimit(BundlingLimit<E> limit) {
+      this.limits.add(limit);
+      return this;
+    }
+
+    /**
+     * Set a controller which tunes the max delay and the element count threshold
+     * while bundling. The max delay of each bundle is the controller's delay target
+     * at the time the bundle is started, instead of the one set with setMaxDelay().
+     * The controller's element count threshold is added to the thresholds.
+     */
+    public Builder<E> setAdaptiveController(AdaptiveBundlingController<E> adaptiveController) {
+      this.adaptiveController = adaptiveController;
+      return this;
+    }
+
+    /**
+     * Set the metrics to record each bundle in. Recording costs a few atomic
+     * operations per element.
+     */
+    public Builder<E> setMetrics(BundlingMetrics<E> metrics) {
+      this.metrics = metrics;
+      return this;
+    }
+
+    /**
+     * Set whether add() should avoid taking the bundler's lock. This is intended
+     * for bundlers with many concurrent producers and a single consumer; see the
+     * class documentation for details. Defaults to false.
+     */
+    public Builder<E> setLockFreeAdd(boolean lockFreeAdd) {
+      this.lockFreeAdd = lockFreeAdd;
+      return this;
+    }
+
     /**
      * Build the ThresholdBundler.
      */
     public ThresholdBundler<E> build() {
+      ImmutableList.Builder<BundlingThreshold<E>> allThresholds = ImmutableList.builder();
+      allThresholds.addAll(thresholds);
+      if (adaptiveController != null) {
+        allThresholds.add(adaptiveController.getElementCountThreshold());
+      }
       return new ThresholdBundler<E>(
-          ImmutableList.copyOf(thresholds),
+          allThresholds.build(),
           ImmutableList.copyOf(externalThresholds),
-          maxDelay);
+          ImmutableList.copyOf(limits),
+          maxDelay,
+          urgentElementFilter,
+          urgentMaxDelay,
+          deadlineFunction,
+          sendMargin,
+          duplicateKeyFunction,
+          adaptiveController,
+          metrics,
+          lockFreeAdd);
     }
   }
 
@@ -149,37 +359,248 @@ public class ThresholdBundler<E> {
   /**
    * Adds an element to the bundler. If the element causes the collection to go past any of the
    * thresholds, the bundle will be made available to consumers.
+   *
+   * @return the handle of the bundle the element was added to, or null if the bundler has been
+   * closed and the element was not added.
    */
   public ThresholdBundleHandle add(E e) {
+    if (lockFreeAdd) {
+      return addLockFree(e);
+    }
     final Lock lock = this.lock;
+    boolean signal;
+    ThresholdBundleHandle handle;
     lock.lock();
     try {
-      boolean signal = false;
-      // TODO verify invariant: bundleStopwatch == null iff size() == 0
-      if (data.size() == 0) {
-        bundleStopwatch = Stopwatch.createStarted();
-        // we want to trigger the signal so that we switch the await from an unbounded
-        // await to a time-bounded await.
-        signal = true;
-        for (ExternalThreshold<E> threshold : externalThresholds) {
-          threshold.startBundle();
-        }
+      if (closed) {
+        return null;
       }
-      data.add(e);
-      if (!bundleReady) {
-        for (BundlingThreshold<E> threshold : thresholds) {
-          threshold.accumulate(e);
-          if (threshold.isThresholdReached()) {
-            bundleReady = true;
-            signal = true;
-            break;
-          }
+      signal = addToBundle(e, metrics == null ? 0 : System.nanoTime());
+      if (signal) {
+        bundleCondition.signalAll();
+      }
+      handle = currentBundleHandle;
+    } finally {
+      lock.unlock();
+    }
+    if (signal) {
+      wakeConsumer();
+    }
+    return handle;
+  }
+
+  /**
+   * Adds the given elements to the bundler in order, taking the lock once for all of them.
+   * Whenever the current bundle is ready, it is closed before the next element is added,
+   * so that a large batch is cut into bundles at the thresholds instead of growing the
+   * ready bundle until it is taken.
+   *
+   * @return the handles of the bundles the elements were added to, one per element, or null
+   * if the bundler has been closed and no element was added.
+   */
+  public List<ThresholdBundleHandle> addAll(List<? extends E> elements) {
+    List<ThresholdBundleHandle> handles = new ArrayList<>(elements.size());
+    final Lock lock = this.lock;
+    boolean signal = false;
+    lock.lock();
+    try {
+      if (closed) {
+        return null;
+      }
+      // Elements which were pushed without the lock were added first.
+      transferIntake();
+      long elementAddNanos = metrics == null ? 0 : System.nanoTime();
+      for (int i = 0; i < elements.size(); i++) {
+        if (bundleReady && data.size() > 0) {
+          sealBundle();
         }
+        signal |= addToBundle(elements.get(i), elementAddNanos);
+        handles.add(currentBundleHandle);
       }
       if (signal) {
         bundleCondition.signalAll();
       }
-      return currentBundleHandle;
+    } finally {
+      lock.unlock();
+    }
+    if (signal) {
+      wakeConsumer();
+    }
+    return handles;
+  }
+
+  private ThresholdBundleHandle addLockFree(E e) {
+    int stripe = (int) Thread.currentThread().getId() & (intakeStripes.length() - 1);
+    IntakeNode node = new IntakeNode(e, metrics == null ? 0 : System.nanoTime());
+    IntakeNode head;
+    do {
+      head = intakeStripes.get(stripe);
+      if (head.isMarker() && head.handle == null) {
+        // close() swapped in a marker without a bundle.
+        return null;
+      }
+      // The node belongs to the same bundle as the node it is pushed on top of;
+      // drainTo() swaps in a marker for the next bundle atomically.
+      node.next = head;
+      node.handle = head.handle;
+    } while (!intakeStripes.compareAndSet(stripe, head, node));
+    if (head.isMarker() || mayShortenDelay(e)) {
+      // Only the first element pushed since the consumer last looked needs to wake
+      // it up, unless the element may shorten the wait; the consumer re-checks the
+      // stripes before it parks again.
+      wakeConsumer();
+    }
+    return node.handle;
+  }
+
+  // Returns whether the element is urgent or has a deadline which may come before the
+  // max delay passes, without looking at the current bundle.
+  private boolean mayShortenDelay(E e) {
+    if (urgentElementFilter != null && urgentElementFilter.apply(e)) {
+      return true;
+    }
+    if (deadlineFunction == null) {
+      return false;
+    }
+    Long deadline = deadlineFunction.apply(e);
+    return deadline != null && (maxDelay == null
+        || deadline - sendMarginNanos - System.nanoTime()
+            < TimeUnit.MILLISECONDS.toNanos(maxDelay.getMillis()));
+  }
+
+  // pre-condition: lock is held
+  // returns whether the consumer should be signaled
+  private boolean addToBundle(E e, long elementAddNanos) {
+    boolean signal = false;
+    boolean duplicate = isDuplicate(e);
+    if (!duplicate && limits.size() > 0 && !fitsLimits(e) && data.size() > 0) {
+      sealBundle();
+    }
+    addDuplicateKey(e);
+    if (!duplicate) {
+      for (int i = 0; i < limitSums.length; i++) {
+        limitSums[i] += limitCounts[i];
+      }
+    }
+    if (data.size() == 0) {
+      bundleStartNanos = System.nanoTime();
+      bundleMaxDelay =
+          adaptiveController == null ? maxDelay : adaptiveController.getDelayTarget();
+      bundleDelayFillReason = FillReason.DELAY;
+      if (currentBundleHandle == null) {
+        currentBundleHandle = new BundleHandle();
+      }
+      // we want to trigger the signal so that we switch the await from an unbounded
+      // await to a time-bounded await.
+      signal = true;
+      for (int i = 0; i < externalThresholds.size(); i++) {
+        externalThresholds.get(i).startBundle();
+      }
+    }
+    if (metrics != null) {
+      if (data.size() == addNanos.length) {
+        addNanos = Arrays.copyOf(addNanos, addNanos.length * 2);
+      }
+      addNanos[data.size()] = elementAddNanos;
+    }
+    data.add(e);
+    if (!bundleReady && !duplicate) {
+      for (int i = 0; i < thresholds.size(); i++) {
+        BundlingThreshold<E> threshold = thresholds.get(i);
+        threshold.accumulate(e);
+        if (threshold.isThresholdReached()) {
+          bundleReady = true;
+          bundleFillReason = getFillReason(threshold);
+          signal = true;
+          break;
+        }
+      }
+    }
+    if (!bundleReady && urgentElementFilter != null && urgentElementFilter.apply(e)) {
+      signal |= shortenBundleDelay(
+          System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(urgentMaxDelayMillis),
+          FillReason.URGENT);
+    }
+    if (!bundleReady && deadlineFunction != null) {
+      Long deadline = deadlineFunction.apply(e);
+      if (deadline != null) {
+        signal |= shortenBundleDelay(deadline - sendMarginNanos, FillReason.DEADLINE);
+      }
+    }
+    return signal;
+  }
+
+  // pre-condition: lock is held, data.size() > 0
+  // Makes the current bundle available no later than the given time, and returns
+  // whether its max delay was shortened. The max delay of the bundle is the running
+  // minimum over the elements added to it.
+  private boolean shortenBundleDelay(long flushNanos, FillReason fillReason) {
+    long delayMillis = TimeUnit.NANOSECONDS.toMillis(flushNanos - bundleStartNanos);
+    if (flushNanos - System.nanoTime() <= 0) {
+      bundleReady = true;
+      bundleFillReason = fillReason;
+      return true;
+    }
+    if (bundleMaxDelay != null && bundleMaxDelay.getMillis() <= delayMillis) {
+      return false;
+    }
+    bundleMaxDelay = Duration.millis(delayMillis);
+    bundleDelayFillReason = fillReason;
+    return true;
+  }
+
+  // pre-condition: lock is held
+  // Counts the attributes of e into limitCounts, and returns whether adding it to data
+  // keeps data within the limits.
+  private boolean fitsLimits(E e) {
+    boolean fits = true;
+    for (int i = 0; i < limitCounts.length; i++) {
+      BundlingLimit<E> limit = limits.get(i);
+      limitCounts[i] = limit.getElementCounter().count(e);
+      if (limitSums[i] + limitCounts[i] > limit.getLimit()) {
+        fits = false;
+      }
+    }
+    return fits;
+  }
+
+  // pre-condition: lock is held, data.size() > 0
+  // Closes the current bundle, so that it is taken before any element added later.
+  private void sealBundle() {
+    FillReason fillReason = bundleReady ? bundleFillReason : FillReason.SIZE_LIMIT;
+    long[] sealedAddNanos = metrics == null ? null : Arrays.copyOf(addNanos, data.size());
+    sealedBundles.add(new SealedBundle<E>(data, sealedAddNanos, fillReason));
+    data = new ArrayList<>(data.size());
+    if (!lockFreeAdd) {
+      currentBundleHandle = null;
+    } else if (intakeHandle != null && intakeHandle != currentBundleHandle) {
+      // The intake is being moved for the next bundle, and its markers already carry
+      // the next handle, which the open bundle now takes.
+      currentBundleHandle = intakeHandle;
+    } else {
+      currentBundleHandle = new BundleHandle();
+      if (!closed) {
+        markIntake(currentBundleHandle);
+      }
+    }
+    resetThresholds();
+    resetExternalThresholds();
+    resetLimits();
+    bundleReady = false;
+  }
+
+  /**
+   * Stops accepting elements: add() returns null from now on. Elements which were added
+   * before can still be taken.
+   */
+  public void close() {
+    final Lock lock = this.lock;
+    lock.lock();
+    try {
+      closed = true;
+      if (lockFreeAdd) {
+        transferIntake(null);
+      }
     } finally {
       lock.unlock();
     }
@@ -190,14 +611,43 @@ public class ThresholdBundler<E> {
    * were triggered.
    */
   public void flush() {
+    flush(FillReason.FLUSH);
+  }
+
+  private void flush(FillReason fillReason) {
+    final Lock lock = this.lock;
+    lock.lock();
+    try {
+      if (!bundleReady) {
+        bundleReady = true;
+        bundleFillReason = fillReason;
+      }
+      bundleCondition.signalAll();
+    } finally {
+      lock.unlock();
+    }
+    wakeConsumer();
+  }
+
+  /**
+   * Makes the elements of the current bundle available for consumption if there are any
+   * and the bundle is not ready yet, with the given fill reason.
+   */
+  void flushIfNotEmpty(FillReason fillReason) {
     final Lock lock = this.lock;
     lock.lock();
     try {
+      transferIntake();
+      if (bundleReady || data.isEmpty()) {
+        return;
+      }
       bundleReady = true;
+      bundleFillReason = fillReason;
       bundleCondition.signalAll();
     } finally {
       lock.unlock();
     }
+    wakeConsumer();
   }
 
   /**
@@ -210,50 +660,368 @@ public class ThresholdBundler<E> {
     final Lock lock = this.lock;
     lock.lock();
     try {
-      int dataSize = data.size();
-
+      BundleHandle nextBundleHandle = transferIntakeForNextBundle();
+      int drained = 0;
+      while (!sealedBundles.isEmpty()) {
+        List<E> sealedBundle = takeSealedBundle();
+        bundle.addAll(sealedBundle);
+        drained += sealedBundle.size();
+      }
+      int dataSize = startNextBundle(nextBundleHandle);
       bundle.addAll(data);
       data.clear();
-      currentBundleHandle = new BundleHandle(externalThresholds);
+      return drained + dataSize;
+    } finally {
+      lock.unlock();
+    }
+  }
 
-      thresholds = copyResetThresholds(thresholds);
-      externalThresholds = copyResetExternalThresholds(externalThresholds);
+  // pre-condition: lock is held
+  // Removes the oldest bundle and hands it out as it is, instead of copying it.
+  private List<E> takeData() {
+    if (!sealedBundles.isEmpty()) {
+      // The open bundle stays, so elements pushed from now on keep reporting its handle.
+      return takeSealedBundle();
+    }
+    BundleHandle nextBundleHandle = transferIntakeForNextBundle();
+    if (!sealedBundles.isEmpty()) {
+      // Moving the intake sealed the bundle, and the open bundle took nextBundleHandle.
+      return takeSealedBundle();
+    }
+    int dataSize = startNextBundle(nextBundleHandle);
+    if (dataSize == 0) {
+      return Collections.emptyList();
+    }
+    List<E> bundle = data;
+    // The next bundle is likely to be about as large as this one.
+    data = new ArrayList<>(dataSize);
+    return bundle;
+  }
 
-      bundleStopwatch = null;
-      bundleReady = false;
+  // pre-condition: lock is held
+  // Moves the pending intake into data, after which pushed elements report the
+  // returned handle.
+  private BundleHandle transferIntakeForNextBundle() {
+    BundleHandle nextBundleHandle = lockFreeAdd && !closed ? new BundleHandle() : null;
+    if (lockFreeAdd) {
+      transferIntake(nextBundleHandle);
+    }
+    return nextBundleHandle;
+  }
+
+  // pre-condition: lock is held, sealedBundles is not empty
+  private List<E> takeSealedBundle() {
+    SealedBundle<E> sealedBundle = sealedBundles.poll();
+    if (metrics != null) {
+      metrics.recordBundle(sealedBundle.fillReason, sealedBundle.elements,
+          sealedBundle.addNanos, System.nanoTime());
+    }
+    return sealedBundle.elements;
+  }
+
+  // pre-condition: lock is held
+  // Records the bundle in data and resets the state for the next bundle, leaving it
+  // to the caller to remove the elements of data.
+  private int startNextBundle(BundleHandle nextBundleHandle) {
+    int dataSize = data.size();
+    if (metrics != null && dataSize > 0) {
+      metrics.recordBundle(getDrainFillReason(), data, addNanos, System.nanoTime());
+    }
+    currentBundleHandle = nextBundleHandle;
+
+    resetThresholds();
+    resetExternalThresholds();
+    resetLimits();
+
+    bundleReady = false;
+    return dataSize;
+  }
+
+  /**
+   * Removes the oldest element which has not been taken by a consumer yet, and returns
+   * it, or returns null if the bundler is empty. If the element is in the current bundle,
+   * it no longer counts towards the limits, nor towards the thresholds unless the bundle
+   * is ready.
+   */
+  public E removeOldest() {
+    final Lock lock = this.lock;
+    lock.lock();
+    try {
+      transferIntake();
+      SealedBundle<E> sealedBundle = sealedBundles.peek();
+      if (sealedBundle != null) {
+        E oldest = sealedBundle.elements.remove(0);
+        if (sealedBundle.addNanos != null) {
+          System.arraycopy(sealedBundle.addNanos, 1, sealedBundle.addNanos, 0,
+              sealedBundle.elements.size());
+        }
+        if (sealedBundle.elements.isEmpty()) {
+          sealedBundles.poll();
+        }
+        return oldest;
+      }
+      if (data.size() == 0) {
+        return null;
+      }
+      return removeFromData(0);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Returns the oldest element which has not been taken yet without removing it, or
+   * null if there is no such element.
+   */
+  public E peekOldest() {
+    final Lock lock = this.lock;
+    lock.lock();
+    try {
+      transferIntake();
+      SealedBundle<E> sealedBundle = sealedBundles.peek();
+      if (sealedBundle != null) {
+        return sealedBundle.elements.get(0);
+      }
+      return data.size() == 0 ? null : data.get(0);
+    } finally {
+      lock.unlock();
+    }
+  }
 
-      return dataSize;
+  /**
+   * Removes the given element, compared by identity, if it has not been taken yet, and
+   * returns whether it was removed. If the element is in the current bundle and the
+   * bundle is not ready yet, the element no longer counts towards the thresholds.
+   */
+  public boolean remove(E element) {
+    final Lock lock = this.lock;
+    lock.lock();
+    try {
+      transferIntake();
+      for (SealedBundle<E> sealedBundle : sealedBundles) {
+        int index = indexOf(sealedBundle.elements, element);
+        if (index >= 0) {
+          sealedBundle.elements.remove(index);
+          if (sealedBundle.addNanos != null) {
+            System.arraycopy(sealedBundle.addNanos, index + 1, sealedBundle.addNanos, index,
+                sealedBundle.elements.size() - index);
+          }
+          if (sealedBundle.elements.isEmpty()) {
+            sealedBundles.remove(sealedBundle);
+          }
+          return true;
+        }
+      }
+      int index = indexOf(data, element);
+      if (index < 0) {
+        return false;
+      }
+      removeFromData(index);
+      return true;
     } finally {
       lock.unlock();
     }
   }
 
+  // pre-condition: lock is held
+  // Removes the element at the given index of the current bundle and takes it out of
+  // the limits and thresholds.
+  private E removeFromData(int index) {
+    E element = data.remove(index);
+    if (metrics != null) {
+      System.arraycopy(addNanos, index + 1, addNanos, index, data.size() - index);
+    }
+    if (data.size() == 0) {
+      resetThresholds();
+      resetExternalThresholds();
+      resetLimits();
+      bundleReady = false;
+      return element;
+    }
+    if (removeDuplicateKey(element)) {
+      // A duplicate of the element is still in the bundle and counts in its place.
+      return element;
+    }
+    for (int i = 0; i < limitSums.length; i++) {
+      limitSums[i] -= limits.get(i).getElementCounter().count(element);
+    }
+    if (!bundleReady) {
+      // Once the bundle is ready, elements are no longer accumulated, and it is about
+      // to be taken anyway.
+      removeFromThresholds(element);
+    }
+    return element;
+  }
+
+  private static int indexOf(List<?> elements, Object element) {
+    for (int i = 0; i < elements.size(); i++) {
+      if (elements.get(i) == element) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  // pre-condition: lock is held, the bundle is not ready, and e was accumulated into
+  // the thresholds and then removed from data
+  @SuppressWarnings("unchecked")
+  private void removeFromThresholds(E e) {
+    ImmutableList.Builder<BundlingThreshold<E>> copies = null;
+    for (int i = 0; i < thresholds.size(); i++) {
+      BundlingThreshold<E> threshold = thresholds.get(i);
+      if (threshold instanceof RemovableThreshold) {
+        ((RemovableThreshold<E>) threshold).remove(e);
+      } else {
+        if (threshold instanceof ResettableThreshold) {
+          ((ResettableThreshold) threshold).reset();
+        } else {
+          if (copies == null) {
+            copies = ImmutableList.builder();
+            copies.addAll(thresholds.subList(0, i));
+          }
+          threshold = threshold.copyWithZeroedValue();
+        }
+        Set<Object> accumulatedKeys = duplicateKeyFunction == null ? null : new HashSet<>();
+        for (int j = 0; j < data.size(); j++) {
+          E element = data.get(j);
+          Object key = duplicateKeyFunction == null ? null : duplicateKeyFunction.apply(element);
+          if (key == null || accumulatedKeys.add(key)) {
+            threshold.accumulate(element);
+          }
+        }
+      }
+      if (copies != null) {
+        copies.add(threshold);
+      }
+    }
+    if (copies != null) {
+      thresholds = copies.build();
+    }
+  }
+
   /**
    * Waits until a bundle is available, and returns it once it is.
    */
   public List<E> takeBundle() throws InterruptedException {
+    if (lockFreeAdd) {
+      return takeBundleLockFree();
+    }
     final Lock lock = this.lock;
     lock.lockInterruptibly();
     try {
       while (shouldWait()) {
-        if (data.size() == 0 || maxDelay == null) {
+        if (data.size() == 0 || bundleMaxDelay == null) {
           // if an element gets added, this will be signaled, then we will re-check the while-loop
           // condition to see if the delay or other thresholds have been exceeded,
           // and if none of these are true, then we will arrive at the time-bounded
           // await in the else clause.
           bundleCondition.await();
         } else {
-          bundleCondition.await(getDelayLeft().getMillis(), TimeUnit.MILLISECONDS);
+          bundleCondition.await(getDelayLeftMillis(), TimeUnit.MILLISECONDS);
+        }
+      }
+      return takeData();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private List<E> takeBundleLockFree() throws InterruptedException {
+    final Lock lock = this.lock;
+    while (true) {
+      long waitMillis;
+      lock.lockInterruptibly();
+      try {
+        transferIntake();
+        if (!shouldWait()) {
+          return takeData();
         }
+        waitMillis = (data.size() == 0 || bundleMaxDelay == null) ? 0 : getDelayLeftMillis();
+      } finally {
+        lock.unlock();
       }
-      List<E> bundle = new ArrayList<>();
-      drainTo(bundle);
-      return bundle;
+
+      // Producers never take the lock, so instead of waiting on bundleCondition the consumer
+      // parks itself and is unparked by the next add (or flush). Re-checking the intake after
+      // publishing parkedConsumer guarantees that no add is missed.
+      parkedConsumer.set(Thread.currentThread());
+      try {
+        if (isIntakeEmpty() && !bundleReady) {
+          if (waitMillis > 0) {
+            LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(waitMillis));
+          } else {
+            LockSupport.park(this);
+          }
+        }
+      } finally {
+        parkedConsumer.set(null);
+      }
+      if (Thread.interrupted()) {
+        throw new InterruptedException();
+      }
+    }
+  }
+
+  /**
+   * Returns the current bundle if it is ready to be consumed, because a threshold was
+   * reached, the bundle was flushed, or the max delay has passed. Otherwise, returns an
+   * empty list without waiting.
+   */
+  public List<E> pollBundle() {
+    final Lock lock = this.lock;
+    lock.lock();
+    try {
+      transferIntake();
+      if (shouldWait()) {
+        return Collections.emptyList();
+      }
+      return takeData();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Returns the time left until the max delay of the current bundle passes, or null if
+   * the bundler is empty or has no max delay.
+   */
+  public Duration getRemainingDelay() {
+    final Lock lock = this.lock;
+    lock.lock();
+    try {
+      transferIntake();
+      if (!sealedBundles.isEmpty()) {
+        return Duration.ZERO;
+      }
+      if (data.size() == 0 || bundleMaxDelay == null) {
+        return null;
+      }
+      long delayLeftMillis = getDelayLeftMillis();
+      return delayLeftMillis > 0 ? Duration.millis(delayLeftMillis) : Duration.ZERO;
     } finally {
       lock.unlock();
     }
   }
 
+  /**
+   * Sets a listener to be run whenever a consumer which is not blocked in takeBundle()
+   * should check the bundler again: when the first element of a bundle is added, when a
+   * threshold is reached, or when the bundle is flushed. With lock-free adds, the listener
+   * is also run for the first element added after each time the elements were taken over
+   * by the consumer. The listener may be run while the bundler's lock is held, so it must
+   * not block.
+   */
+  public void setWakeUpListener(Runnable wakeUpListener) {
+    this.wakeUpListener = wakeUpListener;
+  }
+
+  /**
+   * Returns the metrics the bundler records bundles in, or null if there are none.
+   */
+  public BundlingMetrics<E> getMetrics() {
+    return metrics;
+  }
+
   /**
    * Returns the number of elements queued up in the bundler.
    */
@@ -261,7 +1029,12 @@ public class ThresholdBundler<E> {
     final Lock lock = this.lock;
     lock.lock();
     try {
-      return data.size();
+      transferIntake();
+      int size = data.size();
+      for (SealedBundle<E> sealedBundle : sealedBundles) {
+        size += sealedBundle.elements.size();
+      }
+      return size;
     } finally {
       lock.unlock();
     }
@@ -274,28 +1047,211 @@ public class ThresholdBundler<E> {
     final Lock lock = this.lock;
     lock.lock();
     try {
-      return data.toArray();
+      transferIntake();
+      if (sealedBundles.isEmpty()) {
+        return data.toArray();
+      }
+      List<E> elements = new ArrayList<>();
+      for (SealedBundle<E> sealedBundle : sealedBundles) {
+        elements.addAll(sealedBundle.elements);
+      }
+      elements.addAll(data);
+      return elements.toArray();
     } finally {
       lock.unlock();
     }
   }
 
+  private void wakeConsumer() {
+    if (lockFreeAdd) {
+      Thread consumer = parkedConsumer.get();
+      if (consumer != null && parkedConsumer.compareAndSet(consumer, null)) {
+        LockSupport.unpark(consumer);
+      }
+    }
+    Runnable listener = wakeUpListener;
+    if (listener != null) {
+      listener.run();
+    }
+  }
+
+  // pre-condition: lock is held
+  private void transferIntake() {
+    if (lockFreeAdd) {
+      transferIntake(closed ? null : currentBundleHandle);
+    }
+  }
+
+  // pre-condition: lock is held
+  // Moves the elements pushed so far into data. Elements pushed afterwards will
+  // report nextBundleHandle, which is currentBundleHandle unless a bundle is being
+  // drained, or null if the bundler is closed so that no more elements are pushed.
+  // If adding the elements seals the bundle, the stripes which are moved afterwards
+  // report the handle of the new open bundle instead.
+  private void transferIntake(BundleHandle nextBundleHandle) {
+    intakeHandle = nextBundleHandle;
+    for (int i = 0; i < intakeStripes.length(); i++) {
+      IntakeNode current = intakeStripes.get(i);
+      if (current.isMarker() && current.handle == intakeHandle) {
+        continue;
+      }
+      IntakeNode head = intakeStripes.getAndSet(i, new IntakeNode(intakeHandle));
+      // The stack holds the newest element first.
+      IntakeNode reversed = null;
+      while (!head.isMarker()) {
+        IntakeNode next = head.next;
+        head.next = reversed;
+        reversed = head;
+        head = next;
+      }
+      for (IntakeNode node = reversed; node != null; node = node.next) {
+        addToBundle(node.element, node.addNanos);
+      }
+    }
+  }
+
+  // pre-condition: lock is held
+  // Makes elements pushed from now on report the given handle. Stripes which hold
+  // pushed elements keep their marker until the elements are moved into data.
+  private void markIntake(BundleHandle handle) {
+    intakeHandle = handle;
+    for (int i = 0; i < intakeStripes.length(); i++) {
+      IntakeNode current = intakeStripes.get(i);
+      if (current.isMarker() && current.handle != handle) {
+        intakeStripes.compareAndSet(i, current, new IntakeNode(handle));
+      }
+    }
+  }
+
+  private boolean isIntakeEmpty() {
+    for (int i = 0; i < intakeStripes.length(); i++) {
+      if (!intakeStripes.get(i).isMarker()) {
+        return false;
+      }
+    }
+    return true;
+  }
+
   private boolean shouldWait() {
+    if (!sealedBundles.isEmpty()) {
+      return false;
+    }
     if (data.size() == 0) {
       return true;
     }
     if (bundleReady) {
       return false;
     }
-    if (maxDelay == null) {
+    if (bundleMaxDelay == null) {
       return true;
     }
-    return getDelayLeft().getMillis() > 0;
+    return getDelayLeftMillis() > 0;
+  }
+
+  // pre-condition: lock is held
+  private FillReason getFillReason(BundlingThreshold<E> threshold) {
+    if (threshold instanceof NumericThreshold) {
+      return ((NumericThreshold<E>) threshold).getFillReason();
+    }
+    if (adaptiveController != null && adaptiveController.isElementCountThreshold(threshold)) {
+      return FillReason.ELEMENT_COUNT;
+    }
+    return FillReason.OTHER_THRESHOLD;
+  }
+
+  // pre-condition: lock is held, data.size() > 0
+  private FillReason getDrainFillReason() {
+    if (bundleReady) {
+      return bundleFillReason;
+    }
+    if (bundleMaxDelay != null && getDelayLeftMillis() <= 0) {
+      return bundleDelayFillReason;
+    }
+    return FillReason.DRAIN;
+  }
+
+  // pre-condition: data.size() > 0
+  private long getDelayLeftMillis() {
+    return bundleMaxDelay.getMillis()
+        - TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - bundleStartNanos);
+  }
+
+  // pre-condition: lock is held
+  private void resetThresholds() {
+    if (!thresholdsResettable) {
+      thresholds = copyResetThresholds(thresholds);
+      return;
+    }
+    for (int i = 0; i < thresholds.size(); i++) {
+      ((ResettableThreshold) thresholds.get(i)).reset();
+    }
+  }
+
+  // pre-condition: lock is held
+  private void resetExternalThresholds() {
+    if (!externalThresholdsResettable) {
+      externalThresholds = copyResetExternalThresholds(externalThresholds);
+      return;
+    }
+    for (int i = 0; i < externalThresholds.size(); i++) {
+      ((ResettableThreshold) externalThresholds.get(i)).reset();
+    }
+  }
+
+  // pre-condition: lock is held
+  private void resetLimits() {
+    Arrays.fill(limitSums, 0);
+    duplicateKeyCounts.clear();
+  }
+
+  // pre-condition: lock is held
+  // Returns whether an element with the same duplicate key as e is in data.
+  private boolean isDuplicate(E e) {
+    if (duplicateKeyFunction == null) {
+      return false;
+    }
+    Object key = duplicateKeyFunction.apply(e);
+    return key != null && duplicateKeyCounts.containsKey(key);
   }
 
-  // pre-condition: data.size() > 0 ( === bundleStopwatch != null)
-  private Duration getDelayLeft() {
-    return Duration.millis(maxDelay.getMillis() - bundleStopwatch.elapsed(TimeUnit.MILLISECONDS));
+  // pre-condition: lock is held, e is being added to data
+  private void addDuplicateKey(E e) {
+    if (duplicateKeyFunction == null) {
+      return;
+    }
+    Object key = duplicateKeyFunction.apply(e);
+    if (key != null) {
+      Integer count = duplicateKeyCounts.get(key);
+      duplicateKeyCounts.put(key, count == null ? 1 : count + 1);
+    }
+  }
+
+  // pre-condition: lock is held, e was removed from data
+  // Returns whether an element with the same duplicate key as e is still in data.
+  private boolean removeDuplicateKey(E e) {
+    if (duplicateKeyFunction == null) {
+      return false;
+    }
+    Object key = duplicateKeyFunction.apply(e);
+    if (key == null) {
+      return false;
+    }
+    Integer count = duplicateKeyCounts.get(key);
+    if (count == null || count == 1) {
+      duplicateKeyCounts.remove(key);
+      return false;
+    }
+    duplicateKeyCounts.put(key, count - 1);
+    return true;
+  }
+
+  private static boolean allResettable(List<?> thresholds) {
+    for (Object threshold : thresholds) {
+      if (!(threshold instanceof ResettableThreshold)) {
+        return false;
+      }
+    }
+    return true;
   }
 
   private static <E> ImmutableList<BundlingThreshold<E>> copyResetThresholds(
@@ -318,6 +1274,51 @@ public class ThresholdBundler<E> {
     return resetThresholds.build();
   }
 
+  /**
+   * A bundle which was closed because of a limit, along with what is needed to record
+   * it when it is taken.
+   */
+  private static class SealedBundle<E> {
+    private final List<E> elements;
+    private final long[] addNanos;
+    private final FillReason fillReason;
+
+    private SealedBundle(List<E> elements, long[] addNanos, FillReason fillReason) {
+      this.elements = elements;
+      this.addNanos = addNanos;
+      this.fillReason = fillReason;
+    }
+  }
+
+  /**
+   * A node in an intake stack. Marker nodes terminate the stack and carry the
+   * handle of the bundle that elements pushed on top of them belong to.
+   */
+  private class IntakeNode {
+    private final E element;
+    private final long addNanos;
+    private final boolean marker;
+    private IntakeNode next;
+    private BundleHandle handle;
+
+    private IntakeNode(E element, long addNanos) {
+      this.element = element;
+      this.addNanos = addNanos;
+      this.marker = false;
+    }
+
+    private IntakeNode(BundleHandle handle) {
+      this.element = null;
+      this.addNanos = 0;
+      this.marker = true;
+      this.handle = handle;
+    }
+
+    private boolean isMarker() {
+      return marker;
+    }
+  }
+
   /**
    * This class represents a handle to a bundle that is being built up inside
    * a ThresholdBundler. It can be used to perform certain operations on
@@ -325,11 +1326,6 @@ public class ThresholdBundler<E> {
    * one.
    */
   private class BundleHandle implements ThresholdBundleHandle {
-    private final ImmutableList<ExternalThreshold<E>> externalThresholds;
-
-    private BundleHandle(ImmutableList<ExternalThreshold<E>> externalThresholds) {
-      this.externalThresholds = externalThresholds;
-    }
 
     @Override
     public void externalThresholdEvent(Object event) {
@@ -337,7 +1333,12 @@ public class ThresholdBundler<E> {
       lock.lock();
 
       try {
-        for (ExternalThreshold<E> threshold : externalThresholds) {
+        // The external thresholds are reused for later bundles, which the events of
+        // this bundle must not count towards.
+        if (ThresholdBundler.this.currentBundleHandle != this) {
+          return;
+        }
+        for (ExternalThreshold<E> threshold : ThresholdBundler.this.externalThresholds) {
           threshold.handleEvent(this, event);
         }
       } finally {
@@ -354,7 +1355,7 @@ public class ThresholdBundler<E> {
         if (ThresholdBundler.this.currentBundleHandle != this) {
           return;
         }
-        ThresholdBundler.this.flush();
+        ThresholdBundler.this.flush(FillReason.EXTERNAL_THRESHOLD);
       } finally {
         lock.unlock();
       }
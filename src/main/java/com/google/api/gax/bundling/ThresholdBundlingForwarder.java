@@ -31,21 +31,92 @@
 
 package com.google.api.gax.bundling;
 
+import com.google.common.base.Preconditions;
+
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.joda.time.Duration;
 
 /**
  * Accepts individual items and then forwards them in bundles to the given
  * ThresholdBundleReceiver for processing. This class essentially converts
  * the pull interface of ThresholdBundler into the push interface of
  * ThresholdBundleReceiver.
+ *
+ * By default, a forwarder uses a dedicated thread which blocks on the bundler.
+ * If an executor is provided instead, no thread is created: the forwarder
+ * processes bundles on the executor when the bundler reports that a bundle may
+ * be ready, and uses the executor as a timer for the bundler's max delay. Many
+ * forwarders can share one executor. Bundles of a single forwarder are still
+ * processed one at a time, but bundle processing occupies an executor thread,
+ * so receivers should not block for long.
+ *
+ * If the receiver is a ThrottledBundleReceiver, bundles are only taken from the
+ * bundler while the receiver has capacity, so they keep growing in the meantime. If
+ * it is a RateLimitedBundleReceiver, the forwarder also checks for capacity again
+ * once the receiver says it may be back.
+ *
+ * If sending when idle is enabled, the current bundle is sent as soon as the
+ * forwarder is not processing a bundle and the receiver has capacity, and, if it is an
+ * IdleAwareBundleReceiver, has no bundle in flight. Elements then only accumulate while
+ * a bundle is outstanding or the receiver has no capacity, so the thresholds mostly
+ * matter under load.
+ *
+ * If a spill queue is set, items which are added while the bundler holds more than
+ * the spill threshold in bytes are appended to the spill queue instead, and so are all
+ * items added after them until the spill queue is empty again. Spilled items are
+ * added to the bundler in order as bundles are taken from it, so the bundler holds
+ * about the spill threshold in bytes however long the receiver is unavailable. An
+ * item which cannot be spilled is not added, and the add throws. When the forwarder
+ * is closed, the spilled items are still forwarded through the bundler as the receiver
+ * has capacity.
  */
 public class ThresholdBundlingForwarder<T> implements AutoCloseable {
+  private static final long ACTIVITY_GRANULARITY_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
   private final ThresholdBundler<T> bundler;
   private final ThresholdBundleReceiver<T> bundleReceiver;
+  private final Lock capacityLock = new ReentrantLock();
+  private final Condition capacityCondition = capacityLock.newCondition();
+
+  // Used when running on a dedicated thread.
   private final BundleForwardingRunnable forwardingRunnable;
   private final Thread forwarderThread;
 
+  // Used when running on an executor.
+  private final ScheduledExecutorService executor;
+  private final ScheduledForwardingRunnable scheduledRunnable;
+  private final AtomicInteger pendingWakeUps = new AtomicInteger();
+  private final Object processLock = new Object();
+  private ScheduledFuture<?> delayTimer;
+  private boolean closed;
+
+  private volatile long lastAddNanos = System.nanoTime();
+
+  // Used when sending when idle.
+  private boolean sendWhenIdle;
+  private final AtomicInteger processingBundles = new AtomicInteger();
+
+  // Used when spilling.
+  private final Object spillLock = new Object();
+  private MappedSpillQueue<T> spillQueue;
+  private ElementCounter<T> byteCounter;
+  private long spillThresholdBytes;
+  // Guarded by spillLock.
+  private long bundlerBytes;
+  // Guarded by spillLock.
+  private boolean spillClosed;
+
   /**
    * Constructs a ThresholdBundlingForwarder. The start() method must
    * be called for the forwarder to start forwarding.
@@ -56,56 +127,511 @@ public class ThresholdBundlingForwarder<T> implements AutoCloseable {
     this.bundler = bundler;
     forwardingRunnable = new BundleForwardingRunnable();
     forwarderThread = new Thread(forwardingRunnable);
+    executor = null;
+    scheduledRunnable = null;
+  }
+
+  /**
+   * Constructs a ThresholdBundlingForwarder which forwards bundles using the
+   * given executor instead of a dedicated thread. The start() method must be
+   * called for the forwarder to start forwarding.
+   */
+  public ThresholdBundlingForwarder(ThresholdBundler<T> bundler,
+      ThresholdBundleReceiver<T> bundleReceiver, ScheduledExecutorService executor) {
+    this.bundleReceiver = bundleReceiver;
+    this.bundler = bundler;
+    this.executor = executor;
+    forwardingRunnable = null;
+    forwarderThread = null;
+    scheduledRunnable = new ScheduledForwardingRunnable();
+  }
+
+  /**
+   * Sets the queue to which items are spilled once the bundler holds more than
+   * spillThresholdBytes, as counted by byteCounter. This must be called before start().
+   * The forwarder closes the spill queue when it is closed.
+   */
+  public void setSpillQueue(MappedSpillQueue<T> spillQueue, ElementCounter<T> byteCounter,
+      long spillThresholdBytes) {
+    Preconditions.checkArgument(spillThresholdBytes > 0, "spillThresholdBytes must be positive");
+    this.spillQueue = Preconditions.checkNotNull(spillQueue);
+    this.byteCounter = Preconditions.checkNotNull(byteCounter);
+    this.spillThresholdBytes = spillThresholdBytes;
+  }
+
+  /**
+   * Sets whether the current bundle is sent as soon as the forwarder and the receiver
+   * are idle, instead of when it reaches its thresholds. This must be called before
+   * start().
+   */
+  public void setSendWhenIdle(boolean sendWhenIdle) {
+    this.sendWhenIdle = sendWhenIdle;
   }
 
   /**
-   * Start the forwarder thread.
+   * Returns the number of items which are spilled, or 0 if there is no spill queue.
+   */
+  public long getSpilledCount() {
+    if (spillQueue == null) {
+      return 0;
+    }
+    synchronized (spillLock) {
+      return spillQueue.size();
+    }
+  }
+
+  /**
+   * Returns whether no items are waiting to be forwarded, in the bundler or spilled,
+   * and no bundle is being processed by the receiver.
+   */
+  public boolean isEmpty() {
+    return processingBundles.get() == 0 && bundler.size() == 0 && getSpilledCount() == 0;
+  }
+
+  /**
+   * Start forwarding, either on the forwarder thread or on the executor.
    */
   public void start() {
-    forwarderThread.start();
+    if (bundleReceiver instanceof ThrottledBundleReceiver) {
+      ((ThrottledBundleReceiver<T>) bundleReceiver).setCapacityListener(new Runnable() {
+        @Override
+        public void run() {
+          capacityMayBeAvailable();
+        }
+      });
+    }
+    if (executor == null) {
+      forwarderThread.start();
+      return;
+    }
+    bundler.setWakeUpListener(new Runnable() {
+      @Override
+      public void run() {
+        wakeUp();
+      }
+    });
+    // Pick up anything that was added before the listener was set.
+    wakeUp();
   }
 
   /**
    * First validates that the receiver can receive the given item (based
    * on the inherent characteristics of the item), and then hands it off to
    * the bundler.
+   *
+   * @return the handle of the bundle the item was added to, or null if the
+   * forwarder has been closed and the item was not added.
    */
   public ThresholdBundleHandle addToNextBundle(T item) {
     bundleReceiver.validateItem(item);
+    recordAdd();
+    if (spillQueue == null) {
+      ThresholdBundleHandle handle = bundler.add(item);
+      flushIfIdle();
+      return handle;
+    }
+    long itemBytes = byteCounter.count(item);
+    synchronized (spillLock) {
+      if (spillClosed) {
+        return null;
+      }
+      ThresholdBundleHandle handle = addOrSpill(item, itemBytes);
+      flushIfIdle();
+      return handle;
+    }
+  }
+
+  /**
+   * First validates that the receiver can receive each of the given items, and then
+   * hands them off to the bundler together, which cuts them into bundles at the
+   * thresholds; see {@link ThresholdBundler#addAll}. If any item fails validation, no
+   * item is added.
+   *
+   * @return the handles of the bundles the items were added to, one per item, or null if
+   * the forwarder has been closed and no item was added. If spilling an item fails, the
+   * items before it stay added and only their handles are returned; adding the item by
+   * itself then throws the error.
+   */
+  public List<ThresholdBundleHandle> addAll(List<T> items) {
+    for (int i = 0; i < items.size(); i++) {
+      bundleReceiver.validateItem(items.get(i));
+    }
+    recordAdd();
+    if (spillQueue == null) {
+      List<ThresholdBundleHandle> handles = bundler.addAll(items);
+      flushIfIdle();
+      return handles;
+    }
+    List<ThresholdBundleHandle> handles = new ArrayList<>(items.size());
+    synchronized (spillLock) {
+      if (spillClosed) {
+        return null;
+      }
+      for (int i = 0; i < items.size(); i++) {
+        T item = items.get(i);
+        try {
+          handles.add(addOrSpill(item, byteCounter.count(item)));
+        } catch (RuntimeException e) {
+          if (i == 0) {
+            throw e;
+          }
+          break;
+        }
+      }
+    }
+    flushIfIdle();
+    return handles;
+  }
+
+  private void recordAdd() {
+    long now = System.nanoTime();
+    // Only write the shared field when the coarse timestamp changes.
+    if (now - lastAddNanos > ACTIVITY_GRANULARITY_NANOS) {
+      lastAddNanos = now;
+    }
+  }
+
+  // Adds the item to the bundler, or to the spill queue if the bundler holds the spill
+  // threshold or the spill queue is not empty. Throws if the item cannot be spilled, since
+  // keeping it in memory instead would let the bundler grow without bound.
+  // pre-condition: spillLock is held, and the spill queue is not closed
+  private ThresholdBundleHandle addOrSpill(T item, long itemBytes) {
+    if (!spillQueue.isEmpty()
+        || (bundlerBytes > 0 && bundlerBytes + itemBytes > spillThresholdBytes)) {
+      try {
+        spillQueue.add(item);
+      } catch (IOException e) {
+        throw new IllegalStateException("Failed to spill the item", e);
+      }
+      return SpilledBundleHandle.INSTANCE;
+    }
+    bundlerBytes += itemBytes;
     return bundler.add(item);
   }
 
+  // Adds spilled items to the bundler until it holds the spill threshold again.
+  // pre-condition: spillLock is held
+  private void replaySpilledItems() {
+    while (bundlerBytes < spillThresholdBytes && !spillQueue.isEmpty()) {
+      T item = spillQueue.poll();
+      bundlerBytes += byteCounter.count(item);
+      bundler.add(item);
+    }
+  }
+
+  // Accounts for items which left the bundler, and replaces them with spilled items,
+  // unless the forwarder is closing, which replays them itself.
+  private void removedFromBundler(List<T> items) {
+    if (spillQueue == null || items.isEmpty()) {
+      return;
+    }
+    synchronized (spillLock) {
+      for (int i = 0; i < items.size(); i++) {
+        bundlerBytes -= byteCounter.count(items.get(i));
+      }
+      if (!spillClosed) {
+        replaySpilledItems();
+      }
+    }
+  }
+
+  // Forwards the items left in the bundler and all spilled items through the bundler,
+  // which cuts them into bundles at its thresholds and limits, sending each bundle once
+  // the receiver has capacity. Then closes the spill queue and the bundler. If the thread
+  // is interrupted, the remaining bundles are sent without waiting for capacity.
+  // pre-condition: no other thread takes bundles from the bundler
+  private void forwardSpilledItems() {
+    if (spillQueue == null) {
+      return;
+    }
+    while (true) {
+      synchronized (spillLock) {
+        replaySpilledItems();
+      }
+      bundler.flush();
+      List<T> bundle = bundler.pollBundle();
+      if (bundle.isEmpty()) {
+        break;
+      }
+      try {
+        awaitReceiverCapacity();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      processTakenBundle(bundle);
+    }
+    synchronized (spillLock) {
+      spillQueue.close();
+    }
+    bundler.close();
+  }
+
+  /**
+   * Returns the System.nanoTime() of the last time an item was added, or of the
+   * time the forwarder was created if no item has been added. This is accurate to
+   * about a millisecond.
+   */
+  public long getLastAddNanos() {
+    return lastAddNanos;
+  }
+
+  /**
+   * Removes the oldest item which has not been forwarded to the receiver yet, and
+   * returns it, or returns null if there is no such item.
+   */
+  public T removeOldest() {
+    T oldest = bundler.removeOldest();
+    if (oldest != null) {
+      removedFromBundler(Collections.singletonList(oldest));
+    }
+    return oldest;
+  }
+
+  /**
+   * Returns the oldest item which has not been forwarded to the receiver yet without
+   * removing it, or returns null if there is no such item.
+   */
+  public T peekOldest() {
+    return bundler.peekOldest();
+  }
+
+  /**
+   * Removes the given item if it has not been forwarded to the receiver yet, and
+   * returns whether it was removed.
+   */
+  public boolean remove(T item) {
+    if (!bundler.remove(item)) {
+      return false;
+    }
+    removedFromBundler(Collections.singletonList(item));
+    return true;
+  }
+
+  /**
+   * Stops accepting items, then forwards the items which were added before and
+   * stops forwarding. Spilled items are forwarded as the receiver has capacity, so
+   * this may wait for the receiver.
+   */
   @Override
   public void close() {
-    forwarderThread.interrupt();
+    if (spillQueue != null) {
+      // No more items are added; the bundler stays open for the spilled items, and is
+      // closed once they are forwarded.
+      synchronized (spillLock) {
+        spillClosed = true;
+      }
+    } else {
+      bundler.close();
+    }
+    if (executor == null) {
+      forwarderThread.interrupt();
+      try {
+        forwarderThread.join();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      forwardSpilledItems();
+      return;
+    }
+    bundler.setWakeUpListener(null);
+    synchronized (processLock) {
+      closed = true;
+      if (delayTimer != null) {
+        delayTimer.cancel(false);
+      }
+    }
+    // No task takes bundles any more, so the rest is forwarded outside of the lock. Tasks
+    // which are woken up by the capacity listener in the meantime then return right away
+    // instead of holding threads of the executor until the receiver has taken everything.
+    if (spillQueue == null) {
+      List<T> lastBundle = new ArrayList<>();
+      bundler.drainTo(lastBundle);
+      processBundle(lastBundle);
+    } else {
+      forwardSpilledItems();
+    }
+  }
+
+  private void wakeUp() {
+    // Only the first wake-up submits a task; later ones make the running task
+    // check the bundler again before it finishes.
+    if (pendingWakeUps.getAndIncrement() == 0) {
+      executor.execute(scheduledRunnable);
+    }
+  }
+
+  private void capacityMayBeAvailable() {
+    flushIfIdle();
+    if (executor != null) {
+      wakeUp();
+    }
+    // Also wakes up close(), which waits for capacity to forward the spilled items.
+    final Lock lock = this.capacityLock;
+    lock.lock();
     try {
-      forwarderThread.join();
-    } catch (InterruptedException e) {
-      Thread.currentThread().interrupt();
+      capacityCondition.signalAll();
+    } finally {
+      lock.unlock();
     }
   }
 
+  private boolean receiverHasCapacity() {
+    return !(bundleReceiver instanceof ThrottledBundleReceiver)
+        || ((ThrottledBundleReceiver<T>) bundleReceiver).hasCapacity();
+  }
+
+  // Sends the current bundle early if sending when idle is enabled and nothing is in
+  // flight. Flushing wakes up the forwarder, which then takes the bundle.
+  private void flushIfIdle() {
+    if (!sendWhenIdle || processingBundles.get() > 0 || !receiverHasCapacity()) {
+      return;
+    }
+    if (bundleReceiver instanceof IdleAwareBundleReceiver
+        && !((IdleAwareBundleReceiver<T>) bundleReceiver).isIdle()) {
+      return;
+    }
+    bundler.flushIfNotEmpty(FillReason.IDLE);
+  }
+
+  // Returns how long until the receiver may have capacity again without running the
+  // capacity listener, or 0 if it only tells through the capacity listener.
+  private long receiverCapacityDelayNanos() {
+    return bundleReceiver instanceof RateLimitedBundleReceiver
+        ? ((RateLimitedBundleReceiver<T>) bundleReceiver).getNanosUntilCapacity() : 0;
+  }
+
+  private void awaitReceiverCapacity() throws InterruptedException {
+    final Lock lock = this.capacityLock;
+    lock.lockInterruptibly();
+    try {
+      while (!receiverHasCapacity()) {
+        long delayNanos = receiverCapacityDelayNanos();
+        if (delayNanos > 0) {
+          capacityCondition.awaitNanos(delayNanos);
+        } else {
+          capacityCondition.await();
+        }
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  // Processes a bundle which was taken from the bundler.
+  private void processTakenBundle(List<T> bundle) {
+    removedFromBundler(bundle);
+    processBundle(bundle);
+  }
+
+  private void processBundle(List<T> bundle) {
+    if (bundle.size() == 0) {
+      return;
+    }
+    BundlingMetrics<T> metrics = bundler.getMetrics();
+    long startNanos = metrics == null ? 0 : System.nanoTime();
+    processingBundles.incrementAndGet();
+    try {
+      bundleReceiver.processBundle(bundle);
+    } finally {
+      processingBundles.decrementAndGet();
+      if (metrics != null) {
+        metrics.recordProcessingTime(System.nanoTime() - startNanos);
+      }
+    }
+    flushIfIdle();
+  }
+
   private class BundleForwardingRunnable implements Runnable {
     @Override
     public void run() {
       do {
         try {
-          processBundle(bundler.takeBundle());
+          awaitReceiverCapacity();
+          // Capacity may have come back with time, without the capacity listener.
+          flushIfIdle();
+          processTakenBundle(bundler.takeBundle());
         } catch (InterruptedException e) {
           break;
         }
       } while (!Thread.currentThread().isInterrupted());
 
+      if (spillQueue != null) {
+        // close() forwards the rest along with the spilled items.
+        return;
+      }
       List<T> lastBundle = new ArrayList<>();
       bundler.drainTo(lastBundle);
-      processBundle(lastBundle);
+      processTakenBundle(lastBundle);
     }
+  }
 
-    private void processBundle(List<T> bundle) {
-      if (bundle.size() == 0) {
+  private class ScheduledForwardingRunnable implements Runnable {
+    @Override
+    public void run() {
+      int wakeUps = pendingWakeUps.get();
+      do {
+        synchronized (processLock) {
+          if (!closed) {
+            forwardReadyBundles();
+          }
+        }
+        wakeUps = pendingWakeUps.addAndGet(-wakeUps);
+      } while (wakeUps != 0);
+    }
+
+    // pre-condition: processLock is held
+    private void forwardReadyBundles() {
+      // Capacity may have come back with time, without the capacity listener.
+      flushIfIdle();
+      List<T> bundle;
+      while (receiverHasCapacity() && (bundle = bundler.pollBundle()).size() > 0) {
+        processTakenBundle(bundle);
+      }
+      if (!receiverHasCapacity()) {
+        // The capacity listener will wake us up again, unless capacity comes back
+        // with time.
+        long delayNanos = receiverCapacityDelayNanos();
+        if (delayNanos > 0) {
+          scheduleWakeUp(TimeUnit.NANOSECONDS.toMillis(delayNanos) + 1);
+        }
         return;
       }
-      bundleReceiver.processBundle(bundle);
+      Duration remainingDelay = bundler.getRemainingDelay();
+      if (remainingDelay == null) {
+        return;
+      }
+      scheduleWakeUp(remainingDelay.getMillis());
+    }
+
+    // pre-condition: processLock is held
+    private void scheduleWakeUp(long delayMillis) {
+      // A pending timer which fires too early is harmless, since it just makes us
+      // check again; one which fires too late has to be supplemented.
+      if (delayTimer == null || delayTimer.isDone()
+          || delayTimer.getDelay(TimeUnit.MILLISECONDS) > delayMillis) {
+        delayTimer = executor.schedule(new Runnable() {
+          @Override
+          public void run() {
+            wakeUp();
+          }
+        }, delayMillis, TimeUnit.MILLISECONDS);
+      }
+    }
+  }
+
+  /**
+   * The handle returned for spilled items, which are not in a bundle yet.
+   */
+  private static class SpilledBundleHandle implements ThresholdBundleHandle {
+    private static final SpilledBundleHandle INSTANCE = new SpilledBundleHandle();
+
+    @Override
+    public void externalThresholdEvent(Object event) {
+      // The item is behind the whole backlog, so there is no bundle to hurry.
+    }
+
+    @Override
+    public void flush() {
     }
   }
 }
@@ -0,0 +1,90 @@
+/*
+ * Copyright 2015, Google Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ *     * Neither the name of Google Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.google.api.gax.bundling;
+
+import com.google.common.base.Preconditions;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A token bucket which refills at a fixed rate up to one second worth of tokens, and
+ * at least one token. Tokens are consumed after the fact, so the balance can go below
+ * zero when something larger than the balance is consumed; callers then wait until it
+ * is positive again. Nothing blocks: callers ask how long to wait instead.
+ *
+ * This class is thread-safe.
+ */
+public class TokenBucket {
+  private final double tokensPerNano;
+  private final double capacity;
+  // Guarded by this.
+  private double balance;
+  // Guarded by this.
+  private long lastRefillNanos = System.nanoTime();
+
+  /**
+   * Constructs a full TokenBucket which refills at the given rate.
+   */
+  public TokenBucket(double tokensPerSecond) {
+    Preconditions.checkArgument(tokensPerSecond > 0, "tokensPerSecond must be positive");
+    this.tokensPerNano = tokensPerSecond / TimeUnit.SECONDS.toNanos(1);
+    this.capacity = Math.max(1, tokensPerSecond);
+    this.balance = capacity;
+  }
+
+  /**
+   * Returns how long it takes until at least one token is available, or 0 if one is
+   * available now.
+   */
+  public synchronized long getNanosUntilAvailable() {
+    refill();
+    if (balance >= 1) {
+      return 0;
+    }
+    return (long) Math.ceil((1 - balance) / tokensPerNano);
+  }
+
+  /**
+   * Takes the given number of tokens, whether or not they are available.
+   */
+  public synchronized void consume(double tokens) {
+    refill();
+    balance -= tokens;
+  }
+
+  // pre-condition: lock is held
+  private void refill() {
+    long now = System.nanoTime();
+    balance = Math.min(capacity, balance + (now - lastRefillNanos) * tokensPerNano);
+    lastRefillNanos = now;
+  }
+}
@@ -46,6 +46,8 @@ import io.grpc.Status;
 import io.grpc.stub.StreamObserver;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.ScheduledExecutorService;
 
 import javax.annotation.Nullable;
@@ -87,6 +89,32 @@ public class ApiCallable<RequestT, ResponseT> {
     return futureCall(CallContext.<RequestT>of(request));
   }
 
+  /**
+   * Performs a call asynchronously for each of the given requests, with null
+   * {@link io.grpc.Channel} and default {@link io.grpc.CallOptions}. If this callable was
+   * returned by {@link #bundling}, the requests of each partition are added to its bundler
+   * together; otherwise each request is called on its own. Use
+   * {@link Futures#allAsList(Iterable)} to wait for all of them at once.
+   *
+   * @param requests requests
+   * @return a {@link com.google.common.util.concurrent.ListenableFuture} for the result of
+   * each request, in the same order
+   */
+  public List<ListenableFuture<ResponseT>> futureCallAll(List<RequestT> requests) {
+    List<CallContext<RequestT>> contexts = new ArrayList<>(requests.size());
+    for (RequestT request : requests) {
+      contexts.add(CallContext.<RequestT>of(request));
+    }
+    if (callable instanceof BundlingCallable) {
+      return ((BundlingCallable<RequestT, ResponseT>) callable).futureCallAll(contexts);
+    }
+    List<ListenableFuture<ResponseT>> results = new ArrayList<>(contexts.size());
+    for (CallContext<RequestT> context : contexts) {
+      results.add(futureCall(context));
+    }
+    return results;
+  }
+
   /**
    * Perform a call synchronously. If the {@link io.grpc.Channel} encapsulated in the given
    * {@link com.google.api.gax.grpc.CallContext} is null, a channel must have already been bound,
@@ -206,6 +234,17 @@ public class ApiCallable<RequestT, ResponseT> {
         new RetryingCallable<RequestT, ResponseT>(callable, retryParams, executor));
   }
 
+  /**
+   * Creates a callable which waits until the given {@code limiter} allows another call in
+   * flight before each call, and reports the round trip time and outcome of each call to it.
+   * Apply it before {@link #retrying} to limit each attempt, or after it to limit each call
+   * with all of its retries.
+   */
+  public ApiCallable<RequestT, ResponseT> limitingConcurrency(ConcurrencyLimiter limiter) {
+    return new ApiCallable<RequestT, ResponseT>(
+        new ConcurrencyLimitingCallable<RequestT, ResponseT>(callable, limiter));
+  }
+
   /**
    * Returns a callable which streams the resources obtained from a series of calls to a method
    * implementing the pagination pattern.
@@ -333,7 +372,7 @@ public class ApiCallable<RequestT, ResponseT> {
       extends ApiCallableBuilder<RequestT, ResponseT> {
     private final BundlingDescriptor<RequestT, ResponseT> bundlingDescriptor;
     private BundlingSettings bundlingSettings;
-
+    private ScheduledExecutorService bundlingExecutor;
 
     /**
      * Constructs an instance of BundlableApiCallableBuilder.
@@ -367,6 +406,18 @@ public class ApiCallable<RequestT, ResponseT> {
       return bundlingSettings;
     }
 
+    /**
+     * Provides an executor to run the bundlers of all partitions on. If not set,
+     * each partition gets its own thread. Bundles are sent on the executor's
+     * threads, so the executor should have enough threads for the expected
+     * number of concurrently sent bundles.
+     */
+    public BundlableApiCallableBuilder<RequestT, ResponseT> setBundlingExecutor(
+        ScheduledExecutorService bundlingExecutor) {
+      this.bundlingExecutor = bundlingExecutor;
+      return this;
+    }
+
     /**
      * Builds an ApiCallable which supports bundling, using the settings provided.
      *
@@ -377,7 +428,8 @@ public class ApiCallable<RequestT, ResponseT> {
       ApiCallable<RequestT, ResponseT> callable = build(serviceApiSettings);
       BundlerFactory<RequestT, ResponseT> bundlerFactory = null;
       if (bundlingSettings != null) {
-        bundlerFactory = new BundlerFactory<>(bundlingDescriptor, bundlingSettings);
+        bundlerFactory =
+            new BundlerFactory<>(bundlingDescriptor, bundlingSettings, bundlingExecutor);
         callable = callable.bundling(bundlingDescriptor, bundlerFactory);
       }
       return BundlableApiCallableInfo.create(callable, bundlerFactory);
@@ -1,13 +1,14 @@
 package com.google.api.gax.grpc;
 
 import com.google.api.gax.bundling.ExternalThreshold;
+import com.google.api.gax.bundling.ResettableThreshold;
 import com.google.api.gax.bundling.ThresholdBundleHandle;
 
 /**
  * An external bundling threshold for a ThresholdBundler which keeps track of
  * how many threads are blocking on the bundler.
  */
-public class BlockingCallThreshold<E> implements ExternalThreshold<E> {
+public class BlockingCallThreshold<E> implements ExternalThreshold<E>, ResettableThreshold {
   private final int threshold;
   private int sum;
 
@@ -38,6 +39,11 @@ public class BlockingCallThreshold<E> implements ExternalThreshold<E> {
     return new BlockingCallThreshold<E>(threshold);
   }
 
+  @Override
+  public void reset() {
+    sum = 0;
+  }
+
   /**
    * The class to represent a blocking call event. Pass an instance of this
    * class to ThresholdBundleHandle.externalThresholdEvent().
@@ -31,12 +31,39 @@
 
 package com.google.api.gax.grpc;
 
+import com.google.common.base.Objects;
 import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
 
-import com.google.api.gax.bundling.ThresholdBundleReceiver;
+import com.google.api.gax.bundling.AdaptiveBundlingController;
+import com.google.api.gax.bundling.IdleAwareBundleReceiver;
+import com.google.api.gax.bundling.RateLimitedBundleReceiver;
+import com.google.api.gax.bundling.TokenBucket;
 
+import io.grpc.CallOptions;
+import io.grpc.Channel;
+import io.grpc.Status;
+
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Nullable;
 
 /**
  * A bundle receiver which uses a provided bundling descriptor to merge
@@ -44,49 +71,933 @@ import java.util.List;
  * the bundling context to issue the request, split the bundle response
  * into the components matching each incoming request, and finally send
  * the result back to the listener for each request.
+ *
+ * By default, each bundle is sent synchronously, so only one bundle is in
+ * flight at a time. If a maximum number of bundles in flight is given, bundles
+ * are sent asynchronously instead, and the results are sent back from the
+ * response callback. The executor then reports no capacity while the maximum
+ * is reached. If it is set to send asynchronously without a maximum, as a BundlerFactory
+ * with a shared executor does, the maximum is one bundle.
+ *
+ * If the bundling descriptor is a {@link DeduplicatingBundlingDescriptor}, duplicate
+ * requests within a bundle are only sent once, and their result is sent back to each
+ * of them.
+ *
+ * Requests whose deadline has passed by the time their bundle is processed fail with
+ * DEADLINE_EXCEEDED and are not sent, and neither are requests which were cancelled.
+ * Requests which are cancelled after their bundle was sent are still split from the
+ * bundle response, but their result is dropped. The other requests are sent with the channel
+ * and call options of their call context: requests with different channels, or call
+ * options which differ in more than their deadline, are sent in separate sub-bundles, and
+ * each sub-bundle is sent with the call options of its requests and the earliest deadline
+ * of its requests.
+ *
+ * If the requests are held in an arena, and the bundling descriptor is an
+ * {@link ArenaBundlingDescriptor}, the bundle request is merged from the serialized
+ * requests.
+ *
+ * If the bundling descriptor is a {@link StreamingBundlingDescriptor}, bundles are
+ * written to one long-lived stream for each channel instead, and are always sent
+ * asynchronously. The executor then also reports no capacity while a stream is not
+ * ready for more messages, and a stream which breaks is opened again for the next
+ * bundle. The streams have no deadline: a bundle whose deadline passes before its
+ * response is received fails, and its stream is cancelled. Requests must then have a
+ * channel in their call context, and the callable of the bundling context is not used.
+ *
+ * If a {@link ConcurrencyLimiter} is given, each bundle is sent as a call of the
+ * limiter, and bundles are always sent asynchronously. The executor then also reports
+ * no capacity while the limiter allows no more calls.
+ *
+ * If rate limits are set, each bundle takes a token from each bundle rate limit and
+ * its request bytes from each byte rate limit, and the executor reports no capacity
+ * until all of them have tokens again.
+ *
+ * If the bundling descriptor is an {@link OrderedBundlingDescriptor}, the requests of
+ * each ordering key are in flight in at most one bundle at a time, and bundles are
+ * always sent asynchronously. Requests whose key is busy are held back. Once the
+ * requests in flight for their key have final results, they are added to the bundler
+ * of their partition again, in order, so that they are bundled and sent like any other
+ * request. Retried requests keep their key busy, and are added again together once all
+ * of them are back. If the requests cannot be added again, because they were not
+ * bundled by a BundlerFactory or it was closed, they are sent right away as one bundle.
+ *
+ * If a packer is set, bundles are sent through it, so that small bundles of different
+ * partitions can be packed into one call, and bundles are always sent asynchronously.
+ * The packer then sends each pack as one call of the concurrency limiter, if there is
+ * one, instead of the executor sending each bundle as a call.
+ *
+ * If a result executor is set, the results of each bundle are sent back in chunks on
+ * that executor, so that the futures' listeners do not run on the thread which
+ * processes bundles. Chunks which the executor rejects are sent back on the calling
+ * thread.
  */
 public class BundleExecutor<RequestT, ResponseT>
-    implements ThresholdBundleReceiver<BundlingContext<RequestT, ResponseT>> {
+    implements RateLimitedBundleReceiver<BundlingContext<RequestT, ResponseT>>,
+        IdleAwareBundleReceiver<BundlingContext<RequestT, ResponseT>> {
 
   private final BundlingDescriptor<RequestT, ResponseT> bundlingDescriptor;
   private final String partitionKey;
+  private final int maxInFlightBundles;
+  private final AtomicInteger inFlightBundles = new AtomicInteger();
+  // The result chunks which were passed to the result executor and have not run yet.
+  private final AtomicInteger queuedResultChunks = new AtomicInteger();
+  private volatile Runnable capacityListener;
+  @Nullable private final AdaptiveBundlingController<BundlingContext<RequestT, ResponseT>>
+      adaptiveController;
+  @Nullable private final Integer elementCountLimit;
+  @Nullable private final Integer requestByteLimit;
+  @Nullable private final ConcurrencyLimiter concurrencyLimiter;
+  private final ImmutableList<TokenBucket> bundleRateLimits;
+  private final ImmutableList<TokenBucket> byteRateLimits;
+  @Nullable private final Executor resultExecutor;
+  @Nullable private final BundlePacker<RequestT, ResponseT> packer;
+  private final int resultChunkSize;
+  @Nullable private final ScheduledExecutorService streamScheduler;
+  private final Runnable limiterListener = new Runnable() {
+    @Override
+    public void run() {
+      Runnable listener = capacityListener;
+      if (listener != null) {
+        listener.run();
+      }
+    }
+  };
+  // Guarded by itself.
+  private final Map<Channel, BundleStream<RequestT, ResponseT>> streams = new HashMap<>();
+  // Guarded by itself.
+  private final Map<Object, OrderingKeyState> orderingKeys = new HashMap<>();
 
   public BundleExecutor(BundlingDescriptor<RequestT, ResponseT> bundlingDescriptor,
       String partitionKey) {
-    this.bundlingDescriptor = Preconditions.checkNotNull(bundlingDescriptor);
-    this.partitionKey = Preconditions.checkNotNull(partitionKey);
+    this(newBuilder(bundlingDescriptor, partitionKey));
+  }
+
+  private BundleExecutor(Builder<RequestT, ResponseT> builder) {
+    Preconditions.checkArgument(builder.maxInFlightBundles >= 0);
+    this.bundlingDescriptor = Preconditions.checkNotNull(builder.bundlingDescriptor);
+    this.partitionKey = Preconditions.checkNotNull(builder.partitionKey);
+    boolean synchronous = builder.maxInFlightBundles == 0
+        && !(bundlingDescriptor instanceof StreamingBundlingDescriptor)
+        && !(bundlingDescriptor instanceof OrderedBundlingDescriptor)
+        && builder.concurrencyLimiter == null && builder.packer == null;
+    this.maxInFlightBundles =
+        synchronous && builder.sendAsynchronously ? 1 : builder.maxInFlightBundles;
+    this.adaptiveController = builder.adaptiveController;
+    this.elementCountLimit = builder.elementCountLimit;
+    this.requestByteLimit = builder.requestByteLimit;
+    this.concurrencyLimiter = builder.concurrencyLimiter;
+    this.bundleRateLimits = builder.bundleRateLimits;
+    this.byteRateLimits = builder.byteRateLimits;
+    this.packer = builder.packer;
+    this.resultExecutor = builder.resultExecutor;
+    this.resultChunkSize = builder.resultChunkSize;
+    this.streamScheduler = builder.streamScheduler;
+    Preconditions.checkArgument(
+        streamScheduler != null || !(bundlingDescriptor instanceof StreamingBundlingDescriptor),
+        "bundles are streamed, which requires a stream scheduler");
+  }
+
+  /**
+   * Builder for a BundleExecutor.
+   */
+  public static class Builder<RequestT, ResponseT> {
+    private final BundlingDescriptor<RequestT, ResponseT> bundlingDescriptor;
+    private final String partitionKey;
+    private int maxInFlightBundles;
+    private boolean sendAsynchronously;
+    private AdaptiveBundlingController<BundlingContext<RequestT, ResponseT>> adaptiveController;
+    private Integer elementCountLimit;
+    private Integer requestByteLimit;
+    private ConcurrencyLimiter concurrencyLimiter;
+    private ImmutableList<TokenBucket> bundleRateLimits = ImmutableList.of();
+    private ImmutableList<TokenBucket> byteRateLimits = ImmutableList.of();
+    private BundlePacker<RequestT, ResponseT> packer;
+    private Executor resultExecutor;
+    private int resultChunkSize;
+    private ScheduledExecutorService streamScheduler;
+
+    private Builder(BundlingDescriptor<RequestT, ResponseT> bundlingDescriptor,
+        String partitionKey) {
+      this.bundlingDescriptor = bundlingDescriptor;
+      this.partitionKey = partitionKey;
+    }
+
+    /**
+     * Set the maximum number of bundles sent asynchronously at a time. It defaults to
+     * 0, which sends bundles synchronously.
+     */
+    public Builder<RequestT, ResponseT> setMaxInFlightBundles(int maxInFlightBundles) {
+      this.maxInFlightBundles = maxInFlightBundles;
+      return this;
+    }
+
+    /**
+     * Set whether bundles are sent asynchronously even if they would otherwise be sent
+     * synchronously, so that the thread which processes them does not wait for the call.
+     * Without a maximum number of bundles in flight, one bundle is then in flight at a
+     * time. It defaults to false.
+     */
+    public Builder<RequestT, ResponseT> setSendAsynchronously(boolean sendAsynchronously) {
+      this.sendAsynchronously = sendAsynchronously;
+      return this;
+    }
+
+    /**
+     * Set the controller to which the time it takes to send each bundle is reported.
+     */
+    public Builder<RequestT, ResponseT> setAdaptiveController(
+        AdaptiveBundlingController<BundlingContext<RequestT, ResponseT>> adaptiveController) {
+      this.adaptiveController = adaptiveController;
+      return this;
+    }
+
+    /**
+     * Set the number of elements and of bytes which a bundle may hold. Requests which
+     * go past either limit on their own are rejected. Null limits are not checked.
+     */
+    public Builder<RequestT, ResponseT> setLimits(@Nullable Integer elementCountLimit,
+        @Nullable Integer requestByteLimit) {
+      this.elementCountLimit = elementCountLimit;
+      this.requestByteLimit = requestByteLimit;
+      return this;
+    }
+
+    /**
+     * Set the concurrency limiter of which each bundle is sent as a call.
+     */
+    public Builder<RequestT, ResponseT> setConcurrencyLimiter(
+        ConcurrencyLimiter concurrencyLimiter) {
+      this.concurrencyLimiter = concurrencyLimiter;
+      return this;
+    }
+
+    /**
+     * Set the token buckets which limit the rate of bundles and of request bytes.
+     */
+    public Builder<RequestT, ResponseT> setRateLimits(List<TokenBucket> bundleRateLimits,
+        List<TokenBucket> byteRateLimits) {
+      this.bundleRateLimits = ImmutableList.copyOf(bundleRateLimits);
+      this.byteRateLimits = ImmutableList.copyOf(byteRateLimits);
+      return this;
+    }
+
+    /**
+     * Set the packer through which bundles are sent.
+     */
+    Builder<RequestT, ResponseT> setPacker(BundlePacker<RequestT, ResponseT> packer) {
+      this.packer = packer;
+      return this;
+    }
+
+    /**
+     * Set the executor on which results are sent back, in chunks of at most
+     * resultChunkSize results.
+     */
+    public Builder<RequestT, ResponseT> setResultExecutor(Executor resultExecutor,
+        int resultChunkSize) {
+      Preconditions.checkArgument(resultChunkSize > 0);
+      this.resultExecutor = Preconditions.checkNotNull(resultExecutor);
+      this.resultChunkSize = resultChunkSize;
+      return this;
+    }
+
+    /**
+     * Set the executor on which the deadlines of streamed bundles are timed. It is
+     * required if the bundling descriptor is a StreamingBundlingDescriptor.
+     */
+    public Builder<RequestT, ResponseT> setStreamScheduler(
+        ScheduledExecutorService streamScheduler) {
+      this.streamScheduler = streamScheduler;
+      return this;
+    }
+
+    /**
+     * Build the BundleExecutor.
+     */
+    public BundleExecutor<RequestT, ResponseT> build() {
+      return new BundleExecutor<>(this);
+    }
+  }
+
+  /**
+   * Get a new builder for a BundleExecutor of the given partition.
+   */
+  public static <RequestT, ResponseT> Builder<RequestT, ResponseT> newBuilder(
+      BundlingDescriptor<RequestT, ResponseT> bundlingDescriptor, String partitionKey) {
+    return new Builder<>(bundlingDescriptor, partitionKey);
   }
 
   @Override
   public void validateItem(BundlingContext<RequestT, ResponseT> item) {
-    String itemPartitionKey =
-        bundlingDescriptor.getBundlePartitionKey(item.getCallContext().getRequest());
+    if (bundlingDescriptor instanceof StreamingBundlingDescriptor
+        && item.getCallContext().getChannel() == null) {
+      throw new IllegalArgumentException(
+          String.format("For partition %s, bundles are streamed, which requires a channel",
+              partitionKey));
+    }
+    String itemPartitionKey = item.getPartitionKey(bundlingDescriptor);
     if (!itemPartitionKey.equals(partitionKey)) {
-      String requestClassName =
-          item.getCallContext().getRequest().getClass().getSimpleName();
+      String requestClassName = item.getRequest().getClass().getSimpleName();
       throw new IllegalArgumentException(
           String.format("For type %s, invalid partition key: %s, should be: %s",
               requestClassName, itemPartitionKey, partitionKey));
     }
+    if (elementCountLimit != null) {
+      long elementCount = item.countElements(bundlingDescriptor);
+      if (elementCount > elementCountLimit) {
+        throw new IllegalArgumentException(
+            String.format("For partition %s, request has %d elements, the limit is %d",
+                partitionKey, elementCount, elementCountLimit));
+      }
+    }
+    if (requestByteLimit != null) {
+      long byteCount = item.countBytes(bundlingDescriptor);
+      if (byteCount > requestByteLimit) {
+        throw new IllegalArgumentException(
+            String.format("For partition %s, request has %d bytes, the limit is %d",
+                partitionKey, byteCount, requestByteLimit));
+      }
+    }
+  }
+
+  @Override
+  public long getNanosUntilCapacity() {
+    long delayNanos = 0;
+    for (TokenBucket bucket : bundleRateLimits) {
+      delayNanos = Math.max(delayNanos, bucket.getNanosUntilAvailable());
+    }
+    for (TokenBucket bucket : byteRateLimits) {
+      delayNanos = Math.max(delayNanos, bucket.getNanosUntilAvailable());
+    }
+    return delayNanos;
+  }
+
+  @Override
+  public boolean hasCapacity() {
+    if (getNanosUntilCapacity() > 0) {
+      return false;
+    }
+    if (maxInFlightBundles > 0 && inFlightBundles.get() >= maxInFlightBundles) {
+      return false;
+    }
+    if (concurrencyLimiter != null && !concurrencyLimiter.hasCapacity()) {
+      return false;
+    }
+    synchronized (streams) {
+      for (BundleStream<RequestT, ResponseT> stream : streams.values()) {
+        if (!stream.isReady()) {
+          return false;
+        }
+      }
+    }
+    return true;
+  }
+
+  @Override
+  public void setCapacityListener(Runnable capacityListener) {
+    this.capacityListener = capacityListener;
+    if (concurrencyLimiter != null) {
+      concurrencyLimiter.removeCapacityListener(limiterListener);
+      concurrencyLimiter.addCapacityListener(limiterListener);
+    }
+  }
+
+  /**
+   * Returns the number of bundles which have been sent but not completed yet.
+   */
+  public int getInFlightBundleCount() {
+    return inFlightBundles.get();
+  }
+
+  @Override
+  public boolean isIdle() {
+    return inFlightBundles.get() == 0;
+  }
+
+  /**
+   * Returns whether no bundle is in flight, and no request is waiting for the final
+   * result of another one with its ordering key: none held back, released or being
+   * retried, and no results are still queued on the result executor. Only then can the
+   * executor be dropped without breaking the order of a key. Unlike isIdle, which decides
+   * whether the next bundle can be sent right away, this also counts requests whose
+   * bundle is done but which are not released yet.
+   */
+  public boolean isDrained() {
+    if (inFlightBundles.get() != 0 || queuedResultChunks.get() != 0) {
+      return false;
+    }
+    synchronized (orderingKeys) {
+      return orderingKeys.isEmpty();
+    }
+  }
+
+  /**
+   * Half-closes the streams to which bundles are written, if any, and stops listening
+   * to the concurrency limiter. Bundles which were already sent still get their responses.
+   */
+  public void close() {
+    if (concurrencyLimiter != null) {
+      concurrencyLimiter.removeCapacityListener(limiterListener);
+    }
+    List<BundleStream<RequestT, ResponseT>> closedStreams;
+    synchronized (streams) {
+      closedStreams = new ArrayList<>(streams.values());
+    }
+    for (BundleStream<RequestT, ResponseT> stream : closedStreams) {
+      stream.close();
+    }
+  }
+
+  // Returns the stream for the given channel, which is opened when the first bundle is
+  // written to it.
+  private BundleStream<RequestT, ResponseT> getStream(Channel channel) {
+    synchronized (streams) {
+      BundleStream<RequestT, ResponseT> stream = streams.get(channel);
+      if (stream == null) {
+        stream = new BundleStream<>(
+            ((StreamingBundlingDescriptor<RequestT, ResponseT>) bundlingDescriptor)
+                .getStreamingCallFactory(),
+            channel,
+            new Runnable() {
+              @Override
+              public void run() {
+                Runnable listener = capacityListener;
+                if (listener != null) {
+                  listener.run();
+                }
+              }
+            },
+            streamScheduler);
+        streams.put(channel, stream);
+      }
+      return stream;
+    }
   }
 
   @Override
   public void processBundle(List<BundlingContext<RequestT, ResponseT>> bundle) {
-    List<RequestT> requests = new ArrayList<>(bundle.size());
-    for (BundlingContext<RequestT, ResponseT> message : bundle) {
-      requests.add(message.getCallContext().getRequest());
+    List<BundlingContext<RequestT, ResponseT>> liveBundle = removeDone(bundle);
+    if (bundlingDescriptor instanceof OrderedBundlingDescriptor) {
+      liveBundle = takeSendableInOrder(liveBundle);
     }
-    RequestT bundleRequest = bundlingDescriptor.mergeRequests(requests);
+    sendLiveBundle(liveBundle);
+  }
+
+  private void sendLiveBundle(List<BundlingContext<RequestT, ResponseT>> liveBundle) {
+    if (liveBundle.isEmpty()) {
+      return;
+    }
+    List<List<BundlingContext<RequestT, ResponseT>>> subBundles = splitByCall(liveBundle);
+    if (subBundles == null) {
+      processSubBundle(liveBundle);
+      return;
+    }
+    for (List<BundlingContext<RequestT, ResponseT>> subBundle : subBundles) {
+      processSubBundle(subBundle);
+    }
+  }
+
+  // Returns the requests of the bundle which can be sent now: requests without an
+  // ordering key, requests whose key has nothing in flight, and requests which were
+  // released for their key and come before anything else in flight for it. The other
+  // requests are held until their key is free.
+  private List<BundlingContext<RequestT, ResponseT>> takeSendableInOrder(
+      List<BundlingContext<RequestT, ResponseT>> bundle) {
+    OrderedBundlingDescriptor<RequestT, ResponseT> descriptor =
+        (OrderedBundlingDescriptor<RequestT, ResponseT>) bundlingDescriptor;
+    List<BundlingContext<RequestT, ResponseT>> sendable = new ArrayList<>(bundle.size());
+    List<BundlingContext<RequestT, ResponseT>> newlyPending = new ArrayList<>();
+    List<OrderingKeyState> newlyPendingKeys = new ArrayList<>();
+    List<BundlingContext<RequestT, ResponseT>> released = new ArrayList<>();
+    Set<OrderingKeyState> openedKeys = new HashSet<>();
+    synchronized (orderingKeys) {
+      for (BundlingContext<RequestT, ResponseT> message : bundle) {
+        Object key = message.getOrderingKey(descriptor);
+        if (key == null) {
+          sendable.add(message);
+          continue;
+        }
+        OrderingKeyState state = orderingKeys.get(key);
+        if (state == null) {
+          state = new OrderingKeyState(key);
+          orderingKeys.put(key, state);
+        }
+        BundlingFuture<ResponseT> future = message.getBundlingFuture();
+        if (state.released.remove(future)) {
+          // The released requests of the key may have been split into several bundles.
+          state.pending.put(future, message);
+          if (openedKeys.contains(state) || state.getInFlightCount() == 1) {
+            openedKeys.add(state);
+            sendable.add(message);
+          } else {
+            state.returned.add(future);
+          }
+        } else if (state.pending.containsKey(future)) {
+          state.pending.put(future, message);
+          state.returned.add(future);
+          if (state.returned.size() == state.pending.size()) {
+            released.addAll(state.release());
+          }
+        } else if (state.pending.isEmpty()
+            || (openedKeys.contains(state) && state.released.isEmpty()
+                && state.returned.isEmpty())) {
+          openedKeys.add(state);
+          state.pending.put(future, message);
+          newlyPending.add(message);
+          newlyPendingKeys.add(state);
+          sendable.add(message);
+        } else {
+          state.held.add(message);
+        }
+      }
+    }
+    for (int i = 0; i < newlyPending.size(); i++) {
+      listenForFinalResult(newlyPending.get(i), newlyPendingKeys.get(i));
+    }
+    requeueReleased(released);
+    return sendable;
+  }
+
+  private void listenForFinalResult(BundlingContext<RequestT, ResponseT> message,
+      final OrderingKeyState state) {
+    final BundlingFuture<ResponseT> future = message.getBundlingFuture();
+    future.addListener(new Runnable() {
+      @Override
+      public void run() {
+        finalResultSent(state, future);
+      }
+    }, MoreExecutors.directExecutor());
+  }
+
+  // Releases the retried requests of the key once they are all back, and the held
+  // requests once nothing is in flight for the key any more.
+  private void finalResultSent(OrderingKeyState state, BundlingFuture<ResponseT> future) {
+    List<BundlingContext<RequestT, ResponseT>> released;
+    List<BundlingContext<RequestT, ResponseT>> newlyPending = null;
+    synchronized (orderingKeys) {
+      if (state.pending.remove(future) == null) {
+        return;
+      }
+      state.returned.remove(future);
+      state.released.remove(future);
+      if (!state.pending.isEmpty()) {
+        if (state.returned.isEmpty() || state.returned.size() < state.pending.size()) {
+          return;
+        }
+        released = state.release();
+      } else if (state.held.isEmpty()) {
+        if (orderingKeys.get(state.key) == state) {
+          orderingKeys.remove(state.key);
+        }
+        return;
+      } else {
+        newlyPending = state.held;
+        state.held = new ArrayList<>();
+        for (BundlingContext<RequestT, ResponseT> message : newlyPending) {
+          state.pending.put(message.getBundlingFuture(), message);
+        }
+        released = state.release();
+      }
+    }
+    if (newlyPending != null) {
+      for (BundlingContext<RequestT, ResponseT> message : newlyPending) {
+        listenForFinalResult(message, state);
+      }
+    }
+    requeueReleased(released);
+  }
+
+  // Adds the released requests to the bundler of their partition again, in order. The
+  // requests which cannot be added again are sent right away instead.
+  private void requeueReleased(List<BundlingContext<RequestT, ResponseT>> released) {
+    List<BundlingContext<RequestT, ResponseT>> notRequeued = null;
+    for (BundlingContext<RequestT, ResponseT> message : released) {
+      if (notRequeued == null && message.requeueReleased()) {
+        continue;
+      }
+      if (notRequeued == null) {
+        notRequeued = new ArrayList<>();
+      }
+      notRequeued.add(message);
+    }
+    if (notRequeued == null) {
+      return;
+    }
+    OrderedBundlingDescriptor<RequestT, ResponseT> descriptor =
+        (OrderedBundlingDescriptor<RequestT, ResponseT>) bundlingDescriptor;
+    synchronized (orderingKeys) {
+      for (BundlingContext<RequestT, ResponseT> message : notRequeued) {
+        OrderingKeyState state = orderingKeys.get(message.getOrderingKey(descriptor));
+        if (state != null) {
+          state.released.remove(message.getBundlingFuture());
+        }
+      }
+    }
+    sendLiveBundle(removeDone(notRequeued));
+  }
+
+  // Fails the requests whose deadline has passed, drops the cancelled ones, and returns
+  // the other ones.
+  private List<BundlingContext<RequestT, ResponseT>> removeDone(
+      List<BundlingContext<RequestT, ResponseT>> bundle) {
+    long now = System.nanoTime();
+    List<BundlingContext<RequestT, ResponseT>> liveBundle = bundle;
+    for (int i = 0; i < bundle.size(); i++) {
+      BundlingContext<RequestT, ResponseT> message = bundle.get(i);
+      Long deadline = message.getCallContext().getCallOptions().getDeadlineNanoTime();
+      boolean expired = deadline != null && deadline - now <= 0;
+      if (expired || message.isCancelled()) {
+        if (liveBundle == bundle) {
+          liveBundle = new ArrayList<>(bundle.subList(0, i));
+        }
+        if (!message.isCancelled()) {
+          message.setException(new ApiException(
+              Status.DEADLINE_EXCEEDED
+                  .withDescription("Deadline passed before the bundle was sent")
+                  .asRuntimeException(),
+              false));
+        }
+        message.sendResult();
+      } else if (liveBundle != bundle) {
+        liveBundle.add(message);
+      }
+    }
+    return liveBundle;
+  }
+
+  // Groups the requests by channel and call options other than the deadline, in the
+  // order in which each group first appears. Returns null if all requests are in the
+  // same group.
+  @Nullable
+  private List<List<BundlingContext<RequestT, ResponseT>>> splitByCall(
+      List<BundlingContext<RequestT, ResponseT>> bundle) {
+    CallContext<RequestT> firstContext = bundle.get(0).getCallContext();
+    int i = 1;
+    while (i < bundle.size() && isSameCall(bundle.get(i).getCallContext(), firstContext)) {
+      i++;
+    }
+    if (i == bundle.size()) {
+      return null;
+    }
+    List<List<BundlingContext<RequestT, ResponseT>>> subBundles = new ArrayList<>();
+    subBundles.add(new ArrayList<>(bundle.subList(0, i)));
+    for (; i < bundle.size(); i++) {
+      BundlingContext<RequestT, ResponseT> message = bundle.get(i);
+      CallContext<RequestT> context = message.getCallContext();
+      List<BundlingContext<RequestT, ResponseT>> subBundle = null;
+      for (List<BundlingContext<RequestT, ResponseT>> candidate : subBundles) {
+        if (isSameCall(candidate.get(0).getCallContext(), context)) {
+          subBundle = candidate;
+          break;
+        }
+      }
+      if (subBundle == null) {
+        subBundle = new ArrayList<>();
+        subBundles.add(subBundle);
+      }
+      subBundle.add(message);
+    }
+    return subBundles;
+  }
+
+  // Returns whether requests with the given call contexts can be sent in one call: they
+  // have the same channel, and call options which differ at most in their deadline.
+  private static boolean isSameCall(CallContext<?> context, CallContext<?> other) {
+    CallOptions callOptions = context.getCallOptions();
+    CallOptions otherCallOptions = other.getCallOptions();
+    return context.getChannel() == other.getChannel()
+        && Objects.equal(callOptions.getAuthority(), otherCallOptions.getAuthority())
+        && Objects.equal(callOptions.getCompressor(), otherCallOptions.getCompressor());
+  }
+
+  // Returns the call context for the bundle request: the channel and call options of
+  // the requests, which differ at most in their deadline, with the earliest deadline.
+  private CallContext<RequestT> getBundleContext(
+      List<BundlingContext<RequestT, ResponseT>> bundle, RequestT bundleRequest) {
+    CallContext<RequestT> firstContext = bundle.get(0).getCallContext();
+    Long earliestDeadline = null;
+    for (int i = 0; i < bundle.size(); i++) {
+      Long deadline = bundle.get(i).getCallContext().getCallOptions().getDeadlineNanoTime();
+      if (deadline != null && (earliestDeadline == null || deadline - earliestDeadline < 0)) {
+        earliestDeadline = deadline;
+      }
+    }
+    CallOptions callOptions = firstContext.getCallOptions();
+    if (!Objects.equal(earliestDeadline, callOptions.getDeadlineNanoTime())) {
+      callOptions = callOptions.withDeadlineNanoTime(earliestDeadline);
+    }
+    return CallContext.of(firstContext.getChannel(), callOptions, bundleRequest);
+  }
+
+  private void processSubBundle(List<BundlingContext<RequestT, ResponseT>> bundle) {
+    Map<BundlingContext<RequestT, ResponseT>, BundlingContext<RequestT, ResponseT>> duplicates =
+        findDuplicates(bundle);
+    List<BundlingContext<RequestT, ResponseT>> issuers = bundle;
+    if (!duplicates.isEmpty()) {
+      issuers = new ArrayList<>(bundle.size() - duplicates.size());
+      for (BundlingContext<RequestT, ResponseT> message : bundle) {
+        if (!duplicates.containsKey(message)) {
+          issuers.add(message);
+        }
+      }
+    }
+
+    consumeRateLimits(issuers);
+    RequestT bundleRequest = mergeRequests(issuers);
     ApiCallable<RequestT, ResponseT> callable = bundle.get(0).getCallable();
+    CallContext<RequestT> bundleContext = getBundleContext(bundle, bundleRequest);
+
+    long startNanos = System.nanoTime();
+    if (maxInFlightBundles > 0 || bundlingDescriptor instanceof StreamingBundlingDescriptor
+        || bundlingDescriptor instanceof OrderedBundlingDescriptor
+        || concurrencyLimiter != null || packer != null) {
+      processBundleAsync(callable, bundleContext, bundle, issuers, duplicates, startNanos);
+      return;
+    }
 
     try {
-      ResponseT bundleResponse = callable.call(bundleRequest);
-      bundlingDescriptor.splitResponse(bundleResponse, bundle);
+      ResponseT bundleResponse = callable.call(bundleContext);
+      bundlingDescriptor.splitResponse(bundleResponse, issuers);
     } catch (Throwable exception) {
-      bundlingDescriptor.splitException(exception, bundle);
+      bundlingDescriptor.splitException(exception, issuers);
+    }
+    recordBundleLatency(startNanos);
+
+    sendResults(bundle, duplicates);
+  }
+
+  private void consumeRateLimits(List<BundlingContext<RequestT, ResponseT>> issuers) {
+    for (TokenBucket bucket : bundleRateLimits) {
+      bucket.consume(1);
+    }
+    if (byteRateLimits.isEmpty()) {
+      return;
+    }
+    long byteCount = 0;
+    for (BundlingContext<RequestT, ResponseT> message : issuers) {
+      byteCount += message.countBytes(bundlingDescriptor);
+    }
+    for (TokenBucket bucket : byteRateLimits) {
+      bucket.consume(byteCount);
     }
+  }
+
+  private RequestT mergeRequests(List<BundlingContext<RequestT, ResponseT>> issuers) {
+    if (bundlingDescriptor instanceof ArenaBundlingDescriptor) {
+      List<ByteBuffer> serializedRequests = new ArrayList<>(issuers.size());
+      for (BundlingContext<RequestT, ResponseT> message : issuers) {
+        ByteBuffer serializedRequest = message.getSerializedRequest();
+        if (serializedRequest == null) {
+          // Added while its partition had no arena, after the partition was evicted.
+          serializedRequests = null;
+          break;
+        }
+        serializedRequests.add(serializedRequest);
+      }
+      if (serializedRequests != null) {
+        return ((ArenaBundlingDescriptor<RequestT, ResponseT>) bundlingDescriptor)
+            .mergeSerializedRequests(serializedRequests);
+      }
+    }
+    List<RequestT> requests = new ArrayList<>(issuers.size());
+    for (BundlingContext<RequestT, ResponseT> message : issuers) {
+      requests.add(message.getRequest());
+    }
+    return bundlingDescriptor.mergeRequests(requests);
+  }
 
+  // Maps each request which is a duplicate of an earlier request in the bundle to
+  // the earlier request.
+  private Map<BundlingContext<RequestT, ResponseT>, BundlingContext<RequestT, ResponseT>>
+      findDuplicates(List<BundlingContext<RequestT, ResponseT>> bundle) {
+    if (!(bundlingDescriptor instanceof DeduplicatingBundlingDescriptor) || bundle.size() < 2) {
+      return Collections.emptyMap();
+    }
+    DeduplicatingBundlingDescriptor<RequestT, ResponseT> descriptor =
+        (DeduplicatingBundlingDescriptor<RequestT, ResponseT>) bundlingDescriptor;
+    Map<Object, BundlingContext<RequestT, ResponseT>> firstByKey = new HashMap<>();
+    Map<BundlingContext<RequestT, ResponseT>, BundlingContext<RequestT, ResponseT>> duplicates =
+        new HashMap<>();
     for (BundlingContext<RequestT, ResponseT> message : bundle) {
+      Object key = message.getDedupKey(descriptor);
+      if (key == null) {
+        continue;
+      }
+      BundlingContext<RequestT, ResponseT> first = firstByKey.get(key);
+      if (first == null) {
+        firstByKey.put(key, message);
+      } else {
+        duplicates.put(message, first);
+      }
+    }
+    return duplicates;
+  }
+
+  private void processBundleAsync(final ApiCallable<RequestT, ResponseT> callable,
+      final CallContext<RequestT> bundleContext,
+      final List<BundlingContext<RequestT, ResponseT>> bundle,
+      final List<BundlingContext<RequestT, ResponseT>> issuers,
+      final Map<BundlingContext<RequestT, ResponseT>, BundlingContext<RequestT, ResponseT>>
+          duplicates,
+      final long startNanos) {
+    inFlightBundles.incrementAndGet();
+    // A packer takes one call of the limiter for each pack instead.
+    boolean limited = concurrencyLimiter != null
+        && (packer == null || bundlingDescriptor instanceof StreamingBundlingDescriptor);
+    if (!limited) {
+      sendBundle(callable, bundleContext, bundle, issuers, duplicates, startNanos, false);
+      return;
+    }
+    // The executor only sends a bundle once the limiter has capacity, so this only
+    // waits if another user of the limiter took it in the meantime. The bundle is then
+    // sent by the call which makes room for it, so that no thread blocks.
+    concurrencyLimiter.acquireAsync(new Runnable() {
+      @Override
+      public void run() {
+        sendBundle(callable, bundleContext, bundle, issuers, duplicates, startNanos, true);
+      }
+    });
+  }
+
+  // Sends the bundle, which counts as in flight, as a call of the concurrency limiter if
+  // limited is true.
+  private void sendBundle(ApiCallable<RequestT, ResponseT> callable,
+      CallContext<RequestT> bundleContext, final List<BundlingContext<RequestT, ResponseT>> bundle,
+      final List<BundlingContext<RequestT, ResponseT>> issuers,
+      final Map<BundlingContext<RequestT, ResponseT>, BundlingContext<RequestT, ResponseT>>
+          duplicates,
+      final long startNanos, final boolean limited) {
+    final long sendNanos = System.nanoTime();
+    ListenableFuture<ResponseT> bundleResponseFuture;
+    try {
+      if (bundlingDescriptor instanceof StreamingBundlingDescriptor) {
+        bundleResponseFuture = getStream(bundleContext.getChannel()).send(bundleContext);
+      } else if (packer != null) {
+        long elementCount = 0;
+        long byteCount = 0;
+        for (BundlingContext<RequestT, ResponseT> message : issuers) {
+          elementCount += message.countElements(bundlingDescriptor);
+          byteCount += message.countBytes(bundlingDescriptor);
+        }
+        bundleResponseFuture = packer.send(callable, bundleContext, elementCount, byteCount);
+      } else {
+        bundleResponseFuture = callable.futureCall(bundleContext);
+      }
+    } catch (Throwable exception) {
+      bundleResponseFuture = Futures.immediateFailedFuture(exception);
+    }
+    Futures.addCallback(
+        bundleResponseFuture,
+        new FutureCallback<ResponseT>() {
+          @Override
+          public void onSuccess(ResponseT bundleResponse) {
+            if (limited) {
+              concurrencyLimiter.release(System.nanoTime() - sendNanos);
+            }
+            try {
+              bundlingDescriptor.splitResponse(bundleResponse, issuers);
+            } catch (Throwable exception) {
+              bundlingDescriptor.splitException(exception, issuers);
+            }
+            complete();
+          }
+
+          @Override
+          public void onFailure(Throwable exception) {
+            if (limited) {
+              concurrencyLimiter.release(exception);
+            }
+            bundlingDescriptor.splitException(exception, issuers);
+            complete();
+          }
+
+          private void complete() {
+            recordBundleLatency(startNanos);
+            sendResults(bundle, duplicates);
+            inFlightBundles.decrementAndGet();
+            Runnable listener = capacityListener;
+            if (listener != null) {
+              listener.run();
+            }
+          }
+        });
+  }
+
+  /**
+   * The requests of an ordering key which were sent and have no final result yet, in
+   * the order in which they were first sent, and the requests which wait for them.
+   */
+  private class OrderingKeyState {
+    private final Object key;
+    private final Map<BundlingFuture<ResponseT>, BundlingContext<RequestT, ResponseT>> pending =
+        new LinkedHashMap<>();
+    private final Set<BundlingFuture<ResponseT>> returned = new HashSet<>();
+    private final Set<BundlingFuture<ResponseT>> released = new HashSet<>();
+    private List<BundlingContext<RequestT, ResponseT>> held = new ArrayList<>();
+
+    private OrderingKeyState(Object key) {
+      this.key = key;
+    }
+
+    // Returns the number of pending requests which are neither back nor released.
+    // pre-condition: the lock of orderingKeys is held
+    private int getInFlightCount() {
+      return pending.size() - returned.size() - released.size();
+    }
+
+    // Marks all pending requests as released, and returns them in the order in which
+    // they were first sent.
+    // pre-condition: the lock of orderingKeys is held, and nothing is in flight
+    private List<BundlingContext<RequestT, ResponseT>> release() {
+      returned.clear();
+      released.addAll(pending.keySet());
+      return new ArrayList<>(pending.values());
+    }
+  }
+
+  private void recordBundleLatency(long startNanos) {
+    if (adaptiveController != null) {
+      adaptiveController.recordBundleLatency(System.nanoTime() - startNanos);
+    }
+  }
+
+  private void sendResults(List<BundlingContext<RequestT, ResponseT>> bundle,
+      Map<BundlingContext<RequestT, ResponseT>, BundlingContext<RequestT, ResponseT>>
+          duplicates) {
+    // The results of duplicates are copied before any result is sent, so that no chunk
+    // depends on another one.
+    for (Map.Entry<BundlingContext<RequestT, ResponseT>, BundlingContext<RequestT, ResponseT>>
+        duplicate : duplicates.entrySet()) {
+      duplicate.getKey().setResultFrom(duplicate.getValue());
+    }
+    if (resultExecutor == null) {
+      sendResults(bundle);
+      return;
+    }
+    for (final List<BundlingContext<RequestT, ResponseT>> chunk :
+        Lists.partition(bundle, resultChunkSize)) {
+      queuedResultChunks.incrementAndGet();
+      try {
+        resultExecutor.execute(new Runnable() {
+          @Override
+          public void run() {
+            try {
+              sendResults(chunk);
+            } finally {
+              queuedResultChunks.decrementAndGet();
+            }
+          }
+        });
+      } catch (RejectedExecutionException e) {
+        queuedResultChunks.decrementAndGet();
+        sendResults(chunk);
+      }
+    }
+  }
+
+  private static <RequestT, ResponseT> void sendResults(
+      List<BundlingContext<RequestT, ResponseT>> chunk) {
+    for (BundlingContext<RequestT, ResponseT> message : chunk) {
       message.sendResult();
     }
   }
@@ -0,0 +1,325 @@
+/*
+ * Copyright 2015, Google Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ *     * Neither the name of Google Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.google.api.gax.grpc;
+
+import com.google.common.base.Objects;
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+
+import io.grpc.CallOptions;
+import io.grpc.Channel;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nullable;
+
+/**
+ * Packs small bundles of different partitions which are sent on the same channel into
+ * one call, using a {@link PackingBundlingDescriptor}. A pack is sent once it reaches
+ * the element count threshold, once the next bundle would take it past the element count
+ * or request byte limit, or once the packing delay has passed since its first bundle.
+ * Bundles which reach the element count threshold on their own are sent directly.
+ *
+ * If a {@link ConcurrencyLimiter} is given, each pack, and each bundle which is sent
+ * directly, is sent as one call of the limiter, whose round trip time is measured from
+ * when the call is sent. If another user took its capacity in the meantime, the call is
+ * sent once the limiter has room for it, by the call which ends, so that no thread
+ * blocks.
+ */
+class BundlePacker<RequestT, ResponseT> implements AutoCloseable {
+  private final PackingBundlingDescriptor<RequestT, ResponseT> packingDescriptor;
+  private final ScheduledExecutorService scheduler;
+  private final long delayMillis;
+  @Nullable private final Integer elementCountThreshold;
+  @Nullable private final Integer elementCountLimit;
+  @Nullable private final Integer requestByteLimit;
+  @Nullable private final ConcurrencyLimiter concurrencyLimiter;
+  // Guarded by this. Packs are keyed by channel, which may be null.
+  private final Map<Channel, Pack> packs = new HashMap<>();
+  // Guarded by this.
+  private boolean closed;
+
+  BundlePacker(PackingBundlingDescriptor<RequestT, ResponseT> packingDescriptor,
+      ScheduledExecutorService scheduler, long delayMillis,
+      @Nullable Integer elementCountThreshold, @Nullable Integer elementCountLimit,
+      @Nullable Integer requestByteLimit, @Nullable ConcurrencyLimiter concurrencyLimiter) {
+    Preconditions.checkArgument(delayMillis >= 0);
+    this.packingDescriptor = Preconditions.checkNotNull(packingDescriptor);
+    this.scheduler = Preconditions.checkNotNull(scheduler);
+    this.delayMillis = delayMillis;
+    this.elementCountThreshold = elementCountThreshold;
+    this.elementCountLimit = elementCountLimit;
+    this.requestByteLimit = requestByteLimit;
+    this.concurrencyLimiter = concurrencyLimiter;
+  }
+
+  /**
+   * Sends the given bundle request with the callable, either in a pack with bundle requests
+   * of other partitions or directly, and returns the future of its response.
+   */
+  ListenableFuture<ResponseT> send(ApiCallable<RequestT, ResponseT> callable,
+      CallContext<RequestT> bundleContext, long elementCount, long byteCount) {
+    if (elementCountThreshold != null && elementCount >= elementCountThreshold) {
+      return call(callable, bundleContext);
+    }
+    SettableFuture<ResponseT> response = SettableFuture.create();
+    Channel channel = bundleContext.getChannel();
+    Pack fullPack = null;
+    Pack readyPack = null;
+    synchronized (this) {
+      if (closed) {
+        return call(callable, bundleContext);
+      }
+      Pack pack = packs.get(channel);
+      if (pack != null && !pack.fits(elementCount, byteCount)) {
+        packs.remove(channel);
+        fullPack = pack;
+        pack = null;
+      }
+      if (pack == null) {
+        pack = new Pack(callable, channel);
+        packs.put(channel, pack);
+        pack.schedule();
+      }
+      pack.add(bundleContext, response, elementCount, byteCount);
+      if (elementCountThreshold != null && pack.elementCount >= elementCountThreshold) {
+        packs.remove(channel);
+        readyPack = pack;
+      }
+    }
+    if (fullPack != null) {
+      fullPack.send();
+    }
+    if (readyPack != null) {
+      readyPack.send();
+    }
+    return response;
+  }
+
+  /**
+   * Sends the packs which are waiting for more bundles. Bundles which are sent afterwards
+   * are sent directly.
+   */
+  @Override
+  public void close() {
+    List<Pack> closedPacks;
+    synchronized (this) {
+      closed = true;
+      closedPacks = new ArrayList<>(packs.values());
+      packs.clear();
+    }
+    for (Pack pack : closedPacks) {
+      pack.send();
+    }
+  }
+
+  // Sends the call, as a call of the concurrency limiter if there is one.
+  private ListenableFuture<ResponseT> call(final ApiCallable<RequestT, ResponseT> callable,
+      final CallContext<RequestT> context) {
+    if (concurrencyLimiter == null) {
+      return callable.futureCall(context);
+    }
+    final SettableFuture<ResponseT> response = SettableFuture.create();
+    concurrencyLimiter.acquireAsync(new Runnable() {
+      @Override
+      public void run() {
+        final long sendNanos = System.nanoTime();
+        ListenableFuture<ResponseT> callResponse;
+        try {
+          callResponse = callable.futureCall(context);
+        } catch (Throwable exception) {
+          callResponse = Futures.immediateFailedFuture(exception);
+        }
+        Futures.addCallback(callResponse, new FutureCallback<ResponseT>() {
+          @Override
+          public void onSuccess(ResponseT result) {
+            concurrencyLimiter.release(System.nanoTime() - sendNanos);
+            response.set(result);
+          }
+
+          @Override
+          public void onFailure(Throwable exception) {
+            concurrencyLimiter.release(exception);
+            response.setException(exception);
+          }
+        });
+      }
+    });
+    return response;
+  }
+
+  // Sends the given pack if it is still waiting for more bundles.
+  private void packDelayPassed(Pack pack) {
+    synchronized (this) {
+      if (packs.get(pack.channel) != pack) {
+        return;
+      }
+      packs.remove(pack.channel);
+    }
+    pack.send();
+  }
+
+  /**
+   * The bundle requests which are packed into one call, and their response futures.
+   */
+  private class Pack {
+    private final ApiCallable<RequestT, ResponseT> callable;
+    @Nullable private final Channel channel;
+    private final List<CallContext<RequestT>> bundleContexts = new ArrayList<>();
+    private final List<SettableFuture<ResponseT>> responses = new ArrayList<>();
+    private long elementCount;
+    private long byteCount;
+    @Nullable private ScheduledFuture<?> delayTimer;
+
+    private Pack(ApiCallable<RequestT, ResponseT> callable, @Nullable Channel channel) {
+      this.callable = callable;
+      this.channel = channel;
+    }
+
+    // pre-condition: the lock of the packer is held
+    private void schedule() {
+      try {
+        delayTimer = scheduler.schedule(new Runnable() {
+          @Override
+          public void run() {
+            packDelayPassed(Pack.this);
+          }
+        }, delayMillis, TimeUnit.MILLISECONDS);
+      } catch (RejectedExecutionException e) {
+        // The pack is still sent when it fills up or the packer is closed.
+      }
+    }
+
+    // Returns whether the bundle can be added without going past the limits. An empty
+    // pack takes any bundle.
+    // pre-condition: the lock of the packer is held
+    private boolean fits(long bundleElementCount, long bundleByteCount) {
+      if (bundleContexts.isEmpty()) {
+        return true;
+      }
+      return (elementCountLimit == null || elementCount + bundleElementCount <= elementCountLimit)
+          && (requestByteLimit == null || byteCount + bundleByteCount <= requestByteLimit);
+    }
+
+    // pre-condition: the lock of the packer is held
+    private void add(CallContext<RequestT> bundleContext, SettableFuture<ResponseT> response,
+        long bundleElementCount, long bundleByteCount) {
+      bundleContexts.add(bundleContext);
+      responses.add(response);
+      elementCount += bundleElementCount;
+      byteCount += bundleByteCount;
+    }
+
+    // pre-condition: the pack was removed from the packer, so nothing is added any more
+    private void send() {
+      if (delayTimer != null) {
+        delayTimer.cancel(false);
+      }
+      final List<RequestT> bundleRequests = new ArrayList<>(bundleContexts.size());
+      for (CallContext<RequestT> bundleContext : bundleContexts) {
+        bundleRequests.add(bundleContext.getRequest());
+      }
+      ListenableFuture<ResponseT> packedResponse;
+      try {
+        if (bundleContexts.size() == 1) {
+          packedResponse = call(callable, bundleContexts.get(0));
+        } else {
+          packedResponse = call(callable,
+              CallContext.of(channel, getCallOptions(),
+                  packingDescriptor.packRequests(bundleRequests)));
+        }
+      } catch (Throwable exception) {
+        packedResponse = Futures.immediateFailedFuture(exception);
+      }
+      Futures.addCallback(packedResponse, new FutureCallback<ResponseT>() {
+        @Override
+        public void onSuccess(ResponseT response) {
+          if (responses.size() == 1) {
+            responses.get(0).set(response);
+            return;
+          }
+          List<ResponseT> bundleResponses;
+          try {
+            bundleResponses = packingDescriptor.unpackResponse(response, bundleRequests);
+          } catch (Throwable exception) {
+            onFailure(exception);
+            return;
+          }
+          if (bundleResponses == null || bundleResponses.size() != responses.size()) {
+            onFailure(new IllegalStateException(String.format(
+                "Unpacked %s bundle responses from a pack of %d bundles",
+                bundleResponses == null ? "no" : String.valueOf(bundleResponses.size()),
+                responses.size())));
+            return;
+          }
+          for (int i = 0; i < responses.size(); i++) {
+            responses.get(i).set(bundleResponses.get(i));
+          }
+        }
+
+        @Override
+        public void onFailure(Throwable exception) {
+          for (SettableFuture<ResponseT> response : responses) {
+            response.setException(exception);
+          }
+        }
+      });
+    }
+
+    // Returns the call options of the first bundle, with the earliest deadline of all
+    // bundles.
+    private CallOptions getCallOptions() {
+      CallOptions callOptions = bundleContexts.get(0).getCallOptions();
+      Long earliestDeadline = null;
+      for (CallContext<RequestT> bundleContext : bundleContexts) {
+        Long deadline = bundleContext.getCallOptions().getDeadlineNanoTime();
+        if (deadline != null && (earliestDeadline == null || deadline - earliestDeadline < 0)) {
+          earliestDeadline = deadline;
+        }
+      }
+      if (!Objects.equal(earliestDeadline, callOptions.getDeadlineNanoTime())) {
+        callOptions = callOptions.withDeadlineNanoTime(earliestDeadline);
+      }
+      return callOptions;
+    }
+  }
+}
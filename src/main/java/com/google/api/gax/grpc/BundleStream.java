@@ -0,0 +1,250 @@
+/*
+ * Copyright 2015, Google Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ *     * Neither the name of Google Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.google.api.gax.grpc;
+
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+
+import io.grpc.CallOptions;
+import io.grpc.Channel;
+import io.grpc.ClientCall;
+import io.grpc.Metadata;
+import io.grpc.Status;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nullable;
+
+/**
+ * A long-lived stream on one channel, to which bundle requests are written as messages,
+ * and whose responses are matched to the bundle requests in order. If the stream
+ * closes, the bundles which are still waiting for a response fail, and the next bundle
+ * opens a new stream. The ready listener is run whenever the stream may have become
+ * ready for more messages.
+ *
+ * The stream itself has no deadline. Instead, a bundle whose deadline passes before its
+ * response is received fails with DEADLINE_EXCEEDED, and the stream is cancelled, since
+ * the responses of the later bundles would be stuck behind it. The other bundles which
+ * are still waiting fail with UNAVAILABLE, and the next bundle opens a new stream.
+ */
+class BundleStream<RequestT, ResponseT> {
+  private final ClientCallFactory<RequestT, ResponseT> callFactory;
+  private final Channel channel;
+  private final Runnable readyListener;
+  private final ScheduledExecutorService scheduler;
+  // Guarded by this.
+  @Nullable private StreamListener current;
+  // Guarded by this.
+  private boolean closed;
+
+  BundleStream(ClientCallFactory<RequestT, ResponseT> callFactory, Channel channel,
+      Runnable readyListener, ScheduledExecutorService scheduler) {
+    this.callFactory = Preconditions.checkNotNull(callFactory);
+    this.channel = Preconditions.checkNotNull(channel);
+    this.readyListener = Preconditions.checkNotNull(readyListener);
+    this.scheduler = Preconditions.checkNotNull(scheduler);
+  }
+
+  /**
+   * Writes the request of the given bundle context to the stream, and returns the
+   * future of its response. The stream is opened with the call options of the first
+   * bundle, without a deadline, and the response fails once the deadline of the bundle
+   * passes.
+   */
+  ListenableFuture<ResponseT> send(CallContext<RequestT> bundleContext) {
+    SettableFuture<ResponseT> response = SettableFuture.create();
+    StreamListener listener;
+    synchronized (this) {
+      if (closed) {
+        response.setException(
+            Status.UNAVAILABLE.withDescription("Bundle stream is closed").asRuntimeException());
+        return response;
+      }
+      listener = current;
+      if (listener == null) {
+        listener = open(bundleContext.getCallOptions().withDeadlineNanoTime(null));
+      }
+      listener.pendingResponses.add(response);
+      try {
+        listener.call.sendMessage(bundleContext.getRequest());
+      } catch (RuntimeException e) {
+        listener.pendingResponses.remove(response);
+        if (current == listener) {
+          current = null;
+          listener.call.cancel();
+        }
+        response.setException(e);
+        return response;
+      }
+    }
+    Long deadline = bundleContext.getCallOptions().getDeadlineNanoTime();
+    if (deadline != null) {
+      scheduleDeadline(listener, response, deadline);
+    }
+    return response;
+  }
+
+  private void scheduleDeadline(final StreamListener listener,
+      final SettableFuture<ResponseT> response, long deadline) {
+    final ScheduledFuture<?> timer = scheduler.schedule(new Runnable() {
+      @Override
+      public void run() {
+        deadlinePassed(listener, response);
+      }
+    }, deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+    response.addListener(new Runnable() {
+      @Override
+      public void run() {
+        timer.cancel(false);
+      }
+    }, MoreExecutors.directExecutor());
+  }
+
+  // Fails the response, and cancels its stream: the response stays pending until the
+  // stream is closed, so that the responses which still arrive are matched in order.
+  private void deadlinePassed(StreamListener listener, SettableFuture<ResponseT> response) {
+    synchronized (this) {
+      if (response.isDone() || !listener.pendingResponses.contains(response)) {
+        return;
+      }
+      listener.deadlinePassed = true;
+      if (current == listener) {
+        current = null;
+      }
+    }
+    response.setException(
+        Status.DEADLINE_EXCEEDED
+            .withDescription("Deadline passed before the bundle response was received")
+            .asRuntimeException());
+    listener.call.cancel();
+  }
+
+  /**
+   * Returns whether the stream can take more messages without buffering them.
+   */
+  synchronized boolean isReady() {
+    return current == null || current.call.isReady();
+  }
+
+  /**
+   * Half-closes the stream. Bundles which were already written still get their
+   * responses, and no more bundles can be sent.
+   */
+  void close() {
+    StreamListener listener;
+    synchronized (this) {
+      closed = true;
+      listener = current;
+    }
+    if (listener != null) {
+      listener.call.halfClose();
+    }
+  }
+
+  // pre-condition: lock is held
+  private StreamListener open(CallOptions callOptions) {
+    StreamListener listener = new StreamListener(callFactory.newCall(channel, callOptions));
+    current = listener;
+    listener.call.start(listener, new Metadata());
+    listener.call.request(1);
+    return listener;
+  }
+
+  private class StreamListener extends ClientCall.Listener<ResponseT> {
+    private final ClientCall<RequestT, ResponseT> call;
+    // Guarded by the stream.
+    private final ArrayDeque<SettableFuture<ResponseT>> pendingResponses = new ArrayDeque<>();
+    // Guarded by the stream.
+    private boolean deadlinePassed;
+
+    private StreamListener(ClientCall<RequestT, ResponseT> call) {
+      this.call = call;
+    }
+
+    @Override
+    public void onMessage(ResponseT message) {
+      SettableFuture<ResponseT> response;
+      synchronized (BundleStream.this) {
+        response = pendingResponses.poll();
+      }
+      // A response without a pending bundle breaks the protocol, and is ignored.
+      if (response != null) {
+        response.set(message);
+      }
+      call.request(1);
+    }
+
+    @Override
+    public void onClose(Status status, Metadata trailers) {
+      List<SettableFuture<ResponseT>> failed;
+      boolean cancelled;
+      synchronized (BundleStream.this) {
+        cancelled = deadlinePassed;
+        if (current == this) {
+          current = null;
+        }
+        failed = new ArrayList<>(pendingResponses);
+        pendingResponses.clear();
+      }
+      if (!failed.isEmpty()) {
+        Throwable exception;
+        if (cancelled) {
+          exception = Status.UNAVAILABLE
+              .withDescription("Bundle stream was cancelled after a bundle deadline passed")
+              .asRuntimeException();
+        } else if (status.isOk()) {
+          exception = Status.UNAVAILABLE
+              .withDescription("Bundle stream closed before all responses were received")
+              .asRuntimeException();
+        } else {
+          exception = status.asRuntimeException();
+        }
+        for (SettableFuture<ResponseT> response : failed) {
+          response.setException(exception);
+        }
+      }
+      readyListener.run();
+    }
+
+    @Override
+    public void onReady() {
+      readyListener.run();
+    }
+  }
+}
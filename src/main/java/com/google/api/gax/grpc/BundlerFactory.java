@@ -31,113 +31,909 @@
 
 package com.google.api.gax.grpc;
 
+import com.google.api.gax.bundling.AdaptiveBundlingController;
+import com.google.api.gax.bundling.BundlingLimit;
+import com.google.api.gax.bundling.BundlingMetrics;
 import com.google.api.gax.bundling.BundlingThreshold;
 import com.google.api.gax.bundling.ElementCounter;
+import com.google.api.gax.bundling.DirectByteArena;
+import com.google.api.gax.bundling.ElementSerializer;
 import com.google.api.gax.bundling.ExternalThreshold;
+import com.google.api.gax.bundling.FillReason;
+import com.google.api.gax.bundling.FlowController;
+import com.google.api.gax.bundling.FlowController.LimitExceededBehavior;
+import com.google.api.gax.bundling.MappedSpillQueue;
 import com.google.api.gax.bundling.NumericThreshold;
 import com.google.api.gax.bundling.ThresholdBundler;
+import com.google.api.gax.bundling.TokenBucket;
+import com.google.api.gax.bundling.ThresholdBundleHandle;
 import com.google.api.gax.bundling.ThresholdBundlingForwarder;
+import com.google.api.gax.core.RetryParams;
+import com.google.common.base.Function;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Predicate;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ConcurrentHashMultiset;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Multiset;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
+import io.grpc.Status;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nullable;
+
+import org.joda.time.Duration;
 
 /**
  * A Factory class which, for each unique partitionKey, creates a trio including
  * a ThresholdBundler, BundleExecutor, and ThresholdBundlingForwarder. The
  * ThresholdBundlingForwarder pulls items from the ThresholdBundler and forwards
  * them to the BundleExecutor for processing.
+ *
+ * The bundling settings and the optional interfaces of the bundling descriptor
+ * configure the trio of each partition; see BundlingSettings and BundleExecutor for
+ * the features they enable. The factory owns what is shared between partitions: the
+ * flow controllers and token buckets which apply to all partitions, along with one
+ * of each for every partition, and the BundlePacker which packs small bundles of
+ * different partitions into one call.
+ *
+ * By default, each ThresholdBundlingForwarder runs on its own thread. If an
+ * executor is provided, all forwarders of the factory run on that executor
+ * instead, so the number of threads does not grow with the number of partitions.
+ * Bundles are then sent asynchronously, so that no thread of the executor waits for a
+ * call. Retries, pack delays and stream deadlines are also timed on the executor if there
+ * is one, and otherwise on a thread which the factory creates when it is first needed.
+ *
+ * If the bundling settings set a partition idle timeout, forwarders to which
+ * nothing was added for longer than the timeout are closed, which forwards their
+ * remaining elements, and removed. If they set a maximum partition count, the
+ * least recently used forwarder is evicted the same way before a new one is
+ * created, skipping partitions with bundles in flight or requests waiting for their
+ * ordering key, and getForwarder fails if every partition is busy. Evicted forwarders
+ * are created again on the next getForwarder call for their partition. Idle forwarders
+ * are checked for periodically on the executor if there is one, and otherwise by calls
+ * to getForwarder. A forwarder which still has
+ * elements to send, bundles in flight or retries scheduled is not idle. Evicted
+ * forwarders are closed on background threads which the factory creates when needed.
  */
 public class BundlerFactory<RequestT, ResponseT> implements AutoCloseable {
-  private final Map<String,
-      ThresholdBundlingForwarder<BundlingContext<RequestT, ResponseT>>> forwarders =
-          new ConcurrentHashMap<>();
+  private static final int ARENA_MAX_POOLED_CHUNKS = 8;
+  private static final int DEFAULT_RESULT_CHUNK_SIZE = 1000;
+
+  private final Map<String, Partition> partitions = new ConcurrentHashMap<>();
   private final BundlingDescriptor<RequestT, ResponseT> bundlingDescriptor;
   private final BundlingSettings bundlingSettings;
+  @Nullable private final ScheduledExecutorService executor;
+  @Nullable private final FlowController factoryFlowController;
+  @Nullable private final ConcurrencyLimiter concurrencyLimiter;
+  @Nullable private final Executor resultExecutor;
+  @Nullable private final BundlePacker<RequestT, ResponseT> packer;
+  @Nullable private final TokenBucket factoryBundleRateLimit;
+  @Nullable private final TokenBucket factoryByteRateLimit;
+  private final long idleTimeoutNanos;
+  private final AtomicLong nextIdleCheckNanos = new AtomicLong();
+  @Nullable private final ScheduledFuture<?> idleCheckFuture;
+  // The partition key of each element whose retry is scheduled, so that its partition
+  // is not evicted for being idle in the meantime.
+  private final Multiset<String> retryingPartitionKeys = ConcurrentHashMultiset.create();
   private final Object lock = new Object();
+  // Guarded by lock.
+  private boolean closed;
+  // Guarded by lock; only set if there is no executor.
+  @Nullable private ScheduledExecutorService timerExecutor;
+  // Guarded by lock; closes evicted partitions, and is created when first needed.
+  @Nullable private ExecutorService closeExecutor;
 
   public BundlerFactory(BundlingDescriptor<RequestT, ResponseT> bundlingDescriptor,
       BundlingSettings bundlingSettings) {
-    this.bundlingDescriptor = bundlingDescriptor;
-    this.bundlingSettings = bundlingSettings;
+    this(bundlingDescriptor, bundlingSettings, null);
+  }
+
+  /**
+   * Constructs a BundlerFactory whose forwarders run on the given executor, which
+   * is also used to time the delay threshold. If the executor is null, each
+   * forwarder runs on its own thread.
+   */
+  public BundlerFactory(BundlingDescriptor<RequestT, ResponseT> bundlingDescriptor,
+      BundlingSettings bundlingSettings, @Nullable ScheduledExecutorService executor) {
+    this(newBuilder(bundlingDescriptor, bundlingSettings).setExecutor(executor));
+  }
+
+  private BundlerFactory(Builder<RequestT, ResponseT> builder) {
+    this.bundlingDescriptor = builder.bundlingDescriptor;
+    this.bundlingSettings = builder.bundlingSettings;
+    this.executor = builder.executor;
+    this.concurrencyLimiter = builder.concurrencyLimiter;
+    this.resultExecutor = builder.resultExecutor;
+    this.factoryFlowController = createFlowController(
+        bundlingSettings.getMaxOutstandingElementCount(),
+        bundlingSettings.getMaxOutstandingRequestBytes());
+    this.factoryBundleRateLimit = createTokenBucket(bundlingSettings.getMaxBundlesPerSecond());
+    this.factoryByteRateLimit = createTokenBucket(bundlingSettings.getMaxBytesPerSecond());
+    this.packer = createPacker();
+
+    Duration idleTimeout = bundlingSettings.getPartitionIdleTimeout();
+    this.idleTimeoutNanos =
+        idleTimeout == null ? 0 : TimeUnit.MILLISECONDS.toNanos(idleTimeout.getMillis());
+    this.nextIdleCheckNanos.set(System.nanoTime() + idleTimeoutNanos);
+    if (idleTimeout != null && executor != null) {
+      this.idleCheckFuture = executor.scheduleWithFixedDelay(new Runnable() {
+        @Override
+        public void run() {
+          evictIdleForwarders();
+        }
+      }, idleTimeout.getMillis(), idleTimeout.getMillis(), TimeUnit.MILLISECONDS);
+    } else {
+      this.idleCheckFuture = null;
+    }
+  }
+
+  /**
+   * Builder for a BundlerFactory.
+   */
+  public static class Builder<RequestT, ResponseT> {
+    private final BundlingDescriptor<RequestT, ResponseT> bundlingDescriptor;
+    private final BundlingSettings bundlingSettings;
+    private ScheduledExecutorService executor;
+    private ConcurrencyLimiter concurrencyLimiter;
+    private Executor resultExecutor;
+
+    private Builder(BundlingDescriptor<RequestT, ResponseT> bundlingDescriptor,
+        BundlingSettings bundlingSettings) {
+      this.bundlingDescriptor = bundlingDescriptor;
+      this.bundlingSettings = bundlingSettings;
+    }
+
+    /**
+     * Set the executor on which the forwarders run, and on which the delay threshold,
+     * retries, pack delays and stream deadlines are timed. If it is null, each
+     * forwarder runs on its own thread. With an executor, bundles are always sent
+     * asynchronously, one at a time for each partition unless the bundling settings set
+     * a maximum number of bundles in flight.
+     */
+    public Builder<RequestT, ResponseT> setExecutor(
+        @Nullable ScheduledExecutorService executor) {
+      this.executor = executor;
+      return this;
+    }
+
+    /**
+     * Set the concurrency limiter of which the bundles of all partitions are sent as
+     * calls. It may also be shared with callables.
+     */
+    public Builder<RequestT, ResponseT> setConcurrencyLimiter(
+        @Nullable ConcurrencyLimiter concurrencyLimiter) {
+      this.concurrencyLimiter = concurrencyLimiter;
+      return this;
+    }
+
+    /**
+     * Set the executor on which results are sent back, in chunks of the result chunk
+     * size of the bundling settings, so that slow listeners of the returned futures do
+     * not hold up the next bundle.
+     */
+    public Builder<RequestT, ResponseT> setResultExecutor(@Nullable Executor resultExecutor) {
+      this.resultExecutor = resultExecutor;
+      return this;
+    }
+
+    /**
+     * Build the BundlerFactory.
+     */
+    public BundlerFactory<RequestT, ResponseT> build() {
+      return new BundlerFactory<>(this);
+    }
+  }
+
+  /**
+   * Get a new builder for a BundlerFactory.
+   */
+  public static <RequestT, ResponseT> Builder<RequestT, ResponseT> newBuilder(
+      BundlingDescriptor<RequestT, ResponseT> bundlingDescriptor,
+      BundlingSettings bundlingSettings) {
+    return new Builder<>(bundlingDescriptor, bundlingSettings);
   }
 
   /**
    * Provides the ThresholdBundlingForwarder corresponding to the give
    * partitionKey, or constructs one if it doesn't exist yet. The implementation
-   * is thread-safe.
+   * is thread-safe. If the maximum partition count is reached and no partition is
+   * idle, an ApiException with RESOURCE_EXHAUSTED is thrown.
    */
   public ThresholdBundlingForwarder<BundlingContext<RequestT, ResponseT>>
       getForwarder(String partitionKey) {
-    ThresholdBundlingForwarder<BundlingContext<RequestT, ResponseT>> forwarder =
-        forwarders.get(partitionKey);
-    if (forwarder == null) {
+    return getPartition(partitionKey).forwarder;
+  }
+
+  /**
+   * Returns the number of partitions which currently have a forwarder.
+   */
+  public int getPartitionCount() {
+    return partitions.size();
+  }
+
+  /**
+   * Returns the adaptive bundling controller of the given partition, which exposes
+   * its current delay and element count targets, or null if the bundling settings
+   * set no target latency or the partition has no forwarder.
+   */
+  @Nullable
+  public AdaptiveBundlingController<BundlingContext<RequestT, ResponseT>>
+      getAdaptiveController(String partitionKey) {
+    Partition partition = partitions.get(partitionKey);
+    return partition == null ? null : partition.adaptiveController;
+  }
+
+  /**
+   * Returns the metrics of the given partition, or null if the bundling settings do
+   * not enable metrics or the partition has no forwarder.
+   */
+  @Nullable
+  public BundlingMetrics<BundlingContext<RequestT, ResponseT>> getMetrics(String partitionKey) {
+    Partition partition = partitions.get(partitionKey);
+    return partition == null ? null : partition.metrics;
+  }
+
+  /**
+   * Returns a snapshot of the metrics of each partition which currently has a
+   * forwarder, or an empty map if the bundling settings do not enable metrics.
+   */
+  public Map<String, BundlingMetrics.Snapshot> getMetricsSnapshots() {
+    ImmutableMap.Builder<String, BundlingMetrics.Snapshot> snapshots = ImmutableMap.builder();
+    for (Map.Entry<String, Partition> entry : partitions.entrySet()) {
+      if (entry.getValue().metrics != null) {
+        snapshots.put(entry.getKey(), entry.getValue().metrics.snapshot());
+      }
+    }
+    return snapshots.build();
+  }
+
+  private Partition getPartition(String partitionKey) {
+    if (idleTimeoutNanos > 0 && idleCheckFuture == null) {
+      long nextIdleCheck = nextIdleCheckNanos.get();
+      long now = System.nanoTime();
+      if (now - nextIdleCheck >= 0
+          && nextIdleCheckNanos.compareAndSet(nextIdleCheck, now + idleTimeoutNanos)) {
+        evictIdleForwarders();
+      }
+    }
+    Partition partition = partitions.get(partitionKey);
+    if (partition == null) {
+      Partition evicted = null;
       synchronized(lock) {
-        forwarder = forwarders.get(partitionKey);
-        if (forwarder == null) {
-          forwarder = createForwarder(partitionKey);
-          forwarders.put(partitionKey, forwarder);
-          forwarder.start();
+        partition = partitions.get(partitionKey);
+        if (partition == null) {
+          Preconditions.checkState(!closed, "BundlerFactory is closed");
+          Integer maxPartitionCount = bundlingSettings.getMaxPartitionCount();
+          if (maxPartitionCount != null && partitions.size() >= maxPartitionCount) {
+            evicted = removeLeastRecentlyUsedPartition();
+            if (evicted == null) {
+              throw new ApiException(
+                  Status.RESOURCE_EXHAUSTED
+                      .withDescription(String.format(
+                          "All %d partitions are busy, cannot create partition %s",
+                          maxPartitionCount, partitionKey))
+                      .asRuntimeException(),
+                  false);
+            }
+          }
+          partition = new Partition(partitionKey);
+          partitions.put(partitionKey, partition);
+          partition.forwarder.start();
+        }
+      }
+      if (evicted != null) {
+        closeEvicted(Collections.singletonList(evicted));
+      }
+    }
+    return partition;
+  }
+
+  /**
+   * Closes and removes the forwarders to which nothing was added for longer than
+   * the partition idle timeout, and which have no elements left to send: none in
+   * their bundler or spill queue, no bundles in flight and no retries scheduled.
+   */
+  void evictIdleForwarders() {
+    List<Partition> evicted = new ArrayList<>();
+    long now = System.nanoTime();
+    synchronized(lock) {
+      for (Map.Entry<String, Partition> entry : partitions.entrySet()) {
+        Partition partition = entry.getValue();
+        if (now - partition.forwarder.getLastAddNanos() > idleTimeoutNanos
+            && partition.isIdle() && !retryingPartitionKeys.contains(entry.getKey())) {
+          evicted.add(partitions.remove(entry.getKey()));
+        }
+      }
+    }
+    closeEvicted(evicted);
+  }
+
+  // Closes the given evicted partitions on a background thread, since closing forwards
+  // the remaining elements and may wait for receiver capacity, which must not hold up
+  // the caller of getForwarder, nor the executor or timer threads the forwarders use.
+  private void closeEvicted(final List<Partition> evicted) {
+    if (evicted.isEmpty()) {
+      return;
+    }
+    ExecutorService closer;
+    synchronized(lock) {
+      if (closeExecutor == null) {
+        closeExecutor = Executors.newCachedThreadPool(
+            new ThreadFactoryBuilder()
+                .setDaemon(true)
+                .setNameFormat("bundling-close-%d")
+                .build());
+      }
+      closer = closeExecutor;
+    }
+    Runnable closeRunnable = new Runnable() {
+      @Override
+      public void run() {
+        for (Partition partition : evicted) {
+          partition.close();
+        }
+      }
+    };
+    try {
+      closer.execute(closeRunnable);
+    } catch (RejectedExecutionException e) {
+      // The executor was shut down, so there is no other thread to close them on.
+      closeRunnable.run();
+    }
+  }
+
+  // Removes the least recently used partition which can be evicted, and returns it, or
+  // returns null if every partition is busy.
+  // pre-condition: lock is held
+  // A caller which got the forwarder of a removed partition finds it closed when it
+  // adds to it, and then gets a new forwarder for the partition.
+  @Nullable
+  private Partition removeLeastRecentlyUsedPartition() {
+    String leastRecentlyUsed = null;
+    long oldestLastAddNanos = 0;
+    for (Map.Entry<String, Partition> entry : partitions.entrySet()) {
+      if (!entry.getValue().isEvictable() || retryingPartitionKeys.contains(entry.getKey())) {
+        continue;
+      }
+      long lastAddNanos = entry.getValue().forwarder.getLastAddNanos();
+      if (leastRecentlyUsed == null || lastAddNanos - oldestLastAddNanos < 0) {
+        leastRecentlyUsed = entry.getKey();
+        oldestLastAddNanos = lastAddNanos;
+      }
+    }
+    return leastRecentlyUsed == null ? null : partitions.remove(leastRecentlyUsed);
+  }
+
+  /**
+   * Returns the flow controllers from which elements of the given partition must be
+   * reserved, which is empty if no outstanding limits are set. getForwarder must have
+   * been called for the partition first.
+   */
+  ImmutableList<FlowController> getFlowControllers(String partitionKey) {
+    Partition partition = partitions.get(partitionKey);
+    if (partition != null) {
+      return partition.flowControllers;
+    }
+    // The partition was evicted in the meantime.
+    return factoryFlowController == null
+        ? ImmutableList.<FlowController>of() : ImmutableList.of(factoryFlowController);
+  }
+
+  /**
+   * Returns the arena in which requests of the given partition are held, or null if
+   * requests are held on the heap.
+   */
+  @Nullable
+  DirectByteArena getArena(String partitionKey) {
+    Partition partition = partitions.get(partitionKey);
+    return partition == null ? null : partition.arena;
+  }
+
+  /**
+   * Removes the given context from the bundler of its partition if it has not been
+   * sent yet, and returns whether it was removed.
+   */
+  boolean remove(String partitionKey, BundlingContext<RequestT, ResponseT> context) {
+    Partition partition = partitions.get(partitionKey);
+    return partition != null && partition.forwarder.remove(context);
+  }
+
+  /**
+   * Removes the oldest context which has not been sent yet to make room in the given
+   * flow controller, and returns it, or returns null if there is no such context. The
+   * oldest context of the given partition is removed for the partition's flow
+   * controller, and the oldest context of all partitions for the factory's.
+   */
+  @Nullable
+  BundlingContext<RequestT, ResponseT> removeOldest(
+      String partitionKey, FlowController flowController) {
+    if (flowController != factoryFlowController) {
+      Partition partition = partitions.get(partitionKey);
+      return partition == null ? null : partition.forwarder.removeOldest();
+    }
+    while (true) {
+      Partition oldestPartition = null;
+      BundlingContext<RequestT, ResponseT> oldest = null;
+      for (Partition partition : partitions.values()) {
+        BundlingContext<RequestT, ResponseT> candidate = partition.forwarder.peekOldest();
+        if (candidate != null
+            && (oldest == null || candidate.getCreatedNanos() - oldest.getCreatedNanos() < 0)) {
+          oldestPartition = partition;
+          oldest = candidate;
+        }
+      }
+      if (oldest == null) {
+        return null;
+      }
+      if (oldestPartition.forwarder.remove(oldest)) {
+        return oldest;
+      }
+      // The context was sent or removed in the meantime, look again.
+    }
+  }
+
+  // Returns the packer of the factory, or null if the bundling settings do not enable packing.
+  @Nullable
+  private BundlePacker<RequestT, ResponseT> createPacker() {
+    Duration packingDelay = bundlingSettings.getPackingDelayThreshold();
+    if (!(bundlingDescriptor instanceof PackingBundlingDescriptor) || packingDelay == null) {
+      return null;
+    }
+    return new BundlePacker<>(
+        (PackingBundlingDescriptor<RequestT, ResponseT>) bundlingDescriptor, getScheduler(),
+        packingDelay.getMillis(), bundlingSettings.getElementCountThreshold(),
+        bundlingSettings.getElementCountLimit(), bundlingSettings.getRequestByteLimit(),
+        concurrencyLimiter);
+  }
+
+  // Returns the executor on which retries, pack delays and stream deadlines are timed:
+  // the executor if there is one, and otherwise the timer thread.
+  private ScheduledExecutorService getScheduler() {
+    if (executor != null) {
+      return executor;
+    }
+    synchronized(lock) {
+      return getTimerExecutor();
+    }
+  }
+
+  // Returns the thread on which retries, pack delays and stream deadlines are timed if
+  // there is no executor, which is created when it is first needed.
+  // pre-condition: lock is held
+  private ScheduledExecutorService getTimerExecutor() {
+    if (timerExecutor == null) {
+      timerExecutor = Executors.newSingleThreadScheduledExecutor(
+          new ThreadFactoryBuilder()
+              .setDaemon(true)
+              .setNameFormat("bundling-timer-%d")
+              .build());
+    }
+    return timerExecutor;
+  }
+
+  /**
+   * Schedules the given context, for which a retryable exception was set, to be
+   * added to its partition again after a backoff delay. Returns false if it cannot
+   * be retried, because no element retry params are set, its total timeout would be
+   * exceeded, the factory was closed, or the executor rejected the retry.
+   */
+  boolean scheduleRetry(final BundlingContext<RequestT, ResponseT> context) {
+    RetryParams retryParams = bundlingSettings.getElementRetryParams();
+    if (retryParams == null) {
+      return false;
+    }
+    long delayMillis = context.nextRetryDelayMillis(retryParams);
+    if (delayMillis < 0) {
+      return false;
+    }
+    final String partitionKey = context.getPartitionKey(bundlingDescriptor);
+    ScheduledExecutorService scheduler;
+    synchronized(lock) {
+      if (closed) {
+        return false;
+      }
+      scheduler = executor;
+      if (scheduler == null) {
+        scheduler = getTimerExecutor();
+      }
+      retryingPartitionKeys.add(partitionKey);
+    }
+    try {
+      scheduler.schedule(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            requeue(context, partitionKey);
+          } finally {
+            retryingPartitionKeys.remove(partitionKey);
+          }
         }
+      }, delayMillis, TimeUnit.MILLISECONDS);
+    } catch (RejectedExecutionException e) {
+      // The executor was shut down, so the last exception is sent back instead.
+      retryingPartitionKeys.remove(partitionKey);
+      return false;
+    }
+    return true;
+  }
+
+  private void requeue(BundlingContext<RequestT, ResponseT> context, String partitionKey) {
+    synchronized(lock) {
+      if (closed) {
+        // Sends back the last exception.
+        context.sendResult();
+        return;
       }
     }
-    return forwarder;
+    context.clearResult();
+    addAgain(context, partitionKey);
   }
 
-  private ThresholdBundlingForwarder<BundlingContext<RequestT, ResponseT>>
-      createForwarder(String partitionKey) {
-    ThresholdBundler<BundlingContext<RequestT, ResponseT>> bundler =
-        ThresholdBundler.<BundlingContext<RequestT, ResponseT>>newBuilder()
-          .setThresholds(getThresholds(bundlingSettings))
-          .setExternalThresholds(getExternalThresholds(bundlingSettings))
-          .setMaxDelay(bundlingSettings.getDelayThreshold())
-          .build();
-    BundleExecutor<RequestT, ResponseT> processor =
-        new BundleExecutor<>(bundlingDescriptor, partitionKey);
-    return new ThresholdBundlingForwarder<>(bundler, processor);
+  /**
+   * Adds the given context, which the BundleExecutor of its partition held back to keep
+   * its ordering key in order, to its partition again. Returns false if the factory was
+   * closed.
+   */
+  boolean requeueReleased(BundlingContext<RequestT, ResponseT> context) {
+    synchronized(lock) {
+      if (closed) {
+        return false;
+      }
+    }
+    addAgain(context, context.getPartitionKey(bundlingDescriptor));
+    return true;
+  }
+
+  private void addAgain(BundlingContext<RequestT, ResponseT> context, String partitionKey) {
+    try {
+      ThresholdBundleHandle bundleHandle;
+      do {
+        bundleHandle = getForwarder(partitionKey).addToNextBundle(context);
+      } while (bundleHandle == null);
+      context.setBundleHandle(bundleHandle);
+    } catch (RuntimeException e) {
+      context.setException(e);
+      context.sendResult();
+    }
+  }
+
+  /**
+   * Returns the behavior to use when a flow controller limit is reached.
+   */
+  LimitExceededBehavior getLimitExceededBehavior() {
+    LimitExceededBehavior behavior = bundlingSettings.getLimitExceededBehavior();
+    return behavior == null ? LimitExceededBehavior.BLOCK : behavior;
+  }
+
+  private ImmutableList<FlowController> createFlowControllers() {
+    ImmutableList.Builder<FlowController> listBuilder = ImmutableList.builder();
+    FlowController partitionFlowController = createFlowController(
+        bundlingSettings.getPartitionMaxOutstandingElementCount(),
+        bundlingSettings.getPartitionMaxOutstandingRequestBytes());
+    if (partitionFlowController != null) {
+      listBuilder.add(partitionFlowController);
+    }
+    if (factoryFlowController != null) {
+      listBuilder.add(factoryFlowController);
+    }
+    return listBuilder.build();
+  }
+
+  private static ImmutableList<TokenBucket> createRateLimits(
+      @Nullable Number partitionRate, @Nullable TokenBucket factoryRateLimit) {
+    ImmutableList.Builder<TokenBucket> listBuilder = ImmutableList.builder();
+    TokenBucket partitionRateLimit = createTokenBucket(partitionRate);
+    if (partitionRateLimit != null) {
+      listBuilder.add(partitionRateLimit);
+    }
+    if (factoryRateLimit != null) {
+      listBuilder.add(factoryRateLimit);
+    }
+    return listBuilder.build();
+  }
+
+  @Nullable
+  private static TokenBucket createTokenBucket(@Nullable Number tokensPerSecond) {
+    return tokensPerSecond == null ? null : new TokenBucket(tokensPerSecond.doubleValue());
+  }
+
+  @Nullable
+  private static FlowController createFlowController(
+      @Nullable Long maxElementCount, @Nullable Long maxByteCount) {
+    if (maxElementCount == null && maxByteCount == null) {
+      return null;
+    }
+    return new FlowController(maxElementCount, maxByteCount);
+  }
+
+  @Nullable
+  private AdaptiveBundlingController<BundlingContext<RequestT, ResponseT>>
+      createAdaptiveController() {
+    if (bundlingSettings.getTargetLatency() == null) {
+      return null;
+    }
+    Duration minDelay = bundlingSettings.getMinDelayThreshold();
+    Integer minElementCount = bundlingSettings.getMinElementCountThreshold();
+    Integer maxElementCount = bundlingSettings.getElementCountThreshold();
+    return AdaptiveBundlingController.<BundlingContext<RequestT, ResponseT>>newBuilder()
+        .setElementCounter(getElementCounter())
+        .setDelayBounds(minDelay == null ? Duration.ZERO : minDelay,
+            bundlingSettings.getDelayThreshold())
+        .setElementCountBounds(minElementCount == null ? 1 : minElementCount,
+            maxElementCount == null ? Long.MAX_VALUE : maxElementCount)
+        .setTargetLatency(bundlingSettings.getTargetLatency())
+        .build();
   }
 
   @Override
   public void close() {
+    if (idleCheckFuture != null) {
+      idleCheckFuture.cancel(false);
+    }
+    List<Partition> closedPartitions;
+    ScheduledExecutorService closedTimerExecutor;
+    ExecutorService closedCloseExecutor;
     synchronized(lock) {
-      for (ThresholdBundlingForwarder<BundlingContext<RequestT, ResponseT>> forwarder :
-          forwarders.values()) {
-        forwarder.close();
+      closed = true;
+      closedPartitions = new ArrayList<>(partitions.values());
+      partitions.clear();
+      closedTimerExecutor = timerExecutor;
+      closedCloseExecutor = closeExecutor;
+    }
+    // Closing forwards the remaining elements, whose results may try to schedule
+    // retries, so it is done outside of the lock.
+    for (Partition partition : closedPartitions) {
+      partition.close();
+    }
+    if (packer != null) {
+      packer.close();
+    }
+    if (closedTimerExecutor != null) {
+      // Retries which are still scheduled run, and send back their last exception.
+      closedTimerExecutor.shutdown();
+    }
+    if (closedCloseExecutor != null) {
+      // Evicted partitions which are still being closed finish closing.
+      closedCloseExecutor.shutdown();
+    }
+  }
+
+  /**
+   * The forwarder of a partition, and the objects which are created along with it.
+   */
+  private class Partition {
+    private final ThresholdBundlingForwarder<BundlingContext<RequestT, ResponseT>> forwarder;
+    private final ImmutableList<FlowController> flowControllers;
+    @Nullable private final AdaptiveBundlingController<BundlingContext<RequestT, ResponseT>>
+        adaptiveController;
+    @Nullable private final BundlingMetrics<BundlingContext<RequestT, ResponseT>> metrics;
+    @Nullable private final DirectByteArena arena;
+    private final BundleExecutor<RequestT, ResponseT> processor;
+
+    private Partition(String partitionKey) {
+      arena = bundlingDescriptor instanceof ArenaBundlingDescriptor
+          && bundlingSettings.getArenaChunkBytes() != null
+          ? new DirectByteArena(bundlingSettings.getArenaChunkBytes(), ARENA_MAX_POOLED_CHUNKS)
+          : null;
+      adaptiveController = createAdaptiveController();
+      flowControllers = createFlowControllers();
+      metrics = Boolean.TRUE.equals(bundlingSettings.getMetricsEnabled())
+          ? new BundlingMetrics<>(getElementCounter(), getRequestByteCounter())
+          : null;
+      ThresholdBundler.Builder<BundlingContext<RequestT, ResponseT>> bundlerBuilder =
+          ThresholdBundler.<BundlingContext<RequestT, ResponseT>>newBuilder()
+            .setThresholds(getThresholds(bundlingSettings, adaptiveController == null))
+            .setExternalThresholds(getExternalThresholds(bundlingSettings))
+            .setMaxDelay(bundlingSettings.getDelayThreshold())
+            .setDeadlines(getDeadlineFunction(), bundlingSettings.getDeadlineSendMargin())
+            .setAdaptiveController(adaptiveController)
+            .setMetrics(metrics)
+            .setLockFreeAdd(Boolean.TRUE.equals(bundlingSettings.getLockFreeAdd()));
+      if (bundlingDescriptor instanceof PrioritizingBundlingDescriptor) {
+        bundlerBuilder.setUrgentElements(getUrgentElementFilter(),
+            bundlingSettings.getUrgentDelayThreshold());
+      }
+      if (bundlingDescriptor instanceof DeduplicatingBundlingDescriptor) {
+        bundlerBuilder.setDuplicateKeys(getDedupKeyFunction());
+      }
+      Integer elementCountLimit = bundlingSettings.getElementCountLimit();
+      if (elementCountLimit != null) {
+        bundlerBuilder.addLimit(new BundlingLimit<>(elementCountLimit, getElementCounter()));
+      }
+      Integer requestByteLimit = bundlingSettings.getRequestByteLimit();
+      if (requestByteLimit != null) {
+        bundlerBuilder.addLimit(new BundlingLimit<>(requestByteLimit, getRequestByteCounter()));
+      }
+      ThresholdBundler<BundlingContext<RequestT, ResponseT>> bundler = bundlerBuilder.build();
+      BundleExecutor.Builder<RequestT, ResponseT> processorBuilder =
+          BundleExecutor.newBuilder(bundlingDescriptor, partitionKey)
+            .setAdaptiveController(adaptiveController)
+            .setLimits(elementCountLimit, requestByteLimit)
+            .setConcurrencyLimiter(concurrencyLimiter)
+            .setRateLimits(
+                createRateLimits(bundlingSettings.getPartitionMaxBundlesPerSecond(),
+                    factoryBundleRateLimit),
+                createRateLimits(bundlingSettings.getPartitionMaxBytesPerSecond(),
+                    factoryByteRateLimit))
+            .setPacker(packer);
+      Integer maxInFlightBundles = bundlingSettings.getMaxInFlightBundles();
+      if (maxInFlightBundles != null) {
+        processorBuilder.setMaxInFlightBundles(maxInFlightBundles);
       }
-      forwarders.clear();
+      // A synchronous call would hold a thread of the shared executor for a whole round
+      // trip, so a small executor could only send a few bundles at a time.
+      processorBuilder.setSendAsynchronously(executor != null);
+      if (resultExecutor != null) {
+        Integer resultChunkSize = bundlingSettings.getResultChunkSize();
+        processorBuilder.setResultExecutor(resultExecutor,
+            resultChunkSize == null ? DEFAULT_RESULT_CHUNK_SIZE : resultChunkSize);
+      }
+      if (bundlingDescriptor instanceof StreamingBundlingDescriptor) {
+        processorBuilder.setStreamScheduler(getScheduler());
+      }
+      processor = processorBuilder.build();
+      if (executor != null) {
+        forwarder = new ThresholdBundlingForwarder<>(bundler, processor, executor);
+      } else {
+        forwarder = new ThresholdBundlingForwarder<>(bundler, processor);
+      }
+      forwarder.setSendWhenIdle(Boolean.TRUE.equals(bundlingSettings.getSendWhenIdle()));
+      if (bundlingDescriptor instanceof SpillableBundlingDescriptor
+          && bundlingSettings.getSpillDirectory() != null) {
+        forwarder.setSpillQueue(
+            new MappedSpillQueue<>(bundlingSettings.getSpillDirectory(),
+                MappedSpillQueue.DEFAULT_SEGMENT_BYTES, new SpillSerializer()),
+            getRequestByteCounter(), bundlingSettings.getSpillThresholdBytes());
+      }
+    }
+
+    /**
+     * Returns whether the partition has no elements left to send, no bundles in flight,
+     * and no requests waiting for their ordering key.
+     */
+    private boolean isIdle() {
+      return forwarder.isEmpty() && processor.isDrained();
+    }
+
+    /**
+     * Returns whether the partition can be evicted to make room for another one: it has
+     * no bundles in flight, and no requests waiting for their ordering key. With an
+     * OrderedBundlingDescriptor, its bundler must also be empty, since the executor of a
+     * new partition would send the next requests of a key without waiting for them.
+     * Otherwise, the remaining elements are forwarded when the partition is closed.
+     */
+    private boolean isEvictable() {
+      return processor.isDrained()
+          && (forwarder.isEmpty()
+              || !(bundlingDescriptor instanceof OrderedBundlingDescriptor));
+    }
+
+    /**
+     * Closes the forwarder, which forwards its remaining elements, and then the
+     * streams of the executor.
+     */
+    private void close() {
+      forwarder.close();
+      processor.close();
     }
   }
 
+  /**
+   * Serializes the request of a context to the spill queue of a partition, and keeps
+   * a copy of the context without the request, so that the context can be restored
+   * when the request is read back. It is only used under the lock of the forwarder's
+   * spill queue.
+   */
+  private class SpillSerializer
+      implements ElementSerializer<BundlingContext<RequestT, ResponseT>> {
+    private final HashMap<Long, BundlingContext<RequestT, ResponseT>> spilledContexts =
+        new HashMap<>();
+    private long nextId;
+
+    @Override
+    public byte[] serialize(BundlingContext<RequestT, ResponseT> context) {
+      byte[] request = getSpillableDescriptor().serializeRequest(context.getRequest());
+      long id = nextId++;
+      spilledContexts.put(id, context.withRequest(null));
+      return ByteBuffer.allocate(8 + request.length).putLong(id).put(request).array();
+    }
+
+    @Override
+    public BundlingContext<RequestT, ResponseT> deserialize(byte[] bytes) {
+      long id = ByteBuffer.wrap(bytes).getLong();
+      RequestT request =
+          getSpillableDescriptor().parseRequest(Arrays.copyOfRange(bytes, 8, bytes.length));
+      return spilledContexts.remove(id).withRequest(request);
+    }
+
+    private SpillableBundlingDescriptor<RequestT, ResponseT> getSpillableDescriptor() {
+      return (SpillableBundlingDescriptor<RequestT, ResponseT>) bundlingDescriptor;
+    }
+  }
+
+  private ElementCounter<BundlingContext<RequestT, ResponseT>> getRequestByteCounter() {
+    return new ElementCounter<BundlingContext<RequestT, ResponseT>>() {
+      @Override
+      public long count(BundlingContext<RequestT, ResponseT> bundlablePublish) {
+        return bundlablePublish.countBytes(bundlingDescriptor);
+      }
+    };
+  }
+
+  private Function<BundlingContext<RequestT, ResponseT>, Long> getDeadlineFunction() {
+    return new Function<BundlingContext<RequestT, ResponseT>, Long>() {
+      @Override
+      public Long apply(BundlingContext<RequestT, ResponseT> bundlablePublish) {
+        return bundlablePublish.getCallContext().getCallOptions().getDeadlineNanoTime();
+      }
+    };
+  }
+
+  private Predicate<BundlingContext<RequestT, ResponseT>> getUrgentElementFilter() {
+    final PrioritizingBundlingDescriptor<RequestT, ResponseT> descriptor =
+        (PrioritizingBundlingDescriptor<RequestT, ResponseT>) bundlingDescriptor;
+    return new Predicate<BundlingContext<RequestT, ResponseT>>() {
+      @Override
+      public boolean apply(BundlingContext<RequestT, ResponseT> bundlablePublish) {
+        return bundlablePublish.isUrgent(descriptor);
+      }
+    };
+  }
+
+  private Function<BundlingContext<RequestT, ResponseT>, Object> getDedupKeyFunction() {
+    final DeduplicatingBundlingDescriptor<RequestT, ResponseT> descriptor =
+        (DeduplicatingBundlingDescriptor<RequestT, ResponseT>) bundlingDescriptor;
+    return new Function<BundlingContext<RequestT, ResponseT>, Object>() {
+      @Override
+      public Object apply(BundlingContext<RequestT, ResponseT> bundlablePublish) {
+        return bundlablePublish.getDedupKey(descriptor);
+      }
+    };
+  }
+
+  private ElementCounter<BundlingContext<RequestT, ResponseT>> getElementCounter() {
+    return new ElementCounter<BundlingContext<RequestT, ResponseT>>() {
+      @Override
+      public long count(BundlingContext<RequestT, ResponseT> bundlablePublish) {
+        return bundlablePublish.countElements(bundlingDescriptor);
+      }
+    };
+  }
+
   private ImmutableList<BundlingThreshold<BundlingContext<RequestT, ResponseT>>>
-      getThresholds(BundlingSettings bundlingSettings) {
+      getThresholds(BundlingSettings bundlingSettings, boolean includeElementCount) {
     ImmutableList.Builder<BundlingThreshold<BundlingContext<RequestT, ResponseT>>> listBuilder =
         ImmutableList.<BundlingThreshold<BundlingContext<RequestT, ResponseT>>>builder();
 
-    if (bundlingSettings.getElementCountThreshold() != null) {
-      ElementCounter<BundlingContext<RequestT, ResponseT>> elementCounter =
-          new ElementCounter<BundlingContext<RequestT, ResponseT>>() {
-        @Override
-        public long count(BundlingContext<RequestT, ResponseT> bundlablePublish) {
-          return bundlingDescriptor.countElements(bundlablePublish.getCallContext().getRequest());
-        }
-      };
-
+    if (includeElementCount && bundlingSettings.getElementCountThreshold() != null) {
       BundlingThreshold<BundlingContext<RequestT, ResponseT>> countThreshold =
-          new NumericThreshold<>(bundlingSettings.getElementCountThreshold(), elementCounter);
+          new NumericThreshold<>(bundlingSettings.getElementCountThreshold(),
+              getElementCounter(), FillReason.ELEMENT_COUNT);
       listBuilder.add(countThreshold);
     }
 
     if (bundlingSettings.getRequestByteThreshold() != null) {
-      ElementCounter<BundlingContext<RequestT, ResponseT>> requestByteCounter =
-          new ElementCounter<BundlingContext<RequestT, ResponseT>>() {
-        @Override
-        public long count(BundlingContext<RequestT, ResponseT> bundlablePublish) {
-          return bundlingDescriptor.countBytes(bundlablePublish.getCallContext().getRequest());
-        }
-      };
-
       BundlingThreshold<BundlingContext<RequestT, ResponseT>> byteThreshold =
-          new NumericThreshold<>(bundlingSettings.getRequestByteThreshold(), requestByteCounter);
+          new NumericThreshold<>(bundlingSettings.getRequestByteThreshold(),
+              getRequestByteCounter(), FillReason.BYTE_COUNT);
       listBuilder.add(byteThreshold);
     }
 
@@ -31,10 +31,22 @@
 
 package com.google.api.gax.grpc;
 
+import com.google.api.gax.bundling.DirectByteArena;
+import com.google.api.gax.bundling.FlowController;
 import com.google.api.gax.bundling.ThresholdBundleHandle;
 import com.google.api.gax.bundling.ThresholdBundlingForwarder;
 import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+
+import io.grpc.Status;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 /**
  * FutureCallable which will bundle requests based on the given bundling
@@ -42,6 +54,22 @@ import com.google.common.util.concurrent.ListenableFuture;
  * distinct bundler for each partition as specified by the
  * bundling descriptor. An example of a bundling partition would be a
  * pubsub topic.
+ *
+ * If the bundler factory limits the number of outstanding elements or bytes,
+ * the request is reserved from its flow controllers before it is added to the
+ * bundler, and released once its result is sent back.
+ *
+ * Requests which fail with a retryable exception set by the bundling descriptor
+ * are re-queued by the bundler factory; see {@link RetryableRequestIssuer}.
+ *
+ * If the returned future is cancelled before the request is sent, the request is
+ * removed from its bundle, and no longer counts towards its thresholds.
+ *
+ * If the bundler factory holds the requests of the partition in an arena, the
+ * request is serialized into the arena before it is added to the bundler.
+ *
+ * Calls which are made together with futureCallAll are added to the bundler of each
+ * partition in one batch.
  */
 class BundlingCallable<RequestT, ResponseT> implements FutureCallable<RequestT, ResponseT> {
   private final FutureCallable<RequestT, ResponseT> callable;
@@ -60,15 +88,246 @@ class BundlingCallable<RequestT, ResponseT> implements FutureCallable<RequestT,
   @Override
   public ListenableFuture<ResponseT> futureCall(CallContext<RequestT> context) {
     BundlingFuture<ResponseT> result = BundlingFuture.<ResponseT>create();
+    BundlingContext<RequestT, ResponseT> bundlableMessage = createMessage(context, result);
+    String partitionKey = bundlableMessage.getPartitionKey(bundlingDescriptor);
+    ThresholdBundlingForwarder<BundlingContext<RequestT, ResponseT>> forwarder;
+    try {
+      forwarder = bundlerFactory.getForwarder(partitionKey);
+    } catch (ApiException e) {
+      return Futures.immediateFailedFuture(e);
+    }
+    ImmutableList<FlowController> flowControllers =
+        bundlerFactory.getFlowControllers(partitionKey);
+    if (!flowControllers.isEmpty()) {
+      long elementCount = bundlingDescriptor.countElements(context.getRequest());
+      long byteCount = bundlingDescriptor.countBytes(context.getRequest());
+      try {
+        reserve(flowControllers, elementCount, byteCount, partitionKey);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return Futures.immediateFailedFuture(e);
+      } catch (ApiException e) {
+        return Futures.immediateFailedFuture(e);
+      }
+      bundlableMessage.setFlowControl(flowControllers, elementCount, byteCount);
+    }
+    moveRequestToArena(bundlableMessage, partitionKey);
+    ThresholdBundleHandle bundleHandle;
+    try {
+      bundleHandle = forwarder.addToNextBundle(bundlableMessage);
+      while (bundleHandle == null) {
+        // The forwarder was evicted after we got it; get its replacement.
+        forwarder = bundlerFactory.getForwarder(partitionKey);
+        bundleHandle = forwarder.addToNextBundle(bundlableMessage);
+      }
+    } catch (RuntimeException e) {
+      bundlableMessage.releaseFlowControl();
+      bundlableMessage.releaseSerializedRequest();
+      throw e;
+    }
+    added(bundlableMessage, partitionKey, bundleHandle);
+    return result;
+  }
+
+  /**
+   * Bundles each of the given calls, and returns their futures in the same order. The
+   * requests of each partition are added to its forwarder together, so that the bundler
+   * lock is taken once for them and they are cut into bundles at the thresholds. Unlike
+   * futureCall, a request which cannot be added, for example because it fails
+   * validation, fails its future instead of throwing.
+   */
+  List<ListenableFuture<ResponseT>> futureCallAll(List<CallContext<RequestT>> contexts) {
+    List<ListenableFuture<ResponseT>> results = new ArrayList<>(contexts.size());
+    Map<String, List<BundlingContext<RequestT, ResponseT>>> pending = new LinkedHashMap<>();
+    for (CallContext<RequestT> context : contexts) {
+      BundlingFuture<ResponseT> result = BundlingFuture.<ResponseT>create();
+      BundlingContext<RequestT, ResponseT> bundlableMessage = createMessage(context, result);
+      String partitionKey = bundlableMessage.getPartitionKey(bundlingDescriptor);
+      try {
+        // Creates the partition, so that its flow controllers exist.
+        bundlerFactory.getForwarder(partitionKey);
+      } catch (ApiException e) {
+        results.add(Futures.<ResponseT>immediateFailedFuture(e));
+        continue;
+      }
+      ImmutableList<FlowController> flowControllers =
+          bundlerFactory.getFlowControllers(partitionKey);
+      if (!flowControllers.isEmpty()) {
+        long elementCount = bundlingDescriptor.countElements(context.getRequest());
+        long byteCount = bundlingDescriptor.countBytes(context.getRequest());
+        try {
+          if (!tryReserve(flowControllers, elementCount, byteCount)) {
+            // The pending requests may hold the reservations we wait for, so they must be
+            // in their bundlers before we block.
+            addPending(pending);
+            reserve(flowControllers, elementCount, byteCount, partitionKey);
+          }
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          results.add(Futures.<ResponseT>immediateFailedFuture(e));
+          continue;
+        } catch (ApiException e) {
+          results.add(Futures.<ResponseT>immediateFailedFuture(e));
+          continue;
+        }
+        bundlableMessage.setFlowControl(flowControllers, elementCount, byteCount);
+      }
+      moveRequestToArena(bundlableMessage, partitionKey);
+      List<BundlingContext<RequestT, ResponseT>> partitionMessages = pending.get(partitionKey);
+      if (partitionMessages == null) {
+        partitionMessages = new ArrayList<>();
+        pending.put(partitionKey, partitionMessages);
+      }
+      partitionMessages.add(bundlableMessage);
+      results.add(result);
+    }
+    addPending(pending);
+    return results;
+  }
+
+  // Adds the pending requests of each partition to its forwarder, and clears them.
+  private void addPending(Map<String, List<BundlingContext<RequestT, ResponseT>>> pending) {
+    for (Map.Entry<String, List<BundlingContext<RequestT, ResponseT>>> entry :
+        pending.entrySet()) {
+      String partitionKey = entry.getKey();
+      List<BundlingContext<RequestT, ResponseT>> messages = entry.getValue();
+      List<ThresholdBundleHandle> bundleHandles;
+      try {
+        do {
+          // The forwarder may have been evicted; getForwarder then returns its replacement.
+          bundleHandles = bundlerFactory.getForwarder(partitionKey).addAll(messages);
+        } while (bundleHandles == null);
+      } catch (RuntimeException e) {
+        for (BundlingContext<RequestT, ResponseT> message : messages) {
+          message.setException(e);
+          message.sendResult();
+        }
+        continue;
+      }
+      for (int i = 0; i < bundleHandles.size(); i++) {
+        added(messages.get(i), partitionKey, bundleHandles.get(i));
+      }
+      // Spilling failed for the rest, so each is added by itself, which fails it with the
+      // error unless spilling works again.
+      for (int i = bundleHandles.size(); i < messages.size(); i++) {
+        addPending(messages.get(i), partitionKey);
+      }
+    }
+    pending.clear();
+  }
+
+  private void addPending(BundlingContext<RequestT, ResponseT> message, String partitionKey) {
+    ThresholdBundleHandle bundleHandle;
+    try {
+      do {
+        bundleHandle = bundlerFactory.getForwarder(partitionKey).addToNextBundle(message);
+      } while (bundleHandle == null);
+    } catch (RuntimeException e) {
+      message.setException(e);
+      message.sendResult();
+      return;
+    }
+    added(message, partitionKey, bundleHandle);
+  }
+
+  private BundlingContext<RequestT, ResponseT> createMessage(CallContext<RequestT> context,
+      BundlingFuture<ResponseT> result) {
     ApiCallable<RequestT, ResponseT> apiCallable =
         ApiCallable.<RequestT, ResponseT>create(callable);
     BundlingContext<RequestT, ResponseT> bundlableMessage =
         new BundlingContext<RequestT, ResponseT>(context, apiCallable, result);
-    String partitionKey = bundlingDescriptor.getBundlePartitionKey(context.getRequest());
-    ThresholdBundlingForwarder<BundlingContext<RequestT, ResponseT>> forwarder =
-        bundlerFactory.getForwarder(partitionKey);
-    ThresholdBundleHandle bundleHandle = forwarder.addToNextBundle(bundlableMessage);
+    bundlableMessage.setBundlerFactory(bundlerFactory);
+    bundlableMessage.computeKeys(bundlingDescriptor);
+    return bundlableMessage;
+  }
+
+  private void moveRequestToArena(BundlingContext<RequestT, ResponseT> bundlableMessage,
+      String partitionKey) {
+    DirectByteArena arena = bundlerFactory.getArena(partitionKey);
+    if (arena != null) {
+      bundlableMessage.moveRequestToArena(arena,
+          (ArenaBundlingDescriptor<RequestT, ResponseT>) bundlingDescriptor);
+    }
+  }
+
+  // Sets the bundle handle of a request which was added to its forwarder, and removes the
+  // request from its bundle if its future is cancelled before it is sent.
+  private void added(final BundlingContext<RequestT, ResponseT> bundlableMessage,
+      final String partitionKey, ThresholdBundleHandle bundleHandle) {
+    final BundlingFuture<ResponseT> result = bundlableMessage.getBundlingFuture();
     result.setBundleHandle(bundleHandle);
-    return result;
+    result.addListener(new Runnable() {
+      @Override
+      public void run() {
+        if (result.isCancelled() && bundlerFactory.remove(partitionKey, bundlableMessage)) {
+          bundlableMessage.releaseFlowControl();
+          bundlableMessage.releaseSerializedRequest();
+        }
+      }
+    }, MoreExecutors.directExecutor());
+  }
+
+  // Reserves from all flow controllers without blocking, or from none of them.
+  private static boolean tryReserve(List<FlowController> flowControllers, long elementCount,
+      long byteCount) {
+    for (int i = 0; i < flowControllers.size(); i++) {
+      if (!flowControllers.get(i).tryReserve(elementCount, byteCount)) {
+        for (int j = 0; j < i; j++) {
+          flowControllers.get(j).release(elementCount, byteCount);
+        }
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private void reserve(List<FlowController> flowControllers, long elementCount, long byteCount,
+      String partitionKey) throws InterruptedException {
+    int reserved = 0;
+    try {
+      for (FlowController flowController : flowControllers) {
+        reserve(flowController, elementCount, byteCount, partitionKey);
+        reserved++;
+      }
+    } finally {
+      if (reserved < flowControllers.size()) {
+        for (int i = 0; i < reserved; i++) {
+          flowControllers.get(i).release(elementCount, byteCount);
+        }
+      }
+    }
+  }
+
+  private void reserve(FlowController flowController, long elementCount, long byteCount,
+      String partitionKey) throws InterruptedException {
+    switch (bundlerFactory.getLimitExceededBehavior()) {
+      case BLOCK:
+        flowController.reserve(elementCount, byteCount);
+        break;
+      case THROW_EXCEPTION:
+        if (!flowController.tryReserve(elementCount, byteCount)) {
+          throw resourceExhausted("Outstanding element or byte limit reached");
+        }
+        break;
+      case DROP_OLDEST:
+        while (!flowController.tryReserve(elementCount, byteCount)) {
+          BundlingContext<RequestT, ResponseT> oldest =
+              bundlerFactory.removeOldest(partitionKey, flowController);
+          if (oldest == null) {
+            throw resourceExhausted(
+                "Outstanding element or byte limit reached, and no element can be dropped");
+          }
+          oldest.setException(resourceExhausted("Dropped because of the outstanding limit"));
+          oldest.sendResult();
+        }
+        break;
+      default:
+        throw new IllegalStateException("Unknown limit exceeded behavior");
+    }
+  }
+
+  private static ApiException resourceExhausted(String description) {
+    return new ApiException(
+        Status.RESOURCE_EXHAUSTED.withDescription(description).asRuntimeException(), false);
   }
 }
@@ -31,33 +31,98 @@
 
 package com.google.api.gax.grpc;
 
+import com.google.api.gax.bundling.DirectByteArena;
+import com.google.api.gax.bundling.FlowController;
+import com.google.api.gax.bundling.ThresholdBundleHandle;
+import com.google.api.gax.core.BackoffParams;
+import com.google.api.gax.core.RetryParams;
 import com.google.common.base.Preconditions;
 
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nullable;
+
 /**
  * Holds the complete context to issue a call and notify the call's
  * listener. This includes a CallContext object, which contains the call
  * objects, the channel, and the request; a Callable object to issue
  * the request; and a SettableFuture object, to notify the response
  * listener.
+ *
+ * If the bundler holds requests in an arena, the request is moved to the arena
+ * when it is added, and the call context no longer holds it: getRequest then
+ * parses it back from the arena. The keys which bundling looks up repeatedly are
+ * computed before, and kept on the context.
  */
 public class BundlingContext<RequestT, ResponseT>
-    implements RequestIssuer<RequestT, ResponseT> {
-  private final CallContext<RequestT> context;
+    implements RetryableRequestIssuer<RequestT, ResponseT> {
+  private CallContext<RequestT> context;
   private final ApiCallable<RequestT, ResponseT> callable;
   private final BundlingFuture<ResponseT> bundlingFuture;
   private ResponseT responseToSend;
   private Throwable throwableToSend;
+  private boolean retryable;
+  private BundlerFactory<RequestT, ResponseT> bundlerFactory;
+  private final long createdNanos;
+  private long retryDelayMillis = -1;
+  private List<FlowController> flowControllers;
+  private long flowControlElementCount;
+  private long flowControlByteCount;
+  @Nullable private DirectByteArena.Slice serializedRequest;
+  @Nullable private SpillableBundlingDescriptor<RequestT, ResponseT> requestParser;
+  private long serializedElementCount;
+  private long serializedByteCount;
+  // The keys of the request which bundling looks up repeatedly, if computeKeys was called.
+  private boolean keysComputed;
+  private String partitionKey;
+  @Nullable private Object dedupKey;
+  @Nullable private Object orderingKey;
+  private boolean urgent;
 
   public BundlingContext(CallContext<RequestT> context,
       ApiCallable<RequestT, ResponseT> callable,
       BundlingFuture<ResponseT> bundlingFuture) {
+    this(context, callable, bundlingFuture, System.nanoTime());
+  }
+
+  private BundlingContext(CallContext<RequestT> context,
+      ApiCallable<RequestT, ResponseT> callable,
+      BundlingFuture<ResponseT> bundlingFuture, long createdNanos) {
     this.context = context;
     this.callable = callable;
     this.bundlingFuture = bundlingFuture;
+    this.createdNanos = createdNanos;
     this.responseToSend = null;
     this.throwableToSend = null;
   }
 
+  /**
+   * Returns a copy of this context for the given request, which shares the future, the
+   * bundler factory, the retry state, the flow control reservation and the computed keys
+   * of this context, so the request must have the same keys. No result may have been
+   * set yet.
+   */
+  BundlingContext<RequestT, ResponseT> withRequest(RequestT request) {
+    Preconditions.checkState(responseToSend == null && throwableToSend == null,
+        "Cannot copy a context with a result");
+    BundlingContext<RequestT, ResponseT> copy = new BundlingContext<>(
+        context.withRequest(request), callable, bundlingFuture, createdNanos);
+    copy.bundlerFactory = bundlerFactory;
+    copy.retryDelayMillis = retryDelayMillis;
+    copy.flowControllers = flowControllers;
+    copy.flowControlElementCount = flowControlElementCount;
+    copy.flowControlByteCount = flowControlByteCount;
+    copy.keysComputed = keysComputed;
+    copy.partitionKey = partitionKey;
+    copy.dedupKey = dedupKey;
+    copy.orderingKey = orderingKey;
+    copy.urgent = urgent;
+    return copy;
+  }
+
   public CallContext<RequestT> getCallContext() {
     return context;
   }
@@ -68,9 +133,119 @@ public class BundlingContext<RequestT, ResponseT>
 
   @Override
   public RequestT getRequest() {
+    DirectByteArena.Slice slice = serializedRequest;
+    if (slice != null) {
+      return requestParser.parseRequest(slice.toByteArray());
+    }
     return context.getRequest();
   }
 
+  /**
+   * Computes the keys of the request which bundling looks up repeatedly with the given
+   * descriptor: its partition key, and its dedup key, ordering key and urgency if the
+   * descriptor defines them. This must be called before the request is moved to an
+   * arena, so that the request is not parsed back for them.
+   */
+  void computeKeys(BundlingDescriptor<RequestT, ResponseT> descriptor) {
+    RequestT request = context.getRequest();
+    partitionKey = descriptor.getBundlePartitionKey(request);
+    if (descriptor instanceof DeduplicatingBundlingDescriptor) {
+      dedupKey = ((DeduplicatingBundlingDescriptor<RequestT, ResponseT>) descriptor)
+          .getDedupKey(request);
+    }
+    if (descriptor instanceof OrderedBundlingDescriptor) {
+      orderingKey = ((OrderedBundlingDescriptor<RequestT, ResponseT>) descriptor)
+          .getOrderingKey(request);
+    }
+    if (descriptor instanceof PrioritizingBundlingDescriptor) {
+      urgent = ((PrioritizingBundlingDescriptor<RequestT, ResponseT>) descriptor)
+          .isUrgent(request);
+    }
+    keysComputed = true;
+  }
+
+  /**
+   * Returns the partition key of the request, as computed by the given descriptor.
+   */
+  String getPartitionKey(BundlingDescriptor<RequestT, ResponseT> descriptor) {
+    return keysComputed ? partitionKey : descriptor.getBundlePartitionKey(getRequest());
+  }
+
+  /**
+   * Returns the dedup key of the request, as computed by the given descriptor.
+   */
+  @Nullable
+  Object getDedupKey(DeduplicatingBundlingDescriptor<RequestT, ResponseT> descriptor) {
+    return keysComputed ? dedupKey : descriptor.getDedupKey(getRequest());
+  }
+
+  /**
+   * Returns the ordering key of the request, as computed by the given descriptor.
+   */
+  @Nullable
+  Object getOrderingKey(OrderedBundlingDescriptor<RequestT, ResponseT> descriptor) {
+    return keysComputed ? orderingKey : descriptor.getOrderingKey(getRequest());
+  }
+
+  /**
+   * Returns whether the request is urgent, as decided by the given descriptor.
+   */
+  boolean isUrgent(PrioritizingBundlingDescriptor<RequestT, ResponseT> descriptor) {
+    return keysComputed ? urgent : descriptor.isUrgent(getRequest());
+  }
+
+  /**
+   * Moves the request to the given arena, from which it is parsed back on demand,
+   * after counting its elements and bytes with the given descriptor. The request is
+   * released from the arena when the result is sent.
+   */
+  void moveRequestToArena(DirectByteArena arena,
+      SpillableBundlingDescriptor<RequestT, ResponseT> descriptor) {
+    RequestT request = context.getRequest();
+    serializedElementCount = descriptor.countElements(request);
+    serializedByteCount = descriptor.countBytes(request);
+    requestParser = descriptor;
+    serializedRequest = arena.copyOf(descriptor.serializeRequest(request));
+    context = context.withRequest(null);
+  }
+
+  /**
+   * Returns a read-only buffer over the serialized request, or null if the request
+   * is not held in an arena.
+   */
+  @Nullable
+  ByteBuffer getSerializedRequest() {
+    DirectByteArena.Slice slice = serializedRequest;
+    return slice == null ? null : slice.asReadOnlyBuffer();
+  }
+
+  /**
+   * Returns the number of elements of the request, as counted by the given descriptor.
+   */
+  long countElements(BundlingDescriptor<RequestT, ResponseT> descriptor) {
+    return serializedRequest != null
+        ? serializedElementCount : descriptor.countElements(context.getRequest());
+  }
+
+  /**
+   * Returns the number of bytes of the request, as counted by the given descriptor.
+   */
+  long countBytes(BundlingDescriptor<RequestT, ResponseT> descriptor) {
+    return serializedRequest != null
+        ? serializedByteCount : descriptor.countBytes(context.getRequest());
+  }
+
+  /**
+   * Releases the serialized request from its arena, if it is held in one.
+   */
+  void releaseSerializedRequest() {
+    DirectByteArena.Slice slice = serializedRequest;
+    if (slice != null) {
+      serializedRequest = null;
+      slice.release();
+    }
+  }
+
   @Override
   public void setResponse(ResponseT response) {
     Preconditions.checkState(throwableToSend == null,
@@ -85,10 +260,139 @@ public class BundlingContext<RequestT, ResponseT>
     throwableToSend = throwable;
   }
 
+  @Override
+  public void setRetryableException(Throwable throwable) {
+    setException(throwable);
+    retryable = true;
+  }
+
+  /**
+   * Sets the response or exception which was set for another context with a
+   * duplicate request.
+   */
+  void setResultFrom(BundlingContext<RequestT, ResponseT> original) {
+    if (original.retryable) {
+      setRetryableException(original.throwableToSend);
+    } else if (original.throwableToSend != null) {
+      setException(original.throwableToSend);
+    } else {
+      setResponse(original.responseToSend);
+    }
+  }
+
+  /**
+   * Sets the factory which this context is bundled by, and which re-queues it if a
+   * retryable exception is set.
+   */
+  void setBundlerFactory(BundlerFactory<RequestT, ResponseT> bundlerFactory) {
+    this.bundlerFactory = bundlerFactory;
+  }
+
+  /**
+   * Adds this context, which a BundleExecutor held back, to the bundler of its partition
+   * again. Returns false if it was not bundled by a BundlerFactory, or the factory was
+   * closed.
+   */
+  boolean requeueReleased() {
+    return bundlerFactory != null && bundlerFactory.requeueReleased(this);
+  }
+
+  /**
+   * Returns the delay before the next retry, chosen at random up to the current
+   * retry delay, which then grows according to the retry backoff. Returns -1 if
+   * retrying after the delay would exceed the total timeout, counted from when this
+   * context was created.
+   */
+  long nextRetryDelayMillis(RetryParams retryParams) {
+    BackoffParams backoff = retryParams.getRetryBackoff();
+    long retryDelay = retryDelayMillis < 0 ? backoff.getInitialDelayMillis() : retryDelayMillis;
+    retryDelayMillis = Math.min((long) (retryDelay * backoff.getDelayMultiplier()),
+        backoff.getMaxDelayMillis());
+    long delay = retryDelay == 0 ? 0 : ThreadLocalRandom.current().nextLong(retryDelay);
+    long elapsedNanos = System.nanoTime() - createdNanos + TimeUnit.MILLISECONDS.toNanos(delay);
+    if (elapsedNanos > TimeUnit.MILLISECONDS.toNanos(retryParams.getTotalTimeout())) {
+      return -1;
+    }
+    return delay;
+  }
+
+  /**
+   * Clears the result, before the request is sent again.
+   */
+  void clearResult() {
+    responseToSend = null;
+    throwableToSend = null;
+    retryable = false;
+  }
+
   /**
-   * Sends back the result that was stored by either setResponse or setException
+   * Sets the handle of the bundle this context was added to.
+   */
+  void setBundleHandle(ThresholdBundleHandle bundleHandle) {
+    bundlingFuture.setBundleHandle(bundleHandle);
+  }
+
+  /**
+   * Returns whether the future of this context was cancelled.
+   */
+  boolean isCancelled() {
+    return bundlingFuture.isCancelled();
+  }
+
+  /**
+   * Returns the System.nanoTime at which this context was created.
+   */
+  long getCreatedNanos() {
+    return createdNanos;
+  }
+
+  /**
+   * Returns the future of this context, which its copies share.
+   */
+  BundlingFuture<ResponseT> getBundlingFuture() {
+    return bundlingFuture;
+  }
+
+  /**
+   * Sets the flow controllers from which the given number of elements and bytes
+   * were reserved for this context. They are released when the result is sent.
+   */
+  void setFlowControl(List<FlowController> flowControllers, long elementCount, long byteCount) {
+    this.flowControllers = flowControllers;
+    this.flowControlElementCount = elementCount;
+    this.flowControlByteCount = byteCount;
+  }
+
+  /**
+   * Releases the elements and bytes reserved for this context, if any.
+   */
+  void releaseFlowControl() {
+    List<FlowController> reserved = flowControllers;
+    flowControllers = null;
+    if (reserved != null) {
+      for (FlowController flowController : reserved) {
+        flowController.release(flowControlElementCount, flowControlByteCount);
+      }
+    }
+  }
+
+  /**
+   * Sends back the result that was stored by either setResponse or setException.
+   * If a retryable exception was stored and the request can be retried, it is
+   * re-queued instead, and the result is sent back after the retry. If the future was
+   * cancelled, the result is dropped.
    */
   public void sendResult() {
+    if (isCancelled()) {
+      releaseFlowControl();
+      releaseSerializedRequest();
+      return;
+    }
+    if (retryable && bundlerFactory != null && bundlerFactory.scheduleRetry(this)) {
+      return;
+    }
+    releaseFlowControl();
+    releaseSerializedRequest();
     if (responseToSend != null) {
       bundlingFuture.set(responseToSend);
     } else if (throwableToSend != null) {
@@ -33,9 +33,14 @@ package com.google.api.gax.grpc;
 
 import com.google.api.gax.bundling.BundlingThreshold;
 import com.google.api.gax.bundling.ExternalThreshold;
+import com.google.api.gax.bundling.FlowController.LimitExceededBehavior;
+import com.google.api.gax.core.RetryParams;
 import com.google.auto.value.AutoValue;
+import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableList;
 
+import java.io.File;
+
 import javax.annotation.Nullable;
 
 import org.joda.time.Duration;
@@ -58,6 +63,18 @@ public abstract class BundlingSettings {
   @Nullable
   public abstract Integer getRequestByteThreshold();
 
+  /**
+   * Get the maximum number of elements in a bundle.
+   */
+  @Nullable
+  public abstract Integer getElementCountLimit();
+
+  /**
+   * Get the maximum number of request bytes in a bundle.
+   */
+  @Nullable
+  public abstract Integer getRequestByteLimit();
+
   /**
    * Get the delay threshold to use for bundling.
    */
@@ -69,6 +86,166 @@ public abstract class BundlingSettings {
   @Nullable
   public abstract Integer getBlockingCallCountThreshold();
 
+  /**
+   * Get whether requests should be added to bundlers without taking a lock.
+   */
+  @Nullable
+  public abstract Boolean getLockFreeAdd();
+
+  /**
+   * Get whether bundles should be sent as soon as their partition has no bundle in flight.
+   */
+  @Nullable
+  public abstract Boolean getSendWhenIdle();
+
+  /**
+   * Get the maximum number of bundles per partition which can be in flight at once.
+   */
+  @Nullable
+  public abstract Integer getMaxInFlightBundles();
+
+  /**
+   * Get the maximum number of elements per partition which can be outstanding.
+   */
+  @Nullable
+  public abstract Long getPartitionMaxOutstandingElementCount();
+
+  /**
+   * Get the maximum number of request bytes per partition which can be outstanding.
+   */
+  @Nullable
+  public abstract Long getPartitionMaxOutstandingRequestBytes();
+
+  /**
+   * Get the maximum number of elements across all partitions which can be outstanding.
+   */
+  @Nullable
+  public abstract Long getMaxOutstandingElementCount();
+
+  /**
+   * Get the maximum number of request bytes across all partitions which can be outstanding.
+   */
+  @Nullable
+  public abstract Long getMaxOutstandingRequestBytes();
+
+  /**
+   * Get the behavior to use when an outstanding element or byte limit is reached.
+   */
+  @Nullable
+  public abstract LimitExceededBehavior getLimitExceededBehavior();
+
+  /**
+   * Get the time after which a partition to which nothing was added is evicted.
+   */
+  @Nullable
+  public abstract Duration getPartitionIdleTimeout();
+
+  /**
+   * Get the maximum number of partitions which can have a bundler at once.
+   */
+  @Nullable
+  public abstract Integer getMaxPartitionCount();
+
+  /**
+   * Get the latency target to tune the delay and element count thresholds for.
+   */
+  @Nullable
+  public abstract Duration getTargetLatency();
+
+  /**
+   * Get the lower bound for the tuned delay threshold.
+   */
+  @Nullable
+  public abstract Duration getMinDelayThreshold();
+
+  /**
+   * Get the lower bound for the tuned element count threshold.
+   */
+  @Nullable
+  public abstract Integer getMinElementCountThreshold();
+
+  /**
+   * Get whether bundling metrics are recorded for each partition.
+   */
+  @Nullable
+  public abstract Boolean getMetricsEnabled();
+
+  /**
+   * Get the retry params for elements which fail with a retryable exception.
+   */
+  @Nullable
+  public abstract RetryParams getElementRetryParams();
+
+  /**
+   * Get the delay threshold for bundles to which an urgent request was added.
+   */
+  @Nullable
+  public abstract Duration getUrgentDelayThreshold();
+
+  /**
+   * Get the margin before the deadline of a request by which its bundle is sent.
+   */
+  @Nullable
+  public abstract Duration getDeadlineSendMargin();
+
+  /**
+   * Get the directory to which requests are spilled.
+   */
+  @Nullable
+  public abstract File getSpillDirectory();
+
+  /**
+   * Get the number of request bytes a partition holds in memory before it spills
+   * requests.
+   */
+  @Nullable
+  public abstract Long getSpillThresholdBytes();
+
+  /**
+   * Get the size of the direct buffer chunks in which requests are held while they
+   * wait to be bundled.
+   */
+  @Nullable
+  public abstract Integer getArenaChunkBytes();
+
+  /**
+   * Get the maximum rate of bundles per partition, in bundles per second.
+   */
+  @Nullable
+  public abstract Double getPartitionMaxBundlesPerSecond();
+
+  /**
+   * Get the maximum rate of request bytes per partition, in bytes per second.
+   */
+  @Nullable
+  public abstract Long getPartitionMaxBytesPerSecond();
+
+  /**
+   * Get the maximum rate of bundles across all partitions, in bundles per second.
+   */
+  @Nullable
+  public abstract Double getMaxBundlesPerSecond();
+
+  /**
+   * Get the maximum rate of request bytes across all partitions, in bytes per second.
+   */
+  @Nullable
+  public abstract Long getMaxBytesPerSecond();
+
+  /**
+   * Get the maximum number of results which are sent back together as one task of
+   * the result executor.
+   */
+  @Nullable
+  public abstract Integer getResultChunkSize();
+
+  /**
+   * Get the maximum time for which small bundles of different partitions wait to be
+   * packed into one call.
+   */
+  @Nullable
+  public abstract Duration getPackingDelayThreshold();
+
   /**
    * Get a new builder.
    */
@@ -97,6 +274,23 @@ public abstract class BundlingSettings {
      */
     public abstract Builder setRequestByteThreshold(Integer requestByteThreshold);
 
+    /**
+     * Set the maximum number of elements in a bundle. Unlike the element count
+     * threshold, which a bundle can go past by one request, this is never exceeded:
+     * a request which would take a bundle past it is sent in the next bundle, and a
+     * request with more elements is rejected. By default there is no limit.
+     */
+    public abstract Builder setElementCountLimit(Integer elementCountLimit);
+
+    /**
+     * Set the maximum number of request bytes in a bundle, such as the maximum
+     * request size the server accepts. Unlike the request byte threshold, which a
+     * bundle can go past by one request, this is never exceeded: a request which
+     * would take a bundle past it is sent in the next bundle, and a larger request is
+     * rejected. By default there is no limit.
+     */
+    public abstract Builder setRequestByteLimit(Integer requestByteLimit);
+
     /**
      * Set the delay threshold to use for bundling. After this amount of time has
      * elapsed (counting from the first element added), the elements will be wrapped
@@ -113,13 +307,278 @@ public abstract class BundlingSettings {
      */
     public abstract Builder setBlockingCallCountThreshold(Integer blockingCallCountThreshold);
 
+    /**
+     * Set whether requests should be added to bundlers without taking a lock. This
+     * reduces contention when many threads issue requests for the same partition, at
+     * the cost of moving the threshold checks onto the thread that sends the bundles.
+     * This defaults to false.
+     */
+    public abstract Builder setLockFreeAdd(Boolean lockFreeAdd);
+
+    /**
+     * Set whether bundles should be sent as soon as their partition has no bundle in
+     * flight and is not held back by a concurrency or rate limit, instead of when they
+     * reach their thresholds. Requests then only accumulate while a bundle is
+     * outstanding, so they are sent without delay under light load and still form large
+     * bundles under heavy load. This defaults to false.
+     */
+    public abstract Builder setSendWhenIdle(Boolean sendWhenIdle);
+
+    /**
+     * Set the maximum number of bundles per partition which can be in flight at once.
+     * If this is set, bundles are sent asynchronously, and elements keep accumulating
+     * in the next bundle while the maximum is reached. If this is not set, only one
+     * bundle is in flight at a time: it is sent synchronously, unless the bundler factory
+     * runs its forwarders on a shared executor, in which case it is sent asynchronously
+     * so that no executor thread waits for a call.
+     */
+    public abstract Builder setMaxInFlightBundles(Integer maxInFlightBundles);
+
+    /**
+     * Set the maximum number of elements per partition which can be outstanding. An
+     * element is outstanding from the time it is added until its result is sent back.
+     */
+    public abstract Builder setPartitionMaxOutstandingElementCount(
+        Long partitionMaxOutstandingElementCount);
+
+    /**
+     * Set the maximum number of request bytes per partition which can be outstanding.
+     */
+    public abstract Builder setPartitionMaxOutstandingRequestBytes(
+        Long partitionMaxOutstandingRequestBytes);
+
+    /**
+     * Set the maximum number of elements across all partitions of a bundler factory
+     * which can be outstanding.
+     */
+    public abstract Builder setMaxOutstandingElementCount(Long maxOutstandingElementCount);
+
+    /**
+     * Set the maximum number of request bytes across all partitions of a bundler
+     * factory which can be outstanding.
+     */
+    public abstract Builder setMaxOutstandingRequestBytes(Long maxOutstandingRequestBytes);
+
+    /**
+     * Set the behavior to use when an outstanding element or byte limit is reached:
+     * block the caller, fail the call with a RESOURCE_EXHAUSTED ApiException, or drop
+     * the oldest elements of the partition which have not been sent yet. This defaults
+     * to blocking.
+     */
+    public abstract Builder setLimitExceededBehavior(LimitExceededBehavior limitExceededBehavior);
+
+    /**
+     * Set the time after which the bundler of a partition to which nothing was added
+     * is flushed and shut down. It is created again when the partition is used again.
+     * By default, bundlers live until the bundler factory is closed.
+     */
+    public abstract Builder setPartitionIdleTimeout(Duration partitionIdleTimeout);
+
+    /**
+     * Set the maximum number of partitions which can have a bundler at once. When a
+     * bundler is needed for a new partition and the maximum is reached, the bundler of
+     * the least recently used partition which has no bundles in flight and no requests
+     * waiting for their ordering key is flushed and shut down. If there is no such
+     * partition, requests for the new partition fail with RESOURCE_EXHAUSTED. By default, the number of partitions is
+     * not limited.
+     */
+    public abstract Builder setMaxPartitionCount(Integer maxPartitionCount);
+
+    /**
+     * Set a latency target, counted from when a request is made until the bundle it
+     * is part of has been sent. If this is set, the delay and element count thresholds
+     * of each partition are tuned based on the observed arrival rate of elements and
+     * the time it takes to send bundles, so that bundles are as large as possible while
+     * meeting the target. The delay threshold and element count threshold are then
+     * used as the upper bounds. By default, the thresholds are not tuned.
+     */
+    public abstract Builder setTargetLatency(Duration targetLatency);
+
+    /**
+     * Set the lower bound for the tuned delay threshold. This defaults to zero.
+     */
+    public abstract Builder setMinDelayThreshold(Duration minDelayThreshold);
+
+    /**
+     * Set the lower bound for the tuned element count threshold. This defaults to 1.
+     */
+    public abstract Builder setMinElementCountThreshold(Integer minElementCountThreshold);
+
+    /**
+     * Set whether bundling metrics are recorded for each partition: why each bundle
+     * was sent, how many elements and bytes it had, how long elements waited to be
+     * sent, and how long sending took. This defaults to false.
+     */
+    public abstract Builder setMetricsEnabled(Boolean metricsEnabled);
+
+    /**
+     * Set the retry params for elements for which the bundling descriptor sets a
+     * retryable exception when it splits the bundle response. Such elements are
+     * added to a later bundle of their partition after a delay drawn from the retry
+     * backoff, until the total timeout, counted from when the element was first
+     * added, would be exceeded. The timeout backoff is not used, since the timeout of
+     * each bundle is up to the bundled callable. By default, retryable exceptions are
+     * sent back like any other exception.
+     */
+    public abstract Builder setElementRetryParams(RetryParams elementRetryParams);
+
+    /**
+     * Set the delay threshold for bundles to which an urgent request was added,
+     * counted from when the urgent request was added. This is only used if the
+     * bundling descriptor is a PrioritizingBundlingDescriptor. By default, a bundle
+     * is sent as soon as an urgent request is added to it.
+     */
+    public abstract Builder setUrgentDelayThreshold(Duration urgentDelayThreshold);
+
+    /**
+     * Set the margin before the deadline of a request by which the bundle containing
+     * the request is sent, if that is sooner than the delay threshold. The margin
+     * should cover the time to send the bundle. By default it is zero, so that a
+     * bundle is at least sent before a request in it expires.
+     */
+    public abstract Builder setDeadlineSendMargin(Duration deadlineSendMargin);
+
+    /**
+     * Set the directory to which requests are spilled once a partition holds more
+     * than the spill threshold in request bytes, for example while the backend is
+     * unavailable. Spilled requests are stored in memory-mapped segment files, and are
+     * sent in order once the partition catches up. This is only used if the bundling
+     * descriptor is a SpillableBundlingDescriptor, and requires a spill threshold and an
+     * outstanding element count limit. The call context and future of each spilled request
+     * stay in memory, so the limit bounds them, and the limit exceeded behavior applies
+     * beyond it. A request which cannot be spilled fails. By default, requests are never
+     * spilled.
+     */
+    public abstract Builder setSpillDirectory(File spillDirectory);
+
+    /**
+     * Set the number of request bytes a partition holds in memory before it spills
+     * requests to the spill directory.
+     */
+    public abstract Builder setSpillThresholdBytes(Long spillThresholdBytes);
+
+    /**
+     * Set the size of the direct buffer chunks in which each partition holds its
+     * serialized requests while they wait to be bundled, so that large requests do not
+     * stay on the heap. The bundle request is then merged from the serialized requests.
+     * This is only used if the bundling descriptor is an ArenaBundlingDescriptor, and
+     * cannot be combined with a spill directory. By default, requests are held on the
+     * heap.
+     */
+    public abstract Builder setArenaChunkBytes(Integer arenaChunkBytes);
+
+    /**
+     * Set the maximum rate at which each partition sends bundles, in bundles per
+     * second. A partition can send up to one second worth of bundles in a burst.
+     * While the rate is exceeded, bundles stay in the bundler and keep growing up to
+     * the bundling limits. A bundle which is split by channel counts once for each
+     * channel.
+     */
+    public abstract Builder setPartitionMaxBundlesPerSecond(
+        Double partitionMaxBundlesPerSecond);
+
+    /**
+     * Set the maximum rate at which each partition sends request bytes, in bytes per
+     * second. A bundle is sent while the partition is within the rate, and its bytes
+     * count against the rate afterwards.
+     */
+    public abstract Builder setPartitionMaxBytesPerSecond(Long partitionMaxBytesPerSecond);
+
+    /**
+     * Set the maximum rate at which all partitions of a bundler factory together send
+     * bundles, in bundles per second.
+     */
+    public abstract Builder setMaxBundlesPerSecond(Double maxBundlesPerSecond);
+
+    /**
+     * Set the maximum rate at which all partitions of a bundler factory together send
+     * request bytes, in bytes per second.
+     */
+    public abstract Builder setMaxBytesPerSecond(Long maxBytesPerSecond);
+
+    /**
+     * Set the maximum number of results which are sent back together as one task of
+     * the result executor of a bundler factory. Smaller chunks let more threads of the
+     * executor send back the results of a large bundle. It has no effect if the bundler
+     * factory has no result executor.
+     */
+    public abstract Builder setResultChunkSize(Integer resultChunkSize);
+
+    /**
+     * Set the maximum time for which bundles with fewer elements than the element count
+     * threshold wait to be packed with bundles of other partitions into one call, up to
+     * the element count and request byte limits. This only has an effect if the bundling
+     * descriptor is a PackingBundlingDescriptor, and packing is disabled if it is not set.
+     */
+    public abstract Builder setPackingDelayThreshold(Duration packingDelayThreshold);
+
     abstract BundlingSettings autoBuild();
 
     /**
      * Build the BundlingSettings object.
      */
     public BundlingSettings build() {
-      return autoBuild();
+      BundlingSettings settings = autoBuild();
+      Preconditions.checkArgument(
+          settings.getMaxInFlightBundles() == null || settings.getMaxInFlightBundles() > 0,
+          "maxInFlightBundles must be positive");
+      Preconditions.checkArgument(
+          settings.getMaxPartitionCount() == null || settings.getMaxPartitionCount() > 0,
+          "maxPartitionCount must be positive");
+      Preconditions.checkArgument(
+          settings.getElementCountLimit() == null || settings.getElementCountLimit() > 0,
+          "elementCountLimit must be positive");
+      Preconditions.checkArgument(
+          settings.getRequestByteLimit() == null || settings.getRequestByteLimit() > 0,
+          "requestByteLimit must be positive");
+      Preconditions.checkArgument(
+          settings.getUrgentDelayThreshold() == null
+              || settings.getUrgentDelayThreshold().getMillis() >= 0,
+          "urgentDelayThreshold must not be negative");
+      Preconditions.checkArgument(
+          settings.getDeadlineSendMargin() == null
+              || settings.getDeadlineSendMargin().getMillis() >= 0,
+          "deadlineSendMargin must not be negative");
+      Preconditions.checkArgument(
+          settings.getSpillThresholdBytes() == null || settings.getSpillThresholdBytes() > 0,
+          "spillThresholdBytes must be positive");
+      Preconditions.checkArgument(
+          settings.getSpillDirectory() == null || settings.getSpillThresholdBytes() != null,
+          "spillDirectory requires spillThresholdBytes");
+      Preconditions.checkArgument(
+          settings.getSpillDirectory() == null
+              || settings.getMaxOutstandingElementCount() != null
+              || settings.getPartitionMaxOutstandingElementCount() != null,
+          "spillDirectory requires maxOutstandingElementCount or "
+              + "partitionMaxOutstandingElementCount");
+      Preconditions.checkArgument(
+          settings.getArenaChunkBytes() == null || settings.getArenaChunkBytes() > 0,
+          "arenaChunkBytes must be positive");
+      Preconditions.checkArgument(
+          settings.getArenaChunkBytes() == null || settings.getSpillDirectory() == null,
+          "arenaChunkBytes cannot be combined with spillDirectory");
+      Preconditions.checkArgument(
+          settings.getPartitionMaxBundlesPerSecond() == null
+              || settings.getPartitionMaxBundlesPerSecond() > 0,
+          "partitionMaxBundlesPerSecond must be positive");
+      Preconditions.checkArgument(
+          settings.getPartitionMaxBytesPerSecond() == null
+              || settings.getPartitionMaxBytesPerSecond() > 0,
+          "partitionMaxBytesPerSecond must be positive");
+      Preconditions.checkArgument(
+          settings.getMaxBundlesPerSecond() == null || settings.getMaxBundlesPerSecond() > 0,
+          "maxBundlesPerSecond must be positive");
+      Preconditions.checkArgument(
+          settings.getMaxBytesPerSecond() == null || settings.getMaxBytesPerSecond() > 0,
+          "maxBytesPerSecond must be positive");
+      Preconditions.checkArgument(
+          settings.getResultChunkSize() == null || settings.getResultChunkSize() > 0,
+          "resultChunkSize must be positive");
+      Preconditions.checkArgument(
+          settings.getPackingDelayThreshold() == null
+              || settings.getPackingDelayThreshold().getMillis() >= 0,
+          "packingDelayThreshold must not be negative");
+      return settings;
     }
   }
 
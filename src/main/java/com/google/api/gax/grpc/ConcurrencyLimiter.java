@@ -0,0 +1,397 @@
+/*
+ * Copyright 2015, Google Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ *     * Neither the name of Google Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.google.api.gax.grpc;
+
+import com.google.common.base.Preconditions;
+
+import io.grpc.Status;
+import io.grpc.StatusException;
+import io.grpc.StatusRuntimeException;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Limits the number of calls in flight to a limit which adapts to the observed round
+ * trip times, using additive increase and multiplicative decrease (AIMD).
+ *
+ * The limiter tracks the minimum round trip time of successful calls. While calls
+ * complete within the latency tolerance of that minimum, and the limit is actually
+ * being used, the limit grows by one for each call. When a call takes longer, or fails
+ * with RESOURCE_EXHAUSTED or UNAVAILABLE, the limit is multiplied by the backoff ratio.
+ * Other failures leave the limit unchanged. The minimum round trip time is measured
+ * again over each window of successful calls, so that it follows lasting changes.
+ *
+ * A limiter can be shared by callables, see {@link ApiCallable#limitingConcurrency},
+ * and by bundler factories, whose bundles then count as calls.
+ *
+ * This class is thread-safe.
+ */
+public class ConcurrencyLimiter {
+  // The number of successful calls over which the minimum round trip time is measured.
+  private static final int MIN_RTT_WINDOW_CALLS = 250;
+
+  private final int minLimit;
+  private final int maxLimit;
+  private final double latencyTolerance;
+  private final double backoffRatio;
+  private final CopyOnWriteArrayList<Runnable> capacityListeners =
+      new CopyOnWriteArrayList<>();
+
+  private final Lock lock = new ReentrantLock();
+  private final Condition releaseCondition = lock.newCondition();
+  // Guarded by lock.
+  private double limit;
+  private int inFlightCount;
+  private int queueDepth;
+  private final Queue<Runnable> waiters = new ArrayDeque<>();
+  private long minRttNanos = Long.MAX_VALUE;
+  private long windowMinRttNanos = Long.MAX_VALUE;
+  private int windowCalls;
+
+  private ConcurrencyLimiter(Builder builder) {
+    this.minLimit = builder.minLimit;
+    this.maxLimit = builder.maxLimit;
+    this.latencyTolerance = builder.latencyTolerance;
+    this.backoffRatio = builder.backoffRatio;
+    Preconditions.checkArgument(minLimit > 0 && minLimit <= maxLimit, "invalid limit bounds");
+    Preconditions.checkArgument(latencyTolerance >= 1, "latencyTolerance must be at least 1");
+    Preconditions.checkArgument(backoffRatio > 0 && backoffRatio < 1,
+        "backoffRatio must be between 0 and 1");
+    int initialLimit = builder.initialLimit == null ? minLimit : builder.initialLimit;
+    Preconditions.checkArgument(initialLimit >= minLimit && initialLimit <= maxLimit,
+        "initialLimit must be within the limit bounds");
+    this.limit = initialLimit;
+  }
+
+  /**
+   * Builder for a ConcurrencyLimiter.
+   */
+  public static class Builder {
+    private int minLimit = 1;
+    private int maxLimit = 1000;
+    private Integer initialLimit;
+    private double latencyTolerance = 2.0;
+    private double backoffRatio = 0.9;
+
+    private Builder() {}
+
+    /**
+     * Set the bounds of the limit. They default to 1 and 1000.
+     */
+    public Builder setLimitBounds(int minLimit, int maxLimit) {
+      this.minLimit = minLimit;
+      this.maxLimit = maxLimit;
+      return this;
+    }
+
+    /**
+     * Set the limit to start with. It defaults to the lower bound.
+     */
+    public Builder setInitialLimit(int initialLimit) {
+      this.initialLimit = initialLimit;
+      return this;
+    }
+
+    /**
+     * Set the ratio to the minimum round trip time beyond which a call counts as
+     * delayed by queueing, and the limit is lowered. It defaults to 2.
+     */
+    public Builder setLatencyTolerance(double latencyTolerance) {
+      this.latencyTolerance = latencyTolerance;
+      return this;
+    }
+
+    /**
+     * Set the ratio by which the limit is multiplied when it is lowered. It defaults
+     * to 0.9.
+     */
+    public Builder setBackoffRatio(double backoffRatio) {
+      this.backoffRatio = backoffRatio;
+      return this;
+    }
+
+    /**
+     * Build the ConcurrencyLimiter.
+     */
+    public ConcurrencyLimiter build() {
+      return new ConcurrencyLimiter(this);
+    }
+  }
+
+  /**
+   * Get a new builder.
+   */
+  public static Builder newBuilder() {
+    return new Builder();
+  }
+
+  /**
+   * Starts a call if fewer calls than the limit are in flight, and returns whether
+   * it was started.
+   */
+  public boolean tryAcquire() {
+    final Lock lock = this.lock;
+    lock.lock();
+    try {
+      if (inFlightCount >= (int) limit) {
+        return false;
+      }
+      inFlightCount++;
+      return true;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Starts a call, waiting until fewer calls than the limit are in flight if needed.
+   */
+  public void acquire() throws InterruptedException {
+    final Lock lock = this.lock;
+    lock.lockInterruptibly();
+    try {
+      queueDepth++;
+      try {
+        while (inFlightCount >= (int) limit) {
+          releaseCondition.await();
+        }
+      } finally {
+        queueDepth--;
+      }
+      inFlightCount++;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Starts a call without blocking, and runs the given runnable once it is started:
+   * right away on the calling thread if fewer calls than the limit are in flight, and
+   * otherwise on the thread which ends the call that makes room for it. Runnables which
+   * wait are started in the order in which they were given, before callers of acquire.
+   * The runnable must neither block nor throw.
+   */
+  void acquireAsync(Runnable onAcquired) {
+    final Lock lock = this.lock;
+    lock.lock();
+    try {
+      if (!waiters.isEmpty() || inFlightCount >= (int) limit) {
+        waiters.add(onAcquired);
+        return;
+      }
+      inFlightCount++;
+    } finally {
+      lock.unlock();
+    }
+    onAcquired.run();
+  }
+
+  /**
+   * Ends a call which succeeded after the given round trip time.
+   */
+  public void release(long rttNanos) {
+    List<Runnable> acquired;
+    final Lock lock = this.lock;
+    lock.lock();
+    try {
+      boolean limitUsed = inFlightCount * 2 >= limit;
+      inFlightCount--;
+      windowMinRttNanos = Math.min(windowMinRttNanos, rttNanos);
+      minRttNanos = Math.min(minRttNanos, rttNanos);
+      if (++windowCalls >= MIN_RTT_WINDOW_CALLS) {
+        minRttNanos = windowMinRttNanos;
+        windowMinRttNanos = Long.MAX_VALUE;
+        windowCalls = 0;
+      }
+      if (rttNanos > minRttNanos * latencyTolerance) {
+        decreaseLimit();
+      } else if (limitUsed) {
+        limit = Math.min(maxLimit, limit + 1);
+      }
+      acquired = takeWaiters();
+      releaseCondition.signalAll();
+    } finally {
+      lock.unlock();
+    }
+    runWaiters(acquired);
+    notifyCapacityListeners();
+  }
+
+  /**
+   * Ends a call which failed with the given exception. The limit is lowered if the
+   * failure indicates that the server is overloaded.
+   */
+  public void release(Throwable exception) {
+    List<Runnable> acquired;
+    final Lock lock = this.lock;
+    lock.lock();
+    try {
+      inFlightCount--;
+      if (isOverload(exception)) {
+        decreaseLimit();
+      }
+      acquired = takeWaiters();
+      releaseCondition.signalAll();
+    } finally {
+      lock.unlock();
+    }
+    runWaiters(acquired);
+    notifyCapacityListeners();
+  }
+
+  /**
+   * Returns the current limit on the number of calls in flight.
+   */
+  public int getLimit() {
+    final Lock lock = this.lock;
+    lock.lock();
+    try {
+      return (int) limit;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Returns the number of calls in flight.
+   */
+  public int getInFlightCount() {
+    final Lock lock = this.lock;
+    lock.lock();
+    try {
+      return inFlightCount;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Returns the number of callers waiting in acquire, and of calls waiting to be
+   * started asynchronously.
+   */
+  public int getQueueDepth() {
+    final Lock lock = this.lock;
+    lock.lock();
+    try {
+      return queueDepth + waiters.size();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Returns whether a call can be started now without waiting.
+   */
+  public boolean hasCapacity() {
+    final Lock lock = this.lock;
+    lock.lock();
+    try {
+      return waiters.isEmpty() && inFlightCount < (int) limit;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Adds a listener to be run whenever a call ends, which may make capacity
+   * available. The listener must not block.
+   */
+  public void addCapacityListener(Runnable listener) {
+    capacityListeners.add(listener);
+  }
+
+  /**
+   * Removes a listener added by addCapacityListener.
+   */
+  public void removeCapacityListener(Runnable listener) {
+    capacityListeners.remove(listener);
+  }
+
+  // Starts the calls of as many waiting runnables as the limit allows, and returns the
+  // runnables, which are run once the lock is released.
+  // pre-condition: lock is held
+  private List<Runnable> takeWaiters() {
+    if (waiters.isEmpty()) {
+      return null;
+    }
+    List<Runnable> acquired = new ArrayList<>();
+    while (!waiters.isEmpty() && inFlightCount < (int) limit) {
+      inFlightCount++;
+      acquired.add(waiters.poll());
+    }
+    return acquired;
+  }
+
+  private static void runWaiters(List<Runnable> acquired) {
+    if (acquired == null) {
+      return;
+    }
+    for (Runnable onAcquired : acquired) {
+      onAcquired.run();
+    }
+  }
+
+  // pre-condition: lock is held
+  private void decreaseLimit() {
+    limit = Math.max(minLimit, limit * backoffRatio);
+  }
+
+  private void notifyCapacityListeners() {
+    for (Runnable listener : capacityListeners) {
+      listener.run();
+    }
+  }
+
+  /**
+   * Returns whether the given exception, or the exception it wraps, has a status which
+   * indicates that the server is overloaded.
+   */
+  static boolean isOverload(Throwable exception) {
+    Throwable cause = exception instanceof ApiException ? exception.getCause() : exception;
+    Status.Code code;
+    if (cause instanceof StatusException) {
+      code = ((StatusException) cause).getStatus().getCode();
+    } else if (cause instanceof StatusRuntimeException) {
+      code = ((StatusRuntimeException) cause).getStatus().getCode();
+    } else {
+      return false;
+    }
+    return code == Status.Code.RESOURCE_EXHAUSTED || code == Status.Code.UNAVAILABLE;
+  }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright 2015, Google Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ *     * Neither the name of Google Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.google.api.gax.grpc;
+
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+
+/**
+ * {@code ConcurrencyLimitingCallable} waits for the given {@link ConcurrencyLimiter}
+ * before each call, and reports the outcome and round trip time of the call to it.
+ */
+class ConcurrencyLimitingCallable<RequestT, ResponseT>
+    implements FutureCallable<RequestT, ResponseT> {
+  private final FutureCallable<RequestT, ResponseT> callable;
+  private final ConcurrencyLimiter limiter;
+
+  ConcurrencyLimitingCallable(
+      FutureCallable<RequestT, ResponseT> callable, ConcurrencyLimiter limiter) {
+    this.callable = Preconditions.checkNotNull(callable);
+    this.limiter = Preconditions.checkNotNull(limiter);
+  }
+
+  @Override
+  public ListenableFuture<ResponseT> futureCall(CallContext<RequestT> context) {
+    try {
+      limiter.acquire();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return Futures.immediateFailedFuture(e);
+    }
+    final long startNanos = System.nanoTime();
+    ListenableFuture<ResponseT> result;
+    try {
+      result = callable.futureCall(context);
+    } catch (RuntimeException e) {
+      limiter.release(e);
+      throw e;
+    }
+    Futures.addCallback(result, new FutureCallback<ResponseT>() {
+      @Override
+      public void onSuccess(ResponseT response) {
+        limiter.release(System.nanoTime() - startNanos);
+      }
+
+      @Override
+      public void onFailure(Throwable throwable) {
+        limiter.release(throwable);
+      }
+    });
+    return result;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("concurrencyLimiting(%s)", callable);
+  }
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright 2015, Google Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ *     * Neither the name of Google Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.google.api.gax.grpc;
+
+import javax.annotation.Nullable;
+
+/**
+ * A bundling descriptor which can tell when two requests are duplicates of each
+ * other, so that they are only sent once.
+ *
+ * When a bundle is sent, requests which have the same non-null dedup key are
+ * collapsed: only the first of them is merged into the bundle request and split
+ * from the bundle response, and its response or exception is then sent back for
+ * each of the duplicates as well. This is only correct for idempotent requests
+ * whose responses can be shared.
+ *
+ * Duplicates are only collapsed within a bundle, and only when it is sent; a request
+ * which duplicates one that is already in flight is sent again. While the bundle is
+ * pending, only the first request with a key counts towards the thresholds and limits
+ * of a bundler created by a BundlerFactory, so that duplicates neither release the
+ * bundle early nor push requests into the next one.
+ */
+public interface DeduplicatingBundlingDescriptor<RequestT, ResponseT>
+    extends BundlingDescriptor<RequestT, ResponseT> {
+
+  /**
+   * Returns the key identifying the given request, or null if the request should
+   * never be collapsed with another one. Keys are compared with equals().
+   */
+  @Nullable
+  Object getDedupKey(RequestT request);
+}
@@ -0,0 +1,56 @@
+/*
+ * Copyright 2015, Google Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ *     * Neither the name of Google Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.google.api.gax.grpc;
+
+import javax.annotation.Nullable;
+
+/**
+ * A bundling descriptor which assigns requests to ordering keys, so that requests with
+ * the same key are sent strictly in the order in which they were added.
+ *
+ * The requests of an ordering key are only ever in flight in one bundle at a time.
+ * Requests of the key which are added in the meantime are held back until each request
+ * in flight has succeeded or failed permanently; requests which are retried keep their
+ * key busy until their retry completes, and are sent again together, in order. Requests
+ * of other keys in the same partition, and requests without a key, are not held back by
+ * them.
+ */
+public interface OrderedBundlingDescriptor<RequestT, ResponseT>
+    extends BundlingDescriptor<RequestT, ResponseT> {
+
+  /**
+   * Returns the ordering key of the given request, or null if the request can be sent
+   * in any order. Keys are compared with equals().
+   */
+  @Nullable
+  Object getOrderingKey(RequestT request);
+}
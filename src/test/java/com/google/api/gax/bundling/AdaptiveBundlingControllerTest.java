@@ -0,0 +1,112 @@
+/*
+ * Copyright 2015, Google Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ *     * Neither the name of Google Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.google.api.gax.bundling;
+
+import com.google.common.truth.Truth;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.joda.time.Duration;
+import org.junit.Test;
+
+public class AdaptiveBundlingControllerTest {
+
+  private static AdaptiveBundlingController<Integer> createController() {
+    return AdaptiveBundlingController.<Integer>newBuilder()
+        .setElementCounter(new ElementCounter<Integer>() {
+          @Override
+          public long count(Integer element) {
+            return 1;
+          }
+        })
+        .setDelayBounds(Duration.millis(10), Duration.millis(1000))
+        .setElementCountBounds(2, 100)
+        .setTargetLatency(Duration.millis(200))
+        .build();
+  }
+
+  @Test
+  public void testInitialTargets() {
+    AdaptiveBundlingController<Integer> controller = createController();
+    Truth.assertThat(controller.getDelayTarget()).isEqualTo(Duration.millis(1000));
+    Truth.assertThat(controller.getElementCountTarget()).isEqualTo(100);
+  }
+
+  @Test
+  public void testSlowBundles() {
+    AdaptiveBundlingController<Integer> controller = createController();
+    controller.recordBundleLatency(TimeUnit.MILLISECONDS.toNanos(500));
+    Truth.assertThat(controller.getDelayTarget()).isEqualTo(Duration.millis(10));
+    Truth.assertThat(controller.getElementCountTarget()).isEqualTo(50);
+    controller.recordBundleLatency(TimeUnit.MILLISECONDS.toNanos(500));
+    Truth.assertThat(controller.getElementCountTarget()).isEqualTo(25);
+  }
+
+  @Test
+  public void testTargetsFollowLatencyAndArrivals() {
+    AdaptiveBundlingController<Integer> controller = createController();
+    ThresholdBundler<Integer> bundler = ThresholdBundler.<Integer>newBuilder()
+        .setMaxDelay(Duration.millis(1000))
+        .setAdaptiveController(controller)
+        .build();
+    for (int i = 0; i < 10; i++) {
+      bundler.add(i);
+    }
+    List<Integer> bundle = new ArrayList<>();
+    bundler.drainTo(bundle);
+    Truth.assertThat(controller.getArrivalRate()).isGreaterThan(0.0);
+
+    // 150ms of the target latency are left to wait in the bundler, and the element
+    // count target is the number of elements expected to arrive in that time.
+    controller.recordBundleLatency(TimeUnit.MILLISECONDS.toNanos(50));
+    Truth.assertThat(controller.getDelayTarget()).isEqualTo(Duration.millis(150));
+    long expectedElements = Math.max(2, Math.min(100,
+        (long) (controller.getArrivalRate() * 0.150)));
+    Truth.assertThat(Math.abs(controller.getElementCountTarget() - expectedElements))
+        .isAtMost(1L);
+  }
+
+  @Test
+  public void testElementCountThreshold() {
+    AdaptiveBundlingController<Integer> controller = createController();
+    controller.recordBundleLatency(TimeUnit.MILLISECONDS.toNanos(500));
+    BundlingThreshold<Integer> threshold = controller.getElementCountThreshold();
+    for (int i = 0; i < 49; i++) {
+      threshold.accumulate(i);
+    }
+    Truth.assertThat(threshold.isThresholdReached()).isFalse();
+    threshold.accumulate(49);
+    Truth.assertThat(threshold.isThresholdReached()).isTrue();
+  }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright 2015, Google Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ *     * Neither the name of Google Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.google.api.gax.bundling;
+
+import com.google.common.truth.Truth;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.joda.time.Duration;
+import org.junit.Test;
+
+public class BundlingMetricsTest {
+
+  private static ElementCounter<Integer> valueCounter() {
+    return new ElementCounter<Integer>() {
+      @Override
+      public long count(Integer element) {
+        return element;
+      }
+    };
+  }
+
+  @Test
+  public void testHistogram() {
+    LongHistogram histogram = new LongHistogram();
+    for (long value = 0; value < 100; value++) {
+      histogram.record(value);
+    }
+    LongHistogram.Snapshot snapshot = histogram.snapshot();
+    Truth.assertThat(snapshot.getCount()).isEqualTo(100);
+    Truth.assertThat(snapshot.getSum()).isEqualTo(4950);
+    Truth.assertThat(snapshot.getMax()).isEqualTo(99);
+    Truth.assertThat(snapshot.getMean()).isWithin(1e-9).of(49.5);
+    Truth.assertThat(snapshot.getBucketCount(0)).isEqualTo(1);
+    Truth.assertThat(snapshot.getBucketCount(7)).isEqualTo(36);
+    Truth.assertThat(snapshot.getPercentile(50)).isEqualTo(63);
+    Truth.assertThat(snapshot.getPercentile(100)).isEqualTo(99);
+  }
+
+  @Test
+  public void testFillReasons() {
+    BundlingMetrics<Integer> metrics = new BundlingMetrics<>(null, valueCounter());
+    List<BundlingThreshold<Integer>> thresholds = new ArrayList<>();
+    thresholds.addAll(BundlingThresholds.<Integer>of(2));
+    thresholds.add(new NumericThreshold<Integer>(100, valueCounter(), FillReason.BYTE_COUNT));
+    ThresholdBundler<Integer> bundler = ThresholdBundler.<Integer>newBuilder()
+        .setThresholds(thresholds)
+        .setMaxDelay(Duration.millis(10))
+        .setMetrics(metrics)
+        .build();
+    List<Integer> bundle = new ArrayList<>();
+
+    bundler.add(1);
+    bundler.add(2);
+    Truth.assertThat(bundler.pollBundle()).containsExactly(1, 2);
+
+    bundler.add(150);
+    Truth.assertThat(bundler.pollBundle()).containsExactly(150);
+
+    bundler.add(3);
+    bundler.flush();
+    Truth.assertThat(bundler.pollBundle()).containsExactly(3);
+
+    bundler.add(4);
+    bundler.drainTo(bundle);
+
+    BundlingMetrics.Snapshot snapshot = metrics.snapshot();
+    Truth.assertThat(snapshot.getBundleCount()).isEqualTo(4);
+    Truth.assertThat(snapshot.getFillReasonCount(FillReason.ELEMENT_COUNT)).isEqualTo(1);
+    Truth.assertThat(snapshot.getFillReasonCount(FillReason.BYTE_COUNT)).isEqualTo(1);
+    Truth.assertThat(snapshot.getFillReasonCount(FillReason.FLUSH)).isEqualTo(1);
+    Truth.assertThat(snapshot.getFillReasonCount(FillReason.DRAIN)).isEqualTo(1);
+    Truth.assertThat(snapshot.getElementsPerBundle().getSum()).isEqualTo(5);
+    Truth.assertThat(snapshot.getBytesPerBundle().getSum()).isEqualTo(160);
+    Truth.assertThat(snapshot.getQueueTimeNanos().getCount()).isEqualTo(5);
+  }
+
+  @Test
+  public void testDelayAndProcessingTime() throws Exception {
+    BundlingMetrics<Integer> metrics = new BundlingMetrics<>(null, null);
+    ThresholdBundler<Integer> bundler = ThresholdBundler.<Integer>newBuilder()
+        .setThresholds(BundlingThresholds.<Integer>of(100))
+        .setMaxDelay(Duration.millis(50))
+        .setMetrics(metrics)
+        .build();
+    AccumulatingBundleReceiver<Integer> receiver = new AccumulatingBundleReceiver<Integer>();
+    try (ThresholdBundlingForwarder<Integer> forwarder =
+        new ThresholdBundlingForwarder<Integer>(bundler, receiver)) {
+      forwarder.start();
+      forwarder.addToNextBundle(1);
+      Thread.sleep(200);
+    }
+
+    BundlingMetrics.Snapshot snapshot = metrics.snapshot();
+    Truth.assertThat(snapshot.getFillReasonCount(FillReason.DELAY)).isEqualTo(1);
+    Truth.assertThat(snapshot.getQueueTimeNanos().getMax()).isAtLeast(50000000L);
+    Truth.assertThat(snapshot.getProcessingTimeNanos().getCount()).isEqualTo(1);
+  }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright 2015, Google Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ *     * Neither the name of Google Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.google.api.gax.bundling;
+
+import com.google.common.truth.Truth;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.nio.ByteBuffer;
+import java.nio.ReadOnlyBufferException;
+
+@RunWith(JUnit4.class)
+public class DirectByteArenaTest {
+
+  private static byte[] bytes(int length, int value) {
+    byte[] bytes = new byte[length];
+    for (int i = 0; i < length; i++) {
+      bytes[i] = (byte) value;
+    }
+    return bytes;
+  }
+
+  @Test
+  public void testCopyOf() {
+    DirectByteArena arena = new DirectByteArena(16, 1);
+    DirectByteArena.Slice first = arena.copyOf(bytes(6, 1));
+    DirectByteArena.Slice second = arena.copyOf(bytes(6, 2));
+    Truth.assertThat(first.getLength()).isEqualTo(6);
+    Truth.assertThat(first.toByteArray()).isEqualTo(bytes(6, 1));
+    Truth.assertThat(second.toByteArray()).isEqualTo(bytes(6, 2));
+    Truth.assertThat(arena.getLiveSliceCount()).isEqualTo(2);
+
+    ByteBuffer buffer = second.asReadOnlyBuffer();
+    Truth.assertThat(buffer.remaining()).isEqualTo(6);
+    Truth.assertThat(buffer.get()).isEqualTo((byte) 2);
+  }
+
+  @Test(expected = ReadOnlyBufferException.class)
+  public void testBufferIsReadOnly() {
+    DirectByteArena arena = new DirectByteArena(16, 1);
+    arena.copyOf(bytes(4, 1)).asReadOnlyBuffer().put((byte) 0);
+  }
+
+  @Test
+  public void testRecycleChunks() {
+    DirectByteArena arena = new DirectByteArena(16, 1);
+    DirectByteArena.Slice first = arena.copyOf(bytes(10, 1));
+    // Does not fit in the first chunk, which is retired while it has a live slice.
+    DirectByteArena.Slice second = arena.copyOf(bytes(10, 2));
+    Truth.assertThat(arena.getPooledChunkCount()).isEqualTo(0);
+
+    first.release();
+    Truth.assertThat(arena.getPooledChunkCount()).isEqualTo(1);
+    // The current chunk is not recycled while it is in use.
+    second.release();
+    Truth.assertThat(arena.getPooledChunkCount()).isEqualTo(1);
+    Truth.assertThat(arena.getLiveSliceCount()).isEqualTo(0);
+
+    // The next chunk comes from the pool, and its bytes are overwritten.
+    DirectByteArena.Slice third = arena.copyOf(bytes(10, 3));
+    Truth.assertThat(arena.getPooledChunkCount()).isEqualTo(0);
+    Truth.assertThat(third.toByteArray()).isEqualTo(bytes(10, 3));
+  }
+
+  @Test
+  public void testOversizedElement() {
+    DirectByteArena arena = new DirectByteArena(16, 1);
+    DirectByteArena.Slice slice = arena.copyOf(bytes(40, 7));
+    Truth.assertThat(slice.toByteArray()).isEqualTo(bytes(40, 7));
+    slice.release();
+    // Oversized chunks are not pooled.
+    Truth.assertThat(arena.getPooledChunkCount()).isEqualTo(0);
+    Truth.assertThat(arena.getLiveSliceCount()).isEqualTo(0);
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void testDoubleRelease() {
+    DirectByteArena arena = new DirectByteArena(16, 1);
+    DirectByteArena.Slice slice = arena.copyOf(bytes(4, 1));
+    slice.release();
+    slice.release();
+  }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright 2015, Google Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ *     * Neither the name of Google Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.google.api.gax.bundling;
+
+import com.google.common.truth.Truth;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class FlowControllerTest {
+
+  @Test
+  public void testReserveAndRelease() {
+    FlowController flowController = new FlowController(10L, 100L);
+    Truth.assertThat(flowController.tryReserve(5, 50)).isTrue();
+    Truth.assertThat(flowController.tryReserve(5, 60)).isFalse();
+    Truth.assertThat(flowController.tryReserve(6, 10)).isFalse();
+    Truth.assertThat(flowController.getOutstandingElementCount()).isEqualTo(5);
+    Truth.assertThat(flowController.getOutstandingByteCount()).isEqualTo(50);
+
+    Truth.assertThat(flowController.tryReserve(5, 50)).isTrue();
+    flowController.release(10, 100);
+    Truth.assertThat(flowController.getOutstandingElementCount()).isEqualTo(0);
+    Truth.assertThat(flowController.getOutstandingByteCount()).isEqualTo(0);
+  }
+
+  @Test
+  public void testOversizedReservation() {
+    FlowController flowController = new FlowController(null, 100L);
+    Truth.assertThat(flowController.tryReserve(1, 500)).isTrue();
+    Truth.assertThat(flowController.tryReserve(1, 1)).isFalse();
+    flowController.release(1, 500);
+    Truth.assertThat(flowController.tryReserve(1000, 1)).isTrue();
+  }
+
+  @Test
+  public void testBlockingReserve() throws Exception {
+    final FlowController flowController = new FlowController(1L, null);
+    flowController.reserve(1, 0);
+    final CountDownLatch reserved = new CountDownLatch(1);
+    Thread thread = new Thread() {
+      @Override
+      public void run() {
+        try {
+          flowController.reserve(1, 0);
+          reserved.countDown();
+        } catch (InterruptedException e) {
+          // fails the test below
+        }
+      }
+    };
+    thread.start();
+    Truth.assertThat(reserved.await(100, TimeUnit.MILLISECONDS)).isFalse();
+    flowController.release(1, 0);
+    Truth.assertThat(reserved.await(1, TimeUnit.SECONDS)).isTrue();
+    thread.join();
+  }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright 2015, Google Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ *     * Neither the name of Google Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.google.api.gax.bundling;
+
+import com.google.common.truth.Truth;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class MappedSpillQueueTest {
+
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  private static final ElementSerializer<Integer> INTEGER_SERIALIZER =
+      new ElementSerializer<Integer>() {
+        @Override
+        public byte[] serialize(Integer e) {
+          return ByteBuffer.allocate(4).putInt(e).array();
+        }
+
+        @Override
+        public Integer deserialize(byte[] bytes) {
+          return ByteBuffer.wrap(bytes).getInt();
+        }
+      };
+
+  @Test
+  public void testSegmentRotation() throws Exception {
+    File directory = folder.newFolder();
+    // Each element takes 8 bytes, so a segment holds 4 of them.
+    MappedSpillQueue<Integer> queue = new MappedSpillQueue<>(directory, 32, INTEGER_SERIALIZER);
+    Truth.assertThat(queue.poll()).isNull();
+    for (int i = 0; i < 10; i++) {
+      queue.add(i);
+    }
+    Truth.assertThat(queue.size()).isEqualTo(10);
+    Truth.assertThat(queue.getSegmentCount()).isEqualTo(3);
+    Truth.assertThat(directory.list().length).isEqualTo(3);
+
+    for (int i = 0; i < 5; i++) {
+      Truth.assertThat(queue.poll()).isEqualTo(i);
+    }
+    Truth.assertThat(queue.getSegmentCount()).isEqualTo(2);
+    Truth.assertThat(directory.list().length).isEqualTo(2);
+    queue.add(10);
+    for (int i = 5; i <= 10; i++) {
+      Truth.assertThat(queue.poll()).isEqualTo(i);
+    }
+    Truth.assertThat(queue.isEmpty()).isTrue();
+    // The last segment is kept and reused.
+    Truth.assertThat(directory.list().length).isEqualTo(1);
+    queue.add(11);
+    Truth.assertThat(queue.getSegmentCount()).isEqualTo(1);
+    Truth.assertThat(queue.poll()).isEqualTo(11);
+    Truth.assertThat(queue.poll()).isNull();
+
+    queue.close();
+    Truth.assertThat(directory.list().length).isEqualTo(0);
+  }
+
+  @Test
+  public void testOversizedElement() throws Exception {
+    File directory = folder.newFolder();
+    MappedSpillQueue<Integer> queue = new MappedSpillQueue<>(directory, 6, INTEGER_SERIALIZER);
+    queue.add(1);
+    queue.add(2);
+    Truth.assertThat(queue.getSegmentCount()).isEqualTo(2);
+    Truth.assertThat(queue.poll()).isEqualTo(1);
+    Truth.assertThat(queue.poll()).isEqualTo(2);
+    queue.close();
+    Truth.assertThat(directory.list().length).isEqualTo(0);
+  }
+}
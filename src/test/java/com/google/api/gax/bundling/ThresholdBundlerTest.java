@@ -31,11 +31,25 @@
 
 package com.google.api.gax.bundling;
 
+import com.google.common.base.Function;
+import com.google.common.base.Predicate;
 import com.google.common.truth.Truth;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.joda.time.Duration;
 import org.junit.Test;
@@ -56,6 +70,39 @@ public class ThresholdBundlerTest {
     Truth.assertThat(resultBundle).isEqualTo(new ArrayList<>());
   }
 
+  @Test
+  public void testRemoveOldest() {
+    ThresholdBundler<Integer> bundler = ThresholdBundler.<Integer>newBuilder()
+        .setThresholds(BundlingThresholds.<Integer>of(5))
+        .build();
+    Truth.assertThat(bundler.removeOldest()).isNull();
+    bundler.add(3);
+    bundler.add(5);
+    Truth.assertThat(bundler.removeOldest()).isEqualTo(3);
+    Truth.assertThat(bundler.toArray()).isEqualTo(new Integer[]{5});
+    Truth.assertThat(bundler.removeOldest()).isEqualTo(5);
+    Truth.assertThat(bundler.size()).isEqualTo(0);
+  }
+
+  @Test
+  public void testClose() {
+    for (boolean lockFreeAdd : new boolean[] {false, true}) {
+      ThresholdBundler<Integer> bundler = ThresholdBundler.<Integer>newBuilder()
+          .setThresholds(BundlingThresholds.<Integer>of(5))
+          .setLockFreeAdd(lockFreeAdd)
+          .build();
+      Truth.assertThat(bundler.add(3)).isNotNull();
+      bundler.close();
+      Truth.assertThat(bundler.add(5)).isNull();
+
+      List<Integer> resultBundle = new ArrayList<>();
+      Truth.assertThat(bundler.drainTo(resultBundle)).isEqualTo(1);
+      Truth.assertThat(resultBundle).isEqualTo(Arrays.asList(3));
+      Truth.assertThat(bundler.add(7)).isNull();
+      Truth.assertThat(bundler.size()).isEqualTo(0);
+    }
+  }
+
   @Test
   public void testAddAndDrain() {
     ThresholdBundler<Integer> bundler = ThresholdBundler.<Integer>newBuilder()
@@ -114,6 +161,29 @@ public class ThresholdBundlerTest {
     Truth.assertThat(receiver.getBundles()).isEqualTo(expected);
   }
 
+  @Test
+  public void testAddAll() throws Exception {
+    ThresholdBundler<Integer> bundler = ThresholdBundler.<Integer>newBuilder()
+        .setThresholds(BundlingThresholds.<Integer>of(2))
+        .setMaxDelay(Duration.standardSeconds(10))
+        .build();
+    List<ThresholdBundleHandle> handles = bundler.addAll(Arrays.asList(1, 2, 3, 4, 5));
+    Truth.assertThat(handles).hasSize(5);
+    Truth.assertThat(handles.get(0)).isSameAs(handles.get(1));
+    Truth.assertThat(handles.get(1) == handles.get(2)).isFalse();
+
+    // The batch is cut at the threshold instead of growing the first ready bundle.
+    Truth.assertThat(bundler.takeBundle()).containsExactly(1, 2).inOrder();
+    Truth.assertThat(bundler.takeBundle()).containsExactly(3, 4).inOrder();
+    Truth.assertThat(bundler.pollBundle()).isEmpty();
+    List<Integer> lastBundle = new ArrayList<>();
+    bundler.drainTo(lastBundle);
+    Truth.assertThat(lastBundle).containsExactly(5);
+
+    bundler.close();
+    Truth.assertThat(bundler.addAll(Arrays.asList(6))).isNull();
+  }
+
   @Test
   public void testBundlingWithDelay() throws Exception {
     ThresholdBundler<Integer> bundler = ThresholdBundler.<Integer>newBuilder()
@@ -236,4 +306,509 @@ public class ThresholdBundlerTest {
             Arrays.asList(7, 9));
     Truth.assertThat(receiver.getBundles()).isEqualTo(expected);
   }
+
+  private static class CountingThreshold implements BundlingThreshold<Integer>,
+      ResettableThreshold {
+    private int copies;
+    private int resets;
+    private int sum;
+
+    @Override
+    public void accumulate(Integer e) {
+      sum += 1;
+    }
+
+    @Override
+    public boolean isThresholdReached() {
+      return sum >= 2;
+    }
+
+    @Override
+    public BundlingThreshold<Integer> copyWithZeroedValue() {
+      copies += 1;
+      return this;
+    }
+
+    @Override
+    public void reset() {
+      resets += 1;
+      sum = 0;
+    }
+  }
+
+  @Test
+  public void testResettableThreshold() {
+    CountingThreshold threshold = new CountingThreshold();
+    ThresholdBundler<Integer> bundler = ThresholdBundler.<Integer>newBuilder()
+        .addThreshold(threshold)
+        .build();
+    for (int i = 0; i < 3; i++) {
+      bundler.add(i);
+      Truth.assertThat(bundler.pollBundle()).isEmpty();
+      bundler.add(i);
+      Truth.assertThat(bundler.pollBundle()).containsExactly(i, i);
+    }
+    // Copied once when the bundler is built, and reset in place after that.
+    Truth.assertThat(threshold.copies).isEqualTo(1);
+    Truth.assertThat(threshold.resets).isEqualTo(3);
+  }
+
+  @Test
+  public void testLockFreeClose() {
+    ThresholdBundler<Integer> bundler = ThresholdBundler.<Integer>newBuilder()
+        .setThresholds(BundlingThresholds.<Integer>of(5))
+        .setLockFreeAdd(true)
+        .build();
+    bundler.add(1);
+    bundler.close();
+    Truth.assertThat(bundler.size()).isEqualTo(1);
+    Truth.assertThat(bundler.add(2)).isNull();
+    Truth.assertThat(bundler.size()).isEqualTo(1);
+  }
+
+  @Test
+  public void testLimit() {
+    ThresholdBundler<Integer> bundler = ThresholdBundler.<Integer>newBuilder()
+        .setThresholds(BundlingThresholds.<Integer>of(100))
+        .addLimit(new BundlingLimit<Integer>(10, new ElementCounter<Integer>() {
+          @Override
+          public long count(Integer element) {
+            return element;
+          }
+        }))
+        .build();
+    bundler.add(3);
+    bundler.add(4);
+    Truth.assertThat(bundler.pollBundle()).isEmpty();
+    // Adding 5 would take the bundle past the limit, so it goes into the next one.
+    bundler.add(5);
+    Truth.assertThat(bundler.size()).isEqualTo(3);
+    Truth.assertThat(bundler.pollBundle()).containsExactly(3, 4).inOrder();
+    Truth.assertThat(bundler.pollBundle()).isEmpty();
+
+    // An element which exceeds the limit on its own gets a bundle by itself.
+    bundler.add(20);
+    bundler.add(1);
+    Truth.assertThat(bundler.toArray()).isEqualTo(new Integer[]{5, 20, 1});
+    Truth.assertThat(bundler.pollBundle()).containsExactly(5);
+    List<Integer> resultBundle = new ArrayList<>();
+    Truth.assertThat(bundler.drainTo(resultBundle)).isEqualTo(2);
+    Truth.assertThat(resultBundle).containsExactly(20, 1).inOrder();
+  }
+
+  @Test
+  public void testRemoveOldestFreesLimit() {
+    ThresholdBundler<Integer> bundler = ThresholdBundler.<Integer>newBuilder()
+        .setThresholds(BundlingThresholds.<Integer>of(100))
+        .addLimit(new BundlingLimit<Integer>(10, new ElementCounter<Integer>() {
+          @Override
+          public long count(Integer element) {
+            return element;
+          }
+        }))
+        .build();
+    bundler.add(4);
+    bundler.add(5);
+    Truth.assertThat(bundler.removeOldest()).isEqualTo(4);
+    // With 4 removed, another 5 still fits under the limit.
+    bundler.add(5);
+    List<Integer> resultBundle = new ArrayList<>();
+    Truth.assertThat(bundler.drainTo(resultBundle)).isEqualTo(2);
+    Truth.assertThat(resultBundle).containsExactly(5, 5).inOrder();
+  }
+
+  @Test
+  public void testDuplicateKeys() {
+    ThresholdBundler<Integer> bundler = ThresholdBundler.<Integer>newBuilder()
+        .setThresholds(BundlingThresholds.<Integer>of(3))
+        .addLimit(new BundlingLimit<Integer>(10, new ElementCounter<Integer>() {
+          @Override
+          public long count(Integer element) {
+            return element;
+          }
+        }))
+        .setDuplicateKeys(new Function<Integer, Object>() {
+          @Override
+          public Object apply(Integer element) {
+            return element;
+          }
+        })
+        .build();
+    // Only the first 5 counts towards the threshold and the limit.
+    bundler.add(5);
+    bundler.add(5);
+    bundler.add(5);
+    Truth.assertThat(bundler.pollBundle()).isEmpty();
+    bundler.add(4);
+    Truth.assertThat(bundler.pollBundle()).isEmpty();
+    // A remaining 5 counts in place of the removed one.
+    Truth.assertThat(bundler.removeOldest()).isEqualTo(5);
+    bundler.add(1);
+    Truth.assertThat(bundler.pollBundle()).containsExactly(5, 5, 4, 1).inOrder();
+  }
+
+  @Test
+  public void testUrgentElement() throws Exception {
+    Predicate<Integer> isNegative = new Predicate<Integer>() {
+      @Override
+      public boolean apply(Integer element) {
+        return element < 0;
+      }
+    };
+    ThresholdBundler<Integer> bundler = ThresholdBundler.<Integer>newBuilder()
+        .setThresholds(BundlingThresholds.<Integer>of(100))
+        .setMaxDelay(Duration.standardSeconds(10))
+        .setUrgentElements(isNegative, null)
+        .build();
+    bundler.add(1);
+    Truth.assertThat(bundler.pollBundle()).isEmpty();
+    bundler.add(-1);
+    Truth.assertThat(bundler.pollBundle()).containsExactly(1, -1).inOrder();
+
+    // With an urgent max delay, the bundle waits for it instead of the max delay.
+    bundler = ThresholdBundler.<Integer>newBuilder()
+        .setThresholds(BundlingThresholds.<Integer>of(100))
+        .setMaxDelay(Duration.standardSeconds(10))
+        .setUrgentElements(isNegative, Duration.millis(50))
+        .build();
+    bundler.add(1);
+    bundler.add(-1);
+    bundler.add(2);
+    Truth.assertThat(bundler.pollBundle()).isEmpty();
+    Thread.sleep(100);
+    Truth.assertThat(bundler.pollBundle()).containsExactly(1, -1, 2).inOrder();
+  }
+
+  @Test
+  public void testDeadlines() throws Exception {
+    final Map<Integer, Long> deadlines = new HashMap<>();
+    ThresholdBundler<Integer> bundler = ThresholdBundler.<Integer>newBuilder()
+        .setThresholds(BundlingThresholds.<Integer>of(100))
+        .setMaxDelay(Duration.standardSeconds(10))
+        .setDeadlines(new Function<Integer, Long>() {
+          @Override
+          public Long apply(Integer element) {
+            return deadlines.get(element);
+          }
+        }, Duration.millis(20))
+        .build();
+    deadlines.put(2, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(70));
+    bundler.add(1);
+    bundler.add(2);
+    Truth.assertThat(bundler.pollBundle()).isEmpty();
+    Thread.sleep(100);
+    Truth.assertThat(bundler.pollBundle()).containsExactly(1, 2).inOrder();
+
+    // An element whose deadline is within the margin makes the bundle available now.
+    deadlines.put(4, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(10));
+    bundler.add(3);
+    bundler.add(4);
+    Truth.assertThat(bundler.pollBundle()).containsExactly(3, 4).inOrder();
+  }
+
+  @Test
+  public void testRemove() {
+    ThresholdBundler<Integer> bundler = ThresholdBundler.<Integer>newBuilder()
+        .setThresholds(BundlingThresholds.<Integer>of(3))
+        .build();
+    bundler.add(1);
+    bundler.add(2);
+    Truth.assertThat(bundler.remove(2)).isTrue();
+    Truth.assertThat(bundler.remove(5)).isFalse();
+    // The removed element no longer counts towards the threshold.
+    bundler.add(3);
+    Truth.assertThat(bundler.pollBundle()).isEmpty();
+    bundler.add(4);
+    Truth.assertThat(bundler.pollBundle()).containsExactly(1, 3, 4).inOrder();
+    Truth.assertThat(bundler.remove(1)).isFalse();
+  }
+
+  @Test
+  public void testLockFreeAddAndDrain() {
+    ThresholdBundler<Integer> bundler = ThresholdBundler.<Integer>newBuilder()
+        .setThresholds(BundlingThresholds.<Integer>of(5))
+        .setLockFreeAdd(true)
+        .build();
+    bundler.add(14);
+    bundler.add(15);
+    Truth.assertThat(bundler.size()).isEqualTo(2);
+    Truth.assertThat(bundler.toArray()).isEqualTo(new Integer[]{14, 15});
+
+    List<Integer> resultBundle = new ArrayList<>();
+    int drained = bundler.drainTo(resultBundle);
+    Truth.assertThat(drained).isEqualTo(2);
+    Truth.assertThat(resultBundle).isEqualTo(Arrays.asList(14, 15));
+    Truth.assertThat(bundler.size()).isEqualTo(0);
+  }
+
+  @Test
+  public void testLockFreeLimitHandles() {
+    ThresholdBundler<Integer> bundler = ThresholdBundler.<Integer>newBuilder()
+        .setThresholds(BundlingThresholds.<Integer>of(100))
+        .addLimit(new BundlingLimit<Integer>(3, new ElementCounter<Integer>() {
+          @Override
+          public long count(Integer element) {
+            return 1;
+          }
+        }))
+        .setLockFreeAdd(true)
+        .build();
+    bundler.add(1);
+    bundler.add(2);
+    bundler.add(3);
+    bundler.add(4);
+    // Moving the intake seals the bundle at the limit, and 4 opens the next one.
+    Truth.assertThat(bundler.size()).isEqualTo(4);
+    ThresholdBundleHandle handle = bundler.add(5);
+    Truth.assertThat(bundler.pollBundle()).containsExactly(1, 2, 3).inOrder();
+    // Taking the sealed bundle leaves the open bundle and its handle in place.
+    Truth.assertThat(bundler.add(6) == handle).isTrue();
+    handle.flush();
+    Truth.assertThat(bundler.pollBundle()).containsExactly(4, 5, 6).inOrder();
+    Truth.assertThat(bundler.add(7) == handle).isFalse();
+  }
+
+  @Test
+  public void testLockFreeBundling() throws Exception {
+    ThresholdBundler<Integer> bundler = ThresholdBundler.<Integer>newBuilder()
+        .setThresholds(BundlingThresholds.<Integer>of(2))
+        .setMaxDelay(Duration.millis(100))
+        .setLockFreeAdd(true)
+        .build();
+    AccumulatingBundleReceiver<Integer> receiver =
+        new AccumulatingBundleReceiver<Integer>();
+    ThresholdBundlingForwarder<Integer> forwarder =
+        new ThresholdBundlingForwarder<Integer>(bundler, receiver);
+
+    try {
+      forwarder.start();
+      bundler.add(3);
+      bundler.add(5);
+      // Give time for the forwarder thread to catch the bundle
+      Thread.sleep(50);
+
+      bundler.add(7);
+      // Give time for the delay threshold to trip
+      Thread.sleep(300);
+
+      ThresholdBundleHandle handle = bundler.add(9);
+      handle.flush();
+      Thread.sleep(50);
+
+    } finally {
+      forwarder.close();
+    }
+
+    List<List<Integer>> expected =
+        Arrays.asList(
+            Arrays.asList(3, 5),
+            Arrays.asList(7),
+            Arrays.asList(9));
+    Truth.assertThat(receiver.getBundles()).isEqualTo(expected);
+  }
+
+  @Test
+  public void testLockFreeConcurrentProducers() throws Exception {
+    final ThresholdBundler<Integer> bundler = ThresholdBundler.<Integer>newBuilder()
+        .setThresholds(BundlingThresholds.<Integer>of(10))
+        .setMaxDelay(Duration.millis(10))
+        .setLockFreeAdd(true)
+        .build();
+    final List<List<Integer>> bundles = new ArrayList<>();
+    ThresholdBundleReceiver<Integer> receiver = new ThresholdBundleReceiver<Integer>() {
+      @Override
+      public void validateItem(Integer message) {
+      }
+
+      @Override
+      public void processBundle(List<Integer> bundle) {
+        synchronized (bundles) {
+          bundles.add(bundle);
+        }
+      }
+    };
+    ThresholdBundlingForwarder<Integer> forwarder =
+        new ThresholdBundlingForwarder<Integer>(bundler, receiver);
+
+    final int producerCount = 8;
+    final int perProducer = 1000;
+    final CountDownLatch done = new CountDownLatch(producerCount);
+    try {
+      forwarder.start();
+      for (int p = 0; p < producerCount; p++) {
+        final int base = p * perProducer;
+        new Thread() {
+          @Override
+          public void run() {
+            for (int i = 0; i < perProducer; i++) {
+              bundler.add(base + i);
+            }
+            done.countDown();
+          }
+        }.start();
+      }
+      done.await();
+    } finally {
+      forwarder.close();
+    }
+
+    Set<Integer> received = new HashSet<>();
+    int receivedCount = 0;
+    for (List<Integer> bundle : bundles) {
+      received.addAll(bundle);
+      receivedCount += bundle.size();
+    }
+    Truth.assertThat(receivedCount).isEqualTo(producerCount * perProducer);
+    Truth.assertThat(received.size()).isEqualTo(producerCount * perProducer);
+  }
+
+  @Test
+  public void testBundlingOnExecutor() throws Exception {
+    ScheduledExecutorService executor = new ScheduledThreadPoolExecutor(1);
+    ThresholdBundler<Integer> bundler = ThresholdBundler.<Integer>newBuilder()
+        .setThresholds(BundlingThresholds.<Integer>of(2))
+        .setMaxDelay(Duration.millis(100))
+        .build();
+    AccumulatingBundleReceiver<Integer> receiver =
+        new AccumulatingBundleReceiver<Integer>();
+    ThresholdBundlingForwarder<Integer> forwarder =
+        new ThresholdBundlingForwarder<Integer>(bundler, receiver, executor);
+
+    try {
+      forwarder.start();
+      bundler.add(3);
+      bundler.add(5);
+      // Give time for the executor to catch the bundle
+      Thread.sleep(50);
+
+      bundler.add(7);
+      // Give time for the delay threshold to trip
+      Thread.sleep(300);
+
+      ThresholdBundleHandle handle = bundler.add(9);
+      handle.flush();
+      Thread.sleep(50);
+
+      bundler.add(11);
+    } finally {
+      forwarder.close();
+      executor.shutdown();
+    }
+
+    List<List<Integer>> expected =
+        Arrays.asList(
+            Arrays.asList(3, 5),
+            Arrays.asList(7),
+            Arrays.asList(9),
+            Arrays.asList(11));
+    Truth.assertThat(receiver.getBundles()).isEqualTo(expected);
+  }
+
+  @Test
+  public void testSendWhenIdle() throws Exception {
+    ThresholdBundler<Integer> bundler = ThresholdBundler.<Integer>newBuilder()
+        .setThresholds(BundlingThresholds.<Integer>of(100))
+        .setMaxDelay(Duration.standardSeconds(10))
+        .build();
+    final BlockingQueue<List<Integer>> bundles = new LinkedBlockingQueue<>();
+    final AtomicBoolean idle = new AtomicBoolean(true);
+    final AtomicReference<Runnable> capacityListener = new AtomicReference<>();
+    IdleAwareBundleReceiver<Integer> receiver = new IdleAwareBundleReceiver<Integer>() {
+      @Override
+      public void validateItem(Integer message) {
+      }
+
+      @Override
+      public void processBundle(List<Integer> bundle) {
+        idle.set(false);
+        bundles.add(new ArrayList<>(bundle));
+      }
+
+      @Override
+      public boolean hasCapacity() {
+        return true;
+      }
+
+      @Override
+      public void setCapacityListener(Runnable listener) {
+        capacityListener.set(listener);
+      }
+
+      @Override
+      public boolean isIdle() {
+        return idle.get();
+      }
+    };
+    ThresholdBundlingForwarder<Integer> forwarder =
+        new ThresholdBundlingForwarder<Integer>(bundler, receiver);
+    forwarder.setSendWhenIdle(true);
+
+    try {
+      forwarder.start();
+      forwarder.addToNextBundle(1);
+      Truth.assertThat(bundles.poll(5, TimeUnit.SECONDS)).containsExactly(1);
+
+      // The first bundle is still in flight, so the next elements wait for it.
+      forwarder.addToNextBundle(2);
+      forwarder.addToNextBundle(3);
+      Truth.assertThat(bundles.poll(50, TimeUnit.MILLISECONDS)).isNull();
+
+      idle.set(true);
+      capacityListener.get().run();
+      Truth.assertThat(bundles.poll(5, TimeUnit.SECONDS)).containsExactly(2, 3).inOrder();
+    } finally {
+      forwarder.close();
+    }
+    Truth.assertThat(bundles).isEmpty();
+    Truth.assertThat(bundler.size()).isEqualTo(0);
+  }
+
+  @Test
+  public void testManyForwardersOnExecutor() throws Exception {
+    ScheduledExecutorService executor = new ScheduledThreadPoolExecutor(2);
+    int forwarderCount = 500;
+    List<ThresholdBundler<Integer>> bundlers = new ArrayList<>();
+    List<ThresholdBundlingForwarder<Integer>> forwarders = new ArrayList<>();
+    final List<Integer> received = new ArrayList<>();
+    ThresholdBundleReceiver<Integer> receiver = new ThresholdBundleReceiver<Integer>() {
+      @Override
+      public void validateItem(Integer message) {
+      }
+
+      @Override
+      public void processBundle(List<Integer> bundle) {
+        synchronized (received) {
+          received.addAll(bundle);
+        }
+      }
+    };
+
+    try {
+      for (int i = 0; i < forwarderCount; i++) {
+        ThresholdBundler<Integer> bundler = ThresholdBundler.<Integer>newBuilder()
+            .setThresholds(BundlingThresholds.<Integer>of(10))
+            .setMaxDelay(Duration.millis(20))
+            .setLockFreeAdd(i % 2 == 0)
+            .build();
+        ThresholdBundlingForwarder<Integer> forwarder =
+            new ThresholdBundlingForwarder<Integer>(bundler, receiver, executor);
+        forwarder.start();
+        bundlers.add(bundler);
+        forwarders.add(forwarder);
+      }
+      for (int i = 0; i < forwarderCount; i++) {
+        bundlers.get(i).add(i);
+      }
+      // Give time for the delay threshold of every bundler to trip
+      Thread.sleep(500);
+      synchronized (received) {
+        Truth.assertThat(received.size()).isEqualTo(forwarderCount);
+      }
+    } finally {
+      for (ThresholdBundlingForwarder<Integer> forwarder : forwarders) {
+        forwarder.close();
+      }
+      executor.shutdown();
+    }
+  }
 }
@@ -0,0 +1,75 @@
+/*
+ * Copyright 2015, Google Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ *     * Neither the name of Google Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.google.api.gax.bundling;
+
+import com.google.common.truth.Truth;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.concurrent.TimeUnit;
+
+@RunWith(JUnit4.class)
+public class TokenBucketTest {
+
+  @Test
+  public void testBurst() {
+    TokenBucket bucket = new TokenBucket(2);
+    Truth.assertThat(bucket.getNanosUntilAvailable()).isEqualTo(0L);
+    bucket.consume(1);
+    Truth.assertThat(bucket.getNanosUntilAvailable()).isEqualTo(0L);
+    bucket.consume(1);
+    long delayNanos = bucket.getNanosUntilAvailable();
+    Truth.assertThat(delayNanos).isGreaterThan(0L);
+    Truth.assertThat(delayNanos).isAtMost(TimeUnit.MILLISECONDS.toNanos(500));
+  }
+
+  @Test
+  public void testDebt() {
+    TokenBucket bucket = new TokenBucket(1000);
+    // Consuming more than the balance is allowed, and is paid back over time.
+    bucket.consume(3000);
+    long delayNanos = bucket.getNanosUntilAvailable();
+    Truth.assertThat(delayNanos).isGreaterThan(TimeUnit.MILLISECONDS.toNanos(1900));
+    Truth.assertThat(delayNanos).isAtMost(TimeUnit.MILLISECONDS.toNanos(2001));
+  }
+
+  @Test
+  public void testRefill() throws Exception {
+    TokenBucket bucket = new TokenBucket(100);
+    bucket.consume(100);
+    Truth.assertThat(bucket.getNanosUntilAvailable()).isGreaterThan(0L);
+    Thread.sleep(20);
+    Truth.assertThat(bucket.getNanosUntilAvailable()).isEqualTo(0L);
+  }
+}
@@ -40,22 +40,40 @@ import com.google.common.truth.Truth;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
 import com.google.common.util.concurrent.UncheckedExecutionException;
 
+import com.google.api.gax.bundling.BundlingMetrics;
 import com.google.api.gax.bundling.BundlingThreshold;
 import com.google.api.gax.bundling.BundlingThresholds;
+import com.google.api.gax.bundling.DirectByteArena;
 import com.google.api.gax.bundling.ExternalThreshold;
+import com.google.api.gax.bundling.FillReason;
+import com.google.api.gax.bundling.FlowController.LimitExceededBehavior;
 
+import io.grpc.CallOptions;
 import io.grpc.Channel;
+import io.grpc.ClientCall;
+import io.grpc.Metadata;
 import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
 
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.List;
 
 import org.joda.time.Duration;
@@ -63,6 +81,7 @@ import org.junit.Assert;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExpectedException;
+import org.junit.rules.TemporaryFolder;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
 import org.mockito.Mockito;
@@ -94,6 +113,7 @@ public class ApiCallableTest {
       MoreExecutors.getExitingScheduledExecutorService(new ScheduledThreadPoolExecutor(2));
 
   @Rule public ExpectedException thrown = ExpectedException.none();
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
 
   // Bind
   // ====
@@ -316,6 +336,1991 @@ public class ApiCallableTest {
     }
   }
 
+  @Test
+  public void bundlingOnExecutor() throws Exception {
+    BundlingSettings bundlingSettings =
+        BundlingSettings.newBuilder()
+            .setDelayThreshold(Duration.millis(100))
+            .setElementCountThreshold(2)
+            .setBlockingCallCountThreshold(0)
+            .build();
+    BundlerFactory<LabeledIntList, List<Integer>> bundlerFactory =
+        new BundlerFactory<>(SQUARER_BUNDLING_DESC, bundlingSettings, EXECUTOR);
+    try {
+      ApiCallable<LabeledIntList, List<Integer>> callable =
+          ApiCallable.<LabeledIntList, List<Integer>>create(callLabeledIntSquarer)
+              .bundling(SQUARER_BUNDLING_DESC, bundlerFactory);
+      ListenableFuture<List<Integer>> f1 = callable.futureCall(new LabeledIntList("one", 1, 2));
+      ListenableFuture<List<Integer>> f2 = callable.futureCall(new LabeledIntList("two", 3, 4));
+      ListenableFuture<List<Integer>> f3 = callable.futureCall(new LabeledIntList("one", 5));
+      Truth.assertThat(f1.get()).isEqualTo(Arrays.asList(1, 4));
+      Truth.assertThat(f2.get()).isEqualTo(Arrays.asList(9, 16));
+      Truth.assertThat(f3.get()).isEqualTo(Arrays.asList(25));
+    } finally {
+      bundlerFactory.close();
+    }
+  }
+
+  @Test
+  public void bundlingMaxInFlightBundles() throws Exception {
+    final BlockingQueue<LabeledIntList> issuedRequests = new LinkedBlockingQueue<>();
+    final BlockingQueue<SettableFuture<List<Integer>>> issuedResponses =
+        new LinkedBlockingQueue<>();
+    FutureCallable<LabeledIntList, List<Integer>> callPending =
+        new FutureCallable<LabeledIntList, List<Integer>>() {
+          @Override
+          public ListenableFuture<List<Integer>> futureCall(CallContext<LabeledIntList> context) {
+            SettableFuture<List<Integer>> response = SettableFuture.create();
+            issuedResponses.add(response);
+            issuedRequests.add(context.getRequest());
+            return response;
+          }
+        };
+    BundlingSettings bundlingSettings =
+        BundlingSettings.newBuilder()
+            .setDelayThreshold(Duration.standardSeconds(1))
+            .setElementCountThreshold(1)
+            .setBlockingCallCountThreshold(0)
+            .setMaxInFlightBundles(2)
+            .build();
+    BundlerFactory<LabeledIntList, List<Integer>> bundlerFactory =
+        new BundlerFactory<>(SQUARER_BUNDLING_DESC, bundlingSettings);
+    try {
+      ApiCallable<LabeledIntList, List<Integer>> callable =
+          ApiCallable.<LabeledIntList, List<Integer>>create(callPending)
+              .bundling(SQUARER_BUNDLING_DESC, bundlerFactory);
+      ListenableFuture<List<Integer>> f1 = callable.futureCall(new LabeledIntList("one", 1));
+      Truth.assertThat(issuedRequests.poll(1, TimeUnit.SECONDS).ints).containsExactly(1);
+      ListenableFuture<List<Integer>> f2 = callable.futureCall(new LabeledIntList("one", 2));
+      Truth.assertThat(issuedRequests.poll(1, TimeUnit.SECONDS).ints).containsExactly(2);
+      ListenableFuture<List<Integer>> f3 = callable.futureCall(new LabeledIntList("one", 3));
+      Truth.assertThat(issuedRequests.poll(100, TimeUnit.MILLISECONDS)).isNull();
+
+      issuedResponses.take().set(Arrays.asList(1));
+      Truth.assertThat(f1.get()).isEqualTo(Arrays.asList(1));
+      Truth.assertThat(issuedRequests.poll(1, TimeUnit.SECONDS).ints).containsExactly(3);
+
+      issuedResponses.take().set(Arrays.asList(4));
+      issuedResponses.take().set(Arrays.asList(9));
+      Truth.assertThat(f2.get()).isEqualTo(Arrays.asList(4));
+      Truth.assertThat(f3.get()).isEqualTo(Arrays.asList(9));
+    } finally {
+      bundlerFactory.close();
+    }
+  }
+
+  @Test
+  public void bundlingFlowControlThrowException() throws Exception {
+    BundlingSettings bundlingSettings =
+        BundlingSettings.newBuilder()
+            .setDelayThreshold(Duration.millis(100))
+            .setElementCountThreshold(10)
+            .setBlockingCallCountThreshold(0)
+            .setPartitionMaxOutstandingElementCount(3L)
+            .setLimitExceededBehavior(LimitExceededBehavior.THROW_EXCEPTION)
+            .build();
+    BundlerFactory<LabeledIntList, List<Integer>> bundlerFactory =
+        new BundlerFactory<>(SQUARER_BUNDLING_DESC, bundlingSettings);
+    try {
+      ApiCallable<LabeledIntList, List<Integer>> callable =
+          ApiCallable.<LabeledIntList, List<Integer>>create(callLabeledIntSquarer)
+              .bundling(SQUARER_BUNDLING_DESC, bundlerFactory);
+      ListenableFuture<List<Integer>> f1 = callable.futureCall(new LabeledIntList("one", 1, 2));
+      ListenableFuture<List<Integer>> f2 = callable.futureCall(new LabeledIntList("one", 3, 4));
+      ListenableFuture<List<Integer>> f3 = callable.futureCall(new LabeledIntList("two", 5, 6));
+      try {
+        f2.get();
+        Assert.fail("Expected the outstanding element limit to be reached");
+      } catch (ExecutionException e) {
+        Truth.assertThat(e.getCause()).isInstanceOf(ApiException.class);
+        Truth.assertThat(e.getCause().getCause()).isInstanceOf(StatusRuntimeException.class);
+        Truth.assertThat(((StatusRuntimeException) e.getCause().getCause()).getStatus().getCode())
+            .isEqualTo(Status.Code.RESOURCE_EXHAUSTED);
+      }
+      Truth.assertThat(f1.get()).isEqualTo(Arrays.asList(1, 4));
+      Truth.assertThat(f3.get()).isEqualTo(Arrays.asList(25, 36));
+      Truth.assertThat(bundlerFactory.getFlowControllers("one").get(0)
+          .getOutstandingElementCount()).isEqualTo(0);
+    } finally {
+      bundlerFactory.close();
+    }
+  }
+
+  @Test
+  public void bundlingFlowControlDropOldest() throws Exception {
+    BundlingSettings bundlingSettings =
+        BundlingSettings.newBuilder()
+            .setDelayThreshold(Duration.millis(100))
+            .setElementCountThreshold(10)
+            .setBlockingCallCountThreshold(0)
+            .setMaxOutstandingElementCount(4L)
+            .setLimitExceededBehavior(LimitExceededBehavior.DROP_OLDEST)
+            .build();
+    BundlerFactory<LabeledIntList, List<Integer>> bundlerFactory =
+        new BundlerFactory<>(SQUARER_BUNDLING_DESC, bundlingSettings);
+    try {
+      ApiCallable<LabeledIntList, List<Integer>> callable =
+          ApiCallable.<LabeledIntList, List<Integer>>create(callLabeledIntSquarer)
+              .bundling(SQUARER_BUNDLING_DESC, bundlerFactory);
+      ListenableFuture<List<Integer>> f1 = callable.futureCall(new LabeledIntList("one", 1, 2));
+      ListenableFuture<List<Integer>> f2 = callable.futureCall(new LabeledIntList("one", 3, 4));
+      ListenableFuture<List<Integer>> f3 = callable.futureCall(new LabeledIntList("one", 5, 6));
+      try {
+        f1.get();
+        Assert.fail("Expected the oldest element to be dropped");
+      } catch (ExecutionException e) {
+        Truth.assertThat(e.getCause()).isInstanceOf(ApiException.class);
+      }
+      Truth.assertThat(f2.get()).isEqualTo(Arrays.asList(9, 16));
+      Truth.assertThat(f3.get()).isEqualTo(Arrays.asList(25, 36));
+    } finally {
+      bundlerFactory.close();
+    }
+  }
+
+  @Test
+  public void bundlingFlowControlDropOldestFreesLimit() throws Exception {
+    BundlingSettings bundlingSettings =
+        BundlingSettings.newBuilder()
+            .setDelayThreshold(Duration.millis(100))
+            .setElementCountThreshold(10)
+            .setElementCountLimit(4)
+            .setBlockingCallCountThreshold(0)
+            .setMaxOutstandingElementCount(4L)
+            .setLimitExceededBehavior(LimitExceededBehavior.DROP_OLDEST)
+            .build();
+    final AtomicInteger callCount = new AtomicInteger();
+    FutureCallable<LabeledIntList, List<Integer>> countingSquarer =
+        new FutureCallable<LabeledIntList, List<Integer>>() {
+          @Override
+          public ListenableFuture<List<Integer>> futureCall(CallContext<LabeledIntList> context) {
+            callCount.incrementAndGet();
+            return callLabeledIntSquarer.futureCall(context);
+          }
+        };
+    BundlerFactory<LabeledIntList, List<Integer>> bundlerFactory =
+        new BundlerFactory<>(SQUARER_BUNDLING_DESC, bundlingSettings);
+    try {
+      ApiCallable<LabeledIntList, List<Integer>> callable =
+          ApiCallable.<LabeledIntList, List<Integer>>create(countingSquarer)
+              .bundling(SQUARER_BUNDLING_DESC, bundlerFactory);
+      ListenableFuture<List<Integer>> f1 = callable.futureCall(new LabeledIntList("one", 1, 2));
+      ListenableFuture<List<Integer>> f2 = callable.futureCall(new LabeledIntList("one", 3, 4));
+      // Dropping f1 makes room under the element count limit, so f3 joins the bundle of f2.
+      ListenableFuture<List<Integer>> f3 = callable.futureCall(new LabeledIntList("one", 5, 6));
+      try {
+        f1.get();
+        Assert.fail("Expected the oldest element to be dropped");
+      } catch (ExecutionException e) {
+        Truth.assertThat(e.getCause()).isInstanceOf(ApiException.class);
+      }
+      Truth.assertThat(f2.get()).isEqualTo(Arrays.asList(9, 16));
+      Truth.assertThat(f3.get()).isEqualTo(Arrays.asList(25, 36));
+      Truth.assertThat(callCount.get()).isEqualTo(1);
+    } finally {
+      bundlerFactory.close();
+    }
+  }
+
+  @Test
+  public void bundlingFlowControlDropOldestAcrossPartitions() throws Exception {
+    BundlingSettings bundlingSettings =
+        BundlingSettings.newBuilder()
+            .setDelayThreshold(Duration.millis(100))
+            .setElementCountThreshold(10)
+            .setBlockingCallCountThreshold(0)
+            .setMaxOutstandingElementCount(4L)
+            .setLimitExceededBehavior(LimitExceededBehavior.DROP_OLDEST)
+            .build();
+    BundlerFactory<LabeledIntList, List<Integer>> bundlerFactory =
+        new BundlerFactory<>(SQUARER_BUNDLING_DESC, bundlingSettings);
+    try {
+      ApiCallable<LabeledIntList, List<Integer>> callable =
+          ApiCallable.<LabeledIntList, List<Integer>>create(callLabeledIntSquarer)
+              .bundling(SQUARER_BUNDLING_DESC, bundlerFactory);
+      ListenableFuture<List<Integer>> f1 = callable.futureCall(new LabeledIntList("one", 1, 2));
+      ListenableFuture<List<Integer>> f2 = callable.futureCall(new LabeledIntList("one", 3, 4));
+      // The partition of the new request is empty, so the oldest element of the other
+      // partition is dropped for the factory-wide limit.
+      ListenableFuture<List<Integer>> f3 = callable.futureCall(new LabeledIntList("two", 5, 6));
+      try {
+        f1.get();
+        Assert.fail("Expected the oldest element to be dropped");
+      } catch (ExecutionException e) {
+        Truth.assertThat(e.getCause()).isInstanceOf(ApiException.class);
+      }
+      Truth.assertThat(f2.get()).isEqualTo(Arrays.asList(9, 16));
+      Truth.assertThat(f3.get()).isEqualTo(Arrays.asList(25, 36));
+    } finally {
+      bundlerFactory.close();
+    }
+  }
+
+  @Test
+  public void bundlingMaxPartitionCount() throws Exception {
+    BundlingSettings bundlingSettings =
+        BundlingSettings.newBuilder()
+            .setDelayThreshold(Duration.standardSeconds(10))
+            .setElementCountThreshold(10)
+            .setBlockingCallCountThreshold(0)
+            .setMaxPartitionCount(1)
+            .build();
+    BundlerFactory<LabeledIntList, List<Integer>> bundlerFactory =
+        new BundlerFactory<>(SQUARER_BUNDLING_DESC, bundlingSettings);
+    try {
+      ApiCallable<LabeledIntList, List<Integer>> callable =
+          ApiCallable.<LabeledIntList, List<Integer>>create(callLabeledIntSquarer)
+              .bundling(SQUARER_BUNDLING_DESC, bundlerFactory);
+      ListenableFuture<List<Integer>> f1 = callable.futureCall(new LabeledIntList("one", 1, 2));
+      ListenableFuture<List<Integer>> f2 = callable.futureCall(new LabeledIntList("two", 3, 4));
+      // Evicting the first partition forwards its elements.
+      Truth.assertThat(f1.get()).isEqualTo(Arrays.asList(1, 4));
+      Truth.assertThat(f2.isDone()).isFalse();
+      Truth.assertThat(bundlerFactory.getPartitionCount()).isEqualTo(1);
+    } finally {
+      bundlerFactory.close();
+    }
+  }
+
+  @Test
+  public void bundlingSharedExecutorSendsAsynchronously() throws Exception {
+    final BlockingQueue<LabeledIntList> issuedRequests = new LinkedBlockingQueue<>();
+    final BlockingQueue<SettableFuture<List<Integer>>> issuedResponses =
+        new LinkedBlockingQueue<>();
+    FutureCallable<LabeledIntList, List<Integer>> callPending =
+        new FutureCallable<LabeledIntList, List<Integer>>() {
+          @Override
+          public ListenableFuture<List<Integer>> futureCall(CallContext<LabeledIntList> context) {
+            SettableFuture<List<Integer>> response = SettableFuture.create();
+            issuedResponses.add(response);
+            issuedRequests.add(context.getRequest());
+            return response;
+          }
+        };
+    BundlingSettings bundlingSettings =
+        BundlingSettings.newBuilder()
+            .setDelayThreshold(Duration.standardSeconds(1))
+            .setElementCountThreshold(1)
+            .setBlockingCallCountThreshold(0)
+            .build();
+    BundlerFactory<LabeledIntList, List<Integer>> bundlerFactory =
+        new BundlerFactory<>(SQUARER_BUNDLING_DESC, bundlingSettings, EXECUTOR);
+    try {
+      ApiCallable<LabeledIntList, List<Integer>> callable =
+          ApiCallable.<LabeledIntList, List<Integer>>create(callPending)
+              .bundling(SQUARER_BUNDLING_DESC, bundlerFactory);
+      // More partitions than executor threads have a call outstanding at once.
+      List<ListenableFuture<List<Integer>>> results = new ArrayList<>();
+      for (int i = 0; i < 4; i++) {
+        results.add(callable.futureCall(new LabeledIntList("partition" + i, i)));
+      }
+      for (int i = 0; i < 4; i++) {
+        Truth.assertThat(issuedRequests.poll(1, TimeUnit.SECONDS)).isNotNull();
+      }
+      for (int i = 0; i < 4; i++) {
+        issuedResponses.take().set(Arrays.asList(0));
+      }
+      Truth.assertThat(Futures.allAsList(results).get(1, TimeUnit.SECONDS)).hasSize(4);
+    } finally {
+      bundlerFactory.close();
+    }
+  }
+
+  @Test
+  public void bundlingPartitionIdleTimeout() throws Exception {
+    BundlingSettings bundlingSettings =
+        BundlingSettings.newBuilder()
+            .setDelayThreshold(Duration.millis(10))
+            .setElementCountThreshold(10)
+            .setBlockingCallCountThreshold(0)
+            .setPartitionIdleTimeout(Duration.millis(50))
+            .build();
+    BundlerFactory<LabeledIntList, List<Integer>> bundlerFactory =
+        new BundlerFactory<>(SQUARER_BUNDLING_DESC, bundlingSettings);
+    try {
+      ApiCallable<LabeledIntList, List<Integer>> callable =
+          ApiCallable.<LabeledIntList, List<Integer>>create(callLabeledIntSquarer)
+              .bundling(SQUARER_BUNDLING_DESC, bundlerFactory);
+      ListenableFuture<List<Integer>> f1 = callable.futureCall(new LabeledIntList("one", 1, 2));
+      Truth.assertThat(f1.get()).isEqualTo(Arrays.asList(1, 4));
+      Thread.sleep(100);
+      ListenableFuture<List<Integer>> f2 = callable.futureCall(new LabeledIntList("two", 3, 4));
+      Truth.assertThat(bundlerFactory.getPartitionCount()).isEqualTo(1);
+      ListenableFuture<List<Integer>> f3 = callable.futureCall(new LabeledIntList("one", 5));
+      Truth.assertThat(f2.get()).isEqualTo(Arrays.asList(9, 16));
+      Truth.assertThat(f3.get()).isEqualTo(Arrays.asList(25));
+    } finally {
+      bundlerFactory.close();
+    }
+  }
+
+  @Test
+  public void bundlingPartitionIdleTimeoutKeepsBusyPartitions() throws Exception {
+    final BlockingQueue<SettableFuture<List<Integer>>> issuedResponses =
+        new LinkedBlockingQueue<>();
+    FutureCallable<LabeledIntList, List<Integer>> callPending =
+        new FutureCallable<LabeledIntList, List<Integer>>() {
+          @Override
+          public ListenableFuture<List<Integer>> futureCall(CallContext<LabeledIntList> context) {
+            SettableFuture<List<Integer>> response = SettableFuture.create();
+            issuedResponses.add(response);
+            return response;
+          }
+        };
+    BundlingSettings bundlingSettings =
+        BundlingSettings.newBuilder()
+            .setDelayThreshold(Duration.millis(10))
+            .setElementCountThreshold(10)
+            .setBlockingCallCountThreshold(0)
+            .setMaxInFlightBundles(1)
+            .setPartitionIdleTimeout(Duration.millis(50))
+            .build();
+    BundlerFactory<LabeledIntList, List<Integer>> bundlerFactory =
+        new BundlerFactory<>(SQUARER_BUNDLING_DESC, bundlingSettings);
+    try {
+      ApiCallable<LabeledIntList, List<Integer>> callable =
+          ApiCallable.<LabeledIntList, List<Integer>>create(callPending)
+              .bundling(SQUARER_BUNDLING_DESC, bundlerFactory);
+      ListenableFuture<List<Integer>> f1 = callable.futureCall(new LabeledIntList("one", 1, 2));
+      SettableFuture<List<Integer>> response = issuedResponses.poll(1, TimeUnit.SECONDS);
+      Thread.sleep(100);
+      // The bundle of the first partition is still in flight, so it is not evicted.
+      callable.futureCall(new LabeledIntList("two", 3, 4));
+      Truth.assertThat(bundlerFactory.getPartitionCount()).isEqualTo(2);
+      response.set(Arrays.asList(1, 4));
+      Truth.assertThat(f1.get()).isEqualTo(Arrays.asList(1, 4));
+      issuedResponses.poll(1, TimeUnit.SECONDS).set(Arrays.asList(9, 16));
+    } finally {
+      bundlerFactory.close();
+    }
+  }
+
+  @Test
+  public void bundlingWithTargetLatency() throws Exception {
+    BundlingSettings bundlingSettings =
+        BundlingSettings.newBuilder()
+            .setDelayThreshold(Duration.standardSeconds(1))
+            .setElementCountThreshold(100)
+            .setBlockingCallCountThreshold(0)
+            .setTargetLatency(Duration.millis(50))
+            .build();
+    BundlerFactory<LabeledIntList, List<Integer>> bundlerFactory =
+        new BundlerFactory<>(SQUARER_BUNDLING_DESC, bundlingSettings);
+    try {
+      ApiCallable<LabeledIntList, List<Integer>> callable =
+          ApiCallable.<LabeledIntList, List<Integer>>create(callLabeledIntSquarer)
+              .bundling(SQUARER_BUNDLING_DESC, bundlerFactory);
+      ListenableFuture<List<Integer>> f1 = callable.futureCall(new LabeledIntList("one", 1, 2));
+      Truth.assertThat(bundlerFactory.getAdaptiveController("one").getDelayTarget())
+          .isEqualTo(Duration.standardSeconds(1));
+      // The first bundle waits for the full delay, which is the upper bound.
+      Truth.assertThat(f1.get()).isEqualTo(Arrays.asList(1, 4));
+      // Sending is fast, so the delay is lowered to fit the target latency.
+      Truth.assertThat(bundlerFactory.getAdaptiveController("one").getDelayTarget().getMillis())
+          .isAtMost(50L);
+      ListenableFuture<List<Integer>> f2 = callable.futureCall(new LabeledIntList("one", 3));
+      Truth.assertThat(f2.get(500, TimeUnit.MILLISECONDS)).isEqualTo(Arrays.asList(9));
+    } finally {
+      bundlerFactory.close();
+    }
+  }
+
+  @Test
+  public void bundlingMetrics() throws Exception {
+    BundlingSettings bundlingSettings =
+        BundlingSettings.newBuilder()
+            .setDelayThreshold(Duration.standardSeconds(1))
+            .setElementCountThreshold(2)
+            .setBlockingCallCountThreshold(0)
+            .setMetricsEnabled(true)
+            .build();
+    BundlerFactory<LabeledIntList, List<Integer>> bundlerFactory =
+        new BundlerFactory<>(SQUARER_BUNDLING_DESC, bundlingSettings);
+    try {
+      ApiCallable<LabeledIntList, List<Integer>> callable =
+          ApiCallable.<LabeledIntList, List<Integer>>create(callLabeledIntSquarer)
+              .bundling(SQUARER_BUNDLING_DESC, bundlerFactory);
+      ListenableFuture<List<Integer>> f1 = callable.futureCall(new LabeledIntList("one", 1, 2));
+      Truth.assertThat(f1.get()).isEqualTo(Arrays.asList(1, 4));
+
+      BundlingMetrics.Snapshot snapshot = bundlerFactory.getMetricsSnapshots().get("one");
+      Truth.assertThat(snapshot.getBundleCount()).isEqualTo(1);
+      Truth.assertThat(snapshot.getFillReasonCount(FillReason.ELEMENT_COUNT)).isEqualTo(1);
+      Truth.assertThat(snapshot.getElementsPerBundle().getMax()).isEqualTo(2);
+      Truth.assertThat(snapshot.getQueueTimeNanos().getCount()).isEqualTo(1);
+    } finally {
+      bundlerFactory.close();
+    }
+  }
+
+  private static DeduplicatingBundlingDescriptor<LabeledIntList, List<Integer>>
+      DEDUP_SQUARER_BUNDLING_DESC =
+          new DeduplicatingBundlingDescriptor<LabeledIntList, List<Integer>>() {
+            @Override
+            public Object getDedupKey(LabeledIntList request) {
+              return request.ints;
+            }
+
+            @Override
+            public String getBundlePartitionKey(LabeledIntList request) {
+              return SQUARER_BUNDLING_DESC.getBundlePartitionKey(request);
+            }
+
+            @Override
+            public LabeledIntList mergeRequests(Collection<LabeledIntList> requests) {
+              return SQUARER_BUNDLING_DESC.mergeRequests(requests);
+            }
+
+            @Override
+            public void splitResponse(
+                List<Integer> bundleResponse,
+                Collection<? extends RequestIssuer<LabeledIntList, List<Integer>>> bundle) {
+              SQUARER_BUNDLING_DESC.splitResponse(bundleResponse, bundle);
+            }
+
+            @Override
+            public void splitException(
+                Throwable throwable,
+                Collection<? extends RequestIssuer<LabeledIntList, List<Integer>>> bundle) {
+              SQUARER_BUNDLING_DESC.splitException(throwable, bundle);
+            }
+
+            @Override
+            public long countElements(LabeledIntList request) {
+              return SQUARER_BUNDLING_DESC.countElements(request);
+            }
+
+            @Override
+            public long countBytes(LabeledIntList request) {
+              return SQUARER_BUNDLING_DESC.countBytes(request);
+            }
+          };
+
+  @Test
+  public void bundlingDeduplication() throws Exception {
+    final List<LabeledIntList> issuedRequests = new ArrayList<>();
+    FutureCallable<LabeledIntList, List<Integer>> callRecordingSquarer =
+        new FutureCallable<LabeledIntList, List<Integer>>() {
+          @Override
+          public ListenableFuture<List<Integer>> futureCall(CallContext<LabeledIntList> context) {
+            issuedRequests.add(context.getRequest());
+            return callLabeledIntSquarer.futureCall(context);
+          }
+        };
+    BundlingSettings bundlingSettings =
+        BundlingSettings.newBuilder()
+            .setDelayThreshold(Duration.standardSeconds(10))
+            .setElementCountThreshold(6)
+            .setBlockingCallCountThreshold(0)
+            .build();
+    BundlerFactory<LabeledIntList, List<Integer>> bundlerFactory =
+        new BundlerFactory<>(DEDUP_SQUARER_BUNDLING_DESC, bundlingSettings);
+    try {
+      ApiCallable<LabeledIntList, List<Integer>> callable =
+          ApiCallable.<LabeledIntList, List<Integer>>create(callRecordingSquarer)
+              .bundling(DEDUP_SQUARER_BUNDLING_DESC, bundlerFactory);
+      ListenableFuture<List<Integer>> f1 = callable.futureCall(new LabeledIntList("one", 1, 2));
+      ListenableFuture<List<Integer>> f2 = callable.futureCall(new LabeledIntList("one", 3));
+      ListenableFuture<List<Integer>> f3 = callable.futureCall(new LabeledIntList("one", 1, 2));
+      ListenableFuture<List<Integer>> f4 = callable.futureCall(new LabeledIntList("one", 3));
+      // The duplicates do not count towards the element count threshold, so the bundle
+      // is only released once three more elements are added.
+      ListenableFuture<List<Integer>> f5 =
+          callable.futureCall(new LabeledIntList("one", 4, 5, 6));
+      Truth.assertThat(f1.get()).isEqualTo(Arrays.asList(1, 4));
+      Truth.assertThat(f2.get()).isEqualTo(Arrays.asList(9));
+      Truth.assertThat(f3.get()).isEqualTo(Arrays.asList(1, 4));
+      Truth.assertThat(f4.get()).isEqualTo(Arrays.asList(9));
+      Truth.assertThat(f5.get()).isEqualTo(Arrays.asList(16, 25, 36));
+      Truth.assertThat(issuedRequests).hasSize(1);
+      Truth.assertThat(issuedRequests.get(0).ints).containsExactly(1, 2, 3, 4, 5, 6).inOrder();
+    } finally {
+      bundlerFactory.close();
+    }
+  }
+
+  @Test
+  public void bundlingElementCountLimit() throws Exception {
+    final List<LabeledIntList> issuedRequests = new ArrayList<>();
+    FutureCallable<LabeledIntList, List<Integer>> callRecordingSquarer =
+        new FutureCallable<LabeledIntList, List<Integer>>() {
+          @Override
+          public ListenableFuture<List<Integer>> futureCall(CallContext<LabeledIntList> context) {
+            issuedRequests.add(context.getRequest());
+            return callLabeledIntSquarer.futureCall(context);
+          }
+        };
+    BundlingSettings bundlingSettings =
+        BundlingSettings.newBuilder()
+            .setDelayThreshold(Duration.millis(100))
+            .setElementCountThreshold(10)
+            .setElementCountLimit(3)
+            .setBlockingCallCountThreshold(0)
+            .build();
+    BundlerFactory<LabeledIntList, List<Integer>> bundlerFactory =
+        new BundlerFactory<>(SQUARER_BUNDLING_DESC, bundlingSettings);
+    try {
+      ApiCallable<LabeledIntList, List<Integer>> callable =
+          ApiCallable.<LabeledIntList, List<Integer>>create(callRecordingSquarer)
+              .bundling(SQUARER_BUNDLING_DESC, bundlerFactory);
+      try {
+        callable.futureCall(new LabeledIntList("one", 1, 2, 3, 4));
+        Assert.fail("Expected a request over the limit to be rejected");
+      } catch (IllegalArgumentException e) {
+        // expected
+      }
+      ListenableFuture<List<Integer>> f1 = callable.futureCall(new LabeledIntList("one", 1, 2));
+      ListenableFuture<List<Integer>> f2 = callable.futureCall(new LabeledIntList("one", 3, 4));
+      Truth.assertThat(f1.get()).isEqualTo(Arrays.asList(1, 4));
+      Truth.assertThat(f2.get()).isEqualTo(Arrays.asList(9, 16));
+      Truth.assertThat(issuedRequests).hasSize(2);
+      Truth.assertThat(issuedRequests.get(0).ints).containsExactly(1, 2).inOrder();
+      Truth.assertThat(issuedRequests.get(1).ints).containsExactly(3, 4).inOrder();
+    } finally {
+      bundlerFactory.close();
+    }
+  }
+
+  @Test
+  public void bundlingDeadlines() throws Exception {
+    final List<CallContext<LabeledIntList>> issuedContexts = new ArrayList<>();
+    FutureCallable<LabeledIntList, List<Integer>> callRecordingSquarer =
+        new FutureCallable<LabeledIntList, List<Integer>>() {
+          @Override
+          public ListenableFuture<List<Integer>> futureCall(CallContext<LabeledIntList> context) {
+            issuedContexts.add(context);
+            return callLabeledIntSquarer.futureCall(context);
+          }
+        };
+    BundlingSettings bundlingSettings =
+        BundlingSettings.newBuilder()
+            .setDelayThreshold(Duration.standardSeconds(1))
+            .setElementCountThreshold(3)
+            .setBlockingCallCountThreshold(0)
+            .build();
+    BundlerFactory<LabeledIntList, List<Integer>> bundlerFactory =
+        new BundlerFactory<>(SQUARER_BUNDLING_DESC, bundlingSettings);
+    try {
+      ApiCallable<LabeledIntList, List<Integer>> callable =
+          ApiCallable.<LabeledIntList, List<Integer>>create(callRecordingSquarer)
+              .bundling(SQUARER_BUNDLING_DESC, bundlerFactory);
+      long now = System.nanoTime();
+      long earliestDeadline = now + TimeUnit.SECONDS.toNanos(5);
+      ListenableFuture<List<Integer>> f1 = callable.futureCall(CallContext.of(null,
+          CallOptions.DEFAULT.withDeadlineNanoTime(now + TimeUnit.SECONDS.toNanos(10)),
+          new LabeledIntList("one", 1)));
+      ListenableFuture<List<Integer>> f3 = callable.futureCall(CallContext.of(null,
+          CallOptions.DEFAULT.withDeadlineNanoTime(earliestDeadline),
+          new LabeledIntList("one", 3)));
+      // The expired request makes the bundle available right away, so it goes last.
+      ListenableFuture<List<Integer>> f2 = callable.futureCall(CallContext.of(null,
+          CallOptions.DEFAULT.withDeadlineNanoTime(now - 1), new LabeledIntList("one", 2)));
+      Truth.assertThat(f1.get()).isEqualTo(Arrays.asList(1));
+      Truth.assertThat(f3.get()).isEqualTo(Arrays.asList(9));
+      try {
+        f2.get();
+        Assert.fail("Expected the expired request to fail");
+      } catch (ExecutionException e) {
+        Truth.assertThat(e.getCause()).isInstanceOf(ApiException.class);
+        Truth.assertThat(((StatusRuntimeException) e.getCause().getCause()).getStatus().getCode())
+            .isEqualTo(Status.Code.DEADLINE_EXCEEDED);
+      }
+      Truth.assertThat(issuedContexts).hasSize(1);
+      Truth.assertThat(issuedContexts.get(0).getRequest().ints).containsExactly(1, 3).inOrder();
+      Truth.assertThat(issuedContexts.get(0).getCallOptions().getDeadlineNanoTime())
+          .isEqualTo(earliestDeadline);
+    } finally {
+      bundlerFactory.close();
+    }
+  }
+
+  @Test
+  public void bundlingSplitsByChannelAndCallOptions() throws Exception {
+    final List<CallContext<LabeledIntList>> issuedContexts = new ArrayList<>();
+    FutureCallable<LabeledIntList, List<Integer>> callRecordingSquarer =
+        new FutureCallable<LabeledIntList, List<Integer>>() {
+          @Override
+          public ListenableFuture<List<Integer>> futureCall(CallContext<LabeledIntList> context) {
+            issuedContexts.add(context);
+            return callLabeledIntSquarer.futureCall(context);
+          }
+        };
+    BundlingSettings bundlingSettings =
+        BundlingSettings.newBuilder()
+            .setDelayThreshold(Duration.standardSeconds(1))
+            .setElementCountThreshold(4)
+            .setBlockingCallCountThreshold(0)
+            .build();
+    BundlerFactory<LabeledIntList, List<Integer>> bundlerFactory =
+        new BundlerFactory<>(SQUARER_BUNDLING_DESC, bundlingSettings);
+    try {
+      ApiCallable<LabeledIntList, List<Integer>> callable =
+          ApiCallable.<LabeledIntList, List<Integer>>create(callRecordingSquarer)
+              .bundling(SQUARER_BUNDLING_DESC, bundlerFactory);
+      Channel channel1 = Mockito.mock(Channel.class);
+      Channel channel2 = Mockito.mock(Channel.class);
+      ListenableFuture<List<Integer>> f1 = callable.futureCall(CallContext.of(channel1,
+          CallOptions.DEFAULT, new LabeledIntList("one", 1)));
+      ListenableFuture<List<Integer>> f2 = callable.futureCall(CallContext.of(channel2,
+          CallOptions.DEFAULT, new LabeledIntList("one", 2)));
+      ListenableFuture<List<Integer>> f3 = callable.futureCall(CallContext.of(channel1,
+          CallOptions.DEFAULT.withAuthority("other"), new LabeledIntList("one", 3)));
+      // A different deadline does not need a separate call.
+      ListenableFuture<List<Integer>> f4 = callable.futureCall(CallContext.of(channel1,
+          CallOptions.DEFAULT.withDeadlineAfter(1, TimeUnit.MINUTES),
+          new LabeledIntList("one", 4)));
+      Truth.assertThat(f1.get()).isEqualTo(Arrays.asList(1));
+      Truth.assertThat(f2.get()).isEqualTo(Arrays.asList(4));
+      Truth.assertThat(f3.get()).isEqualTo(Arrays.asList(9));
+      Truth.assertThat(f4.get()).isEqualTo(Arrays.asList(16));
+      Truth.assertThat(issuedContexts).hasSize(3);
+      Truth.assertThat(issuedContexts.get(0).getChannel()).isSameAs(channel1);
+      Truth.assertThat(issuedContexts.get(0).getRequest().ints).containsExactly(1, 4).inOrder();
+      Truth.assertThat(issuedContexts.get(1).getChannel()).isSameAs(channel2);
+      Truth.assertThat(issuedContexts.get(1).getRequest().ints).containsExactly(2);
+      Truth.assertThat(issuedContexts.get(2).getChannel()).isSameAs(channel1);
+      Truth.assertThat(issuedContexts.get(2).getCallOptions().getAuthority()).isEqualTo("other");
+      Truth.assertThat(issuedContexts.get(2).getRequest().ints).containsExactly(3);
+    } finally {
+      bundlerFactory.close();
+    }
+  }
+
+  @Test
+  public void bundlingCancellation() throws Exception {
+    final List<LabeledIntList> issuedRequests = new ArrayList<>();
+    FutureCallable<LabeledIntList, List<Integer>> callRecordingSquarer =
+        new FutureCallable<LabeledIntList, List<Integer>>() {
+          @Override
+          public ListenableFuture<List<Integer>> futureCall(CallContext<LabeledIntList> context) {
+            issuedRequests.add(context.getRequest());
+            return callLabeledIntSquarer.futureCall(context);
+          }
+        };
+    BundlingSettings bundlingSettings =
+        BundlingSettings.newBuilder()
+            .setDelayThreshold(Duration.standardSeconds(1))
+            .setElementCountThreshold(2)
+            .setMaxOutstandingElementCount(10L)
+            .setBlockingCallCountThreshold(0)
+            .build();
+    BundlerFactory<LabeledIntList, List<Integer>> bundlerFactory =
+        new BundlerFactory<>(SQUARER_BUNDLING_DESC, bundlingSettings);
+    try {
+      ApiCallable<LabeledIntList, List<Integer>> callable =
+          ApiCallable.<LabeledIntList, List<Integer>>create(callRecordingSquarer)
+              .bundling(SQUARER_BUNDLING_DESC, bundlerFactory);
+      ListenableFuture<List<Integer>> f1 = callable.futureCall(new LabeledIntList("one", 1));
+      Truth.assertThat(f1.cancel(true)).isTrue();
+      ListenableFuture<List<Integer>> f2 = callable.futureCall(new LabeledIntList("one", 2));
+      ListenableFuture<List<Integer>> f3 = callable.futureCall(new LabeledIntList("one", 3));
+      Truth.assertThat(f2.get()).isEqualTo(Arrays.asList(4));
+      Truth.assertThat(f3.get()).isEqualTo(Arrays.asList(9));
+      Truth.assertThat(issuedRequests).hasSize(1);
+      Truth.assertThat(issuedRequests.get(0).ints).containsExactly(2, 3).inOrder();
+      Truth.assertThat(bundlerFactory.getFlowControllers("one").get(0)
+          .getOutstandingElementCount()).isEqualTo(0);
+    } finally {
+      bundlerFactory.close();
+    }
+  }
+
+  private static SpillableBundlingDescriptor<LabeledIntList, List<Integer>>
+      SPILLABLE_SQUARER_BUNDLING_DESC =
+          new SpillableBundlingDescriptor<LabeledIntList, List<Integer>>() {
+            @Override
+            public byte[] serializeRequest(LabeledIntList request) {
+              byte[] label = request.label.getBytes(StandardCharsets.UTF_8);
+              ByteBuffer buffer = ByteBuffer.allocate(4 + label.length + 4 * request.ints.size());
+              buffer.putInt(label.length).put(label);
+              for (Integer i : request.ints) {
+                buffer.putInt(i);
+              }
+              return buffer.array();
+            }
+
+            @Override
+            public LabeledIntList parseRequest(byte[] bytes) {
+              ByteBuffer buffer = ByteBuffer.wrap(bytes);
+              byte[] label = new byte[buffer.getInt()];
+              buffer.get(label);
+              List<Integer> ints = new ArrayList<>();
+              while (buffer.hasRemaining()) {
+                ints.add(buffer.getInt());
+              }
+              return new LabeledIntList(new String(label, StandardCharsets.UTF_8), ints);
+            }
+
+            @Override
+            public String getBundlePartitionKey(LabeledIntList request) {
+              return SQUARER_BUNDLING_DESC.getBundlePartitionKey(request);
+            }
+
+            @Override
+            public LabeledIntList mergeRequests(Collection<LabeledIntList> requests) {
+              return SQUARER_BUNDLING_DESC.mergeRequests(requests);
+            }
+
+            @Override
+            public void splitResponse(
+                List<Integer> bundleResponse,
+                Collection<? extends RequestIssuer<LabeledIntList, List<Integer>>> bundle) {
+              SQUARER_BUNDLING_DESC.splitResponse(bundleResponse, bundle);
+            }
+
+            @Override
+            public void splitException(
+                Throwable throwable,
+                Collection<? extends RequestIssuer<LabeledIntList, List<Integer>>> bundle) {
+              SQUARER_BUNDLING_DESC.splitException(throwable, bundle);
+            }
+
+            @Override
+            public long countElements(LabeledIntList request) {
+              return SQUARER_BUNDLING_DESC.countElements(request);
+            }
+
+            @Override
+            public long countBytes(LabeledIntList request) {
+              return 4 * request.ints.size();
+            }
+          };
+
+  @Test
+  public void bundlingSpill() throws Exception {
+    final BlockingQueue<LabeledIntList> issuedRequests = new LinkedBlockingQueue<>();
+    final BlockingQueue<SettableFuture<List<Integer>>> issuedResponses =
+        new LinkedBlockingQueue<>();
+    FutureCallable<LabeledIntList, List<Integer>> callPending =
+        new FutureCallable<LabeledIntList, List<Integer>>() {
+          @Override
+          public ListenableFuture<List<Integer>> futureCall(CallContext<LabeledIntList> context) {
+            SettableFuture<List<Integer>> response = SettableFuture.create();
+            issuedResponses.add(response);
+            issuedRequests.add(context.getRequest());
+            return response;
+          }
+        };
+    File spillDirectory = folder.newFolder();
+    BundlingSettings bundlingSettings =
+        BundlingSettings.newBuilder()
+            .setDelayThreshold(Duration.standardSeconds(1))
+            .setElementCountThreshold(1)
+            .setBlockingCallCountThreshold(0)
+            .setMaxInFlightBundles(1)
+            .setMaxOutstandingElementCount(100L)
+            .setSpillDirectory(spillDirectory)
+            .setSpillThresholdBytes(8L)
+            .build();
+    BundlerFactory<LabeledIntList, List<Integer>> bundlerFactory =
+        new BundlerFactory<>(SPILLABLE_SQUARER_BUNDLING_DESC, bundlingSettings);
+    try {
+      ApiCallable<LabeledIntList, List<Integer>> callable =
+          ApiCallable.<LabeledIntList, List<Integer>>create(callPending)
+              .bundling(SPILLABLE_SQUARER_BUNDLING_DESC, bundlerFactory);
+      List<ListenableFuture<List<Integer>>> futures = new ArrayList<>();
+      futures.add(callable.futureCall(new LabeledIntList("one", 1)));
+      LabeledIntList request = issuedRequests.poll(1, TimeUnit.SECONDS);
+      Truth.assertThat(request.ints).containsExactly(1);
+      // While the first bundle is in flight, the bundler holds 8 bytes, and the rest of
+      // the requests are spilled.
+      for (int i = 2; i <= 5; i++) {
+        futures.add(callable.futureCall(new LabeledIntList("one", i)));
+      }
+      Truth.assertThat(bundlerFactory.getForwarder("one").getSpilledCount()).isEqualTo(2);
+      Truth.assertThat(spillDirectory.list().length).isEqualTo(1);
+
+      // Answer the bundles one at a time; the spilled requests are sent in order.
+      List<Integer> issuedInts = new ArrayList<>();
+      while (true) {
+        issuedInts.addAll(request.ints);
+        List<Integer> response = new ArrayList<>();
+        for (Integer i : request.ints) {
+          response.add(i * i);
+        }
+        issuedResponses.take().set(response);
+        if (issuedInts.size() == 5) {
+          break;
+        }
+        request = issuedRequests.poll(1, TimeUnit.SECONDS);
+      }
+      Truth.assertThat(issuedInts).containsExactly(1, 2, 3, 4, 5).inOrder();
+      for (int i = 1; i <= 5; i++) {
+        Truth.assertThat(futures.get(i - 1).get()).isEqualTo(Arrays.asList(i * i));
+      }
+      Truth.assertThat(bundlerFactory.getForwarder("one").getSpilledCount()).isEqualTo(0);
+    } finally {
+      bundlerFactory.close();
+    }
+    Truth.assertThat(spillDirectory.list().length).isEqualTo(0);
+  }
+
+  @Test
+  public void bundlingSpillForwardedOnClose() throws Exception {
+    final BlockingQueue<LabeledIntList> issuedRequests = new LinkedBlockingQueue<>();
+    final BlockingQueue<SettableFuture<List<Integer>>> issuedResponses =
+        new LinkedBlockingQueue<>();
+    FutureCallable<LabeledIntList, List<Integer>> callPending =
+        new FutureCallable<LabeledIntList, List<Integer>>() {
+          @Override
+          public ListenableFuture<List<Integer>> futureCall(CallContext<LabeledIntList> context) {
+            SettableFuture<List<Integer>> response = SettableFuture.create();
+            issuedResponses.add(response);
+            issuedRequests.add(context.getRequest());
+            return response;
+          }
+        };
+    File spillDirectory = folder.newFolder();
+    BundlingSettings bundlingSettings =
+        BundlingSettings.newBuilder()
+            .setDelayThreshold(Duration.standardSeconds(1))
+            .setElementCountThreshold(1)
+            .setBlockingCallCountThreshold(0)
+            .setMaxInFlightBundles(1)
+            .setMaxOutstandingElementCount(100L)
+            .setSpillDirectory(spillDirectory)
+            .setSpillThresholdBytes(8L)
+            .build();
+    final BundlerFactory<LabeledIntList, List<Integer>> bundlerFactory =
+        new BundlerFactory<>(SPILLABLE_SQUARER_BUNDLING_DESC, bundlingSettings);
+    Thread closer = new Thread() {
+      @Override
+      public void run() {
+        bundlerFactory.close();
+      }
+    };
+    try {
+      ApiCallable<LabeledIntList, List<Integer>> callable =
+          ApiCallable.<LabeledIntList, List<Integer>>create(callPending)
+              .bundling(SPILLABLE_SQUARER_BUNDLING_DESC, bundlerFactory);
+      List<ListenableFuture<List<Integer>>> futures = new ArrayList<>();
+      futures.add(callable.futureCall(new LabeledIntList("one", 1)));
+      LabeledIntList request = issuedRequests.poll(1, TimeUnit.SECONDS);
+      for (int i = 2; i <= 5; i++) {
+        futures.add(callable.futureCall(new LabeledIntList("one", i)));
+      }
+      Truth.assertThat(bundlerFactory.getForwarder("one").getSpilledCount()).isEqualTo(2);
+      closer.start();
+
+      // Closing still sends one bundle at a time, as the receiver has capacity.
+      List<Integer> issuedInts = new ArrayList<>();
+      while (true) {
+        issuedInts.addAll(request.ints);
+        Truth.assertThat(issuedRequests.poll(50, TimeUnit.MILLISECONDS)).isNull();
+        List<Integer> response = new ArrayList<>();
+        for (Integer i : request.ints) {
+          response.add(i * i);
+        }
+        issuedResponses.take().set(response);
+        if (issuedInts.size() == 5) {
+          break;
+        }
+        request = issuedRequests.poll(1, TimeUnit.SECONDS);
+      }
+      Truth.assertThat(issuedInts).containsExactly(1, 2, 3, 4, 5).inOrder();
+      for (int i = 1; i <= 5; i++) {
+        Truth.assertThat(futures.get(i - 1).get()).isEqualTo(Arrays.asList(i * i));
+      }
+      closer.join(1000);
+      Truth.assertThat(closer.isAlive()).isFalse();
+    } finally {
+      bundlerFactory.close();
+    }
+    Truth.assertThat(spillDirectory.list().length).isEqualTo(0);
+  }
+
+  private static ArenaBundlingDescriptor<LabeledIntList, List<Integer>>
+      ARENA_SQUARER_BUNDLING_DESC =
+          new ArenaBundlingDescriptor<LabeledIntList, List<Integer>>() {
+            @Override
+            public LabeledIntList mergeSerializedRequests(List<ByteBuffer> serializedRequests) {
+              String label = null;
+              List<Integer> ints = new ArrayList<>();
+              for (ByteBuffer buffer : serializedRequests) {
+                byte[] bytes = new byte[buffer.remaining()];
+                buffer.get(bytes);
+                LabeledIntList request = parseRequest(bytes);
+                label = request.label;
+                ints.addAll(request.ints);
+              }
+              return new LabeledIntList(label, ints);
+            }
+
+            @Override
+            public byte[] serializeRequest(LabeledIntList request) {
+              return SPILLABLE_SQUARER_BUNDLING_DESC.serializeRequest(request);
+            }
+
+            @Override
+            public LabeledIntList parseRequest(byte[] bytes) {
+              return SPILLABLE_SQUARER_BUNDLING_DESC.parseRequest(bytes);
+            }
+
+            @Override
+            public String getBundlePartitionKey(LabeledIntList request) {
+              return SQUARER_BUNDLING_DESC.getBundlePartitionKey(request);
+            }
+
+            @Override
+            public LabeledIntList mergeRequests(Collection<LabeledIntList> requests) {
+              throw new UnsupportedOperationException("Requests are merged serialized");
+            }
+
+            @Override
+            public void splitResponse(
+                List<Integer> bundleResponse,
+                Collection<? extends RequestIssuer<LabeledIntList, List<Integer>>> bundle) {
+              SQUARER_BUNDLING_DESC.splitResponse(bundleResponse, bundle);
+            }
+
+            @Override
+            public void splitException(
+                Throwable throwable,
+                Collection<? extends RequestIssuer<LabeledIntList, List<Integer>>> bundle) {
+              SQUARER_BUNDLING_DESC.splitException(throwable, bundle);
+            }
+
+            @Override
+            public long countElements(LabeledIntList request) {
+              return SQUARER_BUNDLING_DESC.countElements(request);
+            }
+
+            @Override
+            public long countBytes(LabeledIntList request) {
+              return SPILLABLE_SQUARER_BUNDLING_DESC.countBytes(request);
+            }
+          };
+
+  @Test
+  public void bundlingArena() throws Exception {
+    BundlingSettings bundlingSettings =
+        BundlingSettings.newBuilder()
+            .setDelayThreshold(Duration.standardSeconds(1))
+            .setElementCountThreshold(4)
+            .setBlockingCallCountThreshold(0)
+            .setArenaChunkBytes(64)
+            .build();
+    BundlerFactory<LabeledIntList, List<Integer>> bundlerFactory =
+        new BundlerFactory<>(ARENA_SQUARER_BUNDLING_DESC, bundlingSettings);
+    try {
+      ApiCallable<LabeledIntList, List<Integer>> callable =
+          ApiCallable.<LabeledIntList, List<Integer>>create(callLabeledIntSquarer)
+              .bundling(ARENA_SQUARER_BUNDLING_DESC, bundlerFactory);
+      ListenableFuture<List<Integer>> f1 = callable.futureCall(new LabeledIntList("one", 1, 2));
+      ListenableFuture<List<Integer>> f2 = callable.futureCall(new LabeledIntList("one", 3));
+      Truth.assertThat(bundlerFactory.getArena("one").getLiveSliceCount()).isEqualTo(2);
+      Truth.assertThat(f1.get()).isEqualTo(Arrays.asList(1, 4));
+      Truth.assertThat(f2.get()).isEqualTo(Arrays.asList(9));
+      Truth.assertThat(bundlerFactory.getArena("one").getLiveSliceCount()).isEqualTo(0);
+    } finally {
+      bundlerFactory.close();
+    }
+  }
+
+  @Test
+  public void bundlingArenaKeepsKeys() {
+    BundlingContext<LabeledIntList, List<Integer>> context = new BundlingContext<>(
+        CallContext.of(new LabeledIntList("one", 3)), null,
+        BundlingFuture.<List<Integer>>create());
+    context.computeKeys(ORDERED_SQUARER_BUNDLING_DESC);
+    context.moveRequestToArena(new DirectByteArena(64, 1), ARENA_SQUARER_BUNDLING_DESC);
+    // Without the request at hand, the keys can only come from the context.
+    context.releaseSerializedRequest();
+    Truth.assertThat(context.getRequest()).isNull();
+    Truth.assertThat(context.getPartitionKey(ORDERED_SQUARER_BUNDLING_DESC)).isEqualTo("one");
+    Truth.assertThat(context.getOrderingKey(ORDERED_SQUARER_BUNDLING_DESC)).isEqualTo(1);
+  }
+
+  /**
+   * A streaming call which records the messages written to it, whose responses are
+   * sent by the test through its listener, and which is ready while the given flag is set.
+   */
+  private static class RecordingStreamCall extends ClientCall<LabeledIntList, List<Integer>> {
+    private final BlockingQueue<LabeledIntList> sentMessages = new LinkedBlockingQueue<>();
+    private volatile ClientCall.Listener<List<Integer>> listener;
+    private volatile boolean cancelled;
+    private final AtomicBoolean ready;
+
+    private RecordingStreamCall(AtomicBoolean ready) {
+      this.ready = ready;
+    }
+
+    @Override
+    public void start(ClientCall.Listener<List<Integer>> listener, Metadata headers) {
+      this.listener = listener;
+    }
+
+    @Override
+    public void request(int numMessages) {}
+
+    @Override
+    public void cancel() {
+      cancelled = true;
+      listener.onClose(Status.CANCELLED, new Metadata());
+    }
+
+    @Override
+    public void halfClose() {}
+
+    @Override
+    public void sendMessage(LabeledIntList message) {
+      sentMessages.add(message);
+    }
+
+    @Override
+    public boolean isReady() {
+      return ready.get();
+    }
+  }
+
+  // Returns a streaming descriptor which bundles like SQUARER_BUNDLING_DESC, and writes
+  // bundles to the streams of the given call factory.
+  private static StreamingBundlingDescriptor<LabeledIntList, List<Integer>>
+      createStreamingDescriptor(
+          final ClientCallFactory<LabeledIntList, List<Integer>> streamCallFactory) {
+    return new StreamingBundlingDescriptor<LabeledIntList, List<Integer>>() {
+      @Override
+      public ClientCallFactory<LabeledIntList, List<Integer>> getStreamingCallFactory() {
+        return streamCallFactory;
+      }
+
+      @Override
+      public String getBundlePartitionKey(LabeledIntList request) {
+        return SQUARER_BUNDLING_DESC.getBundlePartitionKey(request);
+      }
+
+      @Override
+      public LabeledIntList mergeRequests(Collection<LabeledIntList> requests) {
+        return SQUARER_BUNDLING_DESC.mergeRequests(requests);
+      }
+
+      @Override
+      public void splitResponse(
+          List<Integer> bundleResponse,
+          Collection<? extends RequestIssuer<LabeledIntList, List<Integer>>> bundle) {
+        SQUARER_BUNDLING_DESC.splitResponse(bundleResponse, bundle);
+      }
+
+      @Override
+      public void splitException(
+          Throwable throwable,
+          Collection<? extends RequestIssuer<LabeledIntList, List<Integer>>> bundle) {
+        SQUARER_BUNDLING_DESC.splitException(throwable, bundle);
+      }
+
+      @Override
+      public long countElements(LabeledIntList request) {
+        return SQUARER_BUNDLING_DESC.countElements(request);
+      }
+
+      @Override
+      public long countBytes(LabeledIntList request) {
+        return SQUARER_BUNDLING_DESC.countBytes(request);
+      }
+    };
+  }
+
+  @Test
+  public void bundlingStream() throws Exception {
+    final BlockingQueue<RecordingStreamCall> streamCalls = new LinkedBlockingQueue<>();
+    final AtomicBoolean streamsReady = new AtomicBoolean(true);
+    final ClientCallFactory<LabeledIntList, List<Integer>> streamCallFactory =
+        new ClientCallFactory<LabeledIntList, List<Integer>>() {
+          @Override
+          public ClientCall<LabeledIntList, List<Integer>> newCall(
+              Channel channel, CallOptions callOptions) {
+            RecordingStreamCall call = new RecordingStreamCall(streamsReady);
+            streamCalls.add(call);
+            return call;
+          }
+        };
+    StreamingBundlingDescriptor<LabeledIntList, List<Integer>> streamingDescriptor =
+        createStreamingDescriptor(streamCallFactory);
+    BundlingSettings bundlingSettings =
+        BundlingSettings.newBuilder()
+            .setDelayThreshold(Duration.standardSeconds(1))
+            .setElementCountThreshold(1)
+            .setBlockingCallCountThreshold(0)
+            .build();
+    BundlerFactory<LabeledIntList, List<Integer>> bundlerFactory =
+        new BundlerFactory<>(streamingDescriptor, bundlingSettings);
+    try {
+      // The unary callable is not used.
+      ApiCallable<LabeledIntList, List<Integer>> callable =
+          ApiCallable.<LabeledIntList, List<Integer>>create(callLabeledIntSquarer)
+              .bundling(streamingDescriptor, bundlerFactory);
+      Channel channel = Mockito.mock(Channel.class);
+      ListenableFuture<List<Integer>> f1 = callable.futureCall(
+          CallContext.of(channel, CallOptions.DEFAULT, new LabeledIntList("one", 1)));
+      RecordingStreamCall stream = streamCalls.poll(1, TimeUnit.SECONDS);
+      Truth.assertThat(stream.sentMessages.poll(1, TimeUnit.SECONDS).ints).containsExactly(1);
+      ListenableFuture<List<Integer>> f2 = callable.futureCall(
+          CallContext.of(channel, CallOptions.DEFAULT, new LabeledIntList("one", 2)));
+      Truth.assertThat(stream.sentMessages.poll(1, TimeUnit.SECONDS).ints).containsExactly(2);
+      Truth.assertThat(streamCalls).isEmpty();
+
+      // Responses are matched to the bundles in order, and the bundles which are still
+      // waiting fail when the stream breaks.
+      stream.listener.onMessage(Arrays.asList(1));
+      Truth.assertThat(f1.get()).isEqualTo(Arrays.asList(1));
+      stream.listener.onClose(Status.UNAVAILABLE, new Metadata());
+      try {
+        f2.get();
+        Assert.fail("Expected the bundle to fail with the stream");
+      } catch (ExecutionException e) {
+        Truth.assertThat(((StatusRuntimeException) e.getCause()).getStatus().getCode())
+            .isEqualTo(Status.Code.UNAVAILABLE);
+      }
+
+      // The next bundle opens a new stream, which holds bundles back while it is not ready.
+      streamsReady.set(false);
+      ListenableFuture<List<Integer>> f3 = callable.futureCall(
+          CallContext.of(channel, CallOptions.DEFAULT, new LabeledIntList("one", 3)));
+      stream = streamCalls.poll(1, TimeUnit.SECONDS);
+      Truth.assertThat(stream.sentMessages.poll(1, TimeUnit.SECONDS).ints).containsExactly(3);
+      ListenableFuture<List<Integer>> f4 = callable.futureCall(
+          CallContext.of(channel, CallOptions.DEFAULT, new LabeledIntList("one", 4)));
+      Truth.assertThat(stream.sentMessages.poll(100, TimeUnit.MILLISECONDS)).isNull();
+      streamsReady.set(true);
+      stream.listener.onReady();
+      Truth.assertThat(stream.sentMessages.poll(1, TimeUnit.SECONDS).ints).containsExactly(4);
+      stream.listener.onMessage(Arrays.asList(9));
+      stream.listener.onMessage(Arrays.asList(16));
+      Truth.assertThat(f3.get()).isEqualTo(Arrays.asList(9));
+      Truth.assertThat(f4.get()).isEqualTo(Arrays.asList(16));
+    } finally {
+      bundlerFactory.close();
+    }
+  }
+
+  @Test
+  public void bundlingStreamDeadline() throws Exception {
+    final BlockingQueue<RecordingStreamCall> streamCalls = new LinkedBlockingQueue<>();
+    final AtomicBoolean streamsReady = new AtomicBoolean(true);
+    ClientCallFactory<LabeledIntList, List<Integer>> streamCallFactory =
+        new ClientCallFactory<LabeledIntList, List<Integer>>() {
+          @Override
+          public ClientCall<LabeledIntList, List<Integer>> newCall(
+              Channel channel, CallOptions callOptions) {
+            RecordingStreamCall call = new RecordingStreamCall(streamsReady);
+            streamCalls.add(call);
+            return call;
+          }
+        };
+    StreamingBundlingDescriptor<LabeledIntList, List<Integer>> streamingDescriptor =
+        createStreamingDescriptor(streamCallFactory);
+    BundlingSettings bundlingSettings =
+        BundlingSettings.newBuilder()
+            .setDelayThreshold(Duration.standardSeconds(1))
+            .setElementCountThreshold(1)
+            .setBlockingCallCountThreshold(0)
+            .build();
+    BundlerFactory<LabeledIntList, List<Integer>> bundlerFactory =
+        new BundlerFactory<>(streamingDescriptor, bundlingSettings, EXECUTOR);
+    try {
+      ApiCallable<LabeledIntList, List<Integer>> callable =
+          ApiCallable.<LabeledIntList, List<Integer>>create(callLabeledIntSquarer)
+              .bundling(streamingDescriptor, bundlerFactory);
+      Channel channel = Mockito.mock(Channel.class);
+      CallOptions shortDeadline = CallOptions.DEFAULT.withDeadlineNanoTime(
+          System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(200));
+      ListenableFuture<List<Integer>> f1 = callable.futureCall(
+          CallContext.of(channel, shortDeadline, new LabeledIntList("one", 1)));
+      RecordingStreamCall stream = streamCalls.poll(1, TimeUnit.SECONDS);
+      Truth.assertThat(stream.sentMessages.poll(1, TimeUnit.SECONDS).ints).containsExactly(1);
+      ListenableFuture<List<Integer>> f2 = callable.futureCall(
+          CallContext.of(channel, CallOptions.DEFAULT, new LabeledIntList("one", 2)));
+      Truth.assertThat(stream.sentMessages.poll(1, TimeUnit.SECONDS).ints).containsExactly(2);
+
+      // The bundle fails at its deadline without a response, and the stream is
+      // cancelled, which fails the bundle behind it.
+      try {
+        f1.get(1, TimeUnit.SECONDS);
+        Assert.fail("Expected the bundle to fail at its deadline");
+      } catch (ExecutionException e) {
+        Truth.assertThat(((StatusRuntimeException) e.getCause()).getStatus().getCode())
+            .isEqualTo(Status.Code.DEADLINE_EXCEEDED);
+      }
+      try {
+        f2.get(1, TimeUnit.SECONDS);
+        Assert.fail("Expected the bundle to fail with the stream");
+      } catch (ExecutionException e) {
+        Truth.assertThat(((StatusRuntimeException) e.getCause()).getStatus().getCode())
+            .isEqualTo(Status.Code.UNAVAILABLE);
+      }
+      Truth.assertThat(stream.cancelled).isTrue();
+
+      // The next bundle opens a new stream.
+      ListenableFuture<List<Integer>> f3 = callable.futureCall(
+          CallContext.of(channel, CallOptions.DEFAULT, new LabeledIntList("one", 3)));
+      stream = streamCalls.poll(1, TimeUnit.SECONDS);
+      Truth.assertThat(stream.sentMessages.poll(1, TimeUnit.SECONDS).ints).containsExactly(3);
+      stream.listener.onMessage(Arrays.asList(9));
+      Truth.assertThat(f3.get()).isEqualTo(Arrays.asList(9));
+    } finally {
+      bundlerFactory.close();
+    }
+  }
+
+  @Test
+  public void limitingConcurrency() throws Exception {
+    final BlockingQueue<SettableFuture<Integer>> issuedResponses = new LinkedBlockingQueue<>();
+    FutureCallable<Integer, Integer> callPending = new FutureCallable<Integer, Integer>() {
+      @Override
+      public ListenableFuture<Integer> futureCall(CallContext<Integer> context) {
+        SettableFuture<Integer> response = SettableFuture.create();
+        issuedResponses.add(response);
+        return response;
+      }
+    };
+    ConcurrencyLimiter limiter = ConcurrencyLimiter.newBuilder()
+        .setLimitBounds(1, 10)
+        .setInitialLimit(2)
+        .setBackoffRatio(0.5)
+        .build();
+    ApiCallable<Integer, Integer> callable =
+        ApiCallable.<Integer, Integer>create(callPending).limitingConcurrency(limiter);
+    ListenableFuture<Integer> f1 = callable.futureCall(1);
+    ListenableFuture<Integer> f2 = callable.futureCall(2);
+    Truth.assertThat(limiter.getInFlightCount()).isEqualTo(2);
+    Truth.assertThat(limiter.hasCapacity()).isFalse();
+
+    issuedResponses.take().set(1);
+    Truth.assertThat(f1.get()).isEqualTo(1);
+    Truth.assertThat(limiter.getLimit()).isEqualTo(3);
+    issuedResponses.take().setException(Status.UNAVAILABLE.asRuntimeException());
+    try {
+      f2.get();
+      Assert.fail("Expected the call to fail");
+    } catch (ExecutionException e) {
+      Truth.assertThat(limiter.getInFlightCount()).isEqualTo(0);
+      Truth.assertThat(limiter.getLimit()).isEqualTo(1);
+    }
+  }
+
+  @Test
+  public void bundlingConcurrencyLimit() throws Exception {
+    final BlockingQueue<LabeledIntList> issuedRequests = new LinkedBlockingQueue<>();
+    final BlockingQueue<SettableFuture<List<Integer>>> issuedResponses =
+        new LinkedBlockingQueue<>();
+    FutureCallable<LabeledIntList, List<Integer>> callPending =
+        new FutureCallable<LabeledIntList, List<Integer>>() {
+          @Override
+          public ListenableFuture<List<Integer>> futureCall(CallContext<LabeledIntList> context) {
+            SettableFuture<List<Integer>> response = SettableFuture.create();
+            issuedResponses.add(response);
+            issuedRequests.add(context.getRequest());
+            return response;
+          }
+        };
+    ConcurrencyLimiter limiter = ConcurrencyLimiter.newBuilder()
+        .setLimitBounds(1, 1)
+        .build();
+    BundlingSettings bundlingSettings =
+        BundlingSettings.newBuilder()
+            .setDelayThreshold(Duration.standardSeconds(1))
+            .setElementCountThreshold(1)
+            .setBlockingCallCountThreshold(0)
+            .build();
+    BundlerFactory<LabeledIntList, List<Integer>> bundlerFactory =
+        BundlerFactory.newBuilder(SQUARER_BUNDLING_DESC, bundlingSettings)
+            .setConcurrencyLimiter(limiter)
+            .build();
+    try {
+      ApiCallable<LabeledIntList, List<Integer>> callable =
+          ApiCallable.<LabeledIntList, List<Integer>>create(callPending)
+              .bundling(SQUARER_BUNDLING_DESC, bundlerFactory);
+      ListenableFuture<List<Integer>> f1 = callable.futureCall(new LabeledIntList("one", 1));
+      Truth.assertThat(issuedRequests.poll(1, TimeUnit.SECONDS).ints).containsExactly(1);
+      // The limiter allows one bundle in flight, so the next one waits in the bundler.
+      ListenableFuture<List<Integer>> f2 = callable.futureCall(new LabeledIntList("one", 2));
+      Truth.assertThat(issuedRequests.poll(100, TimeUnit.MILLISECONDS)).isNull();
+      Truth.assertThat(limiter.getInFlightCount()).isEqualTo(1);
+
+      issuedResponses.take().set(Arrays.asList(1));
+      Truth.assertThat(f1.get()).isEqualTo(Arrays.asList(1));
+      Truth.assertThat(issuedRequests.poll(1, TimeUnit.SECONDS).ints).containsExactly(2);
+      issuedResponses.take().set(Arrays.asList(4));
+      Truth.assertThat(f2.get()).isEqualTo(Arrays.asList(4));
+    } finally {
+      bundlerFactory.close();
+    }
+  }
+
+  private static OrderedBundlingDescriptor<LabeledIntList, List<Integer>>
+      ORDERED_SQUARER_BUNDLING_DESC =
+          new OrderedBundlingDescriptor<LabeledIntList, List<Integer>>() {
+            @Override
+            public Object getOrderingKey(LabeledIntList request) {
+              return request.ints.get(0) % 2;
+            }
+
+            @Override
+            public String getBundlePartitionKey(LabeledIntList request) {
+              return SQUARER_BUNDLING_DESC.getBundlePartitionKey(request);
+            }
+
+            @Override
+            public LabeledIntList mergeRequests(Collection<LabeledIntList> requests) {
+              return SQUARER_BUNDLING_DESC.mergeRequests(requests);
+            }
+
+            @Override
+            public void splitResponse(
+                List<Integer> bundleResponse,
+                Collection<? extends RequestIssuer<LabeledIntList, List<Integer>>> bundle) {
+              SQUARER_BUNDLING_DESC.splitResponse(bundleResponse, bundle);
+            }
+
+            @Override
+            public void splitException(
+                Throwable throwable,
+                Collection<? extends RequestIssuer<LabeledIntList, List<Integer>>> bundle) {
+              SQUARER_BUNDLING_DESC.splitException(throwable, bundle);
+            }
+
+            @Override
+            public long countElements(LabeledIntList request) {
+              return SQUARER_BUNDLING_DESC.countElements(request);
+            }
+
+            @Override
+            public long countBytes(LabeledIntList request) {
+              return SQUARER_BUNDLING_DESC.countBytes(request);
+            }
+          };
+
+  @Test
+  public void bundlingOrderingKeys() throws Exception {
+    final BlockingQueue<LabeledIntList> issuedRequests = new LinkedBlockingQueue<>();
+    final BlockingQueue<SettableFuture<List<Integer>>> issuedResponses =
+        new LinkedBlockingQueue<>();
+    FutureCallable<LabeledIntList, List<Integer>> callPending =
+        new FutureCallable<LabeledIntList, List<Integer>>() {
+          @Override
+          public ListenableFuture<List<Integer>> futureCall(CallContext<LabeledIntList> context) {
+            SettableFuture<List<Integer>> response = SettableFuture.create();
+            issuedResponses.add(response);
+            issuedRequests.add(context.getRequest());
+            return response;
+          }
+        };
+    BundlingSettings bundlingSettings =
+        BundlingSettings.newBuilder()
+            .setDelayThreshold(Duration.standardSeconds(1))
+            .setElementCountThreshold(1)
+            .setBlockingCallCountThreshold(0)
+            .setMaxInFlightBundles(4)
+            .build();
+    BundlerFactory<LabeledIntList, List<Integer>> bundlerFactory =
+        new BundlerFactory<>(ORDERED_SQUARER_BUNDLING_DESC, bundlingSettings);
+    try {
+      ApiCallable<LabeledIntList, List<Integer>> callable =
+          ApiCallable.<LabeledIntList, List<Integer>>create(callPending)
+              .bundling(ORDERED_SQUARER_BUNDLING_DESC, bundlerFactory);
+      ListenableFuture<List<Integer>> f1 = callable.futureCall(new LabeledIntList("one", 1));
+      Truth.assertThat(issuedRequests.poll(1, TimeUnit.SECONDS).ints).containsExactly(1);
+      SettableFuture<List<Integer>> response1 = issuedResponses.take();
+
+      // 3 has the same ordering key as 1, so it waits for it, but 2 does not.
+      ListenableFuture<List<Integer>> f3 = callable.futureCall(new LabeledIntList("one", 3));
+      ListenableFuture<List<Integer>> f2 = callable.futureCall(new LabeledIntList("one", 2));
+      Truth.assertThat(issuedRequests.poll(1, TimeUnit.SECONDS).ints).containsExactly(2);
+      SettableFuture<List<Integer>> response2 = issuedResponses.take();
+      Truth.assertThat(issuedRequests.poll(100, TimeUnit.MILLISECONDS)).isNull();
+
+      response1.set(Arrays.asList(1));
+      Truth.assertThat(f1.get()).isEqualTo(Arrays.asList(1));
+      Truth.assertThat(issuedRequests.poll(1, TimeUnit.SECONDS).ints).containsExactly(3);
+      issuedResponses.take().set(Arrays.asList(9));
+      response2.set(Arrays.asList(4));
+      Truth.assertThat(f2.get()).isEqualTo(Arrays.asList(4));
+      Truth.assertThat(f3.get()).isEqualTo(Arrays.asList(9));
+    } finally {
+      bundlerFactory.close();
+    }
+  }
+
+  @Test
+  public void bundlingOrderingKeysReleasedWithinLimits() throws Exception {
+    final BlockingQueue<LabeledIntList> issuedRequests = new LinkedBlockingQueue<>();
+    final BlockingQueue<SettableFuture<List<Integer>>> issuedResponses =
+        new LinkedBlockingQueue<>();
+    FutureCallable<LabeledIntList, List<Integer>> callPending =
+        new FutureCallable<LabeledIntList, List<Integer>>() {
+          @Override
+          public ListenableFuture<List<Integer>> futureCall(CallContext<LabeledIntList> context) {
+            SettableFuture<List<Integer>> response = SettableFuture.create();
+            issuedResponses.add(response);
+            issuedRequests.add(context.getRequest());
+            return response;
+          }
+        };
+    BundlingSettings bundlingSettings =
+        BundlingSettings.newBuilder()
+            .setDelayThreshold(Duration.standardSeconds(1))
+            .setElementCountThreshold(1)
+            .setElementCountLimit(1)
+            .setBlockingCallCountThreshold(0)
+            .setMaxInFlightBundles(4)
+            .build();
+    BundlerFactory<LabeledIntList, List<Integer>> bundlerFactory =
+        new BundlerFactory<>(ORDERED_SQUARER_BUNDLING_DESC, bundlingSettings);
+    try {
+      ApiCallable<LabeledIntList, List<Integer>> callable =
+          ApiCallable.<LabeledIntList, List<Integer>>create(callPending)
+              .bundling(ORDERED_SQUARER_BUNDLING_DESC, bundlerFactory);
+      ListenableFuture<List<Integer>> f1 = callable.futureCall(new LabeledIntList("one", 1));
+      Truth.assertThat(issuedRequests.poll(1, TimeUnit.SECONDS).ints).containsExactly(1);
+      SettableFuture<List<Integer>> response1 = issuedResponses.take();
+      ListenableFuture<List<Integer>> f3 = callable.futureCall(new LabeledIntList("one", 3));
+      ListenableFuture<List<Integer>> f5 = callable.futureCall(new LabeledIntList("one", 5));
+      ListenableFuture<List<Integer>> f2 = callable.futureCall(new LabeledIntList("one", 2));
+      Truth.assertThat(issuedRequests.poll(1, TimeUnit.SECONDS).ints).containsExactly(2);
+      issuedResponses.take().set(Arrays.asList(4));
+      Truth.assertThat(f2.get()).isEqualTo(Arrays.asList(4));
+
+      // 3 and 5 go back through the bundler, which keeps them within the element count
+      // limit, and 5 still waits for 3.
+      response1.set(Arrays.asList(1));
+      Truth.assertThat(f1.get()).isEqualTo(Arrays.asList(1));
+      Truth.assertThat(issuedRequests.poll(1, TimeUnit.SECONDS).ints).containsExactly(3);
+      Truth.assertThat(issuedRequests.poll(100, TimeUnit.MILLISECONDS)).isNull();
+      issuedResponses.take().set(Arrays.asList(9));
+      Truth.assertThat(f3.get()).isEqualTo(Arrays.asList(9));
+      Truth.assertThat(issuedRequests.poll(1, TimeUnit.SECONDS).ints).containsExactly(5);
+      issuedResponses.take().set(Arrays.asList(25));
+      Truth.assertThat(f5.get()).isEqualTo(Arrays.asList(25));
+    } finally {
+      bundlerFactory.close();
+    }
+  }
+
+  @Test
+  public void bundlingOrderingKeysKeepBusyPartition() throws Exception {
+    final BlockingQueue<LabeledIntList> issuedRequests = new LinkedBlockingQueue<>();
+    final BlockingQueue<SettableFuture<List<Integer>>> issuedResponses =
+        new LinkedBlockingQueue<>();
+    FutureCallable<LabeledIntList, List<Integer>> callPending =
+        new FutureCallable<LabeledIntList, List<Integer>>() {
+          @Override
+          public ListenableFuture<List<Integer>> futureCall(CallContext<LabeledIntList> context) {
+            SettableFuture<List<Integer>> response = SettableFuture.create();
+            issuedResponses.add(response);
+            issuedRequests.add(context.getRequest());
+            return response;
+          }
+        };
+    BundlingSettings bundlingSettings =
+        BundlingSettings.newBuilder()
+            .setDelayThreshold(Duration.standardSeconds(1))
+            .setElementCountThreshold(1)
+            .setBlockingCallCountThreshold(0)
+            .setMaxInFlightBundles(4)
+            .setMaxPartitionCount(1)
+            .build();
+    BundlerFactory<LabeledIntList, List<Integer>> bundlerFactory =
+        new BundlerFactory<>(ORDERED_SQUARER_BUNDLING_DESC, bundlingSettings);
+    try {
+      ApiCallable<LabeledIntList, List<Integer>> callable =
+          ApiCallable.<LabeledIntList, List<Integer>>create(callPending)
+              .bundling(ORDERED_SQUARER_BUNDLING_DESC, bundlerFactory);
+      ListenableFuture<List<Integer>> f1 = callable.futureCall(new LabeledIntList("one", 1));
+      Truth.assertThat(issuedRequests.poll(1, TimeUnit.SECONDS).ints).containsExactly(1);
+      ListenableFuture<List<Integer>> f3 = callable.futureCall(new LabeledIntList("one", 3));
+
+      // The partition has a bundle in flight and a request held for its key, so it is
+      // not evicted for another partition, whose request fails instead.
+      ListenableFuture<List<Integer>> f2 = callable.futureCall(new LabeledIntList("two", 2));
+      try {
+        f2.get();
+        Assert.fail("Expected the request to fail while all partitions are busy");
+      } catch (ExecutionException e) {
+        Truth.assertThat(e.getCause()).isInstanceOf(ApiException.class);
+        Truth.assertThat(((StatusRuntimeException) e.getCause().getCause()).getStatus()
+            .getCode()).isEqualTo(Status.Code.RESOURCE_EXHAUSTED);
+      }
+      Truth.assertThat(issuedRequests.poll(100, TimeUnit.MILLISECONDS)).isNull();
+
+      // The held request is still sent after the one in flight for its key.
+      issuedResponses.take().set(Arrays.asList(1));
+      Truth.assertThat(f1.get()).isEqualTo(Arrays.asList(1));
+      Truth.assertThat(issuedRequests.poll(1, TimeUnit.SECONDS).ints).containsExactly(3);
+      issuedResponses.take().set(Arrays.asList(9));
+      Truth.assertThat(f3.get()).isEqualTo(Arrays.asList(9));
+
+      // Once the partition is drained, which completes just after the result is sent, it
+      // is evicted for the other one.
+      ListenableFuture<List<Integer>> f4;
+      long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+      do {
+        f4 = callable.futureCall(new LabeledIntList("two", 4));
+      } while (f4.isDone() && System.nanoTime() - deadline < 0);
+      Truth.assertThat(issuedRequests.poll(1, TimeUnit.SECONDS).ints).containsExactly(4);
+      issuedResponses.take().set(Arrays.asList(16));
+      Truth.assertThat(f4.get()).isEqualTo(Arrays.asList(16));
+      Truth.assertThat(bundlerFactory.getPartitionCount()).isEqualTo(1);
+    } finally {
+      bundlerFactory.close();
+    }
+  }
+
+  @Test
+  public void bundlingFutureCallAll() throws Exception {
+    final List<List<Integer>> issuedRequests =
+        Collections.synchronizedList(new ArrayList<List<Integer>>());
+    FutureCallable<LabeledIntList, List<Integer>> callRecordingSquarer =
+        new FutureCallable<LabeledIntList, List<Integer>>() {
+          @Override
+          public ListenableFuture<List<Integer>> futureCall(CallContext<LabeledIntList> context) {
+            issuedRequests.add(context.getRequest().ints);
+            return callLabeledIntSquarer.futureCall(context);
+          }
+        };
+    BundlingSettings bundlingSettings =
+        BundlingSettings.newBuilder()
+            .setDelayThreshold(Duration.millis(100))
+            .setElementCountThreshold(2)
+            .setBlockingCallCountThreshold(0)
+            .build();
+    BundlerFactory<LabeledIntList, List<Integer>> bundlerFactory =
+        new BundlerFactory<>(SQUARER_BUNDLING_DESC, bundlingSettings);
+    try {
+      ApiCallable<LabeledIntList, List<Integer>> callable =
+          ApiCallable.<LabeledIntList, List<Integer>>create(callRecordingSquarer)
+              .bundling(SQUARER_BUNDLING_DESC, bundlerFactory);
+      List<ListenableFuture<List<Integer>>> results = callable.futureCallAll(Arrays.asList(
+          new LabeledIntList("one", 1),
+          new LabeledIntList("one", 2),
+          new LabeledIntList("two", 3),
+          new LabeledIntList("one", 4),
+          new LabeledIntList("one", 5)));
+      Truth.assertThat(Futures.allAsList(results).get())
+          .containsExactly(
+              Arrays.asList(1), Arrays.asList(4), Arrays.asList(9), Arrays.asList(16),
+              Arrays.asList(25))
+          .inOrder();
+      Truth.assertThat(issuedRequests)
+          .containsExactly(Arrays.asList(1, 2), Arrays.asList(4, 5), Arrays.asList(3));
+    } finally {
+      bundlerFactory.close();
+    }
+  }
+
+  private static PackingBundlingDescriptor<LabeledIntList, List<Integer>>
+      PACKING_SQUARER_BUNDLING_DESC =
+          new PackingBundlingDescriptor<LabeledIntList, List<Integer>>() {
+            @Override
+            public LabeledIntList packRequests(List<LabeledIntList> bundleRequests) {
+              List<Integer> ints = new ArrayList<>();
+              for (LabeledIntList request : bundleRequests) {
+                ints.addAll(request.ints);
+              }
+              return new LabeledIntList("packed", ints);
+            }
+
+            @Override
+            public List<List<Integer>> unpackResponse(
+                List<Integer> packedResponse, List<LabeledIntList> bundleRequests) {
+              List<List<Integer>> bundleResponses = new ArrayList<>();
+              int offset = 0;
+              for (LabeledIntList request : bundleRequests) {
+                bundleResponses.add(
+                    packedResponse.subList(offset, offset + request.ints.size()));
+                offset += request.ints.size();
+              }
+              return bundleResponses;
+            }
+
+            @Override
+            public String getBundlePartitionKey(LabeledIntList request) {
+              return SQUARER_BUNDLING_DESC.getBundlePartitionKey(request);
+            }
+
+            @Override
+            public LabeledIntList mergeRequests(Collection<LabeledIntList> requests) {
+              return SQUARER_BUNDLING_DESC.mergeRequests(requests);
+            }
+
+            @Override
+            public void splitResponse(
+                List<Integer> bundleResponse,
+                Collection<? extends RequestIssuer<LabeledIntList, List<Integer>>> bundle) {
+              SQUARER_BUNDLING_DESC.splitResponse(bundleResponse, bundle);
+            }
+
+            @Override
+            public void splitException(
+                Throwable throwable,
+                Collection<? extends RequestIssuer<LabeledIntList, List<Integer>>> bundle) {
+              SQUARER_BUNDLING_DESC.splitException(throwable, bundle);
+            }
+
+            @Override
+            public long countElements(LabeledIntList request) {
+              return SQUARER_BUNDLING_DESC.countElements(request);
+            }
+
+            @Override
+            public long countBytes(LabeledIntList request) {
+              return SQUARER_BUNDLING_DESC.countBytes(request);
+            }
+          };
+
+  @Test
+  public void bundlingPacking() throws Exception {
+    final List<LabeledIntList> issuedRequests =
+        Collections.synchronizedList(new ArrayList<LabeledIntList>());
+    FutureCallable<LabeledIntList, List<Integer>> callRecordingSquarer =
+        new FutureCallable<LabeledIntList, List<Integer>>() {
+          @Override
+          public ListenableFuture<List<Integer>> futureCall(CallContext<LabeledIntList> context) {
+            issuedRequests.add(context.getRequest());
+            return callLabeledIntSquarer.futureCall(context);
+          }
+        };
+    BundlingSettings bundlingSettings =
+        BundlingSettings.newBuilder()
+            .setDelayThreshold(Duration.millis(10))
+            .setElementCountThreshold(10)
+            .setBlockingCallCountThreshold(0)
+            .setPackingDelayThreshold(Duration.millis(200))
+            .build();
+    BundlerFactory<LabeledIntList, List<Integer>> bundlerFactory =
+        new BundlerFactory<>(PACKING_SQUARER_BUNDLING_DESC, bundlingSettings, EXECUTOR);
+    try {
+      ApiCallable<LabeledIntList, List<Integer>> callable =
+          ApiCallable.<LabeledIntList, List<Integer>>create(callRecordingSquarer)
+              .bundling(PACKING_SQUARER_BUNDLING_DESC, bundlerFactory);
+      ListenableFuture<List<Integer>> f1 = callable.futureCall(new LabeledIntList("one", 1));
+      ListenableFuture<List<Integer>> f2 = callable.futureCall(new LabeledIntList("two", 2));
+      ListenableFuture<List<Integer>> f3 = callable.futureCall(new LabeledIntList("three", 3));
+      Truth.assertThat(f1.get()).isEqualTo(Arrays.asList(1));
+      Truth.assertThat(f2.get()).isEqualTo(Arrays.asList(4));
+      Truth.assertThat(f3.get()).isEqualTo(Arrays.asList(9));
+      // The three single-element bundles are packed into one call.
+      Truth.assertThat(issuedRequests).hasSize(1);
+      Truth.assertThat(issuedRequests.get(0).ints).containsExactly(1, 2, 3);
+    } finally {
+      bundlerFactory.close();
+    }
+  }
+
+  @Test
+  public void bundlingPackingWithLimiter() throws Exception {
+    final BlockingQueue<LabeledIntList> issuedRequests = new LinkedBlockingQueue<>();
+    final BlockingQueue<SettableFuture<List<Integer>>> issuedResponses =
+        new LinkedBlockingQueue<>();
+    FutureCallable<LabeledIntList, List<Integer>> callPending =
+        new FutureCallable<LabeledIntList, List<Integer>>() {
+          @Override
+          public ListenableFuture<List<Integer>> futureCall(CallContext<LabeledIntList> context) {
+            SettableFuture<List<Integer>> response = SettableFuture.create();
+            issuedResponses.add(response);
+            issuedRequests.add(context.getRequest());
+            return response;
+          }
+        };
+    final AtomicBoolean dropLastResponse = new AtomicBoolean();
+    PackingBundlingDescriptor<LabeledIntList, List<Integer>> packingDescriptor =
+        new PackingBundlingDescriptor<LabeledIntList, List<Integer>>() {
+          @Override
+          public LabeledIntList packRequests(List<LabeledIntList> bundleRequests) {
+            return PACKING_SQUARER_BUNDLING_DESC.packRequests(bundleRequests);
+          }
+
+          @Override
+          public List<List<Integer>> unpackResponse(
+              List<Integer> packedResponse, List<LabeledIntList> bundleRequests) {
+            List<List<Integer>> bundleResponses =
+                PACKING_SQUARER_BUNDLING_DESC.unpackResponse(packedResponse, bundleRequests);
+            if (dropLastResponse.get()) {
+              return bundleResponses.subList(0, bundleResponses.size() - 1);
+            }
+            return bundleResponses;
+          }
+
+          @Override
+          public String getBundlePartitionKey(LabeledIntList request) {
+            return SQUARER_BUNDLING_DESC.getBundlePartitionKey(request);
+          }
+
+          @Override
+          public LabeledIntList mergeRequests(Collection<LabeledIntList> requests) {
+            return SQUARER_BUNDLING_DESC.mergeRequests(requests);
+          }
+
+          @Override
+          public void splitResponse(
+              List<Integer> bundleResponse,
+              Collection<? extends RequestIssuer<LabeledIntList, List<Integer>>> bundle) {
+            SQUARER_BUNDLING_DESC.splitResponse(bundleResponse, bundle);
+          }
+
+          @Override
+          public void splitException(
+              Throwable throwable,
+              Collection<? extends RequestIssuer<LabeledIntList, List<Integer>>> bundle) {
+            SQUARER_BUNDLING_DESC.splitException(throwable, bundle);
+          }
+
+          @Override
+          public long countElements(LabeledIntList request) {
+            return SQUARER_BUNDLING_DESC.countElements(request);
+          }
+
+          @Override
+          public long countBytes(LabeledIntList request) {
+            return SQUARER_BUNDLING_DESC.countBytes(request);
+          }
+        };
+    ConcurrencyLimiter limiter = ConcurrencyLimiter.newBuilder()
+        .setLimitBounds(1, 10)
+        .setInitialLimit(10)
+        .build();
+    BundlingSettings bundlingSettings =
+        BundlingSettings.newBuilder()
+            .setDelayThreshold(Duration.millis(10))
+            .setElementCountThreshold(10)
+            .setBlockingCallCountThreshold(0)
+            .setPackingDelayThreshold(Duration.millis(200))
+            .build();
+    BundlerFactory<LabeledIntList, List<Integer>> bundlerFactory =
+        BundlerFactory.newBuilder(packingDescriptor, bundlingSettings)
+            .setExecutor(EXECUTOR)
+            .setConcurrencyLimiter(limiter)
+            .build();
+    try {
+      ApiCallable<LabeledIntList, List<Integer>> callable =
+          ApiCallable.<LabeledIntList, List<Integer>>create(callPending)
+              .bundling(packingDescriptor, bundlerFactory);
+      ListenableFuture<List<Integer>> f1 = callable.futureCall(new LabeledIntList("one", 1));
+      ListenableFuture<List<Integer>> f2 = callable.futureCall(new LabeledIntList("two", 2));
+      LabeledIntList packedRequest = issuedRequests.poll(1, TimeUnit.SECONDS);
+      Truth.assertThat(packedRequest.ints).containsExactly(1, 2);
+
+      // The pack is one call of the limiter, although it holds bundles of two partitions.
+      Truth.assertThat(limiter.getInFlightCount()).isEqualTo(1);
+      List<Integer> packedResponse = new ArrayList<>();
+      for (int i : packedRequest.ints) {
+        packedResponse.add(i * i);
+      }
+      issuedResponses.take().set(packedResponse);
+      Truth.assertThat(f1.get()).isEqualTo(Arrays.asList(1));
+      Truth.assertThat(f2.get()).isEqualTo(Arrays.asList(4));
+      Truth.assertThat(limiter.getInFlightCount()).isEqualTo(0);
+
+      // A packed response which unpacks to too few bundle responses fails all bundles.
+      dropLastResponse.set(true);
+      ListenableFuture<List<Integer>> f3 = callable.futureCall(new LabeledIntList("one", 3));
+      ListenableFuture<List<Integer>> f4 = callable.futureCall(new LabeledIntList("two", 4));
+      Truth.assertThat(issuedRequests.poll(1, TimeUnit.SECONDS).ints).containsExactly(3, 4);
+      issuedResponses.take().set(Arrays.asList(9, 16));
+      for (ListenableFuture<List<Integer>> future : Arrays.asList(f3, f4)) {
+        try {
+          future.get();
+          Assert.fail("Expected the bundle to fail");
+        } catch (ExecutionException e) {
+          Truth.assertThat(e.getCause()).isInstanceOf(IllegalStateException.class);
+        }
+      }
+    } finally {
+      bundlerFactory.close();
+    }
+  }
+
+  @Test
+  public void bundlingRateLimit() throws Exception {
+    final List<LabeledIntList> issuedRequests =
+        Collections.synchronizedList(new ArrayList<LabeledIntList>());
+    FutureCallable<LabeledIntList, List<Integer>> callRecordingSquarer =
+        new FutureCallable<LabeledIntList, List<Integer>>() {
+          @Override
+          public ListenableFuture<List<Integer>> futureCall(CallContext<LabeledIntList> context) {
+            issuedRequests.add(context.getRequest());
+            return callLabeledIntSquarer.futureCall(context);
+          }
+        };
+    BundlingSettings bundlingSettings =
+        BundlingSettings.newBuilder()
+            .setDelayThreshold(Duration.standardSeconds(1))
+            .setElementCountThreshold(1)
+            .setBlockingCallCountThreshold(0)
+            .setPartitionMaxBundlesPerSecond(1.0)
+            .build();
+    BundlerFactory<LabeledIntList, List<Integer>> bundlerFactory =
+        new BundlerFactory<>(SQUARER_BUNDLING_DESC, bundlingSettings, EXECUTOR);
+    try {
+      ApiCallable<LabeledIntList, List<Integer>> callable =
+          ApiCallable.<LabeledIntList, List<Integer>>create(callRecordingSquarer)
+              .bundling(SQUARER_BUNDLING_DESC, bundlerFactory);
+      ListenableFuture<List<Integer>> f1 = callable.futureCall(new LabeledIntList("one", 1));
+      Truth.assertThat(f1.get()).isEqualTo(Arrays.asList(1));
+      // The partition has used its bundle for this second, so the next requests wait
+      // in a growing bundle instead of being sent one at a time.
+      ListenableFuture<List<Integer>> f2 = callable.futureCall(new LabeledIntList("one", 2));
+      ListenableFuture<List<Integer>> f3 = callable.futureCall(new LabeledIntList("one", 3));
+      Truth.assertThat(f2.get()).isEqualTo(Arrays.asList(4));
+      Truth.assertThat(f3.get()).isEqualTo(Arrays.asList(9));
+      Truth.assertThat(issuedRequests).hasSize(2);
+      Truth.assertThat(issuedRequests.get(1).ints).containsExactly(2, 3).inOrder();
+    } finally {
+      bundlerFactory.close();
+    }
+  }
+
+  @Test
+  public void bundlingResultExecutor() throws Exception {
+    final BlockingQueue<Runnable> resultTasks = new LinkedBlockingQueue<>();
+    Executor resultExecutor = new Executor() {
+      @Override
+      public void execute(Runnable task) {
+        resultTasks.add(task);
+      }
+    };
+    BundlingSettings bundlingSettings =
+        BundlingSettings.newBuilder()
+            .setDelayThreshold(Duration.standardSeconds(10))
+            .setElementCountThreshold(3)
+            .setBlockingCallCountThreshold(0)
+            .setResultChunkSize(2)
+            .build();
+    BundlerFactory<LabeledIntList, List<Integer>> bundlerFactory =
+        BundlerFactory.newBuilder(SQUARER_BUNDLING_DESC, bundlingSettings)
+            .setResultExecutor(resultExecutor)
+            .build();
+    try {
+      ApiCallable<LabeledIntList, List<Integer>> callable =
+          ApiCallable.<LabeledIntList, List<Integer>>create(callLabeledIntSquarer)
+              .bundling(SQUARER_BUNDLING_DESC, bundlerFactory);
+      ListenableFuture<List<Integer>> f1 = callable.futureCall(new LabeledIntList("one", 1));
+      ListenableFuture<List<Integer>> f2 = callable.futureCall(new LabeledIntList("one", 2));
+      ListenableFuture<List<Integer>> f3 = callable.futureCall(new LabeledIntList("one", 3));
+
+      Runnable firstChunk = resultTasks.poll(10, TimeUnit.SECONDS);
+      Runnable secondChunk = resultTasks.poll(10, TimeUnit.SECONDS);
+      Truth.assertThat(firstChunk).isNotNull();
+      Truth.assertThat(secondChunk).isNotNull();
+      Truth.assertThat(f1.isDone()).isFalse();
+      Truth.assertThat(f3.isDone()).isFalse();
+
+      secondChunk.run();
+      Truth.assertThat(f1.isDone()).isFalse();
+      Truth.assertThat(f2.isDone()).isFalse();
+      Truth.assertThat(f3.get()).isEqualTo(Arrays.asList(9));
+      firstChunk.run();
+      Truth.assertThat(f1.get()).isEqualTo(Arrays.asList(1));
+      Truth.assertThat(f2.get()).isEqualTo(Arrays.asList(4));
+    } finally {
+      bundlerFactory.close();
+    }
+  }
+
+  @Test
+  public void bundlingElementRetry() throws Exception {
+    final List<List<Integer>> issuedInts = Collections.synchronizedList(
+        new ArrayList<List<Integer>>());
+    final AtomicBoolean failedThree = new AtomicBoolean();
+    // Squares the ints, but fails 3 the first time and 5 every time.
+    FutureCallable<LabeledIntList, List<Integer>> callPartlyFailingSquarer =
+        new FutureCallable<LabeledIntList, List<Integer>>() {
+          @Override
+          public ListenableFuture<List<Integer>> futureCall(CallContext<LabeledIntList> context) {
+            List<Integer> result = new ArrayList<>();
+            for (Integer i : context.getRequest().ints) {
+              boolean failed = i == 5 || (i == 3 && failedThree.compareAndSet(false, true));
+              result.add(failed ? -1 : i * i);
+            }
+            issuedInts.add(context.getRequest().ints);
+            return Futures.immediateFuture(result);
+          }
+        };
+    BundlingDescriptor<LabeledIntList, List<Integer>> retryingDescriptor =
+        new BundlingDescriptor<LabeledIntList, List<Integer>>() {
+          @Override
+          public String getBundlePartitionKey(LabeledIntList request) {
+            return SQUARER_BUNDLING_DESC.getBundlePartitionKey(request);
+          }
+
+          @Override
+          public LabeledIntList mergeRequests(Collection<LabeledIntList> requests) {
+            return SQUARER_BUNDLING_DESC.mergeRequests(requests);
+          }
+
+          @Override
+          public void splitResponse(
+              List<Integer> bundleResponse,
+              Collection<? extends RequestIssuer<LabeledIntList, List<Integer>>> bundle) {
+            int index = 0;
+            for (RequestIssuer<LabeledIntList, List<Integer>> responder : bundle) {
+              Integer response = bundleResponse.get(index++);
+              if (response < 0 && responder instanceof RetryableRequestIssuer) {
+                ((RetryableRequestIssuer<LabeledIntList, List<Integer>>) responder)
+                    .setRetryableException(new IllegalStateException("element failed"));
+              } else if (response < 0) {
+                responder.setException(new IllegalStateException("element failed"));
+              } else {
+                responder.setResponse(Arrays.asList(response));
+              }
+            }
+          }
+
+          @Override
+          public void splitException(
+              Throwable throwable,
+              Collection<? extends RequestIssuer<LabeledIntList, List<Integer>>> bundle) {
+            SQUARER_BUNDLING_DESC.splitException(throwable, bundle);
+          }
+
+          @Override
+          public long countElements(LabeledIntList request) {
+            return SQUARER_BUNDLING_DESC.countElements(request);
+          }
+
+          @Override
+          public long countBytes(LabeledIntList request) {
+            return SQUARER_BUNDLING_DESC.countBytes(request);
+          }
+        };
+    BundlingSettings bundlingSettings =
+        BundlingSettings.newBuilder()
+            .setDelayThreshold(Duration.millis(10))
+            .setElementCountThreshold(3)
+            .setBlockingCallCountThreshold(0)
+            .setElementRetryParams(testRetryParams)
+            .build();
+    BundlerFactory<LabeledIntList, List<Integer>> bundlerFactory =
+        new BundlerFactory<>(retryingDescriptor, bundlingSettings);
+    try {
+      ApiCallable<LabeledIntList, List<Integer>> callable =
+          ApiCallable.<LabeledIntList, List<Integer>>create(callPartlyFailingSquarer)
+              .bundling(retryingDescriptor, bundlerFactory);
+      ListenableFuture<List<Integer>> f1 = callable.futureCall(new LabeledIntList("one", 1));
+      ListenableFuture<List<Integer>> f3 = callable.futureCall(new LabeledIntList("one", 3));
+      ListenableFuture<List<Integer>> f5 = callable.futureCall(new LabeledIntList("one", 5));
+      Truth.assertThat(f1.get()).isEqualTo(Arrays.asList(1));
+      Truth.assertThat(f3.get()).isEqualTo(Arrays.asList(9));
+      try {
+        f5.get();
+        Assert.fail("Expected the element to fail once its total timeout is exceeded");
+      } catch (ExecutionException e) {
+        Truth.assertThat(e.getCause()).isInstanceOf(IllegalStateException.class);
+      }
+      // Only the failed elements were sent again: 3 once, and 5 until it timed out. The
+      // retry delays are randomized, so they may be retried in either order.
+      Truth.assertThat(issuedInts.get(0)).containsExactly(1, 3, 5).inOrder();
+      List<Integer> retriedInts = new ArrayList<>();
+      for (List<Integer> ints : issuedInts.subList(1, issuedInts.size())) {
+        retriedInts.addAll(ints);
+      }
+      Truth.assertThat(Collections.frequency(retriedInts, 3)).isEqualTo(1);
+      Truth.assertThat(Collections.frequency(retriedInts, 5))
+          .isEqualTo(retriedInts.size() - 1);
+    } finally {
+      bundlerFactory.close();
+    }
+  }
+
   public void bundlingWithBlockingCallThreshold() throws Exception {
     BundlingSettings bundlingSettings =
         BundlingSettings.newBuilder()
@@ -0,0 +1,173 @@
+/*
+ * Copyright 2015, Google Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ *     * Neither the name of Google Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.google.api.gax.grpc;
+
+import com.google.common.truth.Truth;
+
+import io.grpc.Status;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+@RunWith(JUnit4.class)
+public class ConcurrencyLimiterTest {
+
+  @Test
+  public void testIncreaseWhileLimitUsed() {
+    ConcurrencyLimiter limiter = ConcurrencyLimiter.newBuilder()
+        .setLimitBounds(1, 10)
+        .setInitialLimit(2)
+        .build();
+    Truth.assertThat(limiter.tryAcquire()).isTrue();
+    Truth.assertThat(limiter.tryAcquire()).isTrue();
+    Truth.assertThat(limiter.tryAcquire()).isFalse();
+    Truth.assertThat(limiter.getInFlightCount()).isEqualTo(2);
+
+    limiter.release(TimeUnit.MILLISECONDS.toNanos(10));
+    Truth.assertThat(limiter.getLimit()).isEqualTo(3);
+    // With one call in flight, the limit is not being used, so it does not grow.
+    limiter.release(TimeUnit.MILLISECONDS.toNanos(10));
+    Truth.assertThat(limiter.getLimit()).isEqualTo(3);
+    Truth.assertThat(limiter.getInFlightCount()).isEqualTo(0);
+  }
+
+  @Test
+  public void testDecreaseOnLatencyInflation() {
+    ConcurrencyLimiter limiter = ConcurrencyLimiter.newBuilder()
+        .setLimitBounds(1, 10)
+        .setInitialLimit(10)
+        .setLatencyTolerance(2)
+        .setBackoffRatio(0.5)
+        .build();
+    limiter.tryAcquire();
+    limiter.release(TimeUnit.MILLISECONDS.toNanos(10));
+    Truth.assertThat(limiter.getLimit()).isEqualTo(10);
+    limiter.tryAcquire();
+    limiter.release(TimeUnit.MILLISECONDS.toNanos(30));
+    Truth.assertThat(limiter.getLimit()).isEqualTo(5);
+  }
+
+  @Test
+  public void testDecreaseOnOverload() {
+    ConcurrencyLimiter limiter = ConcurrencyLimiter.newBuilder()
+        .setLimitBounds(2, 10)
+        .setInitialLimit(8)
+        .setBackoffRatio(0.5)
+        .build();
+    limiter.tryAcquire();
+    limiter.release(Status.INVALID_ARGUMENT.asRuntimeException());
+    Truth.assertThat(limiter.getLimit()).isEqualTo(8);
+    limiter.tryAcquire();
+    limiter.release(Status.UNAVAILABLE.asRuntimeException());
+    Truth.assertThat(limiter.getLimit()).isEqualTo(4);
+    limiter.tryAcquire();
+    limiter.release(new ApiException(Status.RESOURCE_EXHAUSTED.asRuntimeException(), false));
+    Truth.assertThat(limiter.getLimit()).isEqualTo(2);
+    // The limit does not go below its lower bound.
+    limiter.tryAcquire();
+    limiter.release(Status.UNAVAILABLE.asRuntimeException());
+    Truth.assertThat(limiter.getLimit()).isEqualTo(2);
+  }
+
+  @Test
+  public void testQueueDepth() throws Exception {
+    final ConcurrencyLimiter limiter = ConcurrencyLimiter.newBuilder()
+        .setLimitBounds(1, 1)
+        .build();
+    limiter.acquire();
+    final CountDownLatch acquired = new CountDownLatch(1);
+    Thread waiter = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          limiter.acquire();
+          acquired.countDown();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    });
+    waiter.start();
+    while (limiter.getQueueDepth() == 0) {
+      Thread.sleep(1);
+    }
+    Truth.assertThat(acquired.await(50, TimeUnit.MILLISECONDS)).isFalse();
+
+    limiter.release(TimeUnit.MILLISECONDS.toNanos(10));
+    Truth.assertThat(acquired.await(1, TimeUnit.SECONDS)).isTrue();
+    Truth.assertThat(limiter.getQueueDepth()).isEqualTo(0);
+    Truth.assertThat(limiter.getInFlightCount()).isEqualTo(1);
+    waiter.join();
+  }
+
+  @Test
+  public void testAcquireAsync() {
+    ConcurrencyLimiter limiter = ConcurrencyLimiter.newBuilder()
+        .setLimitBounds(1, 1)
+        .build();
+    final List<Integer> started = new ArrayList<>();
+    limiter.acquireAsync(new Runnable() {
+      @Override
+      public void run() {
+        started.add(1);
+      }
+    });
+    Truth.assertThat(started).containsExactly(1);
+
+    // Without capacity, the calls wait without blocking the caller.
+    for (final int call : new int[] {2, 3}) {
+      limiter.acquireAsync(new Runnable() {
+        @Override
+        public void run() {
+          started.add(call);
+        }
+      });
+    }
+    Truth.assertThat(started).containsExactly(1);
+    Truth.assertThat(limiter.getQueueDepth()).isEqualTo(2);
+    Truth.assertThat(limiter.hasCapacity()).isFalse();
+
+    // Each call which ends starts the next waiting one, in order.
+    limiter.release(TimeUnit.MILLISECONDS.toNanos(10));
+    Truth.assertThat(started).containsExactly(1, 2).inOrder();
+    limiter.release(Status.INTERNAL.asRuntimeException());
+    Truth.assertThat(started).containsExactly(1, 2, 3).inOrder();
+    Truth.assertThat(limiter.getQueueDepth()).isEqualTo(0);
+    Truth.assertThat(limiter.getInFlightCount()).isEqualTo(1);
+  }
+}